@@ -0,0 +1,68 @@
+package com.rachirib.hapiexample.cache;
+
+import ca.uhn.fhir.model.dstu2.resource.Location;
+import ca.uhn.fhir.model.dstu2.resource.Organization;
+import ca.uhn.fhir.model.dstu2.resource.Practitioner;
+
+/**
+ * Caches of the reference resources that repeat across messages: doctors
+ * and operators, hospital services and locations.
+ * 
+ * The resources are shared by every bundle that references them, across
+ * threads, and are not copied: the bundles are read-only past the
+ * transformation. A consumer may add, remove or re-point the entries of its
+ * bundle, never modify a cached resource. Their ids are built from the same
+ * v2 fields as their cache key, so an uncached resource is identical to the
+ * cached one.
+ */
+public class ReferenceResourceCache {
+
+	/** Entries per resource type when not configured */
+	public static final int DEFAULT_CAPACITY = 10000;
+
+	private final ResourceCache<Practitioner> practitioners;
+	private final ResourceCache<Organization> organizations;
+	private final ResourceCache<Location> locations;
+
+	public ReferenceResourceCache() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * @param capacity
+	 *            entries per resource type, 0 to build every resource again
+	 */
+	public ReferenceResourceCache(int capacity) {
+		practitioners = new ResourceCache<Practitioner>("Practitioner",
+				capacity);
+		organizations = new ResourceCache<Organization>("Organization",
+				capacity);
+		locations = new ResourceCache<Location>("Location", capacity);
+	}
+
+	public ResourceCache<Practitioner> getPractitioners() {
+		return practitioners;
+	}
+
+	public ResourceCache<Organization> getOrganizations() {
+		return organizations;
+	}
+
+	public ResourceCache<Location> getLocations() {
+		return locations;
+	}
+
+	/**
+	 * Drop the entries of every resource type, the counters go on
+	 */
+	public void clear() {
+		practitioners.clear();
+		organizations.clear();
+		locations.clear();
+	}
+
+	@Override
+	public String toString() {
+		return practitioners + ", " + organizations + ", " + locations;
+	}
+}
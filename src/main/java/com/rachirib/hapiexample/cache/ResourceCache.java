@@ -0,0 +1,160 @@
+package com.rachirib.hapiexample.cache;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Bounded, thread safe cache of immutable values with least recently used
+ * eviction and hit/miss counters.
+ * 
+ * Entries are spread over segments by key hash, each segment an access
+ * ordered {@link LinkedHashMap} with its own lock, so threads working on
+ * different keys rarely wait for each other.
+ * 
+ * @param <V>
+ *            cached value, never modified once built
+ */
+public class ResourceCache<V> {
+
+	private static final int SEGMENTS = 16;
+
+	private final String name;
+	private final int capacity;
+	private final Segment<V>[] segments;
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+
+	/**
+	 * @param name
+	 *            used in the statistics
+	 * @param capacity
+	 *            entries kept at most, 0 disables the cache
+	 */
+	@SuppressWarnings("unchecked")
+	public ResourceCache(String name, int capacity) {
+		if (capacity < 0) {
+			throw new IllegalArgumentException("capacity must not be negative");
+		}
+		this.name = name;
+		this.capacity = capacity;
+		this.segments = new Segment[SEGMENTS];
+		int perSegment = (capacity + SEGMENTS - 1) / SEGMENTS;
+		for (int i = 0; i < SEGMENTS; i++) {
+			segments[i] = new Segment<V>(perSegment, evictions);
+		}
+	}
+
+	/**
+	 * @param key
+	 *            v2 identifier of the value
+	 * @param builder
+	 *            builds the value on a miss; it may run more than once for a
+	 *            key when threads miss together, the first value stored wins
+	 * @return the cached value, or the one just built
+	 */
+	public V get(String key, Supplier<V> builder) {
+		if (capacity == 0) {
+			misses.increment();
+			return builder.get();
+		}
+		Segment<V> segment = segments[(key.hashCode() & 0x7fffffff) % SEGMENTS];
+		V value;
+		synchronized (segment) {
+			value = segment.get(key);
+		}
+		if (value != null) {
+			hits.increment();
+			return value;
+		}
+		misses.increment();
+		V built = builder.get();
+		synchronized (segment) {
+			value = segment.get(key);
+			if (value == null) {
+				segment.put(key, built);
+				value = built;
+			}
+		}
+		return value;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	public int size() {
+		int size = 0;
+		for (Segment<V> segment : segments) {
+			synchronized (segment) {
+				size += segment.size();
+			}
+		}
+		return size;
+	}
+
+	public long getHits() {
+		return hits.sum();
+	}
+
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	public long getEvictions() {
+		return evictions.sum();
+	}
+
+	/**
+	 * @return hits / (hits + misses), 0 before the first lookup
+	 */
+	public double getHitRatio() {
+		long h = hits.sum();
+		long total = h + misses.sum();
+		return total == 0 ? 0 : (double) h / total;
+	}
+
+	public void clear() {
+		for (Segment<V> segment : segments) {
+			synchronized (segment) {
+				segment.clear();
+			}
+		}
+	}
+
+	@Override
+	public String toString() {
+		return name + " size=" + size() + " hits=" + getHits() + " misses="
+				+ getMisses() + " evictions=" + getEvictions();
+	}
+
+	private static class Segment<V> extends LinkedHashMap<String, V> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final int capacity;
+		private final transient LongAdder evictions;
+
+		Segment(int capacity, LongAdder evictions) {
+			super(16, 0.75f, true);
+			this.capacity = capacity;
+			this.evictions = evictions;
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, V> eldest) {
+			if (size() > capacity) {
+				evictions.increment();
+				return true;
+			}
+			return false;
+		}
+	}
+}
@@ -0,0 +1,80 @@
+package com.rachirib.hapiexample.codemap;
+
+import ca.uhn.fhir.model.dstu2.composite.CodingDt;
+
+/**
+ * One v2 code of a {@link CodeTable} and the FHIR concept it maps to.
+ * Immutable, shared by every message.
+ */
+public final class CodeMapping {
+
+	private final String v2Code;
+	private final String system;
+	private final String code;
+	private final String display;
+	private final Enum<?> value;
+
+	CodeMapping(String v2Code, String system, String code, String display,
+			Enum<?> value) {
+		this.v2Code = v2Code;
+		this.system = system;
+		this.code = code;
+		this.display = display;
+		this.value = value;
+	}
+
+	/**
+	 * @return the v2 code as written in the code map
+	 */
+	public String getV2Code() {
+		return v2Code;
+	}
+
+	public String getSystem() {
+		return system;
+	}
+
+	public String getCode() {
+		return code;
+	}
+
+	/**
+	 * @return null when the code map has none
+	 */
+	public String getDisplay() {
+		return display;
+	}
+
+	/**
+	 * @return the FHIR enum constant, null for tables without enum
+	 */
+	public Enum<?> getValue() {
+		return value;
+	}
+
+	/**
+	 * @return a new coding for this concept; the strings are shared, nothing
+	 *         else is allocated
+	 */
+	public CodingDt newCoding() {
+		CodingDt coding = new CodingDt(system, code);
+		if (display != null) {
+			coding.setDisplay(display);
+		}
+		return coding;
+	}
+
+	/**
+	 * Fill a coding of a resource with this concept
+	 * 
+	 * @param coding
+	 * @return the coding
+	 */
+	public CodingDt applyTo(CodingDt coding) {
+		coding.setSystem(system).setCode(code);
+		if (display != null) {
+			coding.setDisplay(display);
+		}
+		return coding;
+	}
+}
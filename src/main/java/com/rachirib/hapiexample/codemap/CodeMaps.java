@@ -0,0 +1,217 @@
+package com.rachirib.hapiexample.codemap;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * v2 to FHIR code maps, loaded once from a resource file into
+ * {@link CodeTable}s.
+ * 
+ * The file has one section per v2 table:
+ * 
+ * <pre>
+ * [0001]
+ * system=http://hl7.org/fhir/administrative-gender
+ * enum=ca.uhn.fhir.model.dstu2.valueset.AdministrativeGenderEnum
+ * M=MALE
+ * </pre>
+ * 
+ * and for tables without enum, <code>v2 code=target code|display</code>.
+ */
+public final class CodeMaps {
+
+	/** Code maps shipped with the transformer */
+	public static final String DEFAULT_RESOURCE = "/codemap/v2-fhir-codemaps.properties";
+
+	private final Map<String, CodeTable> tables;
+
+	private CodeMaps(Map<String, CodeTable> tables) {
+		this.tables = tables;
+	}
+
+	/**
+	 * @return the code maps of {@link #DEFAULT_RESOURCE}, loaded on first use
+	 */
+	public static CodeMaps getDefault() {
+		return DefaultHolder.INSTANCE;
+	}
+
+	/**
+	 * @param tableId
+	 *            v2 table, e.g. 0001
+	 * @return
+	 * @throws IllegalArgumentException
+	 *             the table is not in the code maps
+	 */
+	public CodeTable table(String tableId) {
+		CodeTable table = tables.get(tableId);
+		if (table == null) {
+			throw new IllegalArgumentException("No code map for v2 table "
+					+ tableId);
+		}
+		return table;
+	}
+
+	public boolean hasTable(String tableId) {
+		return tables.containsKey(tableId);
+	}
+
+	/**
+	 * Load code maps from the classpath
+	 * 
+	 * @param resource
+	 * @return
+	 */
+	public static CodeMaps load(String resource) {
+		InputStream in = CodeMaps.class.getResourceAsStream(resource);
+		if (in == null) {
+			throw new IllegalArgumentException("Code maps not found: "
+					+ resource);
+		}
+		try {
+			try {
+				return load(in);
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException("Failed to read code maps "
+					+ resource, e);
+		}
+	}
+
+	/**
+	 * Load code maps from a stream, UTF-8 encoded
+	 * 
+	 * @param in
+	 * @return
+	 * @throws IOException
+	 */
+	public static CodeMaps load(InputStream in) throws IOException {
+		BufferedReader reader = new BufferedReader(new InputStreamReader(in,
+				StandardCharsets.UTF_8));
+		Map<String, CodeTable> tables = new HashMap<String, CodeTable>();
+		Section section = null;
+		String line;
+		int lineNumber = 0;
+		while ((line = reader.readLine()) != null) {
+			lineNumber++;
+			line = line.trim();
+			if (line.length() == 0 || line.startsWith("#")) {
+				continue;
+			}
+			if (line.startsWith("[") && line.endsWith("]")) {
+				if (section != null) {
+					tables.put(section.id, section.build());
+				}
+				section = new Section(line.substring(1, line.length() - 1)
+						.trim());
+				continue;
+			}
+			int equals = line.indexOf('=');
+			if (section == null || equals < 1) {
+				throw new IllegalArgumentException("Invalid code map line "
+						+ lineNumber + ": " + line);
+			}
+			section.add(line.substring(0, equals).trim(),
+					line.substring(equals + 1).trim(), lineNumber);
+		}
+		if (section != null) {
+			tables.put(section.id, section.build());
+		}
+		return new CodeMaps(Collections.unmodifiableMap(tables));
+	}
+
+	/**
+	 * Table being read
+	 */
+	private static class Section {
+
+		private final String id;
+		private String system;
+		private Class<? extends Enum<?>> enumType;
+		private final List<String[]> entries = new ArrayList<String[]>();
+
+		Section(String id) {
+			this.id = id;
+		}
+
+		@SuppressWarnings("unchecked")
+		void add(String key, String value, int lineNumber) {
+			if ("system".equals(key)) {
+				system = value;
+			} else if ("enum".equals(key)) {
+				try {
+					Class<?> type = Class.forName(value);
+					if (!type.isEnum()) {
+						throw new IllegalArgumentException("Not an enum: "
+								+ value);
+					}
+					enumType = (Class<? extends Enum<?>>) type;
+				} catch (ClassNotFoundException e) {
+					throw new IllegalArgumentException("Unknown enum "
+							+ value + " line " + lineNumber, e);
+				}
+			} else {
+				entries.add(new String[] { key, value,
+						String.valueOf(lineNumber) });
+			}
+		}
+
+		CodeTable build() {
+			List<CodeMapping> mappings = new ArrayList<CodeMapping>(
+					entries.size());
+			for (String[] entry : entries) {
+				String target = entry[1];
+				String display = null;
+				int bar = target.indexOf('|');
+				if (bar >= 0) {
+					display = target.substring(bar + 1).trim();
+					target = target.substring(0, bar).trim();
+				}
+				Enum<?> value = null;
+				String code = target;
+				if (enumType != null) {
+					value = enumConstant(target, entry[2]);
+					code = codeOf(value);
+				}
+				mappings.add(new CodeMapping(entry[0], system, code, display,
+						value));
+			}
+			return new CodeTable(id, system, mappings);
+		}
+
+		private Enum<?> enumConstant(String name, String lineNumber) {
+			for (Enum<?> constant : enumType.getEnumConstants()) {
+				if (constant.name().equals(name)) {
+					return constant;
+				}
+			}
+			throw new IllegalArgumentException("No constant " + name
+					+ " in " + enumType.getName() + " line " + lineNumber);
+		}
+
+		private static String codeOf(Enum<?> value) {
+			try {
+				Object code = value.getClass().getMethod("getCode")
+						.invoke(value);
+				return code == null ? value.name() : code.toString();
+			} catch (ReflectiveOperationException e) {
+				return value.name();
+			}
+		}
+	}
+
+	private static class DefaultHolder {
+		static final CodeMaps INSTANCE = load(DEFAULT_RESOURCE);
+	}
+}
@@ -0,0 +1,114 @@
+package com.rachirib.hapiexample.codemap;
+
+import java.util.Collection;
+
+/**
+ * Case insensitive lookup of the v2 codes of one table.
+ * 
+ * Codes are kept upper case in an open addressing table built at load time;
+ * a lookup hashes and compares the characters of the code as given, so it
+ * allocates nothing.
+ */
+public final class CodeTable {
+
+	private final String id;
+	private final String system;
+	private final char[][] keys;
+	private final CodeMapping[] mappings;
+	private final int mask;
+
+	CodeTable(String id, String system, Collection<CodeMapping> entries) {
+		this.id = id;
+		this.system = system;
+		int capacity = Integer.highestOneBit(Math.max(4, entries.size() * 2)) << 1;
+		this.keys = new char[capacity][];
+		this.mappings = new CodeMapping[capacity];
+		this.mask = capacity - 1;
+		for (CodeMapping mapping : entries) {
+			char[] key = mapping.getV2Code().toCharArray();
+			for (int i = 0; i < key.length; i++) {
+				key[i] = Character.toUpperCase(key[i]);
+			}
+			int slot = hash(key) & mask;
+			while (keys[slot] != null) {
+				if (matches(keys[slot], mapping.getV2Code())) {
+					throw new IllegalArgumentException("Duplicate code "
+							+ mapping.getV2Code() + " in table " + id);
+				}
+				slot = (slot + 1) & mask;
+			}
+			keys[slot] = key;
+			mappings[slot] = mapping;
+		}
+	}
+
+	public String getId() {
+		return id;
+	}
+
+	/**
+	 * @return FHIR system of the target codes
+	 */
+	public String getSystem() {
+		return system;
+	}
+
+	/**
+	 * @param v2Code
+	 *            any case
+	 * @return the mapping, null when the code is null or not in the table
+	 */
+	public CodeMapping lookup(CharSequence v2Code) {
+		if (v2Code == null || v2Code.length() == 0) {
+			return null;
+		}
+		int slot = hash(v2Code) & mask;
+		char[] key;
+		while ((key = keys[slot]) != null) {
+			if (matches(key, v2Code)) {
+				return mappings[slot];
+			}
+			slot = (slot + 1) & mask;
+		}
+		return null;
+	}
+
+	/**
+	 * @param v2Code
+	 * @param type
+	 *            enum of the table
+	 * @return the enum constant, null when the code is not in the table
+	 */
+	public <E extends Enum<E>> E lookupEnum(CharSequence v2Code, Class<E> type) {
+		CodeMapping mapping = lookup(v2Code);
+		return mapping == null ? null : type.cast(mapping.getValue());
+	}
+
+	private static int hash(CharSequence code) {
+		int h = 0;
+		for (int i = 0; i < code.length(); i++) {
+			h = 31 * h + Character.toUpperCase(code.charAt(i));
+		}
+		return h ^ (h >>> 16);
+	}
+
+	private static int hash(char[] key) {
+		int h = 0;
+		for (char c : key) {
+			h = 31 * h + c;
+		}
+		return h ^ (h >>> 16);
+	}
+
+	private static boolean matches(char[] key, CharSequence code) {
+		if (key.length != code.length()) {
+			return false;
+		}
+		for (int i = 0; i < key.length; i++) {
+			if (key[i] != Character.toUpperCase(code.charAt(i))) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
@@ -0,0 +1,167 @@
+package com.rachirib.hapiexample.dedup;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import com.rachirib.hapiexample.transform.MshHeader;
+
+/**
+ * Spot the messages a sender transmits again, by control id (MSH-10) scoped
+ * by sending application and facility (MSH-3, MSH-4), within a time window.
+ *
+ * The control ids of the messages delivered are kept with the time they
+ * were delivered, in a set of bounded size: the oldest ids are dropped first,
+ * once out of the window or when the set holds its capacity. A message is a
+ * duplicate only when the set holds its id within the window; an id dropped
+ * early for room is let through, and counted by {@link #getEvicted()}, a
+ * sign that the capacity is too small for the window.
+ *
+ * Thread safe.
+ */
+public class DuplicateFilter {
+
+	/** Window when not configured */
+	public static final long DEFAULT_WINDOW_MILLIS = TimeUnit.MINUTES
+			.toMillis(10);
+	/** Ids of the set when not configured */
+	public static final int DEFAULT_CAPACITY = 100000;
+
+	private final long windowMillis;
+	private final int capacity;
+	private final LongSupplier clock;
+
+	/** Guards the set */
+	private final Object lock = new Object();
+	/** Scoped control id to time delivered, oldest first */
+	private final LinkedHashMap<String, Long> recent;
+
+	private final LongAdder checked = new LongAdder();
+	private final LongAdder duplicates = new LongAdder();
+	private final LongAdder evicted = new LongAdder();
+
+	public DuplicateFilter() {
+		this(DEFAULT_WINDOW_MILLIS, DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * @param windowMillis
+	 *            time a control id is remembered for
+	 * @param capacity
+	 *            control ids of the set, the oldest are evicted first
+	 */
+	public DuplicateFilter(long windowMillis, int capacity) {
+		this(windowMillis, capacity, new LongSupplier() {
+			@Override
+			public long getAsLong() {
+				return System.currentTimeMillis();
+			}
+		});
+	}
+
+	DuplicateFilter(long windowMillis, int capacity, LongSupplier clock) {
+		if (windowMillis < 1 || capacity < 1) {
+			throw new IllegalArgumentException(
+					"window and capacity must be positive");
+		}
+		this.windowMillis = windowMillis;
+		this.capacity = capacity;
+		this.clock = clock;
+		this.recent = new LinkedHashMap<String, Long>(
+				Math.min(capacity, 1024) * 2);
+	}
+
+	/**
+	 * Check the control id of a message without remembering it, see
+	 * {@link #delivered(MshHeader)}
+	 *
+	 * @param msh
+	 * @return true when the message was delivered already within the window
+	 */
+	public boolean isDuplicate(MshHeader msh) {
+		String controlId = msh.getControlId();
+		if (controlId == null) {
+			return false;
+		}
+		String key = key(msh, controlId);
+		long now = clock.getAsLong();
+		checked.increment();
+		synchronized (lock) {
+			Long seen = recent.get(key);
+			if (seen != null && now - seen.longValue() < windowMillis) {
+				duplicates.increment();
+				return true;
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * Remember the control id of a message once it was delivered, so that
+	 * a retransmission arriving meanwhile is handled rather than reported a
+	 * duplicate of a message that may still fail
+	 *
+	 * @param msh
+	 */
+	public void delivered(MshHeader msh) {
+		String controlId = msh.getControlId();
+		if (controlId == null) {
+			return;
+		}
+		String key = key(msh, controlId);
+		long now = clock.getAsLong();
+		synchronized (lock) {
+			recent.remove(key);
+			recent.put(key, Long.valueOf(now));
+			Iterator<Long> seen = recent.values().iterator();
+			while (seen.hasNext()) {
+				long age = now - seen.next().longValue();
+				if (age < windowMillis) {
+					if (recent.size() <= capacity) {
+						return;
+					}
+					evicted.increment();
+				}
+				seen.remove();
+			}
+		}
+	}
+
+	/** @return messages with a control id checked */
+	public long getChecked() {
+		return checked.sum();
+	}
+
+	/** @return messages found duplicate */
+	public long getDuplicates() {
+		return duplicates.sum();
+	}
+
+	/**
+	 * @return control ids dropped for room within their window, their
+	 *         retransmissions let through
+	 */
+	public long getEvicted() {
+		return evicted.sum();
+	}
+
+	/**
+	 * @return control ids in the set
+	 */
+	public int size() {
+		synchronized (lock) {
+			return recent.size();
+		}
+	}
+
+	private static String key(MshHeader msh, String controlId) {
+		String application = msh.getSendingApplication();
+		String facility = msh.getSendingFacility();
+		return new StringBuilder(controlId.length() + 32)
+				.append(application == null ? "" : application).append('|')
+				.append(facility == null ? "" : facility).append('|')
+				.append(controlId).toString();
+	}
+}
@@ -0,0 +1,29 @@
+package com.rachirib.hapiexample.dedup;
+
+/**
+ * Hash of strings, for the keys of {@link PatientStateStore} and the
+ * fingerprints of encoded resources
+ */
+public final class Hashes {
+
+	private Hashes() {
+	}
+
+	/**
+	 * 64-bit FNV-1a with a final mix
+	 *
+	 * @param key
+	 * @return the hash of the characters of the key
+	 */
+	public static long hash(String key) {
+		long hash = 0xcbf29ce484222325L;
+		for (int i = 0; i < key.length(); i++) {
+			hash ^= key.charAt(i);
+			hash *= 0x100000001b3L;
+		}
+		hash ^= hash >>> 33;
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= hash >>> 33;
+		return hash;
+	}
+}
@@ -0,0 +1,356 @@
+package com.rachirib.hapiexample.dedup;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.rachirib.hapiexample.transform.PatientKey;
+import com.rachirib.hapiexample.transform.ResourceIds;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.model.api.IResource;
+import ca.uhn.fhir.model.dstu2.composite.ResourceReferenceDt;
+import ca.uhn.fhir.model.dstu2.resource.Bundle;
+import ca.uhn.fhir.model.dstu2.resource.Patient;
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.util.FhirTerser;
+
+/**
+ * Last Patient emitted for each patient, so that a bundle carries its Patient
+ * only when it changed: an A08 correcting the visit, or sent again with the
+ * same demographics, leaves the Patient of the receiver as it is.
+ *
+ * The patients are keyed by {@link PatientKey}, PID-3.1 and its assigning
+ * authority, and a patient is remembered by a 64-bit fingerprint of the JSON
+ * of its Patient, contacts included, in a hash table of a memory mapped file:
+ * 16 bytes a patient, kept across restarts and out of the heap. The receiver
+ * keeps the Patient it had: its id is derived from the same identifier, and
+ * the references of the bundle to the dropped entry become relative ones,
+ * <code>Patient/&lt;id&gt;</code>.
+ *
+ * A Patient is recorded by {@link #update(String, long)} once the receiver
+ * has its bundle, so a bundle lost on the way does not leave the receiver
+ * without the Patient. The messages of a patient must be handled in order, on
+ * the lanes of a {@link com.rachirib.hapiexample.transform.PartitionedTransformer}
+ * or on one thread, else an older Patient could be recorded after a newer
+ * one. Once the table holds its capacity, the new patients are emitted every
+ * time.
+ *
+ * Thread safe.
+ */
+public class PatientStateStore implements Closeable {
+
+	private static final Logger LOG = LoggerFactory
+			.getLogger(PatientStateStore.class);
+
+	/** "PST1" */
+	private static final int MAGIC = 0x50535431;
+	/** Magic, slot count and reserved bytes */
+	private static final int HEADER = 16;
+	/** Hash of the key and fingerprint */
+	private static final int SLOT = 16;
+	/** Slots of the largest table, within one mapping */
+	private static final int MAX_SLOTS = 1 << 26;
+	/** Hash of the empty slots */
+	private static final long EMPTY = 0;
+
+	/** Returned by {@link #retainChanged(String, Bundle)} with nothing to record */
+	public static final long NONE = 0;
+
+	private final Path path;
+	private final FileChannel channel;
+	private final MappedByteBuffer table;
+	private final int slots;
+	private final int capacity;
+	private final ThreadLocal<IParser> parsers;
+	private final FhirTerser terser;
+
+	/** Guards the table and {@link #size} */
+	private final Object lock = new Object();
+	private int size;
+	private volatile boolean closed;
+
+	private final LongAdder changed = new LongAdder();
+	private final LongAdder unchanged = new LongAdder();
+	private final LongAdder overflow = new LongAdder();
+
+	/**
+	 * Open or create a store
+	 *
+	 * @param path
+	 * @param capacity
+	 *            patients of a new store; an existing one keeps its own
+	 * @param fhirContext
+	 *            encodes the Patients to fingerprint
+	 * @throws IOException
+	 *             the file is not a patient store
+	 */
+	public PatientStateStore(Path path, int capacity,
+			final FhirContext fhirContext) throws IOException {
+		if (capacity < 1 || capacity > MAX_SLOTS / 4 * 3) {
+			throw new IllegalArgumentException("capacity must be within 1 and "
+					+ MAX_SLOTS / 4 * 3);
+		}
+		this.path = path;
+		this.channel = FileChannel.open(path, StandardOpenOption.CREATE,
+				StandardOpenOption.READ, StandardOpenOption.WRITE);
+		boolean opened = false;
+		try {
+			int slotCount;
+			if (channel.size() == 0) {
+				// three quarters full at most, so that probes stay short
+				int needed = (int) ((capacity * 4L + 2) / 3);
+				slotCount = Math.max(4, Integer.highestOneBit(needed - 1) << 1);
+				table = map(slotCount);
+				table.putInt(4, slotCount);
+				table.putInt(0, MAGIC);
+			} else {
+				MappedByteBuffer header = channel.map(
+						FileChannel.MapMode.READ_ONLY, 0, HEADER);
+				slotCount = header.getInt(4);
+				if (header.getInt(0) != MAGIC
+						|| Integer.bitCount(slotCount) != 1
+						|| slotCount > MAX_SLOTS
+						|| channel.size() != HEADER + (long) slotCount * SLOT) {
+					throw new IOException(path + " is not a patient store");
+				}
+				table = map(slotCount);
+			}
+			this.slots = slotCount;
+			this.capacity = slotCount / 4 * 3;
+			for (int slot = 0; slot < slotCount; slot++) {
+				if (table.getLong(offset(slot)) != EMPTY) {
+					size++;
+				}
+			}
+			opened = true;
+		} finally {
+			if (!opened) {
+				channel.close();
+			}
+		}
+		this.parsers = new ThreadLocal<IParser>() {
+			@Override
+			protected IParser initialValue() {
+				return fhirContext.newJsonParser();
+			}
+		};
+		this.terser = fhirContext.newTerser();
+		LOG.debug("Patient store {} opened with {} patients", path,
+				Integer.valueOf(size));
+	}
+
+	/**
+	 * Drop the Patient of a bundle when it is the one last recorded for the
+	 * patient, the references to it made relative. Nothing is recorded: the
+	 * fingerprint returned is passed to {@link #update(String, long)} once
+	 * the bundle is delivered.
+	 *
+	 * @param key
+	 *            of the patient, see {@link PatientKey#of(String)}; null to
+	 *            keep the bundle as it is
+	 * @param bundle
+	 * @return fingerprint of the Patient kept, {@link #NONE} when the Patient
+	 *         was dropped or the bundle kept as it is
+	 */
+	public long retainChanged(String key, Bundle bundle) {
+		if (key == null) {
+			return NONE;
+		}
+		Bundle.Entry patientEntry = null;
+		for (Bundle.Entry entry : bundle.getEntry()) {
+			if (entry.getResource() instanceof Patient) {
+				if (patientEntry != null) {
+					// several patients, none of them is the one of the key
+					return NONE;
+				}
+				patientEntry = entry;
+			}
+		}
+		if (patientEntry == null) {
+			return NONE;
+		}
+		IResource patient = patientEntry.getResource();
+		long fingerprint = fingerprint(patient);
+		if (!isRecorded(key, fingerprint)) {
+			return fingerprint;
+		}
+		unchanged.increment();
+		for (Iterator<Bundle.Entry> entries = bundle.getEntry().iterator(); entries
+				.hasNext();) {
+			if (entries.next() == patientEntry) {
+				entries.remove();
+			}
+		}
+		String id = patient.getId().getIdPart();
+		String absolute = ResourceIds.URN_UUID + id;
+		for (Bundle.Entry entry : bundle.getEntry()) {
+			for (ResourceReferenceDt reference : terser
+					.getAllPopulatedChildElementsOfType(entry.getResource(),
+							ResourceReferenceDt.class)) {
+				if (absolute.equals(reference.getReference().getValue())) {
+					reference.setResource(null);
+					reference.setReference("Patient/" + id);
+				}
+			}
+		}
+		return NONE;
+	}
+
+	/**
+	 * @param key
+	 * @param fingerprint
+	 * @return true when it is the fingerprint recorded for the patient
+	 */
+	public boolean isRecorded(String key, long fingerprint) {
+		long hash = hash(key);
+		synchronized (lock) {
+			if (closed) {
+				throw new IllegalStateException("Patient store is closed");
+			}
+			int offset = find(hash);
+			return table.getLong(offset) == hash
+					&& table.getLong(offset + 8) == fingerprint;
+		}
+	}
+
+	/**
+	 * Record the fingerprint of a patient
+	 *
+	 * @param key
+	 * @param fingerprint
+	 * @return false when it is the one recorded already
+	 */
+	public boolean update(String key, long fingerprint) {
+		long hash = hash(key);
+		synchronized (lock) {
+			if (closed) {
+				throw new IllegalStateException("Patient store is closed");
+			}
+			int offset = find(hash);
+			if (table.getLong(offset) == hash) {
+				if (table.getLong(offset + 8) == fingerprint) {
+					unchanged.increment();
+					return false;
+				}
+				table.putLong(offset + 8, fingerprint);
+				changed.increment();
+				return true;
+			}
+			changed.increment();
+			if (size == capacity) {
+				overflow.increment();
+				return true;
+			}
+			// the hash last, a torn slot is empty
+			table.putLong(offset + 8, fingerprint);
+			table.putLong(offset, hash);
+			size++;
+			return true;
+		}
+	}
+
+	/**
+	 * @param resource
+	 * @return fingerprint of the JSON of a resource, never {@link #NONE}
+	 */
+	public long fingerprint(IResource resource) {
+		long fingerprint = Hashes.hash(parsers.get()
+				.encodeResourceToString(resource));
+		return fingerprint == NONE ? 1 : fingerprint;
+	}
+
+	/**
+	 * Write the table to disk
+	 */
+	public void sync() {
+		synchronized (lock) {
+			if (!closed) {
+				table.force();
+			}
+		}
+	}
+
+	/** @return patients recorded */
+	public int size() {
+		synchronized (lock) {
+			return size;
+		}
+	}
+
+	/** @return patients the store can hold */
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/** @return Patients new or changed, emitted */
+	public long getChanged() {
+		return changed.sum();
+	}
+
+	/** @return Patients the same as the last one, dropped */
+	public long getUnchanged() {
+		return unchanged.sum();
+	}
+
+	/** @return new patients not recorded, the store being full */
+	public long getOverflow() {
+		return overflow.sum();
+	}
+
+	public Path getPath() {
+		return path;
+	}
+
+	@Override
+	public void close() throws IOException {
+		synchronized (lock) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			table.force();
+		}
+		channel.close();
+	}
+
+	/**
+	 * Called with the lock held; the table is never full, capacity is three
+	 * quarters of the slots
+	 *
+	 * @return offset of the slot of the hash, or of the empty slot ending its
+	 *         probe
+	 */
+	private int find(long hash) {
+		int mask = slots - 1;
+		for (int slot = (int) hash & mask;; slot = (slot + 1) & mask) {
+			int offset = offset(slot);
+			long slotHash = table.getLong(offset);
+			if (slotHash == hash || slotHash == EMPTY) {
+				return offset;
+			}
+		}
+	}
+
+	private static long hash(String key) {
+		long hash = Hashes.hash(key);
+		return hash == EMPTY ? 1 : hash;
+	}
+
+	private MappedByteBuffer map(int slotCount) throws IOException {
+		return channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER
+				+ (long) slotCount * SLOT);
+	}
+
+	private static int offset(int slot) {
+		return HEADER + slot * SLOT;
+	}
+}
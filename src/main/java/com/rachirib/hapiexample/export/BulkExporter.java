@@ -0,0 +1,581 @@
+package com.rachirib.hapiexample.export;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.StringWriter;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.json.Json;
+import javax.json.stream.JsonGenerator;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.rachirib.hapiexample.dedup.Hashes;
+import com.rachirib.hapiexample.dedup.PatientStateStore;
+import com.rachirib.hapiexample.stream.Hl7MessageReader;
+import com.rachirib.hapiexample.transform.ResourceIds;
+import com.rachirib.hapiexample.transform.TransformerFactory;
+import com.rachirib.hapiexample.transform.VersionTwoToFHIR;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.model.api.IResource;
+import ca.uhn.fhir.model.dstu2.resource.Bundle;
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.hl7v2.HL7Exception;
+
+/**
+ * Bulk export of archived v2 messages, for backfills: the messages of the
+ * files of a directory are transformed in parallel, a file per thread, and
+ * their resources written by the calling thread to one NDJSON file per
+ * resource type,
+ * <code>Patient.ndjson</code>, <code>Encounter.ndjson</code>..., instead of
+ * a bundle per message.
+ *
+ * A resource is written once for its id and content across the run: the
+ * same Practitioner of every visit is written once, a Patient again only
+ * when it changed. The ids are those of {@link ResourceIds}, the references
+ * are relative, <code>Patient/&lt;id&gt;</code>. What was written is
+ * remembered in a table of the output directory, see
+ * {@link PatientStateStore}; once it holds its capacity, the new resources
+ * are written every time. A message that cannot be transformed is written
+ * to <code>rejects.ndjson</code> with its file and error, to export again
+ * once the cause is fixed.
+ *
+ * A checkpoint records the input files exported and the length of the
+ * output files then. An export to a directory with a checkpoint resumes it:
+ * the output files are cut to their checkpoint length, the table is rebuilt
+ * from them, and the files not exported are, the new ones included. The
+ * files are written in the order of their names, the messages of a file in
+ * order, so the last version of a Patient is the one of the last message;
+ * the threads transforming the next files wait once they are
+ * {@link #PENDING_MESSAGES} messages ahead.
+ */
+public class BulkExporter {
+
+	private static final Logger LOG = LoggerFactory
+			.getLogger(BulkExporter.class);
+
+	/** Files of the export in the output directory */
+	public static final String CHECKPOINT = "export.checkpoint";
+	public static final String WRITTEN = "export.written";
+	/** Output file of the messages that could not be transformed, NDJSON */
+	public static final String REJECTS = "rejects";
+
+	private static final String REFERENCE = "\"reference\":\""
+			+ ResourceIds.URN_UUID;
+	private static final String TYPE_PREFIX = "{\"resourceType\":\"";
+	private static final String ID_PREFIX = "\",\"id\":\"";
+
+	/** Messages transformed ahead of the writer, by file */
+	static final int PENDING_MESSAGES = 1024;
+	/** Ends the resources of a file */
+	private static final List<Resource> END = new ArrayList<Resource>(0);
+
+	private final VersionTwoToFHIR transformer;
+	private final FhirContext fhirContext;
+	private final ExportConfig config;
+	private final ThreadLocal<IParser> parsers;
+
+	/**
+	 * An exporter encoding with the context of
+	 * {@link TransformerFactory#getDefault()}
+	 *
+	 * @param transformer
+	 * @param config
+	 */
+	public BulkExporter(VersionTwoToFHIR transformer, ExportConfig config) {
+		this(transformer, TransformerFactory.getDefault().getFhirContext(),
+				config);
+	}
+
+	/**
+	 * @param transformer
+	 * @param fhirContext
+	 *            encodes the resources
+	 * @param config
+	 */
+	public BulkExporter(VersionTwoToFHIR transformer,
+			final FhirContext fhirContext, ExportConfig config) {
+		this.transformer = transformer;
+		this.fhirContext = fhirContext;
+		this.config = config;
+		this.parsers = new ThreadLocal<IParser>() {
+			@Override
+			protected IParser initialValue() {
+				return fhirContext.newJsonParser().setPrettyPrint(false);
+			}
+		};
+	}
+
+	/**
+	 * Export the files of a directory not exported yet
+	 *
+	 * @param inputDirectory
+	 * @param outputDirectory
+	 *            created when missing; resumed when it holds a checkpoint
+	 * @return the counts of this run
+	 * @throws IOException
+	 *             reading an input file or writing the output; the export
+	 *             resumes from the last file exported
+	 */
+	public ExportReport export(Path inputDirectory, Path outputDirectory)
+			throws IOException {
+		long start = System.nanoTime();
+		Files.createDirectories(outputDirectory);
+		ExportCheckpoint checkpoint = new ExportCheckpoint(
+				outputDirectory.resolve(CHECKPOINT));
+		boolean resumed = checkpoint.load();
+
+		List<Path> inputs = new ArrayList<Path>();
+		DirectoryStream<Path> directory = Files.newDirectoryStream(
+				inputDirectory, config.getFilePattern());
+		try {
+			for (Path input : directory) {
+				if (Files.isRegularFile(input)
+						&& !checkpoint.isDone(input.getFileName().toString())) {
+					inputs.add(input);
+				}
+			}
+		} finally {
+			directory.close();
+		}
+		Collections.sort(inputs);
+		if (resumed) {
+			LOG.info("Resuming the export to {}, {} files done, {} to do",
+					new Object[] { outputDirectory,
+							Integer.valueOf(checkpoint.getDone().size()),
+							Integer.valueOf(inputs.size()) });
+		}
+
+		Map<String, NdjsonFile> outputs = new LinkedHashMap<String, NdjsonFile>();
+		NdjsonFile rejects = null;
+		Path writtenPath = outputDirectory.resolve(WRITTEN);
+		Files.deleteIfExists(writtenPath);
+		PatientStateStore written = null;
+		Throwable failure = null;
+		try {
+			for (String type : config.getResourceTypes()) {
+				outputs.put(type, output(outputDirectory, type, checkpoint));
+			}
+			rejects = output(outputDirectory, REJECTS, checkpoint);
+			written = new PatientStateStore(writtenPath,
+					config.getDedupCapacity(), fhirContext);
+			if (resumed) {
+				for (NdjsonFile output : outputs.values()) {
+					remember(output, written);
+				}
+			}
+			Run run = new Run(checkpoint, outputs, rejects, written);
+			run.export(inputs);
+			ExportReport report = run.report(System.nanoTime() - start);
+			LOG.info("Export to {}: {}", outputDirectory, report);
+			return report;
+		} catch (IOException e) {
+			failure = e;
+			throw e;
+		} catch (RuntimeException e) {
+			failure = e;
+			throw e;
+		} catch (Error e) {
+			failure = e;
+			throw e;
+		} finally {
+			IOException error = null;
+			List<NdjsonFile> files = new ArrayList<NdjsonFile>(outputs.values());
+			if (rejects != null) {
+				files.add(rejects);
+			}
+			for (NdjsonFile output : files) {
+				try {
+					output.close();
+				} catch (IOException e) {
+					error = closeFailed(failure, error, e);
+				}
+			}
+			if (written != null) {
+				try {
+					written.close();
+				} catch (IOException e) {
+					error = closeFailed(failure, error, e);
+				}
+			}
+			if (error != null) {
+				throw error;
+			}
+		}
+	}
+
+	/**
+	 * @return the NDJSON file of a name in the output directory, cut to its
+	 *         checkpoint length
+	 */
+	private NdjsonFile output(Path outputDirectory, String name,
+			ExportCheckpoint checkpoint) throws IOException {
+		String file = name + (config.isGzip() ? ".ndjson.gz" : ".ndjson");
+		return new NdjsonFile(outputDirectory.resolve(file), config.isGzip(),
+				checkpoint.getLength(file));
+	}
+
+	/**
+	 * Keep the failure of the export as the one thrown, the failures to
+	 * close suppressed by it
+	 *
+	 * @return the failure to close to throw, null when the export failed
+	 */
+	private static IOException closeFailed(Throwable failure,
+			IOException error, IOException e) {
+		if (failure != null) {
+			failure.addSuppressed(e);
+			return null;
+		}
+		if (error != null) {
+			error.addSuppressed(e);
+			return error;
+		}
+		return e;
+	}
+
+	/**
+	 * Record the resources of an output file, to leave them out of what
+	 * follows
+	 */
+	private void remember(NdjsonFile output, PatientStateStore written)
+			throws IOException {
+		if (output.commit() == 0) {
+			return;
+		}
+		BufferedReader reader = NdjsonFile.read(output.getPath(),
+				config.isGzip());
+		try {
+			String json;
+			while ((json = reader.readLine()) != null) {
+				written.update(key(json), Hashes.hash(json));
+			}
+		} finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * @return type and id of an encoded resource
+	 */
+	private String key(String json) {
+		if (json.startsWith(TYPE_PREFIX)) {
+			int typeEnd = json.indexOf('"', TYPE_PREFIX.length());
+			if (typeEnd > 0 && json.startsWith(ID_PREFIX, typeEnd)) {
+				int idStart = typeEnd + ID_PREFIX.length();
+				int idEnd = json.indexOf('"', idStart);
+				if (idEnd > 0) {
+					return json.substring(TYPE_PREFIX.length(), typeEnd) + "/"
+							+ json.substring(idStart, idEnd);
+				}
+			}
+		}
+		// not as encoded here, the parser finds them
+		IResource resource = (IResource) parsers.get().parseResource(json);
+		return resource.getResourceName() + "/"
+				+ resource.getId().getIdPart();
+	}
+
+	/**
+	 * @param json
+	 *            of a resource of a bundle
+	 * @param types
+	 *            of the entries of the bundle, by id
+	 * @return the JSON with relative references to the entries
+	 */
+	static String relativeReferences(String json, Map<String, String> types) {
+		int reference = json.indexOf(REFERENCE);
+		if (reference < 0) {
+			return json;
+		}
+		StringBuilder relative = new StringBuilder(json.length());
+		int copied = 0;
+		while (reference >= 0) {
+			int idStart = reference + REFERENCE.length();
+			int idEnd = json.indexOf('"', idStart);
+			String type = idEnd < 0 ? null : types.get(json.substring(idStart,
+					idEnd));
+			if (type != null) {
+				int value = idStart - ResourceIds.URN_UUID.length();
+				relative.append(json, copied, value).append(type).append('/');
+				copied = idStart;
+			}
+			reference = json.indexOf(REFERENCE, idStart);
+		}
+		return relative.append(json, copied, json.length()).toString();
+	}
+
+	/**
+	 * State of one export
+	 */
+	private class Run {
+
+		private final ExportCheckpoint checkpoint;
+		private final Map<String, NdjsonFile> outputs;
+		private final NdjsonFile rejects;
+		/** The outputs and the rejects, recorded by the checkpoint */
+		private final List<NdjsonFile> files;
+		private final PatientStateStore written;
+
+		private final LongAdder exported = new LongAdder();
+		private final LongAdder messages = new LongAdder();
+		private final LongAdder failed = new LongAdder();
+		private final LongAdder bytesRead = new LongAdder();
+		private final LongAdder unchanged = new LongAdder();
+		private final Map<String, LongAdder> writtenByType = new LinkedHashMap<String, LongAdder>();
+		private final long start = System.nanoTime();
+
+		Run(ExportCheckpoint checkpoint, Map<String, NdjsonFile> outputs,
+				NdjsonFile rejects, PatientStateStore written) {
+			this.checkpoint = checkpoint;
+			this.outputs = outputs;
+			this.rejects = rejects;
+			this.files = new ArrayList<NdjsonFile>(outputs.values());
+			this.files.add(rejects);
+			this.written = written;
+			for (String type : outputs.keySet()) {
+				writtenByType.put(type, new LongAdder());
+			}
+		}
+
+		void export(List<Path> inputs) throws IOException {
+			if (inputs.isEmpty()) {
+				return;
+			}
+			ExecutorService executor = Executors.newFixedThreadPool(Math.min(
+					config.getThreads(), inputs.size()));
+			List<PendingFile> pending = new ArrayList<PendingFile>();
+			try {
+				// the pool takes the files in order, the one written next is
+				// always being transformed
+				for (Path input : inputs) {
+					PendingFile file = new PendingFile(input);
+					pending.add(file);
+					executor.execute(file);
+				}
+				for (PendingFile file : pending) {
+					writeFile(file);
+				}
+			} finally {
+				executor.shutdownNow();
+				try {
+					executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+
+		/**
+		 * Write the resources of a file as they are transformed, then record
+		 * the file in the checkpoint
+		 */
+		void writeFile(PendingFile file) throws IOException {
+			List<Resource> resources;
+			long rejected = 0;
+			while ((resources = file.take()) != END) {
+				for (Resource resource : resources) {
+					if (resource.type == null) {
+						rejects.write(resource.json);
+						rejected++;
+						continue;
+					}
+					if (!written.update(resource.key,
+							Hashes.hash(resource.json))) {
+						unchanged.increment();
+						continue;
+					}
+					outputs.get(resource.type).write(resource.json);
+					writtenByType.get(resource.type).increment();
+				}
+			}
+			Path input = file.input;
+			if (file.error instanceof Error) {
+				throw (Error) file.error;
+			}
+			if (file.error != null) {
+				throw new IOException("Export of " + input + " failed",
+						file.error);
+			}
+			exported.increment();
+			bytesRead.add(Files.size(input));
+			checkpoint.save(input.getFileName().toString(), files);
+			if (rejected > 0) {
+				LOG.warn("{} messages of {} could not be transformed, see {}",
+						new Object[] { Long.valueOf(rejected),
+								input.getFileName(), rejects.getPath() });
+			}
+			if (LOG.isInfoEnabled()) {
+				ExportReport report = report(System.nanoTime() - start);
+				LOG.info(String.format(
+						"Exported %s, %d messages; %d files at %.0f msg/s, %.2f MB/s",
+						input.getFileName(), Long.valueOf(file.count),
+						Long.valueOf(report.getFiles()),
+						Double.valueOf(report.getMessagesPerSecond()),
+						Double.valueOf(report.getMegabytesPerSecond())));
+			}
+		}
+
+		/**
+		 * @return the resources of a message to write, as they are encoded
+		 *         for the output; its reject when it could not be
+		 *         transformed
+		 */
+		List<Resource> transformMessage(Path input, String msg) {
+			messages.increment();
+			Bundle bundle;
+			try {
+				bundle = transformer.transform(msg);
+			} catch (HL7Exception e) {
+				return failed(input, msg, e);
+			} catch (RuntimeException e) {
+				return failed(input, msg, e);
+			}
+			Map<String, String> types = new HashMap<String, String>();
+			for (Bundle.Entry entry : bundle.getEntry()) {
+				IResource resource = entry.getResource();
+				types.put(resource.getId().getIdPart(),
+						resource.getResourceName());
+			}
+			IParser parser = parsers.get();
+			List<Resource> resources = new ArrayList<Resource>(bundle
+					.getEntry().size());
+			for (Bundle.Entry entry : bundle.getEntry()) {
+				IResource resource = entry.getResource();
+				String type = resource.getResourceName();
+				if (!outputs.containsKey(type)) {
+					continue;
+				}
+				resources.add(new Resource(type, type + "/"
+						+ resource.getId().getIdPart(), relativeReferences(
+						parser.encodeResourceToString(resource), types)));
+			}
+			return resources;
+		}
+
+		private List<Resource> failed(Path input, String msg, Exception e) {
+			failed.increment();
+			LOG.debug("A message of {} could not be transformed", input, e);
+			StringWriter json = new StringWriter();
+			JsonGenerator generator = Json.createGenerator(json);
+			generator.writeStartObject()
+					.write("file", input.getFileName().toString())
+					.write("error", e.toString()).write("message", msg)
+					.writeEnd().close();
+			return Collections.singletonList(Resource.reject(json.toString()));
+		}
+
+		/**
+		 * An input file transformed on a thread of the pool, its resources
+		 * handed to the writer message by message
+		 */
+		private class PendingFile implements Runnable {
+
+			final Path input;
+			private final BlockingQueue<List<Resource>> resources = new ArrayBlockingQueue<List<Resource>>(
+					PENDING_MESSAGES);
+			/** Set before {@link BulkExporter#END} is queued */
+			Throwable error;
+			long count;
+
+			PendingFile(Path input) {
+				this.input = input;
+			}
+
+			@Override
+			public void run() {
+				try {
+					Hl7MessageReader reader = Hl7MessageReader.openMapped(
+							input, config.getCharset());
+					try {
+						String msg;
+						while ((msg = reader.readMessage()) != null) {
+							resources.put(transformMessage(input, msg));
+							count++;
+						}
+					} finally {
+						reader.close();
+					}
+				} catch (InterruptedException e) {
+					// the writer gave up
+					return;
+				} catch (Throwable e) {
+					// thrown by the writer
+					error = e;
+				}
+				try {
+					resources.put(END);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+
+			/**
+			 * @return the resources of the next message, {@link BulkExporter#END}
+			 *         once the file is transformed
+			 */
+			List<Resource> take() throws InterruptedIOException {
+				try {
+					return resources.take();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Export of " + input
+							+ " stopped");
+				}
+			}
+		}
+
+		ExportReport report(long elapsedNanos) {
+			Map<String, Long> counts = new LinkedHashMap<String, Long>();
+			for (Map.Entry<String, LongAdder> count : writtenByType
+					.entrySet()) {
+				counts.put(count.getKey(), Long.valueOf(count.getValue().sum()));
+			}
+			return new ExportReport(exported.sum(), messages.sum(), failed.sum(),
+					bytesRead.sum(), counts, unchanged.sum(), elapsedNanos);
+		}
+	}
+
+	/**
+	 * A resource encoded for its output file, or a rejected message
+	 */
+	private static final class Resource {
+
+		/** null for a rejected message */
+		final String type;
+		/** Type and id */
+		final String key;
+		final String json;
+
+		Resource(String type, String key, String json) {
+			this.type = type;
+			this.key = key;
+			this.json = json;
+		}
+
+		/**
+		 * @param json
+		 *            line of the rejects file
+		 */
+		static Resource reject(String json) {
+			return new Resource(null, null, json);
+		}
+	}
+}
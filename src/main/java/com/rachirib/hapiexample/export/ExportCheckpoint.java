@@ -0,0 +1,141 @@
+package com.rachirib.hapiexample.export;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Progress of a {@link BulkExporter}: the input files exported, and the
+ * length of each output file once they were. Kept in a small text file,
+ * replaced atomically as {@link com.rachirib.hapiexample.journal.JournalCheckpoint}
+ * does, so a crash leaves the previous or the new checkpoint.
+ *
+ * <pre>
+ * done &lt;input file&gt;
+ * length &lt;output file&gt; &lt;bytes&gt;
+ * </pre>
+ */
+class ExportCheckpoint {
+
+	private static final String DONE = "done ";
+	private static final String LENGTH = "length ";
+
+	private final Path file;
+	private final Path temporary;
+	private final Set<String> done = new LinkedHashSet<String>();
+	private final Map<String, Long> lengths = new LinkedHashMap<String, Long>();
+
+	/**
+	 * @param file
+	 *            created on the first save
+	 */
+	ExportCheckpoint(Path file) {
+		this.file = file;
+		this.temporary = file.resolveSibling(file.getFileName() + ".tmp");
+	}
+
+	/**
+	 * Read the saved checkpoint, if any
+	 *
+	 * @return false when never saved
+	 * @throws IOException
+	 */
+	boolean load() throws IOException {
+		done.clear();
+		lengths.clear();
+		if (!Files.exists(file)) {
+			return false;
+		}
+		List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+		for (String line : lines) {
+			if (line.startsWith(DONE)) {
+				done.add(line.substring(DONE.length()));
+			} else if (line.startsWith(LENGTH)) {
+				int space = line.lastIndexOf(' ');
+				try {
+					lengths.put(line.substring(LENGTH.length(), space), Long
+							.valueOf(line.substring(space + 1)));
+				} catch (RuntimeException e) {
+					throw new IOException("Invalid checkpoint " + file, e);
+				}
+			} else if (!line.isEmpty()) {
+				throw new IOException("Invalid checkpoint " + file);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @param input
+	 *            name of an input file
+	 * @return true when it was exported
+	 */
+	boolean isDone(String input) {
+		return done.contains(input);
+	}
+
+	/**
+	 * @param output
+	 *            name of an output file
+	 * @return its length at the checkpoint, 0 when unknown
+	 */
+	long getLength(String output) {
+		Long length = lengths.get(output);
+		return length == null ? 0 : length.longValue();
+	}
+
+	Set<String> getDone() {
+		return done;
+	}
+
+	/**
+	 * Record an input file as exported, with the output files as they are
+	 *
+	 * @param input
+	 * @param outputs
+	 *            committed
+	 * @throws IOException
+	 */
+	void save(String input, Collection<NdjsonFile> outputs)
+			throws IOException {
+		done.add(input);
+		for (NdjsonFile output : outputs) {
+			lengths.put(output.getPath().getFileName().toString(),
+					Long.valueOf(output.commit()));
+		}
+		StringBuilder text = new StringBuilder();
+		for (String name : done) {
+			text.append(DONE).append(name).append('\n');
+		}
+		for (Map.Entry<String, Long> length : lengths.entrySet()) {
+			text.append(LENGTH).append(length.getKey()).append(' ')
+					.append(length.getValue()).append('\n');
+		}
+		ByteBuffer bytes = ByteBuffer.wrap(text.toString().getBytes(
+				StandardCharsets.UTF_8));
+		FileChannel channel = FileChannel.open(temporary,
+				StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING);
+		try {
+			while (bytes.hasRemaining()) {
+				channel.write(bytes);
+			}
+			channel.force(true);
+		} finally {
+			channel.close();
+		}
+		Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+}
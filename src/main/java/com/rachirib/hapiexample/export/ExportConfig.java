@@ -0,0 +1,119 @@
+package com.rachirib.hapiexample.export;
+
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Settings of a {@link BulkExporter}
+ */
+public class ExportConfig {
+
+	/** Resource types exported when not configured */
+	public static final Set<String> DEFAULT_RESOURCE_TYPES = Collections
+			.unmodifiableSet(new LinkedHashSet<String>(Arrays.asList(
+					"Patient", "Encounter", "Condition", "Practitioner",
+					"Location")));
+
+	private int threads = Runtime.getRuntime().availableProcessors();
+	private boolean gzip;
+	private Set<String> resourceTypes = DEFAULT_RESOURCE_TYPES;
+	private String filePattern = "*";
+	private Charset charset = StandardCharsets.ISO_8859_1;
+	private int dedupCapacity = 1 << 20;
+
+	public int getThreads() {
+		return threads;
+	}
+
+	/**
+	 * @param threads
+	 *            input files transformed at once
+	 */
+	public ExportConfig setThreads(int threads) {
+		if (threads < 1) {
+			throw new IllegalArgumentException("threads must be positive");
+		}
+		this.threads = threads;
+		return this;
+	}
+
+	public boolean isGzip() {
+		return gzip;
+	}
+
+	/**
+	 * @param gzip
+	 *            true to compress the output files, <code>.ndjson.gz</code>
+	 */
+	public ExportConfig setGzip(boolean gzip) {
+		this.gzip = gzip;
+		return this;
+	}
+
+	public Set<String> getResourceTypes() {
+		return resourceTypes;
+	}
+
+	/**
+	 * @param resourceTypes
+	 *            types of the resources exported, one file each; the other
+	 *            resources of the bundles are left out
+	 */
+	public ExportConfig setResourceTypes(Set<String> resourceTypes) {
+		if (resourceTypes.isEmpty()) {
+			throw new IllegalArgumentException("resourceTypes is empty");
+		}
+		this.resourceTypes = Collections
+				.unmodifiableSet(new LinkedHashSet<String>(resourceTypes));
+		return this;
+	}
+
+	public String getFilePattern() {
+		return filePattern;
+	}
+
+	/**
+	 * @param filePattern
+	 *            glob of the input files in the directory, <code>*.hl7</code>
+	 */
+	public ExportConfig setFilePattern(String filePattern) {
+		this.filePattern = filePattern;
+		return this;
+	}
+
+	public Charset getCharset() {
+		return charset;
+	}
+
+	/**
+	 * @param charset
+	 *            of the input files, ISO-8859-1 when not configured
+	 */
+	public ExportConfig setCharset(Charset charset) {
+		this.charset = charset;
+		return this;
+	}
+
+	public int getDedupCapacity() {
+		return dedupCapacity;
+	}
+
+	/**
+	 * @param dedupCapacity
+	 *            resources remembered to leave out the ones written already,
+	 *            16 to 32 bytes each on disk; the resources beyond are
+	 *            written every time
+	 */
+	public ExportConfig setDedupCapacity(int dedupCapacity) {
+		if (dedupCapacity < 1) {
+			throw new IllegalArgumentException(
+					"dedupCapacity must be positive");
+		}
+		this.dedupCapacity = dedupCapacity;
+		return this;
+	}
+}
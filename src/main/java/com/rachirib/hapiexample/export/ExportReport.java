@@ -0,0 +1,97 @@
+package com.rachirib.hapiexample.export;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Counts and throughput of a {@link BulkExporter} run, the files exported by
+ * an earlier run not included
+ */
+public class ExportReport {
+
+	private final long files;
+	private final long messages;
+	private final long failed;
+	private final long bytesRead;
+	private final Map<String, Long> written;
+	private final long unchanged;
+	private final long elapsedNanos;
+
+	ExportReport(long files, long messages, long failed, long bytesRead,
+			Map<String, Long> written, long unchanged, long elapsedNanos) {
+		this.files = files;
+		this.messages = messages;
+		this.failed = failed;
+		this.bytesRead = bytesRead;
+		this.written = Collections
+				.unmodifiableMap(new LinkedHashMap<String, Long>(written));
+		this.unchanged = unchanged;
+		this.elapsedNanos = elapsedNanos;
+	}
+
+	/** @return input files exported */
+	public long getFiles() {
+		return files;
+	}
+
+	/** @return messages transformed, the failed ones included */
+	public long getMessages() {
+		return messages;
+	}
+
+	/**
+	 * @return messages that could not be transformed, written to the
+	 *         rejects file
+	 */
+	public long getFailed() {
+		return failed;
+	}
+
+	/** @return bytes of the input files exported */
+	public long getBytesRead() {
+		return bytesRead;
+	}
+
+	/** @return resources written, by type */
+	public Map<String, Long> getWritten() {
+		return written;
+	}
+
+	/**
+	 * @return resources left out, the same as the one written last with
+	 *         their id
+	 */
+	public long getUnchanged() {
+		return unchanged;
+	}
+
+	public long getElapsedNanos() {
+		return elapsedNanos;
+	}
+
+	public double getMessagesPerSecond() {
+		return perSecond(messages);
+	}
+
+	/** @return megabytes (10^6 bytes) of input per second */
+	public double getMegabytesPerSecond() {
+		return perSecond(bytesRead) / 1e6;
+	}
+
+	private double perSecond(long count) {
+		return elapsedNanos == 0 ? 0 : count * 1e9 / elapsedNanos;
+	}
+
+	@Override
+	public String toString() {
+		return String.format(
+				"%d files, %d messages (%d failed) in %.1f s: %.0f msg/s, "
+						+ "%.2f MB/s; written %s, %d unchanged left out",
+				Long.valueOf(files), Long.valueOf(messages),
+				Long.valueOf(failed), Double.valueOf(elapsedNanos / 1e9),
+				Double.valueOf(getMessagesPerSecond()),
+				Double.valueOf(getMegabytesPerSecond()), written,
+				Long.valueOf(unchanged));
+	}
+}
@@ -0,0 +1,148 @@
+package com.rachirib.hapiexample.export;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Output file of one resource type, a resource per line, appended to by the
+ * export threads.
+ *
+ * {@link #commit()} makes what was written so far part of the file at the
+ * length it returns; an export resumed after a crash truncates the file to
+ * the length of its checkpoint. Compressed, the file is a series of gzip
+ * members, one per commit, which gzip and GZIPInputStream read as one.
+ *
+ * Thread safe.
+ */
+class NdjsonFile implements Closeable {
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private final Path path;
+	private final boolean gzip;
+	private final FileChannel channel;
+	private final OutputStream file;
+	/** Encoder of the current gzip member, or of the file */
+	private Writer writer;
+	private GZIPOutputStream member;
+	private boolean dirty;
+	private long lines;
+
+	/**
+	 * @param path
+	 * @param gzip
+	 * @param length
+	 *            bytes kept of an existing file, the rest is cut
+	 * @throws IOException
+	 */
+	NdjsonFile(Path path, boolean gzip, long length) throws IOException {
+		this.path = path;
+		this.gzip = gzip;
+		this.channel = FileChannel.open(path, StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE);
+		if (channel.size() < length) {
+			channel.close();
+			throw new IOException(path + " is shorter than its checkpoint, "
+					+ length + " bytes");
+		}
+		channel.truncate(length);
+		channel.position(length);
+		this.file = new BufferedOutputStream(Channels.newOutputStream(channel),
+				BUFFER_SIZE);
+	}
+
+	/**
+	 * @param json
+	 *            a resource, on one line
+	 * @throws IOException
+	 */
+	synchronized void write(String json) throws IOException {
+		if (writer == null) {
+			OutputStream out = file;
+			if (gzip) {
+				member = new GZIPOutputStream(file, BUFFER_SIZE);
+				out = member;
+			}
+			writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+		}
+		writer.write(json);
+		writer.write('\n');
+		dirty = true;
+		lines++;
+	}
+
+	/**
+	 * Write out the lines written so far to disk, ending the gzip member
+	 *
+	 * @return length of the file
+	 * @throws IOException
+	 */
+	synchronized long commit() throws IOException {
+		if (dirty) {
+			writer.flush();
+			if (member != null) {
+				// ends the member, the file stays open
+				member.finish();
+				member = null;
+				writer = null;
+			}
+			file.flush();
+			channel.force(false);
+			dirty = false;
+		}
+		return channel.position();
+	}
+
+	/** @return lines written by this instance */
+	synchronized long getLines() {
+		return lines;
+	}
+
+	Path getPath() {
+		return path;
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		try {
+			commit();
+		} finally {
+			channel.close();
+		}
+	}
+
+	/**
+	 * @param path
+	 * @param gzip
+	 * @return reader of the lines of a file
+	 * @throws IOException
+	 */
+	static BufferedReader read(Path path, boolean gzip) throws IOException {
+		InputStream in = Files.newInputStream(path);
+		if (gzip) {
+			try {
+				in = new GZIPInputStream(in, BUFFER_SIZE);
+			} catch (IOException e) {
+				in.close();
+				throw e;
+			}
+		}
+		return new BufferedReader(new InputStreamReader(in,
+				StandardCharsets.UTF_8), BUFFER_SIZE);
+	}
+}
@@ -0,0 +1,315 @@
+package com.rachirib.hapiexample.journal;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.rachirib.hapiexample.stream.BundleSink;
+import com.rachirib.hapiexample.transform.BatchTransformer;
+import com.rachirib.hapiexample.transform.TransformResult;
+
+import ca.uhn.hl7v2.HL7Exception;
+
+/**
+ * Journal every inbound message before transforming it, so no message is
+ * lost to a failure or a crash.
+ *
+ * A message is appended to the inbound journal, synced with the other
+ * messages arriving meanwhile (group commit), then transformed and handed to
+ * the sink. A message that fails is appended to the dead-letter journal
+ * with its error, and {@link #replayDeadLetters()} transforms them again once
+ * the cause is fixed. A checkpoint records the journal offset up to which
+ * every message has been handled; {@link #recover()} transforms what follows
+ * it after a restart. Messages are handled at least once: those after the
+ * last checkpoint may reach the sink twice. A message the sink refuses
+ * holds the checkpoint back until {@link #recover()} hands it again.
+ *
+ * The journals only grow while the pipeline is open. A journal whose
+ * checkpoint is at its end when the pipeline opens, everything in it
+ * handled, is emptied then: a restart compacts them.
+ *
+ * The results carry the journal offset of their message as index. Thread
+ * safe; the sink must be too when several threads submit.
+ */
+public class IngestPipeline implements Closeable {
+
+	private static final Logger LOG = LoggerFactory
+			.getLogger(IngestPipeline.class);
+
+	/** Files of the pipeline in its directory */
+	public static final String JOURNAL = "inbound.journal";
+	public static final String CHECKPOINT = "inbound.checkpoint";
+	public static final String DEAD_LETTERS = "dead-letter.journal";
+	public static final String DEAD_LETTER_CHECKPOINT = "dead-letter.checkpoint";
+
+	private final BatchTransformer transformer;
+	private final BundleSink sink;
+	private final JournalConfig config;
+	private final MessageJournal journal;
+	private final MessageJournal deadLetters;
+	private final JournalCheckpoint checkpoint;
+	private final JournalCheckpoint deadLetterCheckpoint;
+
+	/**
+	 * Guards the appends to the inbound journal with {@link #inFlight} and
+	 * {@link #failed}
+	 */
+	private final Object appendLock = new Object();
+	/** Offsets of the messages journaled and not handled yet */
+	private final ConcurrentSkipListSet<Long> inFlight = new ConcurrentSkipListSet<Long>();
+	/** Offsets of the messages the sink failed, for the next recovery */
+	private final ConcurrentSkipListSet<Long> failed = new ConcurrentSkipListSet<Long>();
+	private final AtomicLong sinceCheckpoint = new AtomicLong();
+
+	private final AtomicLong processed = new AtomicLong();
+	private final AtomicLong deadLettered = new AtomicLong();
+	private final AtomicLong replayed = new AtomicLong();
+
+	/**
+	 * Open the journals of a directory, created when missing
+	 *
+	 * @param directory
+	 * @param transformer
+	 * @param sink
+	 *            receives the results, failures included
+	 * @param config
+	 * @throws IOException
+	 */
+	public IngestPipeline(Path directory, BatchTransformer transformer,
+			BundleSink sink, JournalConfig config) throws IOException {
+		if (transformer == null || sink == null) {
+			throw new IllegalArgumentException(
+					"transformer and sink are required");
+		}
+		Files.createDirectories(directory);
+		this.transformer = transformer;
+		this.sink = sink;
+		this.config = config;
+		this.checkpoint = new JournalCheckpoint(directory.resolve(CHECKPOINT));
+		this.deadLetterCheckpoint = new JournalCheckpoint(
+				directory.resolve(DEAD_LETTER_CHECKPOINT));
+		this.journal = open(directory.resolve(JOURNAL), checkpoint, config);
+		MessageJournal opened = null;
+		try {
+			opened = open(directory.resolve(DEAD_LETTERS),
+					deadLetterCheckpoint, config);
+		} finally {
+			if (opened == null) {
+				journal.close();
+			}
+		}
+		this.deadLetters = opened;
+	}
+
+	/**
+	 * Journal a message, then transform it and hand the result to the sink
+	 *
+	 * @param msg
+	 * @return the result given to the sink
+	 * @throws IOException
+	 *             journal or sink failure, the message is transformed again
+	 *             by the next {@link #recover()}
+	 */
+	public TransformResult submit(String msg) throws IOException {
+		long offset;
+		long end;
+		synchronized (appendLock) {
+			offset = journal.append(msg);
+			end = journal.getEnd();
+			inFlight.add(Long.valueOf(offset));
+		}
+		if (config.isDurable()) {
+			journal.sync(end);
+		}
+		return handle(offset, msg);
+	}
+
+	/**
+	 * Transform the journaled messages following the checkpoint, those of a
+	 * previous run that stopped before handling them and those the sink
+	 * failed
+	 *
+	 * @return number of messages transformed
+	 * @throws IOException
+	 */
+	public long recover() throws IOException {
+		long count = 0;
+		MessageJournal.JournalReader reader = journal.read(checkpoint.load());
+		JournalRecord record;
+		while ((record = reader.next()) != null) {
+			Long offset = Long.valueOf(record.getOffset());
+			if (inFlight.add(offset)) {
+				handle(record.getOffset(), record.getMessage());
+				count++;
+			}
+		}
+		if (count > 0) {
+			LOG.info("Recovered {} messages from {}", Long.valueOf(count),
+					journal.getPath());
+		}
+		checkpoint();
+		return count;
+	}
+
+	/**
+	 * Transform again the dead letters not replayed yet. Those failing again
+	 * are appended to the dead letters for the next replay.
+	 *
+	 * @return number of messages transformed successfully
+	 * @throws IOException
+	 */
+	public synchronized long replayDeadLetters() throws IOException {
+		long count = 0;
+		MessageJournal.JournalReader reader = deadLetters
+				.read(deadLetterCheckpoint.load());
+		JournalRecord record;
+		while ((record = reader.next()) != null) {
+			TransformResult result = transformer.transformOne(
+					record.getOffset(), record.getMessage());
+			if (result.isSuccess()) {
+				count++;
+			} else if (!result.isDuplicate()) {
+				deadLetter(result);
+			}
+			sink.accept(result);
+			transformer.delivered(result);
+		}
+		deadLetters.sync(deadLetters.getEnd());
+		deadLetterCheckpoint.save(reader.getOffset());
+		replayed.addAndGet(count);
+		return count;
+	}
+
+	/**
+	 * Save the offset up to which every message has been handled
+	 *
+	 * @throws IOException
+	 */
+	public synchronized void checkpoint() throws IOException {
+		long offset;
+		synchronized (appendLock) {
+			offset = journal.getEnd();
+			if (!inFlight.isEmpty()) {
+				offset = Math.min(offset, inFlight.first().longValue());
+			}
+			if (!failed.isEmpty()) {
+				offset = Math.min(offset, failed.first().longValue());
+			}
+		}
+		journal.sync(offset);
+		checkpoint.save(offset);
+		sinceCheckpoint.set(0);
+	}
+
+	/** @return messages transformed successfully, replays excluded */
+	public long getProcessed() {
+		return processed.get();
+	}
+
+	/** @return messages appended to the dead letters */
+	public long getDeadLettered() {
+		return deadLettered.get();
+	}
+
+	/** @return dead letters transformed successfully by a replay */
+	public long getReplayed() {
+		return replayed.get();
+	}
+
+	public MessageJournal getJournal() {
+		return journal;
+	}
+
+	public MessageJournal getDeadLetters() {
+		return deadLetters;
+	}
+
+	/**
+	 * Checkpoint and close the journals
+	 */
+	@Override
+	public void close() throws IOException {
+		try {
+			checkpoint();
+		} finally {
+			try {
+				journal.close();
+			} finally {
+				deadLetters.close();
+			}
+		}
+	}
+
+	/**
+	 * Open a journal, emptied first when its checkpoint is at its end
+	 */
+	private static MessageJournal open(Path path,
+			JournalCheckpoint checkpoint, JournalConfig config)
+			throws IOException {
+		MessageJournal journal = new MessageJournal(path, config);
+		long end = journal.getEnd();
+		if (end == 0 || checkpoint.load() < end) {
+			return journal;
+		}
+		journal.close();
+		Files.delete(path);
+		checkpoint.save(0);
+		LOG.info("Compacted {}, {} bytes handled", path, Long.valueOf(end));
+		return new MessageJournal(path, config);
+	}
+
+	private TransformResult handle(long offset, String msg) throws IOException {
+		Long key = Long.valueOf(offset);
+		TransformResult result;
+		boolean handled = false;
+		try {
+			result = transformer.transformOne(offset, msg);
+			if (!result.isSuccess() && !result.isDuplicate()) {
+				deadLetter(result);
+				deadLetters.sync(deadLetters.getEnd());
+			}
+			sink.accept(result);
+			transformer.delivered(result);
+			handled = true;
+		} finally {
+			synchronized (appendLock) {
+				if (handled) {
+					failed.remove(key);
+				} else {
+					failed.add(key);
+				}
+				inFlight.remove(key);
+			}
+		}
+		if (result.isSuccess()) {
+			processed.incrementAndGet();
+		}
+		if (sinceCheckpoint.incrementAndGet() >= config
+				.getCheckpointInterval()) {
+			checkpoint();
+		}
+		return result;
+	}
+
+	private void deadLetter(TransformResult result) throws IOException {
+		deadLetters.append(result.getMessage(), describe(result.getError()));
+		deadLettered.incrementAndGet();
+	}
+
+	/**
+	 * @return the error code and message of an HL7 error, the exception
+	 *         otherwise
+	 */
+	static String describe(Exception error) {
+		String description = error instanceof HL7Exception ? ((HL7Exception) error)
+				.getError().name() + ": " + error.getMessage() : error.toString();
+		return description.length() > 4096 ? description.substring(0, 4096)
+				: description;
+	}
+}
@@ -0,0 +1,66 @@
+package com.rachirib.hapiexample.journal;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Offset of a {@link MessageJournal} up to which every record has been
+ * processed, kept in a small file. The file is replaced atomically, so a
+ * crash leaves the previous or the new checkpoint, never a mix.
+ */
+public class JournalCheckpoint {
+
+	private final Path file;
+	private final Path temporary;
+
+	/**
+	 * @param file
+	 *            created on the first save
+	 */
+	public JournalCheckpoint(Path file) {
+		this.file = file;
+		this.temporary = file.resolveSibling(file.getFileName() + ".tmp");
+	}
+
+	/**
+	 * @return the saved offset, 0 when never saved
+	 * @throws IOException
+	 */
+	public long load() throws IOException {
+		if (!Files.exists(file)) {
+			return 0;
+		}
+		byte[] bytes = Files.readAllBytes(file);
+		if (bytes.length != 8) {
+			throw new IOException("Invalid checkpoint " + file);
+		}
+		return ByteBuffer.wrap(bytes).getLong();
+	}
+
+	/**
+	 * @param offset
+	 * @throws IOException
+	 */
+	public void save(long offset) throws IOException {
+		ByteBuffer bytes = ByteBuffer.allocate(8);
+		bytes.putLong(0, offset);
+		FileChannel channel = FileChannel.open(temporary,
+				StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING);
+		try {
+			while (bytes.hasRemaining()) {
+				channel.write(bytes);
+			}
+			channel.force(true);
+		} finally {
+			channel.close();
+		}
+		Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+}
@@ -0,0 +1,79 @@
+package com.rachirib.hapiexample.journal;
+
+/**
+ * Settings of a {@link MessageJournal} and of the {@link IngestPipeline}
+ * writing to it
+ */
+public class JournalConfig {
+
+	private int segmentSize = 64 * 1024 * 1024;
+	private boolean durable = true;
+	private boolean groupCommit = true;
+	private int checkpointInterval = 1000;
+
+	public int getSegmentSize() {
+		return segmentSize;
+	}
+
+	/**
+	 * @param segmentSize
+	 *            bytes of the journal mapped at once, and the largest record;
+	 *            the file grows by this size
+	 */
+	public JournalConfig setSegmentSize(int segmentSize) {
+		if (segmentSize < 1024) {
+			throw new IllegalArgumentException(
+					"segmentSize must be at least 1024");
+		}
+		this.segmentSize = segmentSize;
+		return this;
+	}
+
+	public boolean isDurable() {
+		return durable;
+	}
+
+	/**
+	 * @param durable
+	 *            true for the pipeline to wait until a message is on disk
+	 *            before transforming it; false to leave it in the page cache
+	 *            until the next sync, surviving a crash of the process but
+	 *            not of the machine
+	 */
+	public JournalConfig setDurable(boolean durable) {
+		this.durable = durable;
+		return this;
+	}
+
+	public boolean isGroupCommit() {
+		return groupCommit;
+	}
+
+	/**
+	 * @param groupCommit
+	 *            true to sync the records of concurrent writers together on
+	 *            a flusher thread; false to sync each record on its own
+	 */
+	public JournalConfig setGroupCommit(boolean groupCommit) {
+		this.groupCommit = groupCommit;
+		return this;
+	}
+
+	public int getCheckpointInterval() {
+		return checkpointInterval;
+	}
+
+	/**
+	 * @param checkpointInterval
+	 *            messages processed between two checkpoints; a restart
+	 *            transforms again at most this many messages
+	 */
+	public JournalConfig setCheckpointInterval(int checkpointInterval) {
+		if (checkpointInterval < 1) {
+			throw new IllegalArgumentException(
+					"checkpointInterval must be positive");
+		}
+		this.checkpointInterval = checkpointInterval;
+		return this;
+	}
+}
@@ -0,0 +1,45 @@
+package com.rachirib.hapiexample.journal;
+
+/**
+ * One message read back from a {@link MessageJournal}
+ */
+public final class JournalRecord {
+
+	private final long offset;
+	private final long nextOffset;
+	private final String message;
+	private final String note;
+
+	JournalRecord(long offset, long nextOffset, String message, String note) {
+		this.offset = offset;
+		this.nextOffset = nextOffset;
+		this.message = message;
+		this.note = note;
+	}
+
+	/**
+	 * @return position of the record in the journal, its id
+	 */
+	public long getOffset() {
+		return offset;
+	}
+
+	/**
+	 * @return position following the record, a checkpoint after it
+	 */
+	public long getNextOffset() {
+		return nextOffset;
+	}
+
+	public String getMessage() {
+		return message;
+	}
+
+	/**
+	 * @return text stored with the message, e.g. the error of a dead letter;
+	 *         null when none
+	 */
+	public String getNote() {
+		return note;
+	}
+}
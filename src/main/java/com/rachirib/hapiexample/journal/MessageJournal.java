@@ -0,0 +1,447 @@
+package com.rachirib.hapiexample.journal;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Append-only file of v2 messages, written through memory mapped segments.
+ *
+ * A record is its length, a CRC32 of its content, the length of its note,
+ * the note and the message, both UTF-8. Records never cross a segment; the
+ * end of a segment too short for the next record is marked as padding. A
+ * length of 0 ends the journal. On open the records are checked up to the
+ * first one that is incomplete or corrupt, the torn write of a crash, and
+ * the journal continues from there.
+ *
+ * An append copies the record to the mapping: it survives a crash of the
+ * process at once. {@link #sync(long)} waits until it is on disk. With group
+ * commit a flusher thread syncs whatever has been written whenever someone
+ * waits, so the writers arriving during a sync share the next one.
+ *
+ * Thread safe.
+ */
+public class MessageJournal implements Closeable {
+
+	private static final Logger LOG = LoggerFactory
+			.getLogger(MessageJournal.class);
+
+	/** Length, CRC32 and note length */
+	static final int HEADER = 10;
+	/** Length of the last record of a segment, the rest of it is empty */
+	private static final int PADDING = -1;
+
+	private final Path path;
+	private final FileChannel channel;
+	private final int segmentSize;
+	private final boolean groupCommit;
+	private final CRC32 crc = new CRC32();
+
+	/** Guards the writes, {@link #segment} and {@link #end} */
+	private final Object writeLock = new Object();
+	private MappedByteBuffer segment;
+	private long segmentStart;
+	private volatile long end;
+
+	/** Guards {@link #requested} and {@link #durable} */
+	private final Object syncLock = new Object();
+	private long requested;
+	private volatile long durable;
+	private volatile boolean closed;
+	/** Error of the last sync of the flusher, until one succeeds */
+	private volatile IOException failure;
+	private final Thread flusher;
+
+	/**
+	 * Open or create a journal
+	 *
+	 * @param path
+	 * @param config
+	 * @throws IOException
+	 */
+	public MessageJournal(Path path, JournalConfig config) throws IOException {
+		this.path = path;
+		this.segmentSize = config.getSegmentSize();
+		this.groupCommit = config.isGroupCommit();
+		this.channel = FileChannel.open(path, StandardOpenOption.CREATE,
+				StandardOpenOption.READ, StandardOpenOption.WRITE);
+		boolean opened = false;
+		try {
+			recover();
+			opened = true;
+		} finally {
+			if (!opened) {
+				channel.close();
+			}
+		}
+		this.durable = end;
+		this.requested = end;
+		if (groupCommit) {
+			flusher = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					flush();
+				}
+			}, "journal-flusher-" + path.getFileName());
+			flusher.setDaemon(true);
+			flusher.start();
+		} else {
+			flusher = null;
+		}
+	}
+
+	/**
+	 * @return the file of the journal
+	 */
+	public Path getPath() {
+		return path;
+	}
+
+	/**
+	 * @return offset of the next record, the end of the records
+	 */
+	public long getEnd() {
+		return end;
+	}
+
+	/**
+	 * @return offset up to which the records are on disk
+	 */
+	public long getDurable() {
+		return durable;
+	}
+
+	/**
+	 * @param message
+	 * @return offset of the record
+	 * @throws IOException
+	 */
+	public long append(String message) throws IOException {
+		return append(message, null);
+	}
+
+	/**
+	 * Append a record; it is not on disk before {@link #sync(long)}
+	 *
+	 * @param message
+	 * @param note
+	 *            null for none
+	 * @return offset of the record
+	 * @throws IOException
+	 * @throws IllegalArgumentException
+	 *             the record is larger than a segment
+	 */
+	public long append(String message, String note) throws IOException {
+		byte[] messageBytes = message.getBytes(StandardCharsets.UTF_8);
+		byte[] noteBytes = note == null ? new byte[0] : note
+				.getBytes(StandardCharsets.UTF_8);
+		if (noteBytes.length > Short.MAX_VALUE) {
+			throw new IllegalArgumentException("Note longer than "
+					+ Short.MAX_VALUE + " bytes");
+		}
+		int length = HEADER + noteBytes.length + messageBytes.length;
+		if (length > segmentSize) {
+			throw new IllegalArgumentException("Record of " + length
+					+ " bytes larger than the segments of " + segmentSize);
+		}
+		synchronized (writeLock) {
+			if (closed) {
+				throw new IOException("Journal " + path + " is closed");
+			}
+			int position = (int) (end - segmentStart);
+			if (position + length > segmentSize) {
+				if (position + 4 <= segmentSize) {
+					segment.putInt(position, PADDING);
+				}
+				segment.force();
+				map(segmentStart + segmentSize);
+				position = 0;
+			}
+			long offset = segmentStart + position;
+			crc.reset();
+			crc.update(noteBytes);
+			crc.update(messageBytes);
+			// content first, the length last: a torn record reads as the end
+			segment.putInt(position + 4, (int) crc.getValue());
+			segment.putShort(position + 8, (short) noteBytes.length);
+			segment.position(position + HEADER);
+			segment.put(noteBytes);
+			segment.put(messageBytes);
+			segment.putInt(position, length);
+			end = offset + length;
+			if (!groupCommit) {
+				segment.force();
+				durable = end;
+			}
+			return offset;
+		}
+	}
+
+	/**
+	 * Wait until the records before the given offset are on disk
+	 *
+	 * @param offset
+	 *            end of the last record to wait for, {@link #getEnd()} for
+	 *            all of them
+	 * @throws IOException
+	 *             interrupted, or the journal was closed
+	 */
+	public void sync(long offset) throws IOException {
+		if (durable >= offset) {
+			return;
+		}
+		if (!groupCommit) {
+			force();
+			return;
+		}
+		synchronized (syncLock) {
+			if (offset > requested) {
+				requested = offset;
+				syncLock.notifyAll();
+			}
+			while (durable < offset) {
+				if (failure != null) {
+					throw new IOException("Sync of journal " + path
+							+ " failed", failure);
+				}
+				if (closed) {
+					throw new IOException("Journal " + path + " is closed");
+				}
+				try {
+					syncLock.wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException(
+							"Interrupted waiting for the journal sync");
+				}
+			}
+		}
+	}
+
+	/**
+	 * @param from
+	 *            offset of a record, 0 for the first one
+	 * @return the records from the given one to the current end
+	 */
+	public JournalReader read(long from) {
+		return new JournalReader(from, end);
+	}
+
+	/**
+	 * Sync and close, the flusher thread stops
+	 */
+	@Override
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		try {
+			force();
+		} finally {
+			synchronized (writeLock) {
+				closed = true;
+			}
+			synchronized (syncLock) {
+				syncLock.notifyAll();
+			}
+			if (flusher != null) {
+				try {
+					flusher.join();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			channel.close();
+		}
+	}
+
+	/**
+	 * Flusher thread: sync every time someone waits, the records written
+	 * meanwhile included
+	 */
+	private void flush() {
+		while (true) {
+			synchronized (syncLock) {
+				while (requested <= durable && !closed) {
+					try {
+						syncLock.wait();
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+				if (closed) {
+					return;
+				}
+			}
+			try {
+				force();
+			} catch (IOException e) {
+				LOG.error("Sync of journal " + path + " failed", e);
+				synchronized (syncLock) {
+					failure = e;
+					// the waiters fail, the next sync asks again
+					requested = durable;
+					syncLock.notifyAll();
+				}
+			}
+		}
+	}
+
+	private void force() throws IOException {
+		MappedByteBuffer current;
+		long target;
+		synchronized (writeLock) {
+			if (closed) {
+				return;
+			}
+			current = segment;
+			target = end;
+		}
+		// the previous segments were forced before being left
+		current.force();
+		synchronized (syncLock) {
+			if (target > durable) {
+				durable = target;
+			}
+			failure = null;
+			syncLock.notifyAll();
+		}
+	}
+
+	private void map(long start) throws IOException {
+		segment = channel.map(FileChannel.MapMode.READ_WRITE, start,
+				segmentSize);
+		segmentStart = start;
+	}
+
+	/**
+	 * Find the end of the valid records and clear what follows in its
+	 * segment
+	 */
+	private void recover() throws IOException {
+		long size = channel.size();
+		long start = 0;
+		map(0);
+		int position = 0;
+		while (true) {
+			int length = position + 4 <= segmentSize ? segment
+					.getInt(position) : PADDING;
+			if (length == PADDING && start + segmentSize < size) {
+				start += segmentSize;
+				map(start);
+				position = 0;
+				continue;
+			}
+			if (length < HEADER || position + length > segmentSize
+					|| !valid(segment, position, length)) {
+				break;
+			}
+			position += length;
+		}
+		end = start + position;
+		if (end > 0 || size > 0) {
+			// a torn record or garbage after the end must not be read as a
+			// record once overwritten in part
+			byte[] zeros = new byte[4096];
+			segment.position(position);
+			while (segment.hasRemaining()) {
+				segment.put(zeros, 0,
+						Math.min(zeros.length, segment.remaining()));
+			}
+			segment.force();
+			LOG.debug("Journal {} opened at offset {}", path,
+					Long.valueOf(end));
+		}
+	}
+
+	private static boolean valid(ByteBuffer segment, int position, int length) {
+		int noteLength = segment.getShort(position + 8);
+		if (noteLength < 0 || HEADER + noteLength > length) {
+			return false;
+		}
+		ByteBuffer content = segment.duplicate();
+		content.limit(position + length).position(position + HEADER);
+		CRC32 crc = new CRC32();
+		crc.update(content);
+		return (int) crc.getValue() == segment.getInt(position + 4);
+	}
+
+	/**
+	 * Records of the journal from an offset to the end of the journal when
+	 * the reader was created, read through their own mappings
+	 */
+	public class JournalReader {
+
+		private final long limit;
+		private long next;
+		private MappedByteBuffer readSegment;
+		private long readSegmentStart = -1;
+
+		JournalReader(long from, long limit) {
+			if (from < 0 || from > limit) {
+				throw new IllegalArgumentException("Offset " + from
+						+ " outside the journal, ending at " + limit);
+			}
+			this.next = from;
+			this.limit = limit;
+		}
+
+		/**
+		 * @return the next record, null at the end
+		 * @throws IOException
+		 *             the record is corrupt
+		 */
+		public JournalRecord next() throws IOException {
+			while (next < limit) {
+				long start = next - next % segmentSize;
+				if (start != readSegmentStart) {
+					readSegment = channel.map(FileChannel.MapMode.READ_ONLY,
+							start, segmentSize);
+					readSegmentStart = start;
+				}
+				int position = (int) (next - start);
+				int length = position + 4 <= segmentSize ? readSegment
+						.getInt(position) : PADDING;
+				if (length == PADDING) {
+					next = start + segmentSize;
+					continue;
+				}
+				if (length < HEADER || position + length > segmentSize
+						|| !valid(readSegment, position, length)) {
+					throw new IOException("Corrupt record at offset " + next
+							+ " of " + path);
+				}
+				int noteLength = readSegment.getShort(position + 8);
+				byte[] note = new byte[noteLength];
+				byte[] message = new byte[length - HEADER - noteLength];
+				ByteBuffer content = readSegment.duplicate();
+				content.position(position + HEADER);
+				content.get(note);
+				content.get(message);
+				long offset = next;
+				next += length;
+				return new JournalRecord(offset, next, new String(message,
+						StandardCharsets.UTF_8), noteLength == 0 ? null
+						: new String(note, StandardCharsets.UTF_8));
+			}
+			return null;
+		}
+
+		/**
+		 * @return offset of the next record to read
+		 */
+		public long getOffset() {
+			return next;
+		}
+	}
+}
@@ -0,0 +1,110 @@
+package com.rachirib.hapiexample.mapping;
+
+/**
+ * Position of a v2 value: <code>PID-5.1</code>, <code>PID-3.4.1</code>, or
+ * <code>PID-13[1].1</code> for the second repetition of PID-13
+ */
+final class FieldPath {
+
+	private final String segment;
+	private final int field;
+	private final int repetition;
+	private final int component;
+	private final int subcomponent;
+
+	private FieldPath(String segment, int field, int repetition,
+			int component, int subcomponent) {
+		this.segment = segment;
+		this.field = field;
+		this.repetition = repetition;
+		this.component = component;
+		this.subcomponent = subcomponent;
+	}
+
+	/**
+	 * @param path
+	 * @return
+	 * @throws IllegalArgumentException
+	 *             not a v2 field path
+	 */
+	static FieldPath parse(String path) {
+		int dash = path.indexOf('-');
+		if (dash != 3) {
+			throw new IllegalArgumentException("Not a v2 field: " + path);
+		}
+		String segment = path.substring(0, 3);
+		String rest = path.substring(4);
+		int repetition = 0;
+		int open = rest.indexOf('[');
+		if (open >= 0) {
+			int close = rest.indexOf(']', open);
+			if (close < 0) {
+				throw new IllegalArgumentException("Not a v2 field: " + path);
+			}
+			repetition = number(rest.substring(open + 1, close), path);
+			rest = rest.substring(0, open) + rest.substring(close + 1);
+		}
+		String[] parts = rest.split("\\.", -1);
+		if (parts.length > 3) {
+			throw new IllegalArgumentException("Not a v2 field: " + path);
+		}
+		int field = number(parts[0], path);
+		int component = parts.length > 1 ? number(parts[1], path) : 0;
+		int subcomponent = parts.length > 2 ? number(parts[2], path) : 0;
+		if (field < 1 || (parts.length > 1 && component < 1)
+				|| (parts.length > 2 && subcomponent < 1)) {
+			throw new IllegalArgumentException("v2 positions start at 1: "
+					+ path);
+		}
+		return new FieldPath(segment, field, repetition, component,
+				subcomponent);
+	}
+
+	private static int number(String value, String path) {
+		try {
+			return Integer.parseInt(value);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Not a v2 field: " + path);
+		}
+	}
+
+	String getSegment() {
+		return segment;
+	}
+
+	/** @return from 1 */
+	int getField() {
+		return field;
+	}
+
+	/** @return from 0 */
+	int getRepetition() {
+		return repetition;
+	}
+
+	/** @return from 1, 0 when not given */
+	int getComponent() {
+		return component;
+	}
+
+	/** @return from 1, 0 when not given */
+	int getSubcomponent() {
+		return subcomponent;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder path = new StringBuilder().append(segment).append('-')
+				.append(field);
+		if (repetition > 0) {
+			path.append('[').append(repetition).append(']');
+		}
+		if (component > 0) {
+			path.append('.').append(component);
+		}
+		if (subcomponent > 0) {
+			path.append('.').append(subcomponent);
+		}
+		return path.toString();
+	}
+}
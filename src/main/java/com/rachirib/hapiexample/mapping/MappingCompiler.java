@@ -0,0 +1,649 @@
+package com.rachirib.hapiexample.mapping;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.rachirib.hapiexample.codemap.CodeMapping;
+import com.rachirib.hapiexample.codemap.CodeMaps;
+import com.rachirib.hapiexample.codemap.CodeTable;
+import com.rachirib.hapiexample.transform.PatientKey;
+import com.rachirib.hapiexample.transform.ResourceIds;
+
+import ca.uhn.fhir.model.api.IDatatype;
+import ca.uhn.fhir.model.api.IPrimitiveDatatype;
+import ca.uhn.fhir.model.api.IResource;
+import ca.uhn.fhir.model.dstu2.composite.ResourceReferenceDt;
+import ca.uhn.hl7v2.HL7Exception;
+import ca.uhn.hl7v2.model.Composite;
+import ca.uhn.hl7v2.model.Group;
+import ca.uhn.hl7v2.model.Message;
+import ca.uhn.hl7v2.model.Primitive;
+import ca.uhn.hl7v2.model.Segment;
+import ca.uhn.hl7v2.model.Structure;
+import ca.uhn.hl7v2.model.Type;
+import ca.uhn.hl7v2.model.Varies;
+
+/**
+ * Turn the paths of a {@link MappingDefinition} into method handles, once.
+ *
+ * The v2 side is resolved on an empty message of the structure, so the
+ * groups, fields and components are checked and every step is a plain
+ * virtual call. The FHIR side follows the accessors of the HAPI DSTU2
+ * model: <code>getXxxFirstRep()</code> for repeated elements,
+ * <code>getXxx()</code> for single ones, <code>getXxxElement()</code> or
+ * <code>addXxx()</code> for the primitive written.
+ */
+final class MappingCompiler {
+
+	private static final String RESOURCE_PACKAGE = "ca.uhn.fhir.model.dstu2.resource.";
+	private static final String PRIMITIVE_PACKAGE = "ca.uhn.fhir.model.primitive.";
+
+	private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+	private static final MethodHandle GROUP_GET;
+	private static final MethodHandle SEGMENT_GET_FIELD;
+	private static final MethodHandle COMPOSITE_GET_COMPONENT;
+	private static final MethodHandle PRIMITIVE_GET_VALUE;
+	private static final MethodHandle VALUE;
+	private static final MethodHandle NTH;
+	private static final MethodHandle SET_VALUE_AS_STRING;
+	private static final MethodHandle SET_REFERENCE;
+	private static final MethodHandle SET_RESOURCE;
+	private static final MethodHandle SET_CHOICE;
+	private static final MethodHandle DATE;
+	private static final MethodHandle DATE_TIME;
+	private static final MethodHandle INSTANT;
+	private static final MethodHandle BOOLEAN;
+	private static final MethodHandle CODE;
+	private static final MethodHandle DISPLAY;
+	private static final MethodHandle SYSTEM;
+	private static final MethodHandle PATIENT_KEY;
+
+	static {
+		try {
+			GROUP_GET = LOOKUP.findVirtual(Group.class, "get",
+					MethodType.methodType(Structure.class, String.class));
+			SEGMENT_GET_FIELD = LOOKUP.findVirtual(Segment.class, "getField",
+					MethodType.methodType(Type.class, int.class, int.class));
+			COMPOSITE_GET_COMPONENT = LOOKUP.findVirtual(Composite.class,
+					"getComponent",
+					MethodType.methodType(Type.class, int.class));
+			PRIMITIVE_GET_VALUE = LOOKUP.findVirtual(Primitive.class,
+					"getValue", MethodType.methodType(String.class));
+			VALUE = LOOKUP.findStatic(MappingCompiler.class, "value",
+					MethodType.methodType(String.class, Type.class));
+			NTH = LOOKUP.findStatic(MappingCompiler.class, "nth", MethodType
+					.methodType(Object.class, MethodHandle.class, int.class,
+							List.class));
+			SET_VALUE_AS_STRING = LOOKUP.findVirtual(IPrimitiveDatatype.class,
+					"setValueAsString",
+					MethodType.methodType(void.class, String.class));
+			SET_REFERENCE = LOOKUP.findVirtual(ResourceReferenceDt.class,
+					"setReference", MethodType.methodType(
+							ResourceReferenceDt.class, String.class));
+			SET_RESOURCE = LOOKUP.findStatic(MappingCompiler.class,
+					"reference", MethodType.methodType(void.class,
+							ResourceReferenceDt.class, IResource.class));
+			SET_CHOICE = LOOKUP.findStatic(MappingCompiler.class, "choice",
+					MethodType.methodType(void.class, MethodHandle.class,
+							MethodHandle.class, Object.class, String.class));
+			MethodType conversion = MethodType.methodType(String.class,
+					String.class);
+			DATE = LOOKUP.findStatic(MappingCompiler.class, "date",
+					conversion);
+			DATE_TIME = LOOKUP.findStatic(MappingCompiler.class, "dateTime",
+					conversion);
+			INSTANT = LOOKUP.findStatic(MappingCompiler.class, "instant",
+					conversion);
+			BOOLEAN = LOOKUP.findStatic(MappingCompiler.class, "bool",
+					conversion);
+			MethodType lookup = MethodType.methodType(String.class,
+					CodeTable.class, String.class);
+			CODE = LOOKUP.findStatic(MappingCompiler.class, "code", lookup);
+			DISPLAY = LOOKUP.findStatic(MappingCompiler.class, "display",
+					lookup);
+			SYSTEM = LOOKUP.findStatic(MappingCompiler.class, "system", lookup);
+			PATIENT_KEY = LOOKUP.findStatic(PatientKey.class, "of",
+					MethodType.methodType(String.class, Composite.class));
+		} catch (ReflectiveOperationException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	private MappingCompiler() {
+	}
+
+	/**
+	 * @param prototype
+	 *            empty message of the structure the handle will read
+	 * @param path
+	 * @return (Message)String, the value or null
+	 * @throws IllegalArgumentException
+	 *             the path is not in the structure
+	 */
+	static MethodHandle source(Message prototype, FieldPath path) {
+		List<String> names = names(prototype, path);
+		try {
+			MethodHandle handle = field(names, path);
+			Type type = field(prototype, names, path);
+
+			int[] components = { path.getComponent(), path.getSubcomponent() };
+			for (int component : components) {
+				if (component == 0 || type instanceof Varies) {
+					break;
+				}
+				if (type instanceof Composite) {
+					Type[] children = ((Composite) type).getComponents();
+					if (component > children.length) {
+						throw new IllegalArgumentException(type.getName()
+								+ " has " + children.length + " components");
+					}
+					handle = component(handle, component - 1);
+					type = children[component - 1];
+				} else if (component != 1) {
+					throw new IllegalArgumentException(type.getName()
+							+ " has no component " + component);
+				}
+			}
+			if (type instanceof Varies) {
+				return MethodHandles.filterReturnValue(handle, VALUE);
+			}
+			// first component of a composite, like v2 readers do
+			while (type instanceof Composite) {
+				handle = component(handle, 0);
+				type = ((Composite) type).getComponent(0);
+			}
+			return MethodHandles.filterReturnValue(
+					handle.asType(handle.type().changeReturnType(
+							Primitive.class)), PRIMITIVE_GET_VALUE);
+		} catch (HL7Exception e) {
+			throw new IllegalArgumentException(path + ": " + e.getMessage(),
+					e);
+		}
+	}
+
+	/**
+	 * @param prototype
+	 *            empty message of the structure the handle will read
+	 * @param path
+	 *            a CX field, without component
+	 * @return (Message)String, the {@link PatientKey} of the field or null
+	 * @throws IllegalArgumentException
+	 *             the path is not a CX field of the structure
+	 */
+	static MethodHandle patientKey(Message prototype, FieldPath path) {
+		if (path.getComponent() != 0) {
+			throw new IllegalArgumentException(path
+					+ ": a patient key is read from a whole field");
+		}
+		List<String> names = names(prototype, path);
+		try {
+			Type type = field(prototype, names, path);
+			if (!(type instanceof Composite) || !"CX".equals(type.getName())) {
+				throw new IllegalArgumentException(path + " is not a CX");
+			}
+			MethodHandle handle = field(names, path);
+			return MethodHandles.filterReturnValue(
+					handle.asType(handle.type().changeReturnType(
+							Composite.class)), PATIENT_KEY);
+		} catch (HL7Exception e) {
+			throw new IllegalArgumentException(path + ": " + e.getMessage(),
+					e);
+		}
+	}
+
+	/**
+	 * @return names of the groups down to the segment of the path
+	 */
+	private static List<String> names(Message prototype, FieldPath path) {
+		List<String> names = new ArrayList<String>();
+		if (!locate(prototype, path.getSegment(), names)) {
+			throw new IllegalArgumentException("No segment "
+					+ path.getSegment() + " in "
+					+ prototype.getClass().getSimpleName());
+		}
+		return names;
+	}
+
+	/**
+	 * @return (Message)Type, the field of the path
+	 */
+	private static MethodHandle field(List<String> names, FieldPath path) {
+		MethodHandle handle = MethodHandles.identity(Message.class);
+		for (String name : names) {
+			handle = MethodHandles.filterReturnValue(
+					handle.asType(handle.type().changeReturnType(Group.class)),
+					MethodHandles.insertArguments(GROUP_GET, 1, name));
+		}
+		return MethodHandles.filterReturnValue(
+				handle.asType(handle.type().changeReturnType(Segment.class)),
+				MethodHandles.insertArguments(SEGMENT_GET_FIELD, 1,
+						path.getField(), path.getRepetition()));
+	}
+
+	/**
+	 * @return the field of the path in the prototype
+	 */
+	private static Type field(Message prototype, List<String> names,
+			FieldPath path) throws HL7Exception {
+		Structure structure = prototype;
+		for (String name : names) {
+			structure = ((Group) structure).get(name);
+		}
+		Segment segment = (Segment) structure;
+		if (path.getField() > segment.numFields()) {
+			throw new IllegalArgumentException(path.getSegment() + " has "
+					+ segment.numFields() + " fields");
+		}
+		return segment.getField(path.getField(), path.getRepetition());
+	}
+
+	private static MethodHandle component(MethodHandle handle, int index) {
+		return MethodHandles.filterReturnValue(
+				handle.asType(handle.type().changeReturnType(Composite.class)),
+				MethodHandles.insertArguments(COMPOSITE_GET_COMPONENT, 1,
+						index));
+	}
+
+	/**
+	 * Names of the groups down to the first segment of that name, depth
+	 * first
+	 */
+	private static boolean locate(Group group, String segment,
+			List<String> names) {
+		for (String name : group.getNames()) {
+			Class<? extends Structure> type = group.getClass(name);
+			if (name.equals(segment) && Segment.class.isAssignableFrom(type)) {
+				names.add(name);
+				return true;
+			}
+			if (Group.class.isAssignableFrom(type)) {
+				names.add(name);
+				try {
+					if (locate((Group) group.get(name), segment, names)) {
+						return true;
+					}
+				} catch (HL7Exception e) {
+					throw new IllegalArgumentException(e);
+				}
+				names.remove(names.size() - 1);
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @param value
+	 * @return (Message)String returning the literal
+	 */
+	static MethodHandle literal(String value) {
+		return MethodHandles.dropArguments(
+				MethodHandles.constant(String.class, value), 0, Message.class);
+	}
+
+	/**
+	 * @param resourceType
+	 *            DSTU2 resource name, e.g. Patient
+	 * @return
+	 */
+	static Class<? extends IResource> resourceClass(String resourceType) {
+		try {
+			return Class.forName(RESOURCE_PACKAGE + resourceType).asSubclass(
+					IResource.class);
+		} catch (ClassNotFoundException e) {
+			throw new IllegalArgumentException("Unknown resource "
+					+ resourceType, e);
+		} catch (ClassCastException e) {
+			throw new IllegalArgumentException("Not a resource "
+					+ resourceType, e);
+		}
+	}
+
+	/**
+	 * @param type
+	 * @return ()IResource, a new empty resource
+	 */
+	static MethodHandle constructor(Class<? extends IResource> type) {
+		try {
+			return LOOKUP.findConstructor(type,
+					MethodType.methodType(void.class)).asType(
+					MethodType.methodType(IResource.class));
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalArgumentException("Cannot create "
+					+ type.getSimpleName(), e);
+		}
+	}
+
+	/**
+	 * @param path
+	 * @param valueType
+	 *            String, or IResource for a reference to a resource
+	 * @return (IResource, valueType)void writing the value to the element
+	 */
+	static MethodHandle target(ResourcePath path, Class<?> valueType) {
+		Class<? extends IResource> resource = resourceClass(path
+				.getResourceType());
+		MethodHandle handle = MethodHandles.identity(resource);
+		Class<?> current = resource;
+		MethodHandle choice = null;
+		try {
+			for (int i = 0; i < path.size(); i++) {
+				boolean last = i == path.size() - 1;
+				String element = path.getElement(i);
+				int index = path.getIndex(i);
+				String property = property(element);
+				Method firstRep = method(current, "get" + property + "FirstRep");
+				MethodHandle step;
+				Class<?> next;
+				if (firstRep != null) {
+					next = firstRep.getReturnType();
+					if (index != ResourcePath.NO_INDEX) {
+						MethodHandle list = LOOKUP.unreflect(method(current,
+								"get" + property));
+						MethodHandle constructor = LOOKUP.findConstructor(
+								next, MethodType.methodType(void.class))
+								.asType(MethodType.methodType(Object.class));
+						step = MethodHandles.filterReturnValue(
+								list.asType(MethodType.methodType(List.class,
+										current)),
+								MethodHandles.insertArguments(NTH, 0,
+										constructor, index));
+					} else if (last
+							&& IPrimitiveDatatype.class.isAssignableFrom(next)) {
+						// repeated primitive, every rule adds one
+						step = LOOKUP.unreflect(method(current, "add"
+								+ property));
+					} else {
+						step = LOOKUP.unreflect(firstRep);
+					}
+				} else {
+					if (index != ResourcePath.NO_INDEX) {
+						throw new IllegalArgumentException(element
+								+ " is not repeated");
+					}
+					Method getter = method(current, "get" + property
+							+ "Element");
+					if (getter == null
+							|| !IPrimitiveDatatype.class.isAssignableFrom(getter
+									.getReturnType())) {
+						getter = method(current, "get" + property);
+					}
+					if (getter == null && last
+							&& (choice = choice(current, property)) != null) {
+						break;
+					}
+					if (getter == null || getter.getReturnType() == String.class
+							|| List.class.isAssignableFrom(getter.getReturnType())) {
+						throw new IllegalArgumentException("No element "
+								+ element + " in " + current.getSimpleName());
+					}
+					step = LOOKUP.unreflect(getter);
+					next = getter.getReturnType();
+				}
+				handle = MethodHandles.filterReturnValue(handle,
+						step.asType(MethodType.methodType(next, current)));
+				current = next;
+			}
+		} catch (IllegalAccessException e) {
+			throw new IllegalArgumentException(path.toString(), e);
+		} catch (NoSuchMethodException e) {
+			throw new IllegalArgumentException(path + ": no constructor", e);
+		}
+
+		MethodHandle setter;
+		if (choice != null) {
+			if (valueType != String.class) {
+				throw new IllegalArgumentException(path
+						+ " is not a resource reference");
+			}
+			setter = choice;
+		} else if (ResourceReferenceDt.class.isAssignableFrom(current)) {
+			setter = valueType == String.class ? SET_REFERENCE : SET_RESOURCE;
+		} else if (valueType != String.class) {
+			throw new IllegalArgumentException(path
+					+ " is not a resource reference");
+		} else if (IPrimitiveDatatype.class.isAssignableFrom(current)) {
+			setter = SET_VALUE_AS_STRING;
+		} else {
+			throw new IllegalArgumentException(path + " is a "
+					+ current.getSimpleName() + ", not a primitive");
+		}
+		setter = setter.asType(MethodType.methodType(void.class, current,
+				valueType));
+		return MethodHandles.filterArguments(setter, 0, handle).asType(
+				MethodType.methodType(void.class, IResource.class, valueType));
+	}
+
+	/**
+	 * @param conversion
+	 *            name of a conversion of {@link MappingDefinition}
+	 * @return (String)String, null when the value cannot be converted
+	 */
+	static MethodHandle conversion(String conversion) {
+		if ("date".equals(conversion)) {
+			return DATE;
+		}
+		if ("datetime".equals(conversion)) {
+			return DATE_TIME;
+		}
+		if ("instant".equals(conversion)) {
+			return INSTANT;
+		}
+		if ("boolean".equals(conversion)) {
+			return BOOLEAN;
+		}
+		int open = conversion.indexOf('(');
+		if (open > 0 && conversion.endsWith(")")) {
+			String name = conversion.substring(0, open);
+			CodeTable table = CodeMaps.getDefault().table(
+					conversion.substring(open + 1, conversion.length() - 1)
+							.trim());
+			if ("table".equals(name)) {
+				return MethodHandles.insertArguments(CODE, 0, table);
+			}
+			if ("display".equals(name)) {
+				return MethodHandles.insertArguments(DISPLAY, 0, table);
+			}
+			if ("system".equals(name)) {
+				return MethodHandles.insertArguments(SYSTEM, 0, table);
+			}
+		}
+		throw new IllegalArgumentException("Unknown conversion " + conversion);
+	}
+
+	/**
+	 * Accessor suffix of an element, <code>class</code> is renamed by HAPI
+	 */
+	private static String property(String element) {
+		String property = Character.toUpperCase(element.charAt(0))
+				+ element.substring(1);
+		return "Class".equals(property) ? "ClassElement" : property;
+	}
+
+	/**
+	 * @return (Object,String)void writing a primitive of the type named at
+	 *         the end of a choice element, <code>deceasedBoolean</code> to
+	 *         <code>setDeceased(IDatatype)</code>; null when the property is
+	 *         not one
+	 */
+	private static MethodHandle choice(Class<?> type, String property)
+			throws IllegalAccessException {
+		for (int i = property.length() - 1; i > 0; i--) {
+			if (!Character.isUpperCase(property.charAt(i))) {
+				continue;
+			}
+			Method setter;
+			Class<?> primitive;
+			try {
+				setter = type.getMethod("set" + property.substring(0, i),
+						IDatatype.class);
+				primitive = Class.forName(PRIMITIVE_PACKAGE
+						+ property.substring(i) + "Dt");
+				if (!IPrimitiveDatatype.class.isAssignableFrom(primitive)) {
+					return null;
+				}
+				return MethodHandles.insertArguments(SET_CHOICE, 0, LOOKUP
+						.findConstructor(primitive,
+								MethodType.methodType(void.class)).asType(
+								MethodType.methodType(IPrimitiveDatatype.class)),
+						LOOKUP.unreflect(setter));
+			} catch (NoSuchMethodException e) {
+				continue;
+			} catch (ClassNotFoundException e) {
+				return null;
+			}
+		}
+		return null;
+	}
+
+	static void choice(MethodHandle constructor, MethodHandle setter,
+			Object element, String value) throws Throwable {
+		IPrimitiveDatatype<?> primitive = (IPrimitiveDatatype<?>) constructor
+				.invokeExact();
+		primitive.setValueAsString(value);
+		setter.invoke(element, primitive);
+	}
+
+	private static Method method(Class<?> type, String name) {
+		try {
+			return type.getMethod(name);
+		} catch (NoSuchMethodException e) {
+			return null;
+		}
+	}
+
+	static Object nth(MethodHandle constructor, int index, List<Object> list)
+			throws Throwable {
+		while (list.size() <= index) {
+			list.add(constructor.invoke());
+		}
+		return list.get(index);
+	}
+
+	/**
+	 * Refer to the entry of a resource in its bundle, see
+	 * {@link ResourceIds#reference(IResource)}
+	 */
+	static void reference(ResourceReferenceDt reference, IResource resource) {
+		reference.setResource(resource);
+		reference.setReference(ResourceIds.URN_UUID
+				+ resource.getId().getIdPart());
+	}
+
+	/**
+	 * Value of a field whose type is only known from the message (OBX-5)
+	 */
+	static String value(Type type) throws HL7Exception {
+		if (type instanceof Varies) {
+			type = ((Varies) type).getData();
+		}
+		while (type instanceof Composite) {
+			type = ((Composite) type).getComponent(0);
+		}
+		return type instanceof Primitive ? ((Primitive) type).getValue()
+				: null;
+	}
+
+	/**
+	 * @param ts
+	 *            v2 TS or DT, YYYY[MM[DD...]]
+	 * @return FHIR date at the precision of the value
+	 */
+	static String date(String ts) {
+		int digits = digits(ts);
+		if (digits >= 8) {
+			return ts.substring(0, 4) + '-' + ts.substring(4, 6) + '-'
+					+ ts.substring(6, 8);
+		}
+		if (digits >= 6) {
+			return ts.substring(0, 4) + '-' + ts.substring(4, 6);
+		}
+		return digits >= 4 ? ts.substring(0, 4) : null;
+	}
+
+	/**
+	 * @param ts
+	 *            v2 TS, YYYY[MM[DD[HHMM[SS[.S...]]]]][+/-ZZZZ]
+	 * @return FHIR dateTime, with seconds when the value has a time
+	 */
+	static String dateTime(String ts) {
+		int digits = digits(ts);
+		if (digits < 12) {
+			return date(ts);
+		}
+		StringBuilder value = new StringBuilder(29).append(ts, 0, 4)
+				.append('-').append(ts, 4, 6).append('-').append(ts, 6, 8)
+				.append('T').append(ts, 8, 10).append(':').append(ts, 10, 12)
+				.append(':');
+		if (digits >= 14) {
+			value.append(ts, 12, 14);
+		} else {
+			value.append("00");
+		}
+		int end = digits;
+		if (digits == 14 && end < ts.length() && ts.charAt(end) == '.') {
+			int fraction = end + 1;
+			while (fraction < ts.length()
+					&& Character.isDigit(ts.charAt(fraction))) {
+				fraction++;
+			}
+			value.append(ts, end, fraction);
+			end = fraction;
+		}
+		if (end + 5 <= ts.length()
+				&& (ts.charAt(end) == '+' || ts.charAt(end) == '-')) {
+			value.append(ts, end, end + 3).append(':')
+					.append(ts, end + 3, end + 5);
+		}
+		return value.toString();
+	}
+
+	/**
+	 * @param ts
+	 * @return FHIR instant, midnight for a date
+	 */
+	static String instant(String ts) {
+		int digits = digits(ts);
+		if (digits >= 12) {
+			return dateTime(ts);
+		}
+		return digits >= 8 ? date(ts) + "T00:00:00" : null;
+	}
+
+	/**
+	 * @param value
+	 * @return true for <code>true</code> whatever its case, false for
+	 *         anything else, as the ADT^A05 transform reads a v2 boolean
+	 */
+	static String bool(String value) {
+		return String.valueOf(Boolean.parseBoolean(value));
+	}
+
+	private static int digits(String ts) {
+		int digits = 0;
+		while (digits < ts.length() && digits < 14
+				&& Character.isDigit(ts.charAt(digits))) {
+			digits++;
+		}
+		return digits;
+	}
+
+	static String code(CodeTable table, String v2Code) {
+		CodeMapping mapping = table.lookup(v2Code);
+		return mapping == null ? null : mapping.getCode();
+	}
+
+	static String display(CodeTable table, String v2Code) {
+		CodeMapping mapping = table.lookup(v2Code);
+		return mapping == null ? null : mapping.getDisplay();
+	}
+
+	static String system(CodeTable table, String v2Code) {
+		CodeMapping mapping = table.lookup(v2Code);
+		return mapping == null ? null : mapping.getSystem();
+	}
+}
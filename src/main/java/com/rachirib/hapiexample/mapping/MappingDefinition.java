@@ -0,0 +1,334 @@
+package com.rachirib.hapiexample.mapping;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * v2 to FHIR mapping read from a text file, compiled by
+ * {@link MappingTransformer}.
+ *
+ * <pre>
+ * version 2.3
+ * message ADT^A01 ADT^A04
+ * id Patient patient(PID-3)
+ * id Encounter &#64;Patient PV1-19.1
+ * PID-5.1 -> Patient.name.family
+ * PID-7 -> Patient.birthDate : date
+ * "http://hl7.org/fhir/v2/0203" -> Patient.identifier.system when PID-3.1
+ * &#64;Patient -> Encounter.patient
+ * </pre>
+ *
+ * A rule reads a v2 field, a quoted literal or another resource of the
+ * mapping (<code>&#64;Type</code>), optionally converts it (<code>date</code>,
+ * <code>datetime</code>, <code>instant</code>, <code>boolean</code>,
+ * <code>table(id)</code>, <code>display(id)</code>, <code>system(id)</code>),
+ * and writes it to a resource element, a choice element by the name of its
+ * type (<code>Patient.deceasedBoolean</code>). <code>when</code> skips the rule when the given field is
+ * empty. Lines starting with # are comments.
+ *
+ * An <code>id</code> line names a resource type by v2 fields, the
+ * resources named before it and <code>patient(field)</code>, the
+ * {@link com.rachirib.hapiexample.transform.PatientKey} of a CX field, see
+ * {@link com.rachirib.hapiexample.transform.ResourceIds}; the other
+ * resources, and the ones whose fields are all empty, are named by their
+ * message (MSH-3, MSH-4, MSH-7 and MSH-10).
+ */
+public final class MappingDefinition {
+
+	private final String version;
+	private final List<String[]> messages;
+	private final List<Rule> rules;
+	private final List<Id> ids;
+
+	private MappingDefinition(String version, List<String[]> messages,
+			List<Rule> rules, List<Id> ids) {
+		this.version = version;
+		this.messages = messages;
+		this.rules = rules;
+		this.ids = ids;
+	}
+
+	/**
+	 * @return v2 version of the messages, e.g. 2.3
+	 */
+	public String getVersion() {
+		return version;
+	}
+
+	/**
+	 * @return message type and trigger event pairs
+	 */
+	public List<String[]> getMessages() {
+		return messages;
+	}
+
+	List<Rule> getRules() {
+		return rules;
+	}
+
+	List<Id> getIds() {
+		return ids;
+	}
+
+	/**
+	 * Load a mapping from the classpath
+	 *
+	 * @param resource
+	 * @return
+	 */
+	public static MappingDefinition load(String resource) {
+		InputStream in = MappingDefinition.class.getResourceAsStream(resource);
+		if (in == null) {
+			throw new IllegalArgumentException("Mapping not found: "
+					+ resource);
+		}
+		try {
+			try {
+				return load(in);
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException("Failed to read mapping "
+					+ resource, e);
+		}
+	}
+
+	/**
+	 * Load a mapping from a stream, UTF-8 encoded
+	 *
+	 * @param in
+	 * @return
+	 * @throws IOException
+	 */
+	public static MappingDefinition load(InputStream in) throws IOException {
+		BufferedReader reader = new BufferedReader(new InputStreamReader(in,
+				StandardCharsets.UTF_8));
+		String version = null;
+		List<String[]> messages = new ArrayList<String[]>();
+		List<Rule> rules = new ArrayList<Rule>();
+		List<Id> ids = new ArrayList<Id>();
+		String line;
+		int lineNumber = 0;
+		while ((line = reader.readLine()) != null) {
+			lineNumber++;
+			line = line.trim();
+			if (line.length() == 0 || line.startsWith("#")) {
+				continue;
+			}
+			try {
+				if (line.startsWith("version ")) {
+					version = line.substring(8).trim();
+				} else if (line.startsWith("message ")) {
+					for (String message : line.substring(8).trim()
+							.split("\\s+")) {
+						int caret = message.indexOf('^');
+						if (caret < 1 || caret == message.length() - 1) {
+							throw new IllegalArgumentException(
+									"Not a message type^trigger: " + message);
+						}
+						messages.add(new String[] {
+								message.substring(0, caret),
+								message.substring(caret + 1) });
+					}
+				} else if (line.startsWith("id ")) {
+					ids.add(Id.parse(line.substring(3).trim(), lineNumber));
+				} else {
+					rules.add(Rule.parse(line, lineNumber));
+				}
+			} catch (IllegalArgumentException e) {
+				throw new IllegalArgumentException("Invalid mapping line "
+						+ lineNumber + ": " + e.getMessage(), e);
+			}
+		}
+		if (version == null || messages.isEmpty()) {
+			throw new IllegalArgumentException(
+					"Mapping without version or message line");
+		}
+		return new MappingDefinition(version,
+				Collections.unmodifiableList(messages),
+				Collections.unmodifiableList(rules),
+				Collections.unmodifiableList(ids));
+	}
+
+	/**
+	 * Names of the id of a resource type
+	 */
+	static final class Id {
+
+		private final int line;
+		private final String resourceType;
+		/** v2 field of each name, null for a resource */
+		private final FieldPath[] fields;
+		/** Resource type of each name, null for a v2 field */
+		private final String[] resources;
+		/** Names taken as the patient key of their field */
+		private final boolean[] patientKeys;
+
+		private Id(int line, String resourceType, FieldPath[] fields,
+				String[] resources, boolean[] patientKeys) {
+			this.line = line;
+			this.resourceType = resourceType;
+			this.fields = fields;
+			this.resources = resources;
+			this.patientKeys = patientKeys;
+		}
+
+		static Id parse(String line, int lineNumber) {
+			String[] words = line.split("\\s+");
+			if (words.length < 2) {
+				throw new IllegalArgumentException(
+						"An id needs a resource type and names");
+			}
+			FieldPath[] fields = new FieldPath[words.length - 1];
+			String[] resources = new String[words.length - 1];
+			boolean[] patientKeys = new boolean[words.length - 1];
+			for (int i = 1; i < words.length; i++) {
+				if (words[i].startsWith("@")) {
+					resources[i - 1] = words[i].substring(1);
+				} else if (words[i].startsWith("patient(")
+						&& words[i].endsWith(")")) {
+					fields[i - 1] = FieldPath.parse(words[i].substring(8,
+							words[i].length() - 1));
+					patientKeys[i - 1] = true;
+				} else {
+					fields[i - 1] = FieldPath.parse(words[i]);
+				}
+			}
+			return new Id(lineNumber, words[0], fields, resources,
+					patientKeys);
+		}
+
+		int getLine() {
+			return line;
+		}
+
+		String getResourceType() {
+			return resourceType;
+		}
+
+		int size() {
+			return fields.length;
+		}
+
+		/** @return null unless the name i is a v2 field */
+		FieldPath getField(int i) {
+			return fields[i];
+		}
+
+		/** @return null unless the name i is the id of a resource */
+		String getResource(int i) {
+			return resources[i];
+		}
+
+		/** @return the name i is the patient key of its field */
+		boolean isPatientKey(int i) {
+			return patientKeys[i];
+		}
+	}
+
+	/**
+	 * One line of the mapping
+	 */
+	static final class Rule {
+
+		private final int line;
+		private final FieldPath field;
+		private final String literal;
+		private final String resource;
+		private final ResourcePath target;
+		private final String conversion;
+		private final FieldPath when;
+
+		private Rule(int line, FieldPath field, String literal,
+				String resource, ResourcePath target, String conversion,
+				FieldPath when) {
+			this.line = line;
+			this.field = field;
+			this.literal = literal;
+			this.resource = resource;
+			this.target = target;
+			this.conversion = conversion;
+			this.when = when;
+		}
+
+		static Rule parse(String line, int lineNumber) {
+			int arrow = line.lastIndexOf("->");
+			if (arrow < 0) {
+				throw new IllegalArgumentException("No -> in rule");
+			}
+			String source = line.substring(0, arrow).trim();
+			String right = line.substring(arrow + 2).trim();
+
+			FieldPath when = null;
+			int whenAt = right.indexOf(" when ");
+			if (whenAt >= 0) {
+				when = FieldPath.parse(right.substring(whenAt + 6).trim());
+				right = right.substring(0, whenAt).trim();
+			}
+			String conversion = null;
+			int colon = right.indexOf(':');
+			if (colon >= 0) {
+				conversion = right.substring(colon + 1).trim();
+				right = right.substring(0, colon).trim();
+			}
+			ResourcePath target = ResourcePath.parse(right);
+
+			if (source.length() >= 2 && source.startsWith("\"")
+					&& source.endsWith("\"")) {
+				return new Rule(lineNumber, null, source.substring(1,
+						source.length() - 1), null, target, conversion, when);
+			}
+			if (source.startsWith("@")) {
+				if (conversion != null) {
+					throw new IllegalArgumentException(
+							"A resource is not converted");
+				}
+				return new Rule(lineNumber, null, null, source.substring(1),
+						target, null, when);
+			}
+			return new Rule(lineNumber, FieldPath.parse(source), null, null,
+					target, conversion, when);
+		}
+
+		int getLine() {
+			return line;
+		}
+
+		/** @return null unless the source is a v2 field */
+		FieldPath getField() {
+			return field;
+		}
+
+		/** @return null unless the source is a literal */
+		String getLiteral() {
+			return literal;
+		}
+
+		/** @return null unless the source is a resource of the mapping */
+		String getResource() {
+			return resource;
+		}
+
+		ResourcePath getTarget() {
+			return target;
+		}
+
+		/** @return null when the value is written as read */
+		String getConversion() {
+			return conversion;
+		}
+
+		/** @return null when the rule always applies */
+		FieldPath getWhen() {
+			return when;
+		}
+	}
+}
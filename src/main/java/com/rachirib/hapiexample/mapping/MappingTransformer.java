@@ -0,0 +1,422 @@
+package com.rachirib.hapiexample.mapping;
+
+import java.lang.invoke.MethodHandle;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Function;
+
+import com.rachirib.hapiexample.mapping.MappingDefinition.Id;
+import com.rachirib.hapiexample.mapping.MappingDefinition.Rule;
+import com.rachirib.hapiexample.transform.BundleAssembler;
+import com.rachirib.hapiexample.transform.MessageRouter;
+import com.rachirib.hapiexample.transform.MessageTransformer;
+import com.rachirib.hapiexample.transform.ResourceIds;
+import com.rachirib.hapiexample.transform.SegmentFilter;
+
+import ca.uhn.fhir.model.api.IResource;
+import ca.uhn.fhir.model.dstu2.resource.Bundle;
+import ca.uhn.fhir.model.dstu2.valueset.BundleTypeEnum;
+import ca.uhn.fhir.model.primitive.IdDt;
+import ca.uhn.fhir.parser.DataFormatException;
+import ca.uhn.hl7v2.ErrorCode;
+import ca.uhn.hl7v2.HL7Exception;
+import ca.uhn.hl7v2.model.Message;
+import ca.uhn.hl7v2.parser.ModelClassFactory;
+
+/**
+ * {@link MessageTransformer} running a {@link MappingDefinition}, so a new
+ * message type needs a mapping file rather than code.
+ *
+ * Every path of the mapping is compiled to a {@link MethodHandle} when the
+ * transformer is created: the FHIR setters, the conversions, and the v2
+ * getters of each message structure of the mapping, checked against an
+ * empty message of that structure. A structure met later (a trigger mapped
+ * to a structure not declared) is compiled on its first message. A message
+ * is then transformed by calling the handles, without looking anything up.
+ *
+ * The bundle holds one entry per resource type of the mapping, in order of
+ * first use, assembled by {@link BundleAssembler}. The bundle and resources
+ * get name-based ids, see {@link ResourceIds}: the bundle is named by its
+ * message, a resource by the <code>id</code> line of its type, see
+ * {@link MappingDefinition}. Thread safe.
+ */
+public class MappingTransformer implements MessageTransformer {
+
+	/** Fields naming a message: MSH-3, MSH-4, MSH-7 and MSH-10 */
+	private static final FieldPath[] MESSAGE_NAMES = {
+			FieldPath.parse("MSH-3"), FieldPath.parse("MSH-4"),
+			FieldPath.parse("MSH-7"), FieldPath.parse("MSH-10") };
+
+	private final MappingDefinition definition;
+	private final ModelClassFactory factory;
+	/** ()IResource, by resource index */
+	private final MethodHandle[] constructors;
+	private final String[] resourceTypes;
+	/** Resource index written by each rule */
+	private final int[] targetResources;
+	/** Resource index read by each rule, -1 when it reads the message */
+	private final int[] sourceResources;
+	/** (IResource,String)void or (IResource,IResource)void, by rule */
+	private final MethodHandle[] targets;
+	/** (String)String, null when there is no conversion, by rule */
+	private final MethodHandle[] conversions;
+	/** Id line by resource index, null for a resource named by its message */
+	private final Id[] ids;
+	/** Resource index of each name of the ids, -1 for a v2 field */
+	private final int[][] idResources;
+	private final SegmentFilter segmentFilter;
+	private final ConcurrentMap<Class<? extends Message>, Plan> plans = new ConcurrentHashMap<Class<? extends Message>, Plan>();
+
+	/**
+	 * Compile a mapping for the structures of its messages
+	 *
+	 * @param definition
+	 * @param factory
+	 *            model classes of the parser the messages come from
+	 * @throws IllegalArgumentException
+	 *             a path of the mapping does not exist, with its line
+	 */
+	public MappingTransformer(MappingDefinition definition,
+			ModelClassFactory factory) {
+		this.definition = definition;
+		this.factory = factory;
+		List<Rule> rules = definition.getRules();
+		List<String> types = new ArrayList<String>();
+		Set<String> segments = new LinkedHashSet<String>();
+		for (Rule rule : rules) {
+			String type = rule.getTarget().getResourceType();
+			if (!types.contains(type)) {
+				types.add(type);
+			}
+			addSegment(segments, rule.getField());
+			addSegment(segments, rule.getWhen());
+		}
+		this.resourceTypes = types.toArray(new String[types.size()]);
+		this.constructors = new MethodHandle[resourceTypes.length];
+		for (int i = 0; i < resourceTypes.length; i++) {
+			constructors[i] = MappingCompiler.constructor(MappingCompiler
+					.resourceClass(resourceTypes[i]));
+		}
+
+		this.targetResources = new int[rules.size()];
+		this.sourceResources = new int[rules.size()];
+		this.targets = new MethodHandle[rules.size()];
+		this.conversions = new MethodHandle[rules.size()];
+		for (int i = 0; i < rules.size(); i++) {
+			Rule rule = rules.get(i);
+			try {
+				targetResources[i] = types.indexOf(rule.getTarget()
+						.getResourceType());
+				sourceResources[i] = -1;
+				Class<?> valueType = String.class;
+				if (rule.getResource() != null) {
+					sourceResources[i] = types.indexOf(rule.getResource());
+					if (sourceResources[i] < 0) {
+						throw new IllegalArgumentException("No rule writes "
+								+ rule.getResource());
+					}
+					valueType = IResource.class;
+				}
+				targets[i] = MappingCompiler.target(rule.getTarget(),
+						valueType);
+				if (rule.getConversion() != null) {
+					conversions[i] = MappingCompiler.conversion(rule
+							.getConversion());
+				}
+			} catch (IllegalArgumentException e) {
+				throw invalid(rule.getLine(), e);
+			}
+		}
+
+		this.ids = new Id[resourceTypes.length];
+		this.idResources = new int[resourceTypes.length][];
+		for (Id id : definition.getIds()) {
+			try {
+				int resource = types.indexOf(id.getResourceType());
+				if (resource < 0) {
+					throw new IllegalArgumentException("No rule writes "
+							+ id.getResourceType());
+				}
+				if (ids[resource] != null) {
+					throw new IllegalArgumentException("Second id of "
+							+ id.getResourceType());
+				}
+				int[] named = new int[id.size()];
+				for (int i = 0; i < named.length; i++) {
+					named[i] = -1;
+					if (id.getResource(i) == null) {
+						addSegment(segments, id.getField(i));
+						continue;
+					}
+					named[i] = types.indexOf(id.getResource(i));
+					// ids are given in the order of the resources
+					if (named[i] < 0 || named[i] >= resource) {
+						throw new IllegalArgumentException("No rule writes "
+								+ id.getResource(i) + " before "
+								+ id.getResourceType());
+					}
+				}
+				ids[resource] = id;
+				idResources[resource] = named;
+			} catch (IllegalArgumentException e) {
+				throw invalid(id.getLine(), e);
+			}
+		}
+		segments.remove("MSH");
+		this.segmentFilter = SegmentFilter.of(segments
+				.toArray(new String[segments.size()]));
+
+		for (String[] message : definition.getMessages()) {
+			Class<? extends Message> structure;
+			try {
+				structure = factory.getMessageClass(message[0] + "_"
+						+ message[1], definition.getVersion(), true);
+			} catch (HL7Exception e) {
+				throw new IllegalArgumentException("No structure for "
+						+ message[0] + "^" + message[1], e);
+			}
+			if (structure == null) {
+				throw new IllegalArgumentException("No structure for "
+						+ message[0] + "^" + message[1] + " in v"
+						+ definition.getVersion());
+			}
+			plan(structure);
+		}
+	}
+
+	/**
+	 * Load and compile a mapping from the classpath
+	 *
+	 * @param resource
+	 * @param factory
+	 * @return
+	 */
+	public static MappingTransformer load(String resource,
+			ModelClassFactory factory) {
+		return new MappingTransformer(MappingDefinition.load(resource), factory);
+	}
+
+	/**
+	 * @return the segments the mapping reads
+	 */
+	public SegmentFilter getSegmentFilter() {
+		return segmentFilter;
+	}
+
+	/**
+	 * Register this transformer for every message of its mapping
+	 *
+	 * @param router
+	 * @return the router
+	 */
+	public MessageRouter register(MessageRouter router) {
+		for (String[] message : definition.getMessages()) {
+			router.register(message[0], message[1], this, segmentFilter);
+		}
+		return router;
+	}
+
+	@Override
+	public Bundle transform(Message message) throws HL7Exception {
+		Plan plan = plan(message.getClass());
+		IResource[] resources = new IResource[constructors.length];
+		String[] messageNames = new String[MESSAGE_NAMES.length];
+		try {
+			for (int i = 0; i < messageNames.length; i++) {
+				messageNames[i] = (String) plan.messageNames[i]
+						.invokeExact(message);
+			}
+			for (int i = 0; i < resources.length; i++) {
+				resources[i] = (IResource) constructors[i].invokeExact();
+				resources[i].setId(new IdDt(resourceTypes[i], id(plan, i,
+						message, messageNames, resources)));
+			}
+			for (int i = 0; i < targets.length; i++) {
+				MethodHandle when = plan.whens[i];
+				if (when != null && isEmpty((String) when.invokeExact(message))) {
+					continue;
+				}
+				IResource resource = resources[targetResources[i]];
+				if (sourceResources[i] >= 0) {
+					targets[i].invokeExact(resource,
+							resources[sourceResources[i]]);
+					continue;
+				}
+				String value = (String) plan.sources[i].invokeExact(message);
+				if (isEmpty(value)) {
+					continue;
+				}
+				if (conversions[i] != null) {
+					value = (String) conversions[i].invokeExact(value);
+					if (isEmpty(value)) {
+						continue;
+					}
+				}
+				targets[i].invokeExact(resource, value);
+			}
+		} catch (HL7Exception e) {
+			throw e;
+		} catch (DataFormatException e) {
+			throw new HL7Exception(e.getMessage(), ErrorCode.DATA_TYPE_ERROR, e);
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Error e) {
+			throw e;
+		} catch (Throwable e) {
+			throw new HL7Exception(e);
+		}
+
+		BundleAssembler assembler = new BundleAssembler(ResourceIds.uuid(
+				"Bundle", messageNames), BundleTypeEnum.MESSAGE);
+		for (IResource resource : resources) {
+			assembler.add(resource);
+		}
+		return assembler.getBundle();
+	}
+
+	/**
+	 * @param resource
+	 *            index of the resource, the ones before it have their id
+	 * @return the id of the resource, named by its message when it has no id
+	 *         line or the fields of its id line are all empty
+	 */
+	private String id(Plan plan, int resource, Message message,
+			String[] messageNames, IResource[] resources) throws Throwable {
+		MethodHandle[] fields = plan.idFields[resource];
+		if (fields == null) {
+			return ResourceIds.uuid(resourceTypes[resource], messageNames);
+		}
+		String[] names = new String[fields.length];
+		boolean empty = true;
+		for (int i = 0; i < names.length; i++) {
+			if (fields[i] == null) {
+				names[i] = resources[idResources[resource][i]].getId()
+						.getIdPart();
+				continue;
+			}
+			names[i] = (String) fields[i].invokeExact(message);
+			if (!isEmpty(names[i])) {
+				empty = false;
+			}
+		}
+		return ResourceIds.uuid(resourceTypes[resource], empty ? messageNames
+				: names);
+	}
+
+	/**
+	 * v2 getters of the rules for a message structure, compiled once
+	 */
+	private Plan plan(Class<? extends Message> structure) {
+		Plan plan = plans.get(structure);
+		if (plan == null) {
+			plan = plans.computeIfAbsent(structure,
+					new Function<Class<? extends Message>, Plan>() {
+						@Override
+						public Plan apply(Class<? extends Message> type) {
+							return new Plan(prototype(type));
+						}
+					});
+		}
+		return plan;
+	}
+
+	private Message prototype(Class<? extends Message> structure) {
+		try {
+			return structure.getConstructor(ModelClassFactory.class)
+					.newInstance(factory);
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalArgumentException("Cannot create "
+					+ structure.getName(), e);
+		}
+	}
+
+	private static void addSegment(Set<String> segments, FieldPath path) {
+		if (path != null) {
+			segments.add(path.getSegment());
+		}
+	}
+
+	private static boolean isEmpty(String value) {
+		return value == null || value.trim().length() == 0;
+	}
+
+	private static IllegalArgumentException invalid(int line,
+			IllegalArgumentException e) {
+		return new IllegalArgumentException("Invalid mapping line " + line
+				+ ": " + e.getMessage(), e);
+	}
+
+	/**
+	 * Getters of one message structure, by rule
+	 */
+	private final class Plan {
+
+		/** (Message)String, null for the rules reading a resource */
+		final MethodHandle[] sources;
+		/** (Message)String, null for the rules without guard */
+		final MethodHandle[] whens;
+		/** (Message)String, the fields of {@link #MESSAGE_NAMES} */
+		final MethodHandle[] messageNames;
+		/**
+		 * (Message)String, by resource and name of its id line; null for the
+		 * resources named by their message, and for the names of resources
+		 */
+		final MethodHandle[][] idFields;
+
+		Plan(Message prototype) {
+			List<Rule> rules = definition.getRules();
+			sources = new MethodHandle[rules.size()];
+			whens = new MethodHandle[rules.size()];
+			for (int i = 0; i < rules.size(); i++) {
+				Rule rule = rules.get(i);
+				try {
+					if (rule.getField() != null) {
+						sources[i] = MappingCompiler.source(prototype,
+								rule.getField());
+					} else if (rule.getLiteral() != null) {
+						sources[i] = MappingCompiler.literal(rule.getLiteral());
+					}
+					if (rule.getWhen() != null) {
+						whens[i] = MappingCompiler.source(prototype,
+								rule.getWhen());
+					}
+				} catch (IllegalArgumentException e) {
+					throw invalid(rule.getLine(), e);
+				}
+			}
+			messageNames = new MethodHandle[MESSAGE_NAMES.length];
+			for (int i = 0; i < messageNames.length; i++) {
+				messageNames[i] = MappingCompiler.source(prototype,
+						MESSAGE_NAMES[i]);
+			}
+			idFields = new MethodHandle[ids.length][];
+			for (int resource = 0; resource < ids.length; resource++) {
+				Id id = ids[resource];
+				if (id == null) {
+					continue;
+				}
+				idFields[resource] = new MethodHandle[id.size()];
+				for (int i = 0; i < id.size(); i++) {
+					if (id.getField(i) == null) {
+						continue;
+					}
+					try {
+						if (id.isPatientKey(i)) {
+							idFields[resource][i] = MappingCompiler
+									.patientKey(prototype, id.getField(i));
+						} else {
+							idFields[resource][i] = MappingCompiler.source(
+									prototype, id.getField(i));
+						}
+					} catch (IllegalArgumentException e) {
+						throw invalid(id.getLine(), e);
+					}
+				}
+			}
+		}
+	}
+}
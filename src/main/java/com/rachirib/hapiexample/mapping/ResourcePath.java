@@ -0,0 +1,96 @@
+package com.rachirib.hapiexample.mapping;
+
+/**
+ * Element of a FHIR resource: <code>Patient.name.family</code>, or
+ * <code>Patient.telecom[1].value</code> for the second telecom
+ */
+final class ResourcePath {
+
+	/** Index of the elements written without one */
+	static final int NO_INDEX = -1;
+
+	private final String resourceType;
+	private final String[] elements;
+	private final int[] indexes;
+
+	private ResourcePath(String resourceType, String[] elements, int[] indexes) {
+		this.resourceType = resourceType;
+		this.elements = elements;
+		this.indexes = indexes;
+	}
+
+	/**
+	 * @param path
+	 * @return
+	 * @throws IllegalArgumentException
+	 *             not a resource element path
+	 */
+	static ResourcePath parse(String path) {
+		String[] parts = path.split("\\.", -1);
+		if (parts.length < 2 || parts[0].length() == 0
+				|| !Character.isUpperCase(parts[0].charAt(0))) {
+			throw new IllegalArgumentException("Not a resource element: "
+					+ path);
+		}
+		String[] elements = new String[parts.length - 1];
+		int[] indexes = new int[parts.length - 1];
+		for (int i = 1; i < parts.length; i++) {
+			String part = parts[i];
+			int index = NO_INDEX;
+			int open = part.indexOf('[');
+			if (open >= 0) {
+				if (!part.endsWith("]")) {
+					throw new IllegalArgumentException(
+							"Not a resource element: " + path);
+				}
+				try {
+					index = Integer.parseInt(part.substring(open + 1,
+							part.length() - 1));
+				} catch (NumberFormatException e) {
+					throw new IllegalArgumentException(
+							"Not a resource element: " + path);
+				}
+				part = part.substring(0, open);
+			}
+			if (part.length() == 0 || index < NO_INDEX) {
+				throw new IllegalArgumentException("Not a resource element: "
+						+ path);
+			}
+			elements[i - 1] = part;
+			indexes[i - 1] = index;
+		}
+		return new ResourcePath(parts[0], elements, indexes);
+	}
+
+	String getResourceType() {
+		return resourceType;
+	}
+
+	int size() {
+		return elements.length;
+	}
+
+	String getElement(int i) {
+		return elements[i];
+	}
+
+	/**
+	 * @param i
+	 * @return from 0, {@link #NO_INDEX} when not given
+	 */
+	int getIndex(int i) {
+		return indexes[i];
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder path = new StringBuilder(resourceType);
+		for (int i = 0; i < elements.length; i++) {
+			path.append('.').append(elements[i]);
+			if (indexes[i] != NO_INDEX) {
+				path.append('[').append(indexes[i]).append(']');
+			}
+		}
+		return path.toString();
+	}
+}
@@ -0,0 +1,83 @@
+package com.rachirib.hapiexample.metrics;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Serve {@link TransformMetrics#writeText(Appendable)} over HTTP, for
+ * scrapers pulling <code>GET /metrics</code>. Uses the HTTP server of the
+ * JDK, on one thread.
+ */
+public class MetricsHttpServer implements Closeable {
+
+	/** Path of the metrics */
+	public static final String PATH = "/metrics";
+
+	private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+	private final HttpServer server;
+
+	private MetricsHttpServer(HttpServer server) {
+		this.server = server;
+	}
+
+	/**
+	 * @param address
+	 *            port 0 for any free port
+	 * @param metrics
+	 * @return the started server
+	 * @throws IOException
+	 *             the port cannot be bound
+	 */
+	public static MetricsHttpServer start(InetSocketAddress address,
+			final TransformMetrics metrics) throws IOException {
+		HttpServer server = HttpServer.create(address, 0);
+		server.createContext(PATH, new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				try {
+					if (!"GET".equals(exchange.getRequestMethod())) {
+						exchange.sendResponseHeaders(405, -1);
+						return;
+					}
+					StringBuilder text = new StringBuilder(4096);
+					metrics.writeText(text);
+					byte[] body = text.toString().getBytes(
+							StandardCharsets.UTF_8);
+					exchange.getResponseHeaders().set("Content-Type",
+							CONTENT_TYPE);
+					exchange.sendResponseHeaders(200, body.length);
+					OutputStream out = exchange.getResponseBody();
+					out.write(body);
+					out.close();
+				} finally {
+					exchange.close();
+				}
+			}
+		});
+		server.start();
+		return new MetricsHttpServer(server);
+	}
+
+	/**
+	 * @return the port the server listens to
+	 */
+	public int getPort() {
+		return server.getAddress().getPort();
+	}
+
+	/**
+	 * Stop at once, the exchanges in progress are dropped
+	 */
+	@Override
+	public void close() {
+		server.stop(0);
+	}
+}
@@ -0,0 +1,40 @@
+package com.rachirib.hapiexample.metrics;
+
+/**
+ * Steps of the transformation timed by {@link TransformMetrics}
+ */
+public enum Stage {
+
+	/** MSH read from the raw text and transformer chosen */
+	ROUTE,
+
+	/** HAPI v2 parsing, segment filter included */
+	PARSE,
+
+	/** Whole call of the transformer of the route, on the parsed message */
+	TRANSFORM,
+
+	/** ADT_A05 EVN-5 to Practitioner */
+	OPERATOR,
+
+	/** ADT_A05 PID and NK1 to Patient */
+	PATIENT,
+
+	/** ADT_A05 MSH to MessageHeader */
+	HEADER,
+
+	/** ADT_A05 PV1-7 to Practitioner */
+	PRACTITIONER,
+
+	/** ADT_A05 PV1 and PV2 to Encounter */
+	ENCOUNTER,
+
+	/** ADT_A05 DG1 to Condition */
+	CONDITION,
+
+	/** Bundle and its entries */
+	BUNDLE,
+
+	/** Bundle, or v2 fields, written as FHIR JSON */
+	ENCODE
+}
@@ -0,0 +1,388 @@
+package com.rachirib.hapiexample.metrics;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import ca.uhn.hl7v2.HL7Exception;
+
+/**
+ * Counters and stage timings of a transformer: messages by type and
+ * trigger, failures by category, and a {@link LatencyHistogram} per
+ * {@link Stage}.
+ *
+ * Disabled, {@link #start()} returns 0 and the recording methods return at
+ * once, a volatile read per call. Enabled, a stage costs two
+ * {@link System#nanoTime()} and a few uncontended atomic additions; the
+ * counters are {@link LongAdder} so threads do not fight over a cache
+ * line.
+ *
+ * Read through JMX ({@link #registerMBean(String)}), the text format of
+ * {@link #writeText(Appendable)}, or the {@link MetricsHttpServer}. Thread
+ * safe.
+ */
+public class TransformMetrics implements TransformMetricsMXBean {
+
+	/** Object name of {@link #registerMBean()} */
+	public static final String DEFAULT_OBJECT_NAME = "com.rachirib.hapiexample:type=TransformMetrics";
+
+	private static final Stage[] STAGES = Stage.values();
+
+	private volatile boolean enabled;
+	private final LatencyHistogram[] histograms = new LatencyHistogram[STAGES.length];
+	/** Message type, then trigger event, so counting does not concatenate */
+	private final ConcurrentMap<String, ConcurrentMap<String, LongAdder>> messages = new ConcurrentHashMap<String, ConcurrentMap<String, LongAdder>>();
+	private final ConcurrentMap<String, LongAdder> failures = new ConcurrentHashMap<String, LongAdder>();
+
+	/**
+	 * Disabled metrics
+	 */
+	public TransformMetrics() {
+		this(false);
+	}
+
+	/**
+	 * @param enabled
+	 */
+	public TransformMetrics(boolean enabled) {
+		this.enabled = enabled;
+		for (int i = 0; i < histograms.length; i++) {
+			histograms[i] = new LatencyHistogram();
+		}
+	}
+
+	@Override
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	@Override
+	public void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	/**
+	 * @return start time of a stage for {@link #record(Stage, long)}, 0 when
+	 *         disabled
+	 */
+	public long start() {
+		return enabled ? System.nanoTime() : 0;
+	}
+
+	/**
+	 * Record the time of a stage since its start
+	 *
+	 * @param stage
+	 * @param start
+	 *            from {@link #start()}, nothing is recorded for 0
+	 * @return the current time, start of the next stage; 0 when disabled
+	 */
+	public long record(Stage stage, long start) {
+		if (start == 0) {
+			return 0;
+		}
+		long now = System.nanoTime();
+		histograms[stage.ordinal()].record(now - start);
+		return now;
+	}
+
+	/**
+	 * Count a message received
+	 *
+	 * @param messageType
+	 *            MSH-9.1, null when missing
+	 * @param triggerEvent
+	 *            MSH-9.2, null when missing
+	 */
+	public void message(String messageType, String triggerEvent) {
+		if (!enabled) {
+			return;
+		}
+		ConcurrentMap<String, LongAdder> triggers = messages.get(key(messageType));
+		if (triggers == null) {
+			triggers = messages.computeIfAbsent(key(messageType),
+					new Function<String, ConcurrentMap<String, LongAdder>>() {
+						@Override
+						public ConcurrentMap<String, LongAdder> apply(String type) {
+							return new ConcurrentHashMap<String, LongAdder>();
+						}
+					});
+		}
+		counter(triggers, key(triggerEvent)).increment();
+	}
+
+	/**
+	 * Count a failed message by category: the {@link HL7Exception} error
+	 * code, or the class of any other exception
+	 *
+	 * @param error
+	 */
+	public void failure(Exception error) {
+		if (!enabled) {
+			return;
+		}
+		counter(failures, category(error)).increment();
+	}
+
+	/**
+	 * @param stage
+	 * @return the live histogram of the stage
+	 */
+	public LatencyHistogram getHistogram(Stage stage) {
+		return histograms[stage.ordinal()];
+	}
+
+	/**
+	 * @param messageType
+	 * @param triggerEvent
+	 * @return messages counted for the type and trigger
+	 */
+	public long getMessageCount(String messageType, String triggerEvent) {
+		ConcurrentMap<String, LongAdder> triggers = messages.get(key(messageType));
+		LongAdder counter = triggers == null ? null : triggers
+				.get(key(triggerEvent));
+		return counter == null ? 0 : counter.sum();
+	}
+
+	/**
+	 * @param category
+	 *            HL7 error code name (e.g. DATA_TYPE_ERROR) or exception class
+	 *            simple name
+	 * @return
+	 */
+	public long getFailureCount(String category) {
+		LongAdder counter = failures.get(category);
+		return counter == null ? 0 : counter.sum();
+	}
+
+	@Override
+	public Map<String, Long> getMessageCounts() {
+		Map<String, Long> counts = new TreeMap<String, Long>();
+		for (Map.Entry<String, ConcurrentMap<String, LongAdder>> type : messages
+				.entrySet()) {
+			for (Map.Entry<String, LongAdder> trigger : type.getValue()
+					.entrySet()) {
+				counts.put(type.getKey() + '^' + trigger.getKey(),
+						Long.valueOf(trigger.getValue().sum()));
+			}
+		}
+		return counts;
+	}
+
+	@Override
+	public Map<String, Long> getFailureCounts() {
+		Map<String, Long> counts = new TreeMap<String, Long>();
+		for (Map.Entry<String, LongAdder> failure : failures.entrySet()) {
+			counts.put(failure.getKey(),
+					Long.valueOf(failure.getValue().sum()));
+		}
+		return counts;
+	}
+
+	@Override
+	public Map<String, Long> getStageCounts() {
+		Map<String, Long> counts = new TreeMap<String, Long>();
+		for (Stage stage : STAGES) {
+			counts.put(name(stage),
+					Long.valueOf(getHistogram(stage).getCount()));
+		}
+		return counts;
+	}
+
+	@Override
+	public Map<String, Double> getStageMeanMicros() {
+		Map<String, Double> means = new TreeMap<String, Double>();
+		for (Stage stage : STAGES) {
+			means.put(name(stage),
+					Double.valueOf(getHistogram(stage).getMean() / 1000));
+		}
+		return means;
+	}
+
+	@Override
+	public Map<String, Double> getStageP50Micros() {
+		return percentileMicros(50);
+	}
+
+	@Override
+	public Map<String, Double> getStageP99Micros() {
+		return percentileMicros(99);
+	}
+
+	@Override
+	public Map<String, Double> getStageMaxMicros() {
+		Map<String, Double> maxima = new TreeMap<String, Double>();
+		for (Stage stage : STAGES) {
+			maxima.put(name(stage),
+					Double.valueOf(getHistogram(stage).getMax() / 1000d));
+		}
+		return maxima;
+	}
+
+	@Override
+	public void reset() {
+		for (LatencyHistogram histogram : histograms) {
+			histogram.reset();
+		}
+		messages.clear();
+		failures.clear();
+	}
+
+	/**
+	 * Write the metrics in the Prometheus text format, times in seconds
+	 *
+	 * @param out
+	 * @throws IOException
+	 */
+	public void writeText(Appendable out) throws IOException {
+		out.append("# TYPE hl7_messages_total counter\n");
+		for (Map.Entry<String, ConcurrentMap<String, LongAdder>> type : new TreeMap<String, ConcurrentMap<String, LongAdder>>(
+				messages).entrySet()) {
+			for (Map.Entry<String, LongAdder> trigger : new TreeMap<String, LongAdder>(
+					type.getValue()).entrySet()) {
+				out.append("hl7_messages_total{type=\"")
+						.append(escape(type.getKey()))
+						.append("\",trigger=\"")
+						.append(escape(trigger.getKey())).append("\"} ")
+						.append(Long.toString(trigger.getValue().sum()))
+						.append('\n');
+			}
+		}
+		out.append("# TYPE hl7_failures_total counter\n");
+		for (Map.Entry<String, Long> failure : getFailureCounts().entrySet()) {
+			out.append("hl7_failures_total{category=\"")
+					.append(escape(failure.getKey())).append("\"} ")
+					.append(failure.getValue().toString()).append('\n');
+		}
+		out.append("# TYPE hl7_stage_seconds summary\n");
+		for (Stage stage : STAGES) {
+			LatencyHistogram histogram = getHistogram(stage);
+			String name = name(stage);
+			for (double quantile : new double[] { 0.5, 0.9, 0.99, 0.999 }) {
+				out.append("hl7_stage_seconds{stage=\"").append(name)
+						.append("\",quantile=\"")
+						.append(Double.toString(quantile)).append("\"} ")
+						.append(seconds(histogram
+								.getValueAtPercentile(quantile * 100)))
+						.append('\n');
+			}
+			out.append("hl7_stage_seconds_sum{stage=\"").append(name)
+					.append("\"} ").append(seconds(histogram.getSum()))
+					.append('\n');
+			out.append("hl7_stage_seconds_count{stage=\"").append(name)
+					.append("\"} ").append(Long.toString(histogram.getCount()))
+					.append('\n');
+			out.append("hl7_stage_seconds_max{stage=\"").append(name)
+					.append("\"} ").append(seconds(histogram.getMax()))
+					.append('\n');
+		}
+	}
+
+	/**
+	 * Register in the platform MBean server as
+	 * {@link #DEFAULT_OBJECT_NAME}
+	 *
+	 * @return the name registered
+	 */
+	public ObjectName registerMBean() {
+		return registerMBean(DEFAULT_OBJECT_NAME);
+	}
+
+	/**
+	 * Register in the platform MBean server, replacing the bean of the same
+	 * name
+	 *
+	 * @param objectName
+	 * @return the name registered
+	 * @throws IllegalArgumentException
+	 *             the name is not valid
+	 */
+	public ObjectName registerMBean(String objectName) {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try {
+			ObjectName name = new ObjectName(objectName);
+			if (server.isRegistered(name)) {
+				server.unregisterMBean(name);
+			}
+			server.registerMBean(this, name);
+			return name;
+		} catch (JMException e) {
+			throw new IllegalArgumentException("Cannot register "
+					+ objectName, e);
+		}
+	}
+
+	/**
+	 * Remove a bean registered by {@link #registerMBean(String)}
+	 *
+	 * @param name
+	 */
+	public static void unregisterMBean(ObjectName name) {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try {
+			if (server.isRegistered(name)) {
+				server.unregisterMBean(name);
+			}
+		} catch (JMException e) {
+			throw new IllegalArgumentException("Cannot unregister " + name, e);
+		}
+	}
+
+	static String category(Exception error) {
+		if (error instanceof HL7Exception) {
+			return ((HL7Exception) error).getError().name();
+		}
+		return error.getClass().getSimpleName();
+	}
+
+	private Map<String, Double> percentileMicros(double percentile) {
+		Map<String, Double> values = new TreeMap<String, Double>();
+		for (Stage stage : STAGES) {
+			values.put(name(stage), Double.valueOf(getHistogram(stage)
+					.getValueAtPercentile(percentile) / 1000d));
+		}
+		return values;
+	}
+
+	private static LongAdder counter(ConcurrentMap<String, LongAdder> counters,
+			String key) {
+		LongAdder counter = counters.get(key);
+		if (counter == null) {
+			counter = counters.computeIfAbsent(key,
+					new Function<String, LongAdder>() {
+						@Override
+						public LongAdder apply(String k) {
+							return new LongAdder();
+						}
+					});
+		}
+		return counter;
+	}
+
+	private static String key(String value) {
+		return value == null ? "" : value;
+	}
+
+	private static String name(Stage stage) {
+		return stage.name().toLowerCase(Locale.ROOT);
+	}
+
+	private static String seconds(double nanos) {
+		return Double.toString(nanos / 1e9);
+	}
+
+	private static String escape(String value) {
+		return value.replace("\\", "\\\\").replace("\"", "\\\"")
+				.replace("\n", "\\n");
+	}
+}
@@ -0,0 +1,33 @@
+package com.rachirib.hapiexample.metrics;
+
+import java.util.Map;
+
+/**
+ * JMX view of {@link TransformMetrics}, maps keyed by message type^trigger,
+ * failure category or stage name
+ */
+public interface TransformMetricsMXBean {
+
+	boolean isEnabled();
+
+	void setEnabled(boolean enabled);
+
+	Map<String, Long> getMessageCounts();
+
+	Map<String, Long> getFailureCounts();
+
+	Map<String, Long> getStageCounts();
+
+	Map<String, Double> getStageMeanMicros();
+
+	Map<String, Double> getStageP50Micros();
+
+	Map<String, Double> getStageP99Micros();
+
+	Map<String, Double> getStageMaxMicros();
+
+	/**
+	 * Forget the counts and the timings
+	 */
+	void reset();
+}
@@ -0,0 +1,80 @@
+package com.rachirib.hapiexample.mllp;
+
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+
+import com.rachirib.hapiexample.transform.MshHeader;
+
+/**
+ * Build ER7 acknowledgements from the MSH of the original message, without
+ * parsing it
+ */
+public final class Acknowledgements {
+
+	/** Application accept */
+	public static final String AA = "AA";
+	/** Application error */
+	public static final String AE = "AE";
+	/** Application reject */
+	public static final String AR = "AR";
+
+	private static final DateTimeFormatter TIMESTAMP = DateTimeFormatter
+			.ofPattern("yyyyMMddHHmmss");
+
+	private Acknowledgements() {
+	}
+
+	/**
+	 * @param msh
+	 *            MSH of the message acknowledged, null when it could not be
+	 *            read
+	 * @param code
+	 *            AA, AE or AR
+	 * @param text
+	 *            MSA-3 text message, may be null
+	 * @return
+	 */
+	public static String ack(MshHeader msh, String code, String text) {
+		char fs = msh == null ? '|' : msh.getFieldSeparator();
+		String controlId = msh == null ? null : msh.getControlId();
+		StringBuilder ack = new StringBuilder(128);
+		ack.append("MSH").append(fs)
+				.append(msh == null ? "^~\\&" : msh.getEncodingCharacters())
+				.append(fs);
+		append(ack, msh == null ? null : msh.getReceivingApplication()).append(
+				fs);
+		append(ack, msh == null ? null : msh.getReceivingFacility()).append(fs);
+		append(ack, msh == null ? null : msh.getSendingApplication()).append(fs);
+		append(ack, msh == null ? null : msh.getSendingFacility()).append(fs);
+		ack.append(TIMESTAMP.format(LocalDateTime.now())).append(fs).append(fs)
+				.append("ACK");
+		if (msh != null && msh.getTriggerEvent() != null) {
+			ack.append('^').append(msh.getTriggerEvent());
+		}
+		ack.append(fs);
+		append(ack, controlId).append(fs);
+		append(ack, msh == null ? "P" : msh.getProcessingId()).append(fs);
+		append(ack, msh == null ? "2.3" : msh.getVersion()).append('\r');
+		ack.append("MSA").append(fs).append(code).append(fs);
+		append(ack, controlId);
+		if (text != null) {
+			ack.append(fs).append(clean(text, fs));
+		}
+		ack.append('\r');
+		return ack.toString();
+	}
+
+	private static StringBuilder append(StringBuilder sb, String value) {
+		return value == null ? sb : sb.append(value);
+	}
+
+	private static String clean(String text, char fs) {
+		StringBuilder clean = new StringBuilder(Math.min(text.length(), 80));
+		for (int i = 0; i < text.length() && clean.length() < 80; i++) {
+			char c = text.charAt(i);
+			clean.append(c == fs || c == '^' || c == '~' || c == '\\'
+					|| c == '&' || c < ' ' ? ' ' : c);
+		}
+		return clean.toString();
+	}
+}
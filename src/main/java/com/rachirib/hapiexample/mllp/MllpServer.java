@@ -0,0 +1,308 @@
+package com.rachirib.hapiexample.mllp;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.channels.Channels;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.rachirib.hapiexample.stream.BundleSink;
+import com.rachirib.hapiexample.stream.Hl7MessageReader;
+import com.rachirib.hapiexample.transform.BatchTransformer;
+import com.rachirib.hapiexample.transform.MshHeader;
+import com.rachirib.hapiexample.transform.TransformResult;
+
+import ca.uhn.hl7v2.HL7Exception;
+
+/**
+ * MLLP listener that transforms every message received and answers with an
+ * ACK (AA), a NAK (AE) when the transformation failed, or a reject (AR) when
+ * the server is too busy.
+ * 
+ * Each connection is served by its own thread, virtual when the JVM has them.
+ * Backpressure: above maxConnections the server stops accepting and leaves new
+ * connections in the OS backlog; above maxConcurrentTransforms messages wait
+ * for a slot and are rejected after transformWaitMillis.
+ */
+public class MllpServer implements Closeable {
+
+	private static final Logger LOG = LoggerFactory.getLogger(MllpServer.class);
+
+	private static final Charset CHARSET = StandardCharsets.ISO_8859_1;
+
+	private final BatchTransformer transformer;
+	private final BundleSink sink;
+	private final MllpServerConfig config;
+
+	private final Semaphore connectionPermits;
+	private final Semaphore transformPermits;
+	private final Set<Socket> sockets = ConcurrentHashMap.newKeySet();
+	private final AtomicLong sequence = new AtomicLong();
+
+	private final AtomicInteger activeConnections = new AtomicInteger();
+	private final AtomicLong accepted = new AtomicLong();
+	private final AtomicLong errors = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+
+	private ServerSocket serverSocket;
+	private ExecutorService connectionExecutor;
+	private Thread acceptor;
+	private volatile boolean running;
+
+	/**
+	 * @param transformer
+	 *            without patient store: the connections transform their
+	 *            messages concurrently, those of a patient out of order
+	 * @param sink
+	 *            receives the results of every connection, must be thread
+	 *            safe
+	 * @param config
+	 */
+	public MllpServer(BatchTransformer transformer, BundleSink sink,
+			MllpServerConfig config) {
+		if (transformer.getPatientStore() != null) {
+			throw new IllegalArgumentException(
+					"A patient store needs the messages of a patient in order, "
+							+ "the connections of a server transform theirs concurrently");
+		}
+		this.transformer = transformer;
+		this.sink = sink;
+		this.config = config;
+		this.connectionPermits = new Semaphore(config.getMaxConnections());
+		this.transformPermits = new Semaphore(
+				config.getMaxConcurrentTransforms());
+	}
+
+	/**
+	 * Bind the port and start accepting connections
+	 * 
+	 * @throws IOException
+	 */
+	public synchronized void start() throws IOException {
+		if (running) {
+			return;
+		}
+		serverSocket = new ServerSocket();
+		serverSocket.setReuseAddress(true);
+		serverSocket.bind(new InetSocketAddress(config.getPort()),
+				config.getBacklog());
+		connectionExecutor = newConnectionExecutor();
+		running = true;
+		acceptor = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				acceptLoop();
+			}
+		}, "mllp-acceptor-" + serverSocket.getLocalPort());
+		acceptor.setDaemon(true);
+		acceptor.start();
+		LOG.info("MLLP server listening on port {}", getPort());
+	}
+
+	/**
+	 * @return the port bound, useful when configured with port 0
+	 */
+	public int getPort() {
+		return serverSocket.getLocalPort();
+	}
+
+	public int getActiveConnections() {
+		return activeConnections.get();
+	}
+
+	/** @return messages acknowledged with AA */
+	public long getAccepted() {
+		return accepted.get();
+	}
+
+	/** @return messages acknowledged with AE */
+	public long getErrors() {
+		return errors.get();
+	}
+
+	/** @return messages acknowledged with AR */
+	public long getRejected() {
+		return rejected.get();
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		if (!running) {
+			return;
+		}
+		running = false;
+		serverSocket.close();
+		for (Socket socket : sockets) {
+			closeQuietly(socket);
+		}
+		connectionExecutor.shutdown();
+		try {
+			connectionExecutor.awaitTermination(5, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private ExecutorService newConnectionExecutor() {
+		if (config.isVirtualThreads()) {
+			try {
+				Method factory = Executors.class
+						.getMethod("newVirtualThreadPerTaskExecutor");
+				return (ExecutorService) factory.invoke(null);
+			} catch (NoSuchMethodException e) {
+				LOG.debug("No virtual threads, using a bounded pool");
+			} catch (ReflectiveOperationException e) {
+				LOG.warn("Virtual threads not available, using a bounded pool",
+						e);
+			}
+		}
+		final AtomicInteger threads = new AtomicInteger();
+		return Executors.newFixedThreadPool(config.getMaxConnections(),
+				new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "mllp-connection-"
+								+ threads.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+	}
+
+	private void acceptLoop() {
+		while (running) {
+			try {
+				connectionPermits.acquire();
+			} catch (InterruptedException e) {
+				return;
+			}
+			final Socket socket;
+			try {
+				socket = serverSocket.accept();
+			} catch (IOException e) {
+				connectionPermits.release();
+				if (running) {
+					LOG.warn("Failed to accept connection", e);
+					continue;
+				}
+				return;
+			}
+			sockets.add(socket);
+			activeConnections.incrementAndGet();
+			connectionExecutor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						serve(socket);
+					} finally {
+						sockets.remove(socket);
+						closeQuietly(socket);
+						activeConnections.decrementAndGet();
+						connectionPermits.release();
+					}
+				}
+			});
+		}
+	}
+
+	private void serve(Socket socket) {
+		try {
+			socket.setSoTimeout(config.getReadTimeoutMillis());
+			socket.setTcpNoDelay(true);
+			Hl7MessageReader reader = Hl7MessageReader.open(
+					Channels.newChannel(socket.getInputStream()), CHARSET,
+					config.getReadBufferSize());
+			OutputStream out = new BufferedOutputStream(
+					socket.getOutputStream());
+			String msg;
+			while (running && (msg = reader.readMessage()) != null) {
+				String ack = handle(msg);
+				out.write(Hl7MessageReader.START_BLOCK);
+				out.write(ack.getBytes(CHARSET));
+				out.write(Hl7MessageReader.END_BLOCK);
+				out.write('\r');
+				out.flush();
+			}
+		} catch (SocketException e) {
+			LOG.debug("Connection closed: {}", e.getMessage());
+		} catch (IOException e) {
+			LOG.debug("Connection dropped", e);
+		}
+	}
+
+	/**
+	 * Transform one message
+	 * 
+	 * @param msg
+	 * @return the acknowledgement
+	 * @throws IOException
+	 *             writing to the sink
+	 */
+	String handle(String msg) throws IOException {
+		MshHeader msh;
+		try {
+			msh = MshHeader.parse(msg);
+		} catch (HL7Exception e) {
+			errors.incrementAndGet();
+			return Acknowledgements.ack(null, Acknowledgements.AE,
+					e.getMessage());
+		}
+		try {
+			if (!transformPermits.tryAcquire(config.getTransformWaitMillis(),
+					TimeUnit.MILLISECONDS)) {
+				rejected.incrementAndGet();
+				return Acknowledgements.ack(msh, Acknowledgements.AR,
+						"Server busy");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			rejected.incrementAndGet();
+			return Acknowledgements.ack(msh, Acknowledgements.AR,
+					"Server stopping");
+		}
+		TransformResult result;
+		try {
+			result = transformer.transformOne(sequence.getAndIncrement(), msg);
+		} finally {
+			transformPermits.release();
+		}
+		sink.accept(result);
+		transformer.delivered(result);
+		// a duplicate was delivered with its first copy, the sender missed
+		// the ACK
+		if (result.isSuccess() || result.isDuplicate()) {
+			accepted.incrementAndGet();
+			return Acknowledgements.ack(msh, Acknowledgements.AA, null);
+		}
+		errors.incrementAndGet();
+		return Acknowledgements.ack(msh, Acknowledgements.AE,
+				String.valueOf(result.getError().getMessage()));
+	}
+
+	private static void closeQuietly(Socket socket) {
+		try {
+			socket.close();
+		} catch (IOException e) {
+			LOG.debug("Failed to close socket", e);
+		}
+	}
+}
@@ -0,0 +1,122 @@
+package com.rachirib.hapiexample.mllp;
+
+/**
+ * Limits of a {@link MllpServer}
+ */
+public class MllpServerConfig {
+
+	private int port = 2575;
+	private int backlog = 1024;
+	private int maxConnections = 2000;
+	private int maxConcurrentTransforms = Runtime.getRuntime()
+			.availableProcessors() * 2;
+	private long transformWaitMillis = 5000;
+	private int readTimeoutMillis = 60000;
+	private int readBufferSize = 4096;
+	private boolean virtualThreads = true;
+
+	public int getPort() {
+		return port;
+	}
+
+	/**
+	 * @param port
+	 *            0 to pick a free port
+	 */
+	public MllpServerConfig setPort(int port) {
+		this.port = port;
+		return this;
+	}
+
+	public int getBacklog() {
+		return backlog;
+	}
+
+	/**
+	 * @param backlog
+	 *            connections queued by the OS once maxConnections is reached
+	 */
+	public MllpServerConfig setBacklog(int backlog) {
+		this.backlog = backlog;
+		return this;
+	}
+
+	public int getMaxConnections() {
+		return maxConnections;
+	}
+
+	/**
+	 * @param maxConnections
+	 *            open connections, the server stops accepting above it
+	 */
+	public MllpServerConfig setMaxConnections(int maxConnections) {
+		this.maxConnections = maxConnections;
+		return this;
+	}
+
+	public int getMaxConcurrentTransforms() {
+		return maxConcurrentTransforms;
+	}
+
+	/**
+	 * @param maxConcurrentTransforms
+	 *            messages transformed at the same time, whatever the number
+	 *            of connections
+	 */
+	public MllpServerConfig setMaxConcurrentTransforms(
+			int maxConcurrentTransforms) {
+		this.maxConcurrentTransforms = maxConcurrentTransforms;
+		return this;
+	}
+
+	public long getTransformWaitMillis() {
+		return transformWaitMillis;
+	}
+
+	/**
+	 * @param transformWaitMillis
+	 *            wait for a transform slot before rejecting the message with
+	 *            an AR acknowledgement
+	 */
+	public MllpServerConfig setTransformWaitMillis(long transformWaitMillis) {
+		this.transformWaitMillis = transformWaitMillis;
+		return this;
+	}
+
+	public int getReadTimeoutMillis() {
+		return readTimeoutMillis;
+	}
+
+	/**
+	 * @param readTimeoutMillis
+	 *            idle connections are closed after it, 0 to wait forever
+	 */
+	public MllpServerConfig setReadTimeoutMillis(int readTimeoutMillis) {
+		this.readTimeoutMillis = readTimeoutMillis;
+		return this;
+	}
+
+	public int getReadBufferSize() {
+		return readBufferSize;
+	}
+
+	public MllpServerConfig setReadBufferSize(int readBufferSize) {
+		this.readBufferSize = readBufferSize;
+		return this;
+	}
+
+	public boolean isVirtualThreads() {
+		return virtualThreads;
+	}
+
+	/**
+	 * @param virtualThreads
+	 *            one virtual thread per connection when the JVM has them
+	 *            (Java 21+); otherwise, or when false, a pool bounded by
+	 *            maxConnections
+	 */
+	public MllpServerConfig setVirtualThreads(boolean virtualThreads) {
+		this.virtualThreads = virtualThreads;
+		return this;
+	}
+}
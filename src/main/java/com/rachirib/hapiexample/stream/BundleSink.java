@@ -0,0 +1,19 @@
+package com.rachirib.hapiexample.stream;
+
+import java.io.IOException;
+
+import com.rachirib.hapiexample.transform.TransformResult;
+
+/**
+ * Destination of the transformed messages, called once per message in the
+ * input order
+ */
+public interface BundleSink {
+
+	/**
+	 * @param result
+	 *            the bundle, or the error for messages that failed
+	 * @throws IOException
+	 */
+	void accept(TransformResult result) throws IOException;
+}
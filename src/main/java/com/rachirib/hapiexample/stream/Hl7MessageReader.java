@@ -0,0 +1,419 @@
+package com.rachirib.hapiexample.stream;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Split HL7 v2 messages from a byte stream, one message at a time.
+ * 
+ * Understands MLLP framing (&lt;VT&gt; message &lt;FS&gt;&lt;CR&gt;), HL7 batch
+ * files (FHS/BHS ... MSH ... BTS/FTS) and plain dumps of messages one after
+ * the other. Outside MLLP frames a message starts at its MSH segment.
+ * Segments may end with CR, LF or CRLF; returned messages always use CR. Only
+ * the message being read is held in memory, so the size of the input does
+ * not matter.
+ */
+public class Hl7MessageReader implements Closeable {
+
+	/** MLLP start block */
+	public static final byte START_BLOCK = 0x0b;
+	/** MLLP end block */
+	public static final byte END_BLOCK = 0x1c;
+
+	private static final byte CR = '\r';
+	private static final byte LF = '\n';
+
+	private static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+	private static final long DEFAULT_MAP_WINDOW = 64L * 1024 * 1024;
+	/** Longest wait for a channel without input before reading again */
+	private static final long MAX_IDLE_NANOS = TimeUnit.MILLISECONDS
+			.toNanos(10);
+
+	/*
+	 * A window stays mapped until its buffer is collected, which a reader of
+	 * big files outpaces by far. Unsafe.invokeCleaner from Java 9,
+	 * DirectBuffer.cleaner().clean() before; left to the collector when the
+	 * JVM has neither.
+	 */
+	private static final Object UNSAFE;
+	private static final Method INVOKE_CLEANER;
+	private static final Method CLEANER;
+	private static final Method CLEAN;
+
+	static {
+		Object unsafe = null;
+		Method invokeCleaner = null;
+		Method cleaner = null;
+		Method clean = null;
+		try {
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			invokeCleaner = unsafeClass.getMethod("invokeCleaner",
+					ByteBuffer.class);
+			Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+			theUnsafe.setAccessible(true);
+			unsafe = theUnsafe.get(null);
+		} catch (Exception e) {
+			invokeCleaner = null;
+			try {
+				cleaner = Class.forName("sun.nio.ch.DirectBuffer").getMethod(
+						"cleaner");
+				clean = Class.forName("sun.misc.Cleaner").getMethod("clean");
+			} catch (Exception e2) {
+				cleaner = null;
+			}
+		}
+		UNSAFE = unsafe;
+		INVOKE_CLEANER = invokeCleaner;
+		CLEANER = cleaner;
+		CLEAN = clean;
+	}
+
+	private final ReadableByteChannel channel;
+	private final FileChannel mappedFile;
+	private final long mapWindow;
+	private final Charset charset;
+
+	private ByteBuffer buffer;
+	private long mappedPosition;
+	private boolean eof;
+
+	private byte[] segment = new byte[256];
+	private int segmentLength;
+	private byte[] message = new byte[4096];
+	private int messageLength;
+	private boolean inMessage;
+
+	private long messagesRead;
+	private long skippedSegments;
+
+	private Hl7MessageReader(ReadableByteChannel channel,
+			FileChannel mappedFile, int bufferSize, long mapWindow,
+			Charset charset) {
+		this.channel = channel;
+		this.mappedFile = mappedFile;
+		this.mapWindow = mapWindow;
+		this.charset = charset;
+		if (mappedFile == null) {
+			buffer = ByteBuffer.allocateDirect(bufferSize);
+			buffer.flip();
+		} else {
+			buffer = ByteBuffer.allocate(0);
+		}
+	}
+
+	/**
+	 * Read messages from a stream
+	 * 
+	 * @param in
+	 * @param charset
+	 * @return
+	 */
+	public static Hl7MessageReader open(InputStream in, Charset charset) {
+		return open(Channels.newChannel(in), charset);
+	}
+
+	/**
+	 * Read messages from a channel, through a direct buffer
+	 * 
+	 * @param channel
+	 * @param charset
+	 * @return
+	 */
+	public static Hl7MessageReader open(ReadableByteChannel channel,
+			Charset charset) {
+		return open(channel, charset, DEFAULT_BUFFER_SIZE);
+	}
+
+	public static Hl7MessageReader open(ReadableByteChannel channel,
+			Charset charset, int bufferSize) {
+		if (bufferSize < 1) {
+			throw new IllegalArgumentException("bufferSize must be positive");
+		}
+		return new Hl7MessageReader(channel, null, bufferSize, 0, charset);
+	}
+
+	/**
+	 * Read messages from a file mapped in memory, one window at a time
+	 * 
+	 * @param file
+	 * @param charset
+	 * @return
+	 * @throws IOException
+	 */
+	public static Hl7MessageReader openMapped(Path file, Charset charset)
+			throws IOException {
+		return openMapped(file, charset, DEFAULT_MAP_WINDOW);
+	}
+
+	public static Hl7MessageReader openMapped(Path file, Charset charset,
+			long mapWindow) throws IOException {
+		if (mapWindow < 1) {
+			throw new IllegalArgumentException("mapWindow must be positive");
+		}
+		FileChannel fileChannel = FileChannel.open(file,
+				StandardOpenOption.READ);
+		return new Hl7MessageReader(fileChannel, fileChannel, 0, mapWindow,
+				charset);
+	}
+
+	/**
+	 * Read messages from a file, ISO-8859-1 encoded, mapped in memory
+	 * 
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	public static Hl7MessageReader openMapped(Path file) throws IOException {
+		return openMapped(file, StandardCharsets.ISO_8859_1);
+	}
+
+	/**
+	 * @return the next message, null at the end of the input
+	 * @throws IOException
+	 */
+	public String readMessage() throws IOException {
+		while (true) {
+			if (!buffer.hasRemaining() && !fill()) {
+				endSegment();
+				return endMessage();
+			}
+			while (buffer.hasRemaining()) {
+				byte b = buffer.get();
+				String complete = null;
+				switch (b) {
+				case CR:
+				case LF:
+					complete = endSegment();
+					break;
+				case START_BLOCK:
+					complete = endSegment();
+					if (complete == null) {
+						complete = endMessage();
+					}
+					// a frame is a message even when it does not start with
+					// MSH, the transformer rejects it
+					inMessage = true;
+					break;
+				case END_BLOCK:
+					complete = endSegment();
+					if (complete == null) {
+						complete = endMessage();
+					}
+					break;
+				default:
+					appendToSegment(b);
+				}
+				if (complete != null) {
+					return complete;
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the messages as an iterator, reading errors are thrown as
+	 *         {@link UncheckedIOException}
+	 */
+	public Iterator<String> iterator() {
+		return new Iterator<String>() {
+
+			private String next;
+
+			@Override
+			public boolean hasNext() {
+				if (next == null) {
+					try {
+						next = readMessage();
+					} catch (IOException e) {
+						throw new UncheckedIOException(e);
+					}
+				}
+				return next != null;
+			}
+
+			@Override
+			public String next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				String current = next;
+				next = null;
+				return current;
+			}
+		};
+	}
+
+	/**
+	 * @return messages returned so far
+	 */
+	public long getMessagesRead() {
+		return messagesRead;
+	}
+
+	/**
+	 * @return batch header/trailer segments and segments found outside of a
+	 *         message
+	 */
+	public long getSkippedSegments() {
+		return skippedSegments;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (mappedFile != null) {
+			unmap();
+		}
+		channel.close();
+	}
+
+	private boolean fill() throws IOException {
+		if (eof) {
+			return false;
+		}
+		if (mappedFile != null) {
+			long size = mappedFile.size();
+			if (mappedPosition >= size) {
+				eof = true;
+				return false;
+			}
+			long length = Math.min(mapWindow, size - mappedPosition);
+			unmap();
+			MappedByteBuffer mapped = mappedFile.map(
+					FileChannel.MapMode.READ_ONLY, mappedPosition, length);
+			mappedPosition += length;
+			buffer = mapped;
+			return true;
+		}
+		buffer.clear();
+		int read;
+		int idle = 0;
+		while ((read = channel.read(buffer)) == 0) {
+			// a non-blocking channel with nothing yet, wait longer and longer
+			if (Thread.currentThread().isInterrupted()) {
+				throw new InterruptedIOException("Interrupted waiting for input");
+			}
+			LockSupport.parkNanos(Math.min(MAX_IDLE_NANOS,
+					1000L << Math.min(idle++, 20)));
+		}
+		buffer.flip();
+		if (read < 0) {
+			eof = true;
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Release the window read last; the bytes of the message being read are
+	 * copies, nothing refers to it any more
+	 */
+	private void unmap() {
+		ByteBuffer window = buffer;
+		buffer = ByteBuffer.allocate(0);
+		if (!(window instanceof MappedByteBuffer)) {
+			return;
+		}
+		try {
+			if (INVOKE_CLEANER != null) {
+				INVOKE_CLEANER.invoke(UNSAFE, window);
+			} else if (CLEANER != null) {
+				Object cleaner = CLEANER.invoke(window);
+				if (cleaner != null) {
+					CLEAN.invoke(cleaner);
+				}
+			}
+		} catch (ReflectiveOperationException e) {
+			// unmapped by the collector
+		}
+	}
+
+	private void appendToSegment(byte b) {
+		if (segmentLength == segment.length) {
+			segment = Arrays.copyOf(segment, segmentLength * 2);
+		}
+		segment[segmentLength++] = b;
+	}
+
+	/**
+	 * Close the segment being read
+	 * 
+	 * @return a message completed by the segment (new MSH), or null
+	 */
+	private String endSegment() {
+		if (segmentLength == 0) {
+			return null;
+		}
+		String complete = null;
+		if (isSegment("MSH")) {
+			complete = endMessage();
+			inMessage = true;
+		} else if (isSegment("FHS") || isSegment("BHS") || isSegment("BTS")
+				|| isSegment("FTS")) {
+			complete = endMessage();
+			skippedSegments++;
+			segmentLength = 0;
+			return complete;
+		}
+		if (inMessage) {
+			int needed = messageLength + segmentLength + 1;
+			if (needed > message.length) {
+				message = Arrays.copyOf(message,
+						Math.max(needed, message.length * 2));
+			}
+			System.arraycopy(segment, 0, message, messageLength,
+					segmentLength);
+			messageLength += segmentLength;
+			message[messageLength++] = CR;
+		} else {
+			skippedSegments++;
+		}
+		segmentLength = 0;
+		return complete;
+	}
+
+	private String endMessage() {
+		if (!inMessage) {
+			return null;
+		}
+		inMessage = false;
+		if (messageLength == 0) {
+			return null;
+		}
+		String complete = new String(message, 0, messageLength, charset);
+		messageLength = 0;
+		messagesRead++;
+		return complete;
+	}
+
+	private boolean isSegment(String name) {
+		if (segmentLength < 3
+				|| (segmentLength > 3 && isLetterOrDigit(segment[3]))) {
+			return false;
+		}
+		return segment[0] == name.charAt(0) && segment[1] == name.charAt(1)
+				&& segment[2] == name.charAt(2);
+	}
+
+	private static boolean isLetterOrDigit(byte b) {
+		return (b >= 'A' && b <= 'Z') || (b >= '0' && b <= '9');
+	}
+}
@@ -0,0 +1,72 @@
+package com.rachirib.hapiexample.stream;
+
+import java.io.IOException;
+import java.io.Writer;
+
+import com.rachirib.hapiexample.metrics.Stage;
+import com.rachirib.hapiexample.metrics.TransformMetrics;
+import com.rachirib.hapiexample.transform.TransformResult;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+
+/**
+ * Write each bundle as one line of JSON (NDJSON). Failed and duplicate
+ * messages are only counted.
+ */
+public class JsonLinesBundleSink implements BundleSink {
+
+	private final Writer writer;
+	private final IParser parser;
+	private final TransformMetrics metrics;
+	private long written;
+	private long failed;
+	private long duplicates;
+
+	public JsonLinesBundleSink(FhirContext ctx, Writer writer) {
+		this(ctx, writer, new TransformMetrics());
+	}
+
+	/**
+	 * @param ctx
+	 * @param writer
+	 * @param metrics
+	 *            records the {@link Stage#ENCODE} time of each bundle, when
+	 *            enabled
+	 */
+	public JsonLinesBundleSink(FhirContext ctx, Writer writer,
+			TransformMetrics metrics) {
+		this.writer = writer;
+		this.parser = ctx.newJsonParser().setPrettyPrint(false);
+		this.metrics = metrics;
+	}
+
+	@Override
+	public void accept(TransformResult result) throws IOException {
+		if (result.isDuplicate()) {
+			duplicates++;
+			return;
+		}
+		if (!result.isSuccess()) {
+			failed++;
+			return;
+		}
+		long start = metrics.start();
+		parser.encodeResourceToWriter(result.getBundle(), writer);
+		writer.write('\n');
+		metrics.record(Stage.ENCODE, start);
+		written++;
+	}
+
+	public long getWritten() {
+		return written;
+	}
+
+	public long getFailed() {
+		return failed;
+	}
+
+	public long getDuplicates() {
+		return duplicates;
+	}
+}
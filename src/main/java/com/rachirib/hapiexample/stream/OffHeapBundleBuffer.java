@@ -0,0 +1,475 @@
+package com.rachirib.hapiexample.stream;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.rachirib.hapiexample.metrics.Stage;
+import com.rachirib.hapiexample.metrics.TransformMetrics;
+import com.rachirib.hapiexample.transform.TransformResult;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+
+/**
+ * Output stage between the transformation and a slow destination: each
+ * bundle is encoded to JSON straight into a slot of a ring of direct
+ * buffers, and dropped from the heap at once; consumer threads hand the
+ * slots to a {@link RecordWriter}, a file, a socket, a FHIR server.
+ *
+ * {@link #accept(TransformResult)} is the only producer, the handler of a
+ * {@link StreamingTransformer}. Producer and consumers hand the slots over
+ * without locks, through a sequence number per slot. A slot is free again
+ * once written, so when the destination falls behind the ring fills up and
+ * the producer waits: the ingest slows down to the pace of the destination
+ * and the memory of the stage stays the size of the ring.
+ *
+ * A bundle larger than a slot is encoded on the heap and counted, see
+ * {@link #getOversized()}. With several consumers the records are written
+ * out of order, each with the index of its message; failed and duplicate
+ * messages are only counted.
+ */
+public class OffHeapBundleBuffer implements BundleSink, Closeable {
+
+	private static final Logger LOG = LoggerFactory
+			.getLogger(OffHeapBundleBuffer.class);
+
+	/** Longest wait of an idle thread before looking again */
+	private static final long MAX_PARK_NANOS = TimeUnit.MILLISECONDS
+			.toNanos(1);
+
+	/**
+	 * Destination of the records, called by the consumer threads
+	 */
+	public interface RecordWriter {
+
+		/**
+		 * @param index
+		 *            of the message of the bundle
+		 * @param json
+		 *            the bundle, UTF-8; only valid during the call
+		 * @throws IOException
+		 *             stops the stage
+		 */
+		void write(long index, ByteBuffer json) throws IOException;
+	}
+
+	private final IParser parser;
+	private final TransformMetrics metrics;
+	private final RecordWriter recordWriter;
+	private final int slotCount;
+	private final ByteBuffer[] slots;
+	private final long[] indexes;
+	private final byte[][] oversized;
+	/**
+	 * Per slot, the position it can be written at by the producer, or that
+	 * position + 1 once it holds a record for the consumers
+	 */
+	private final AtomicLongArray sequences;
+	/** Next position to write, the producer only */
+	private long producerPosition;
+	/** Next position to read, claimed by the consumers */
+	private final AtomicLong consumerPosition = new AtomicLong();
+	private final SlotWriter slotWriter = new SlotWriter();
+	private final Thread[] consumers;
+	private volatile boolean closed;
+	private volatile IOException failure;
+
+	private final LongAdder written = new LongAdder();
+	private final LongAdder oversizedCount = new LongAdder();
+	private final LongAdder blockedNanos = new LongAdder();
+	private long failed;
+	private long duplicates;
+
+	/**
+	 * @param ctx
+	 * @param slotCount
+	 *            bundles the ring holds
+	 * @param slotSize
+	 *            bytes of a slot, the JSON of the usual bundle
+	 * @param consumerCount
+	 *            threads writing to the destination
+	 * @param recordWriter
+	 *            shared by the consumer threads
+	 */
+	public OffHeapBundleBuffer(FhirContext ctx, int slotCount, int slotSize,
+			int consumerCount, RecordWriter recordWriter) {
+		this(ctx, slotCount, slotSize, consumerCount, recordWriter,
+				new TransformMetrics());
+	}
+
+	/**
+	 * @param ctx
+	 * @param slotCount
+	 * @param slotSize
+	 * @param consumerCount
+	 * @param recordWriter
+	 * @param metrics
+	 *            records the {@link Stage#ENCODE} time of each bundle, when
+	 *            enabled
+	 */
+	public OffHeapBundleBuffer(FhirContext ctx, int slotCount, int slotSize,
+			int consumerCount, RecordWriter recordWriter,
+			TransformMetrics metrics) {
+		if (slotCount < 1 || slotSize < 1 || consumerCount < 1) {
+			throw new IllegalArgumentException(
+					"slots, slot size and consumers must be positive");
+		}
+		if ((long) slotCount * slotSize > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Ring of " + slotCount + " x "
+					+ slotSize + " bytes is larger than 2 GB");
+		}
+		this.parser = ctx.newJsonParser().setPrettyPrint(false);
+		this.metrics = metrics;
+		this.recordWriter = recordWriter;
+		this.slotCount = slotCount;
+		this.slots = new ByteBuffer[slotCount];
+		this.indexes = new long[slotCount];
+		this.oversized = new byte[slotCount][];
+		this.sequences = new AtomicLongArray(slotCount);
+		ByteBuffer ring = ByteBuffer.allocateDirect(slotCount * slotSize);
+		for (int i = 0; i < slotCount; i++) {
+			ring.limit((i + 1) * slotSize).position(i * slotSize);
+			slots[i] = ring.slice();
+			sequences.set(i, i);
+		}
+		this.consumers = new Thread[consumerCount];
+		for (int i = 0; i < consumerCount; i++) {
+			consumers[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					consume();
+				}
+			}, "bundle-buffer-" + i);
+			consumers[i].setDaemon(true);
+			consumers[i].start();
+		}
+	}
+
+	/**
+	 * A destination writing each record to a channel as one line of JSON
+	 * (NDJSON), one record at a time
+	 *
+	 * @param channel
+	 * @return
+	 */
+	public static RecordWriter jsonLines(final WritableByteChannel channel) {
+		return new RecordWriter() {
+			private final ByteBuffer newLine = ByteBuffer
+					.wrap(new byte[] { '\n' });
+
+			@Override
+			public synchronized void write(long index, ByteBuffer json)
+					throws IOException {
+				while (json.hasRemaining()) {
+					channel.write(json);
+				}
+				newLine.rewind();
+				while (newLine.hasRemaining()) {
+					channel.write(newLine);
+				}
+			}
+		};
+	}
+
+	/**
+	 * Encode the bundle into the next slot, waiting for one to be free
+	 *
+	 * @throws IOException
+	 *             a consumer failed, or the buffer is closed
+	 */
+	@Override
+	public void accept(TransformResult result) throws IOException {
+		if (result.isDuplicate()) {
+			duplicates++;
+			return;
+		}
+		if (!result.isSuccess()) {
+			failed++;
+			return;
+		}
+		long position = producerPosition;
+		int slot = (int) (position % slotCount);
+		if (sequences.get(slot) != position) {
+			long start = System.nanoTime();
+			int idle = 0;
+			while (sequences.get(slot) != position) {
+				checkOpen();
+				if (Thread.interrupted()) {
+					throw new InterruptedIOException(
+							"Interrupted waiting for a free slot");
+				}
+				idle = idle(idle);
+			}
+			blockedNanos.add(System.nanoTime() - start);
+		}
+		checkOpen();
+
+		long start = metrics.start();
+		ByteBuffer buffer = slots[slot];
+		buffer.clear();
+		slotWriter.reset(buffer);
+		byte[] heap = null;
+		try {
+			parser.encodeResourceToWriter(result.getBundle(), slotWriter);
+			slotWriter.flush();
+		} catch (IOException e) {
+			heap = encodeOversized(result, e);
+		} catch (RuntimeException e) {
+			// the JSON generator wraps the errors of its writer
+			heap = encodeOversized(result, e);
+		}
+		buffer.flip();
+		metrics.record(Stage.ENCODE, start);
+		indexes[slot] = result.getIndex();
+		oversized[slot] = heap;
+		// publishes the slot and what was written in it
+		sequences.set(slot, position + 1);
+		producerPosition = position + 1;
+	}
+
+	private byte[] encodeOversized(TransformResult result, Exception error)
+			throws IOException {
+		if (!slotWriter.isOverflow()) {
+			if (error instanceof IOException) {
+				throw (IOException) error;
+			}
+			throw (RuntimeException) error;
+		}
+		oversizedCount.increment();
+		return parser.encodeResourceToString(result.getBundle()).getBytes(
+				StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Write what the ring holds, stop the consumers and free the ring
+	 *
+	 * @throws IOException
+	 *             a consumer failed
+	 */
+	@Override
+	public void close() throws IOException {
+		closed = true;
+		for (Thread consumer : consumers) {
+			try {
+				consumer.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException(
+						"Interrupted waiting for the bundle buffer");
+			}
+		}
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	/** @return bundles written to the destination */
+	public long getWritten() {
+		return written.sum();
+	}
+
+	/** @return bundles larger than a slot, encoded on the heap */
+	public long getOversized() {
+		return oversizedCount.sum();
+	}
+
+	/** @return time the producer waited for a free slot, in nanoseconds */
+	public long getBlockedNanos() {
+		return blockedNanos.sum();
+	}
+
+	/** @return bundles encoded and not written yet, for the producer */
+	public int getPending() {
+		return (int) (producerPosition - consumerPosition.get());
+	}
+
+	public long getFailed() {
+		return failed;
+	}
+
+	public long getDuplicates() {
+		return duplicates;
+	}
+
+	private void consume() {
+		int idle = 0;
+		while (failure == null) {
+			long position = consumerPosition.get();
+			int slot = (int) (position % slotCount);
+			if (sequences.get(slot) != position + 1) {
+				// the producer is done once closed, its last slot published
+				if (closed && sequences.get(slot) != position + 1) {
+					return;
+				}
+				idle = idle(idle);
+				continue;
+			}
+			if (!consumerPosition.compareAndSet(position, position + 1)) {
+				continue;
+			}
+			idle = 0;
+			try {
+				byte[] heap = oversized[slot];
+				recordWriter.write(indexes[slot], heap == null ? slots[slot]
+						.duplicate() : ByteBuffer.wrap(heap));
+				written.increment();
+			} catch (IOException e) {
+				LOG.error("Writing bundle " + indexes[slot] + " failed", e);
+				failure = e;
+			} catch (RuntimeException e) {
+				LOG.error("Writing bundle " + indexes[slot] + " failed", e);
+				failure = new IOException(e);
+			}
+			oversized[slot] = null;
+			// free for the producer, one lap later
+			sequences.set(slot, position + slotCount);
+		}
+	}
+
+	private void checkOpen() throws IOException {
+		if (failure != null) {
+			throw new IOException("Bundle buffer stopped", failure);
+		}
+		if (closed) {
+			throw new IOException("Bundle buffer is closed");
+		}
+	}
+
+	/**
+	 * Yield, then park for longer and longer
+	 *
+	 * @return the next idle count
+	 */
+	private static int idle(int idle) {
+		if (idle < 100) {
+			Thread.yield();
+		} else {
+			LockSupport.parkNanos(Math.min(MAX_PARK_NANOS,
+					1000L << Math.min(idle - 100, 10)));
+		}
+		return idle + 1;
+	}
+
+	/**
+	 * Thrown when a bundle does not fit in its slot
+	 */
+	private static class SlotOverflowException extends IOException {
+		private static final long serialVersionUID = 1L;
+	}
+
+	/**
+	 * UTF-8 encoder of the JSON into a slot, without intermediate buffer
+	 */
+	private static class SlotWriter extends Writer {
+
+		/** Shared, only a signal */
+		private static final SlotOverflowException OVERFLOW = new SlotOverflowException();
+
+		private ByteBuffer buffer;
+		/** High surrogate waiting for the low one */
+		private char high;
+		private boolean overflow;
+
+		void reset(ByteBuffer buffer) {
+			this.buffer = buffer;
+			this.high = 0;
+			this.overflow = false;
+		}
+
+		boolean isOverflow() {
+			return overflow;
+		}
+
+		@Override
+		public void write(int c) throws IOException {
+			put((char) c);
+		}
+
+		@Override
+		public void write(char[] chars, int offset, int length)
+				throws IOException {
+			for (int i = offset; i < offset + length; i++) {
+				put(chars[i]);
+			}
+		}
+
+		@Override
+		public void write(String str, int offset, int length)
+				throws IOException {
+			for (int i = offset; i < offset + length; i++) {
+				put(str.charAt(i));
+			}
+		}
+
+		private void put(char c) throws SlotOverflowException {
+			if (high != 0) {
+				char first = high;
+				high = 0;
+				if (Character.isLowSurrogate(c)) {
+					int codePoint = Character.toCodePoint(first, c);
+					ensure(4);
+					buffer.put((byte) (0xf0 | (codePoint >> 18)));
+					buffer.put((byte) (0x80 | ((codePoint >> 12) & 0x3f)));
+					buffer.put((byte) (0x80 | ((codePoint >> 6) & 0x3f)));
+					buffer.put((byte) (0x80 | (codePoint & 0x3f)));
+					return;
+				}
+				// a lone surrogate, as String.getBytes does
+				ensure(1);
+				buffer.put((byte) '?');
+			}
+			if (c < 0x80) {
+				ensure(1);
+				buffer.put((byte) c);
+			} else if (c < 0x800) {
+				ensure(2);
+				buffer.put((byte) (0xc0 | (c >> 6)));
+				buffer.put((byte) (0x80 | (c & 0x3f)));
+			} else if (Character.isHighSurrogate(c)) {
+				high = c;
+			} else if (Character.isLowSurrogate(c)) {
+				ensure(1);
+				buffer.put((byte) '?');
+			} else {
+				ensure(3);
+				buffer.put((byte) (0xe0 | (c >> 12)));
+				buffer.put((byte) (0x80 | ((c >> 6) & 0x3f)));
+				buffer.put((byte) (0x80 | (c & 0x3f)));
+			}
+		}
+
+		private void ensure(int bytes) throws SlotOverflowException {
+			if (buffer.remaining() < bytes) {
+				overflow = true;
+				throw OVERFLOW;
+			}
+		}
+
+		@Override
+		public void flush() throws IOException {
+			if (high != 0) {
+				high = 0;
+				ensure(1);
+				buffer.put((byte) '?');
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			flush();
+		}
+	}
+}
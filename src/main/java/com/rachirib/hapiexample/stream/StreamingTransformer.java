@@ -0,0 +1,71 @@
+package com.rachirib.hapiexample.stream;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.function.Consumer;
+
+import com.rachirib.hapiexample.transform.BatchTransformer;
+import com.rachirib.hapiexample.transform.TransformResult;
+
+/**
+ * Transform the messages of a {@link Hl7MessageReader} as they are read and
+ * hand every result to a {@link BundleSink}, so neither the input nor the
+ * output is ever held in memory as a whole
+ */
+public class StreamingTransformer {
+
+	private final BatchTransformer batch;
+	private final boolean parallel;
+
+	/**
+	 * @param batch
+	 *            transformer of the messages
+	 * @param parallel
+	 *            true to transform on the executor of the batch, false to
+	 *            transform on the calling thread
+	 */
+	public StreamingTransformer(BatchTransformer batch, boolean parallel) {
+		this.batch = batch;
+		this.parallel = parallel;
+	}
+
+	/**
+	 * Transform every message left in the reader
+	 * 
+	 * @param reader
+	 * @param sink
+	 * @return number of messages read
+	 * @throws IOException
+	 *             reading the input or writing to the sink
+	 */
+	public long transform(Hl7MessageReader reader, final BundleSink sink)
+			throws IOException {
+		if (!parallel) {
+			long index = 0;
+			String msg;
+			while ((msg = reader.readMessage()) != null) {
+				TransformResult result = batch.transformOne(index++, msg);
+				sink.accept(result);
+				batch.delivered(result);
+			}
+			return index;
+		}
+		final long[] count = new long[1];
+		try {
+			batch.transform(reader.iterator(), new Consumer<TransformResult>() {
+				@Override
+				public void accept(TransformResult result) {
+					try {
+						sink.accept(result);
+					} catch (IOException e) {
+						throw new UncheckedIOException(e);
+					}
+					count[0]++;
+				}
+			});
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+		return count[0];
+	}
+}
@@ -0,0 +1,95 @@
+package com.rachirib.hapiexample.transform;
+
+import ca.uhn.hl7v2.HL7Exception;
+import ca.uhn.hl7v2.model.v23.datatype.CX;
+import ca.uhn.hl7v2.model.v23.message.ADT_A05;
+import ca.uhn.hl7v2.model.v23.segment.MSH;
+
+/**
+ * Ids of the bundle and resources of the ADT_A05 mapping, shared by
+ * {@link VersionTwoToFHIR} and {@link AdtA05JsonWriter}, see
+ * {@link ResourceIds}.
+ * 
+ * The message is named by MSH-3, MSH-4, MSH-7 and MSH-10, the patient by
+ * its {@link PatientKey}, the encounter by its patient and PV1-19.1, the
+ * condition by its encounter, DG1-1 and DG1-3.1. A patient or encounter
+ * without identifier is named by its message.
+ */
+final class AdtA05Ids {
+
+	private final String bundle;
+	private final String header;
+	private final String patient;
+	private final String encounter;
+	private final String condition;
+
+	private AdtA05Ids(String application, String facility, String time,
+			String controlId, String patientKey, String visit,
+			String diagnosisId, String diagnosisCode) {
+		bundle = ResourceIds.uuid("Bundle", application, facility, time,
+				controlId);
+		header = ResourceIds.uuid("MessageHeader", application, facility,
+				time, controlId);
+		if (patientKey != null) {
+			patient = ResourceIds.uuid("Patient", patientKey);
+		} else {
+			patient = ResourceIds.uuid("Patient", application, facility,
+					time, controlId);
+		}
+		if (visit != null) {
+			encounter = ResourceIds.uuid("Encounter", patient, visit);
+		} else {
+			encounter = ResourceIds.uuid("Encounter", application, facility,
+					time, controlId);
+		}
+		condition = ResourceIds.uuid("Condition", encounter, diagnosisId,
+				diagnosisCode);
+	}
+
+	static AdtA05Ids of(ADT_A05 adtMsg) throws HL7Exception {
+		MSH msh = adtMsg.getMSH();
+		CX[] patientIds = adtMsg.getPID().getPatientIDInternalID();
+		return new AdtA05Ids(msh.getMsh3_SendingApplication()
+				.getHd1_NamespaceID().getValue(), msh.getMsh4_SendingFacility()
+				.getHd1_NamespaceID().getValue(), msh
+				.getMsh7_DateTimeOfMessage().getTimeOfAnEvent().getValue(),
+				msh.getMsh10_MessageControlID().getValue(),
+				patientIds.length > 0 ? PatientKey.of(patientIds[0]) : null,
+				adtMsg.getPV1().getPv119_VisitNumber().getCx1_ID().getValue(),
+				adtMsg.getDG1().getDg11_SetIDDiagnosis().getValue(), adtMsg
+						.getDG1().getDg13_DiagnosisCode().getCe1_Identifier()
+						.getValue());
+	}
+
+	static AdtA05Ids of(Er7Message msg) {
+		int msh = msg.segment("MSH");
+		int pid = msg.segment("PID");
+		int dg1 = msg.segment("DG1");
+		return new AdtA05Ids(msg.get(msh, 3), msg.get(msh, 4),
+				msg.get(msh, 7), msg.get(msh, 10), PatientKey.key(
+						msg.get(pid, 3), msg.get(pid, 3, 0, 4, 1),
+						msg.get(pid, 3, 0, 4, 2), msg.get(pid, 3, 0, 4, 3)),
+				msg.get(msg.segment("PV1"), 19), msg.get(dg1, 1), msg.get(
+						dg1, 3));
+	}
+
+	String getBundle() {
+		return bundle;
+	}
+
+	String getHeader() {
+		return header;
+	}
+
+	String getPatient() {
+		return patient;
+	}
+
+	String getEncounter() {
+		return encounter;
+	}
+
+	String getCondition() {
+		return condition;
+	}
+}
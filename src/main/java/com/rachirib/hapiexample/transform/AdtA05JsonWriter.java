@@ -0,0 +1,748 @@
+package com.rachirib.hapiexample.transform;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+
+import org.apache.commons.lang3.time.FastDateFormat;
+
+import com.rachirib.hapiexample.codemap.CodeMapping;
+import com.rachirib.hapiexample.codemap.CodeTable;
+
+import ca.uhn.fhir.model.dstu2.valueset.BundleTypeEnum;
+import ca.uhn.fhir.model.dstu2.valueset.ConditionClinicalStatusEnum;
+import ca.uhn.fhir.model.dstu2.valueset.ContactPointSystemEnum;
+import ca.uhn.fhir.model.dstu2.valueset.ContactPointUseEnum;
+import ca.uhn.fhir.model.dstu2.valueset.EncounterStateEnum;
+import ca.uhn.fhir.model.dstu2.valueset.PractitionerRoleEnum;
+import ca.uhn.fhir.model.primitive.IdDt;
+import ca.uhn.hl7v2.HL7Exception;
+import ca.uhn.hl7v2.model.DataTypeException;
+
+/**
+ * Write the FHIR JSON of the ADT_A05 mapping straight from the v2 fields of
+ * an {@link Er7Message}, without building the HAPI v2 message nor the DSTU2
+ * resources.
+ *
+ * The output is byte for byte what the HAPI FHIR JSON parser writes for the
+ * bundle of {@link VersionTwoToFHIR#transformADTA05(ca.uhn.hl7v2.model.Message)}:
+ * elements in the order of the resource definitions, empty elements left out,
+ * the entries referenced by their <code>urn:uuid:</code> and the other
+ * referenced resources contained and numbered in the order the parser finds
+ * them.
+ *
+ * The mapping of ADT_A05 v2.3 is Java code in {@link VersionTwoToFHIR}, not
+ * a mapping file the writer could be generated from, so it is written twice.
+ * The writer is kept to this one message structure, the bulk of the
+ * traffic, where skipping the two object models pays; every other mapping
+ * goes through the HAPI resources or a mapping file. Any change of the A05
+ * mapping has to be made in both places: TestAdtA05JsonWriter compares them
+ * on every field of the sample messages emptied and repeated.
+ */
+final class AdtA05JsonWriter {
+
+	private static final FastDateFormat DAY = FastDateFormat
+			.getInstance("yyyy-MM-dd");
+	private static final FastDateFormat SECOND = FastDateFormat
+			.getInstance("yyyy-MM-dd'T'HH:mm:ssZZ");
+	private static final FastDateFormat MILLI = FastDateFormat
+			.getInstance("yyyy-MM-dd'T'HH:mm:ss.SSSZZ");
+
+	/** Components of a CN or XCN making a practitioner */
+	private static final int ID = 0;
+	private static final int FAMILY = 1;
+	private static final int GIVEN = 2;
+	private static final int PREFIX = 3;
+	private static final int SUFFIX = 4;
+	private static final int NAMESPACE = 5;
+	private static final int UNIVERSAL_ID = 6;
+	private static final int UNIVERSAL_ID_TYPE = 7;
+
+	private AdtA05JsonWriter() {
+	}
+
+	/**
+	 * @param msg
+	 *            an ADT_A05 message
+	 * @param writer
+	 *            not flushed
+	 * @throws HL7Exception
+	 *             a date is not valid
+	 * @throws IOException
+	 */
+	static void write(Er7Message msg, Writer writer) throws HL7Exception,
+			IOException {
+		JsonOutput out = new JsonOutput(writer);
+		AdtA05Ids ids = AdtA05Ids.of(msg);
+		int evn = msg.segment("EVN");
+		int pv1 = msg.segment("PV1");
+		String[] operator = practitioner(msg, evn, 5, 0);
+		String operatorId = operator == null ? null : practitionerId(operator);
+		Map<String, String[]> doctors = new LinkedHashMap<String, String[]>();
+		Map<String, List<String>> roles = new LinkedHashMap<String, List<String>>();
+		participants(msg, pv1, doctors, roles);
+		String[] path = VersionTwoToFHIR.locationPath(msg.get(pv1, 3, 0, 4, 1),
+				msg.get(pv1, 3, 7), msg.get(pv1, 3, 8), msg.get(pv1, 3, 1),
+				msg.get(pv1, 3, 2), msg.get(pv1, 3, 3));
+		String service = msg.get(pv1, 10);
+
+		out.beginObject(null);
+		out.string("resourceType", "Bundle");
+		out.string("id", ids.getBundle());
+		out.string("type", BundleTypeEnum.MESSAGE.getCode());
+		out.beginArray("entry");
+
+		// the entries in the order of the BundleAssembler: each referenced
+		// resource after its first referrer
+		beginEntry(out);
+		writeHeader(out, msg, evn, ids.getHeader(), operatorId);
+		out.end().end();
+
+		if (operatorId != null) {
+			beginEntry(out);
+			writePractitioner(out, operator, operatorId,
+					PractitionerRoleEnum.ICT_PROFESSIONAL);
+			out.end().end();
+		}
+
+		beginEntry(out);
+		writePatient(out, msg, ids.getPatient());
+		out.end().end();
+
+		beginEntry(out);
+		writeEncounter(out, msg, pv1, evn, ids, roles, path, service);
+		out.end().end();
+
+		for (Map.Entry<String, String[]> doctor : doctors.entrySet()) {
+			if (doctor.getKey().equals(operatorId)) {
+				// the operator is the entry, as in the BundleAssembler
+				continue;
+			}
+			beginEntry(out);
+			writePractitioner(out, doctor.getValue(), doctor.getKey(),
+					PractitionerRoleEnum.DOCTOR);
+			out.end().end();
+		}
+
+		// from the most specific level up to the facility
+		int level = leaf(path);
+		while (level >= 0) {
+			int parent = level - 1;
+			while (parent >= 0 && path[parent] == null) {
+				parent--;
+			}
+			beginEntry(out);
+			writeLocation(out, path, level, parent);
+			out.end().end();
+			level = parent;
+		}
+
+		if (service != null) {
+			beginEntry(out);
+			out.string("resourceType", "Organization");
+			out.string("id", VersionTwoToFHIR.serviceId(service));
+			out.string("name", service);
+			out.end().end();
+		}
+
+		beginEntry(out);
+		writeCondition(out, msg, msg.segment("DG1"), ids);
+		out.end().end();
+
+		out.end();
+		out.end();
+	}
+
+	/**
+	 * Doctors of PV1-7, PV1-8, PV1-9 and PV1-17 by id, and their roles, see
+	 * {@link VersionTwoToFHIR#transformParticipants(ca.uhn.hl7v2.model.v23.segment.PV1)}
+	 */
+	private static void participants(Er7Message msg, int pv1,
+			Map<String, String[]> doctors, Map<String, List<String>> roles) {
+		participants(msg, pv1, 7, "ATND", doctors, roles);
+		participants(msg, pv1, 8, "REF", doctors, roles);
+		participants(msg, pv1, 9, "CON", doctors, roles);
+		participants(msg, pv1, 17, "ADM", doctors, roles);
+	}
+
+	private static void participants(Er7Message msg, int pv1, int field,
+			String role, Map<String, String[]> doctors,
+			Map<String, List<String>> roles) {
+		int count = msg.getRepetitionCount(pv1, field);
+		for (int repetition = 0; repetition < count; repetition++) {
+			String[] doctor = practitioner(msg, pv1, field, repetition);
+			if (doctor == null) {
+				continue;
+			}
+			String id = practitionerId(doctor);
+			if (!doctors.containsKey(id)) {
+				doctors.put(id, doctor);
+				roles.put(id, new ArrayList<String>(4));
+			}
+			roles.get(id).add(role);
+		}
+	}
+
+	/**
+	 * @return the id, family name, given name, prefix, suffix and assigning
+	 *         authority of a CN or XCN, null when it has no id
+	 */
+	private static String[] practitioner(Er7Message msg, int segment,
+			int field, int repetition) {
+		String id = msg.get(segment, field, repetition, 1, 1);
+		if (id == null) {
+			return null;
+		}
+		return new String[] { id, msg.get(segment, field, repetition, 2, 1),
+				msg.get(segment, field, repetition, 3, 1),
+				msg.get(segment, field, repetition, 6, 1),
+				msg.get(segment, field, repetition, 5, 1),
+				msg.get(segment, field, repetition, 9, 1),
+				msg.get(segment, field, repetition, 9, 2),
+				msg.get(segment, field, repetition, 9, 3) };
+	}
+
+	private static String practitionerId(String[] practitioner) {
+		return VersionTwoToFHIR.practitionerId(practitioner[ID],
+				practitioner[NAMESPACE], practitioner[UNIVERSAL_ID],
+				practitioner[UNIVERSAL_ID_TYPE]);
+	}
+
+	/**
+	 * @return the most specific level of a location path, -1 when empty
+	 */
+	private static int leaf(String[] path) {
+		int level = path.length - 1;
+		while (level >= 0 && path[level] == null) {
+			level--;
+		}
+		return level;
+	}
+
+	/**
+	 * Start an entry and its resource, ended by the caller
+	 */
+	private static void beginEntry(JsonOutput out) throws IOException {
+		out.beginObject(null);
+		out.string("base", ResourceIds.URN_UUID);
+		out.beginObject("resource");
+	}
+
+	private static void writeHeader(JsonOutput out, Er7Message msg, int evn,
+			String id, String operatorId) throws HL7Exception, IOException {
+		int msh = msg.segment("MSH");
+		out.string("resourceType", "MessageHeader");
+		out.string("id", id);
+
+		out.string("identifier", msg.get(msh, 10));
+		out.string("timestamp", formatInstant(date(msg.get(msh, 7))));
+		out.beginObject("event");
+		codingFields(out, VersionTwoToFHIR.SYSTEM_V2_EVENT, msg.get(msh, 9, 2),
+				null);
+		out.end();
+
+		out.beginObject("source");
+		out.string("name", msg.get(msh, 3));
+		out.string("software", msg.get(msh, 4));
+		out.string("version", msg.get(msh, 12));
+		out.string("endpoint", "192.168.0.1");
+		out.end();
+
+		out.beginArray("destination").beginObject(null);
+		out.string("name", msg.get(msh, 5));
+		out.string("endpoint", "192.168.0.1");
+		out.end().end();
+
+		if (operatorId != null) {
+			reference(out, "enterer", ResourceIds.URN_UUID + operatorId);
+		}
+
+		// the empty system still makes a populated coding
+		out.beginObject("reason");
+		codingArray(out, "", msg.get(evn, 4), null);
+		out.end();
+	}
+
+	private static void writePractitioner(JsonOutput out,
+			String[] practitioner, String id, PractitionerRoleEnum role)
+			throws IOException {
+		out.string("resourceType", "Practitioner");
+		out.string("id", id);
+		identifier(out, VersionTwoToFHIR.SYSTEM_V2_IDENTIFIER,
+				practitioner[ID]);
+		out.beginObject("name");
+		stringArray(out, "family", practitioner[FAMILY]);
+		stringArray(out, "given", practitioner[GIVEN]);
+		stringArray(out, "prefix", practitioner[PREFIX]);
+		stringArray(out, "suffix", practitioner[SUFFIX]);
+		out.end();
+		practitionerRole(out, role);
+	}
+
+	private static void writeLocation(JsonOutput out, String[] path,
+			int level, int parent) throws IOException {
+		out.string("resourceType", "Location");
+		out.string("id", VersionTwoToFHIR.locationId(path, level));
+		out.string("name", path[level]);
+		out.beginObject("physicalType");
+		codingArray(out, VersionTwoToFHIR.SYSTEM_FHIR_PHYSICAL_TYPE,
+				VersionTwoToFHIR.LOCATION_TYPES[level], null);
+		out.end();
+		if (parent >= 0) {
+			reference(out, "partOf", ResourceIds.URN_UUID
+					+ VersionTwoToFHIR.locationId(path, parent));
+		}
+	}
+
+	private static void practitionerRole(JsonOutput out,
+			PractitionerRoleEnum role) throws IOException {
+		out.beginArray("practitionerRole").beginObject(null)
+				.beginObject("role");
+		codingArray(out, role.getSystem(), role.getCode(), null);
+		out.end().end().end();
+	}
+
+	private static void writeCondition(JsonOutput out, Er7Message msg,
+			int dg1, AdtA05Ids ids) throws IOException {
+		out.string("resourceType", "Condition");
+		out.string("id", ids.getCondition());
+		out.beginArray("identifier").beginObject(null);
+		out.string("value", msg.get(dg1, 1));
+		out.end().end();
+		reference(out, "patient", ResourceIds.URN_UUID + ids.getPatient());
+		reference(out, "encounter", ResourceIds.URN_UUID + ids.getEncounter());
+		out.beginObject("code");
+		codingArray(out, VersionTwoToFHIR.SYSTEM_SNOMED_NAMESPACE,
+				msg.get(dg1, 3), null);
+		out.end();
+		out.beginObject("category");
+		codingArray(out, VersionTwoToFHIR.SYSTEM_FHIR_CONDITION_CATEGORY,
+				VersionTwoToFHIR.CONDITION_ENCOUNTER, null);
+		out.end();
+		out.string("clinicalStatus",
+				ConditionClinicalStatusEnum.PROVISIONAL.getCode());
+	}
+
+	private static void writePatient(JsonOutput out, Er7Message msg, String id)
+			throws HL7Exception, IOException {
+		int pid = msg.segment("PID");
+		out.string("resourceType", "Patient");
+		out.string("id", id);
+
+		// PID-3
+		out.beginArray("identifier").beginObject(null);
+		out.touch();
+		out.string("system", VersionTwoToFHIR.SYSTEM_V2_IDENTIFIER);
+		out.string("value", msg.get(pid, 3));
+		out.beginObject("assigner");
+		out.string("reference", referenceText(msg.get(pid, 3, 0, 4, 2)));
+		out.end();
+		out.end().end();
+
+		// PID-5
+		if (msg.getRepetitionCount(pid, 5) > 0) {
+			out.beginArray("name").beginObject(null);
+			out.beginArray("family");
+			out.string(null, msg.get(pid, 5, 1));
+			out.end();
+			out.beginArray("given");
+			out.string(null, msg.get(pid, 5, 2));
+			out.string(null, msg.get(pid, 5, 3));
+			out.end();
+			out.end().end();
+		}
+
+		// PID-13, PID-14
+		out.beginArray("telecom");
+		if (msg.getRepetitionCount(pid, 13) > 0) {
+			contactPoint(out, msg.get(pid, 13), ContactPointUseEnum.HOME);
+		}
+		if (msg.getRepetitionCount(pid, 14) > 0) {
+			contactPoint(out, msg.get(pid, 14), ContactPointUseEnum.WORK);
+		}
+		out.end();
+
+		// PID-8
+		if (msg.get(pid, 8) != null) {
+			out.string("gender",
+					enumCode(VersionTwoToFHIR.TABLE_SEX, msg.get(pid, 8)));
+		}
+
+		// PID-7
+		out.string("birthDate", formatDay(date(msg.get(pid, 7))));
+
+		// PID-30
+		out.literal("deceasedBoolean",
+				String.valueOf(Boolean.valueOf(msg.get(pid, 30))));
+
+		// PID-11
+		if (msg.getRepetitionCount(pid, 11) > 0) {
+			out.beginArray("address");
+			address(out, null, msg, pid, 11);
+			out.end();
+		}
+
+		// PID-16
+		if (msg.get(pid, 16) != null) {
+			out.beginObject("maritalStatus");
+			code(out, VersionTwoToFHIR.TABLE_MARITAL_STATUS, msg.get(pid, 16));
+			out.end();
+		}
+
+		// PID-24
+		if (msg.get(pid, 24) != null) {
+			out.literal("multipleBirthBoolean",
+					String.valueOf(Boolean.valueOf(msg.get(pid, 24))));
+		}
+
+		out.beginArray("contact");
+		for (int nk1 = msg.segment("NK1"); nk1 >= 0; nk1 = msg.segment("NK1",
+				nk1 + 1)) {
+			writeContact(out, msg, nk1);
+		}
+		out.end();
+	}
+
+	private static void writeContact(JsonOutput out, Er7Message msg, int nk1)
+			throws IOException {
+		out.beginObject(null);
+
+		// NK1-3
+		if (msg.get(nk1, 3) != null) {
+			out.beginArray("relationship").beginObject(null);
+			code(out, VersionTwoToFHIR.TABLE_RELATIONSHIP, msg.get(nk1, 3));
+			out.end().end();
+		}
+
+		// NK1-2
+		if (msg.getRepetitionCount(nk1, 2) > 0) {
+			out.beginObject("name");
+			stringArray(out, "family", msg.get(nk1, 2, 1));
+			stringArray(out, "given", msg.get(nk1, 2, 2));
+			out.end();
+		}
+
+		// NK1-5, NK1-6
+		out.beginArray("telecom");
+		if (msg.getRepetitionCount(nk1, 5) > 0) {
+			contactPoint(out, msg.get(nk1, 5), ContactPointUseEnum.HOME);
+		}
+		if (msg.getRepetitionCount(nk1, 6) > 0) {
+			contactPoint(out, msg.get(nk1, 6), ContactPointUseEnum.WORK);
+		}
+		out.end();
+
+		// NK1-4
+		if (msg.getRepetitionCount(nk1, 4) > 0) {
+			address(out, "address", msg, nk1, 4);
+		}
+
+		// NK1-15
+		if (msg.get(nk1, 15) != null) {
+			out.string("gender",
+					enumCode(VersionTwoToFHIR.TABLE_SEX, msg.get(nk1, 15)));
+		}
+
+		// NK1-13
+		if (msg.getRepetitionCount(nk1, 13) > 0) {
+			out.beginObject("organization");
+			out.string("display", msg.get(nk1, 13));
+			out.end();
+		}
+
+		out.end();
+	}
+
+	private static void writeEncounter(JsonOutput out, Er7Message msg,
+			int pv1, int evn, AdtA05Ids ids, Map<String, List<String>> roles,
+			String[] path, String service) throws HL7Exception, IOException {
+		out.string("resourceType", "Encounter");
+		out.string("id", ids.getEncounter());
+
+		// PV1-19
+		identifier(out, VersionTwoToFHIR.SYSTEM_V2_IDENTIFIER, msg.get(pv1, 19));
+
+		out.string("status", EncounterStateEnum.PLANNED.getCode());
+
+		// PV1-2
+		if (msg.get(pv1, 2) != null) {
+			out.string("class", enumCode(
+					VersionTwoToFHIR.TABLE_PATIENT_CLASS, msg.get(pv1, 2)));
+		}
+
+		// PV1-4
+		if (msg.get(pv1, 4) != null) {
+			out.beginArray("type").beginObject(null);
+			code(out, VersionTwoToFHIR.TABLE_ADMISSION_TYPE, msg.get(pv1, 4));
+			out.end().end();
+		}
+
+		reference(out, "patient", ResourceIds.URN_UUID + ids.getPatient());
+
+		out.beginArray("participant");
+		for (Map.Entry<String, List<String>> participant : roles.entrySet()) {
+			out.beginObject(null);
+			out.beginArray("type");
+			for (String role : participant.getValue()) {
+				out.beginObject(null);
+				codingArray(out, VersionTwoToFHIR.SYSTEM_V3_PARTICIPATION_TYPE,
+						role, null);
+				out.end();
+			}
+			out.end();
+			reference(out, "individual",
+					ResourceIds.URN_UUID + participant.getKey());
+			out.end();
+		}
+		out.end();
+
+		// PV1-45 less PV1-44
+		Date pv145 = date(msg.get(pv1, 45));
+		Date pv144 = date(msg.get(pv1, 44));
+		if (pv145 != null && pv144 != null) {
+			out.beginObject("length");
+			out.literal("value",
+					Long.toString(pv145.getTime() - pv144.getTime()));
+			out.end();
+		}
+
+		// EVN-4
+		String reasonCode = msg.get(evn, 4);
+		if (reasonCode != null) {
+			out.beginArray("reason").beginObject(null);
+			codingArray(out, null, reasonCode, null);
+			out.end().end();
+		}
+
+		// PV2-25
+		out.beginObject("priority");
+		codingArray(out, null, msg.get(msg.segment("PV2"), 25), null);
+		out.end();
+
+		writeHospitalization(out, msg, pv1);
+
+		// PV1-3, the most specific level
+		int leaf = leaf(path);
+		out.beginArray("location");
+		if (leaf >= 0) {
+			out.beginObject(null);
+			reference(out, "location", ResourceIds.URN_UUID
+					+ VersionTwoToFHIR.locationId(path, leaf));
+			out.beginObject("period");
+			out.string("start", formatSecond(pv144));
+			out.string("end", formatSecond(pv145));
+			out.end();
+			out.end();
+		}
+		out.end();
+
+		// PV1-10
+		if (service != null) {
+			reference(out, "serviceProvider", ResourceIds.URN_UUID
+					+ VersionTwoToFHIR.serviceId(service));
+		}
+	}
+
+	private static void writeHospitalization(JsonOutput out, Er7Message msg,
+			int pv1) throws IOException {
+		out.beginObject("hospitalization");
+
+		// PV1-50
+		if (msg.get(pv1, 50) != null) {
+			out.beginObject("preAdmissionIdentifier");
+			out.touch();
+			out.string("system", VersionTwoToFHIR.SYSTEM_V2_IDENTIFIER);
+			out.string("value", msg.get(pv1, 50));
+			out.end();
+		}
+
+		// PV1-14
+		if (msg.get(pv1, 14) != null) {
+			out.beginObject("admitSource");
+			codingArray(out, null, msg.get(pv1, 14), null);
+			out.end();
+		}
+
+		// PV1-38
+		if (msg.get(pv1, 38) != null) {
+			out.beginObject("dietPreference");
+			code(out, VersionTwoToFHIR.TABLE_DIET, msg.get(pv1, 38));
+			out.end();
+		}
+
+		// PV1-16
+		out.beginArray("specialCourtesy").beginObject(null);
+		codingArray(out, null, msg.get(pv1, 16), null);
+		out.end().end();
+
+		// PV1-15
+		if (msg.getRepetitionCount(pv1, 15) > 0) {
+			out.beginArray("specialArrangement").beginObject(null);
+			codingArray(out, null, msg.get(pv1, 15), null);
+			out.end().end();
+		}
+
+		// PV1-36, the code is used as system too
+		String disposition = msg.get(pv1, 36);
+		out.beginObject("dischargeDisposition");
+		codingArray(out, disposition, disposition, null);
+		out.end();
+
+		// PV1-13
+		if (msg.get(pv1, 13) != null) {
+			out.literal("reAdmission",
+					String.valueOf(Boolean.valueOf(msg.get(pv1, 13))));
+		}
+
+		out.end();
+	}
+
+	private static void identifier(JsonOutput out, String system, String value)
+			throws IOException {
+		out.beginArray("identifier").beginObject(null);
+		out.touch();
+		out.string("system", system);
+		out.string("value", value);
+		out.end().end();
+	}
+
+	private static void contactPoint(JsonOutput out, String value,
+			ContactPointUseEnum use) throws IOException {
+		out.beginObject(null);
+		out.string("system", ContactPointSystemEnum.PHONE.getCode());
+		out.string("value", value);
+		out.string("use", use.getCode());
+		out.end();
+	}
+
+	/**
+	 * Address of the first XAD of a field
+	 */
+	private static void address(JsonOutput out, String name, Er7Message msg,
+			int segment, int field) throws IOException {
+		out.beginObject(name);
+		out.beginArray("line");
+		out.string(null, msg.get(segment, field, 1));
+		out.string(null, msg.get(segment, field, 5));
+		out.end();
+		out.string("city", msg.get(segment, field, 3));
+		out.string("state", msg.get(segment, field, 4));
+		out.string("country", msg.get(segment, field, 6));
+		out.end();
+	}
+
+	private static void reference(JsonOutput out, String name,
+			String reference) throws IOException {
+		out.beginObject(name);
+		out.string("reference", reference);
+		out.end();
+	}
+
+	private static void stringArray(JsonOutput out, String name, String value)
+			throws IOException {
+		out.beginArray(name);
+		out.string(null, value);
+		out.end();
+	}
+
+	/**
+	 * Coding list of a codeable concept from a code map table, see
+	 * {@link VersionTwoToFHIR}
+	 */
+	private static void code(JsonOutput out, CodeTable table, String v2Code)
+			throws IOException {
+		CodeMapping mapping = table.lookup(v2Code);
+		if (mapping != null) {
+			codingArray(out, mapping.getSystem(), mapping.getCode(),
+					mapping.getDisplay());
+		} else {
+			codingArray(out, table.getSystem(), v2Code, null);
+		}
+	}
+
+	private static String enumCode(CodeTable table, String v2Code) {
+		CodeMapping mapping = table.lookup(v2Code);
+		return mapping == null || mapping.getValue() == null ? null : mapping
+				.getCode();
+	}
+
+	private static void codingArray(JsonOutput out, String system,
+			String code, String display) throws IOException {
+		out.beginArray("coding");
+		coding(out, system, code, display);
+		out.end();
+	}
+
+	/**
+	 * A coding is populated as soon as its system is not null, even blank
+	 */
+	private static void coding(JsonOutput out, String system, String code,
+			String display) throws IOException {
+		out.beginObject(null);
+		codingFields(out, system, code, display);
+		out.end();
+	}
+
+	private static void codingFields(JsonOutput out, String system,
+			String code, String display) throws IOException {
+		if (system != null) {
+			out.touch();
+		}
+		out.string("system", system);
+		out.string("code", code);
+		out.string("display", display);
+	}
+
+	/**
+	 * Reference text of a ResourceReferenceDt built from a string
+	 */
+	private static String referenceText(String reference) {
+		if (JsonOutput.isBlank(reference)) {
+			return null;
+		}
+		IdDt id = new IdDt(reference);
+		if (JsonOutput.isBlank(id.getIdPart())) {
+			return id.getValue();
+		}
+		return id.toVersionless().getValue();
+	}
+
+	/**
+	 * @param ts
+	 *            TS-1
+	 * @return the date of a timestamp, as the bundle mapping reads it
+	 * @throws DataTypeException
+	 *             the timestamp is not valid
+	 */
+	private static Date date(String ts) throws DataTypeException {
+		return TimestampParser.getDefault().parse(ts);
+	}
+
+	private static String formatDay(Date date) {
+		return date == null ? null : DAY.format(date);
+	}
+
+	private static String formatSecond(Date date) {
+		if (date == null) {
+			return null;
+		}
+		GregorianCalendar cal = new GregorianCalendar(TimeZone.getDefault());
+		cal.setTime(date);
+		return SECOND.format(cal);
+	}
+
+	private static String formatInstant(Date date) {
+		if (date == null) {
+			return null;
+		}
+		GregorianCalendar cal = new GregorianCalendar(TimeZone.getDefault());
+		cal.setTime(date);
+		return MILLI.format(cal);
+	}
+}
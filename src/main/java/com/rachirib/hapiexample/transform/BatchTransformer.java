@@ -0,0 +1,330 @@
+package com.rachirib.hapiexample.transform;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Consumer;
+
+import com.rachirib.hapiexample.dedup.DuplicateFilter;
+import com.rachirib.hapiexample.dedup.PatientStateStore;
+
+import ca.uhn.fhir.model.dstu2.resource.Bundle;
+import ca.uhn.hl7v2.HL7Exception;
+
+/**
+ * Transform batches of v2 messages on several threads, each message with the
+ * transformer its type is routed to.
+ * 
+ * Results always come back in the input order. A collection is split with
+ * fork-join; an iterator is consumed with at most <code>maxInFlight</code>
+ * messages pending, so an input of any size keeps memory bounded.
+ * 
+ * With a duplicate filter, a message is a duplicate once an earlier copy was
+ * delivered, see {@link #delivered(TransformResult)}. The batch methods
+ * record their results as they hand them over: all at the end for a
+ * collection, within <code>maxInFlight</code> messages for an iterator, so
+ * the copies of a message within that span are all transformed.
+ */
+public class BatchTransformer {
+
+	/** Messages handled by one fork-join leaf task */
+	private static final int LEAF_SIZE = 16;
+
+	private final VersionTwoToFHIR transformer;
+	private final ExecutorService executor;
+	private final int maxInFlight;
+	private final DuplicateFilter duplicates;
+	private final PatientStateStore patients;
+
+	/**
+	 * Batch on the common fork-join pool, using all the cores
+	 * 
+	 * @param transformer
+	 */
+	public BatchTransformer(VersionTwoToFHIR transformer) {
+		this(transformer, ForkJoinPool.commonPool(), ForkJoinPool
+				.getCommonPoolParallelism() * 4);
+	}
+
+	/**
+	 * Batch on the given executor
+	 * 
+	 * @param transformer
+	 * @param executor
+	 *            a {@link ForkJoinPool} splits collections with fork-join,
+	 *            any other executor gets one task per message
+	 * @param maxInFlight
+	 *            messages submitted and not yet handed to the caller
+	 */
+	public BatchTransformer(VersionTwoToFHIR transformer,
+			ExecutorService executor, int maxInFlight) {
+		this(transformer, executor, maxInFlight, null);
+	}
+
+	/**
+	 * Batch on the given executor, skipping the messages received already
+	 * 
+	 * @param transformer
+	 * @param executor
+	 * @param maxInFlight
+	 * @param duplicates
+	 *            null to transform every message
+	 * @see #BatchTransformer(VersionTwoToFHIR, ExecutorService, int)
+	 */
+	public BatchTransformer(VersionTwoToFHIR transformer,
+			ExecutorService executor, int maxInFlight,
+			DuplicateFilter duplicates) {
+		this(transformer, executor, maxInFlight, duplicates, null);
+	}
+
+	/**
+	 * Batch on the given executor, skipping the messages received already and
+	 * the Patients emitted already. The messages of a patient must be
+	 * transformed in order, see {@link PatientStateStore}: with a patient
+	 * store, only {@link #transformOne(long, String)} is allowed, on one
+	 * thread or on the lanes of a {@link PartitionedTransformer}.
+	 * 
+	 * @param transformer
+	 * @param executor
+	 * @param maxInFlight
+	 * @param duplicates
+	 *            null to transform every message
+	 * @param patients
+	 *            null to emit the Patient of every bundle
+	 * @see #BatchTransformer(VersionTwoToFHIR, ExecutorService, int)
+	 */
+	public BatchTransformer(VersionTwoToFHIR transformer,
+			ExecutorService executor, int maxInFlight,
+			DuplicateFilter duplicates, PatientStateStore patients) {
+		if (transformer == null || executor == null) {
+			throw new IllegalArgumentException(
+					"transformer and executor are required");
+		}
+		if (maxInFlight < 1) {
+			throw new IllegalArgumentException("maxInFlight must be positive");
+		}
+		this.transformer = transformer;
+		this.executor = executor;
+		this.maxInFlight = maxInFlight;
+		this.duplicates = duplicates;
+		this.patients = patients;
+	}
+
+	/**
+	 * Transform all the messages, the result i belongs to the message i
+	 * 
+	 * @param messages
+	 * @return
+	 */
+	public List<TransformResult> transform(Collection<String> messages) {
+		checkUnordered();
+		final String[] input = messages.toArray(new String[messages.size()]);
+		final TransformResult[] output = new TransformResult[input.length];
+		if (executor instanceof ForkJoinPool) {
+			((ForkJoinPool) executor).invoke(new TransformTask(input, output,
+					0, input.length));
+			// handed over as a whole
+			for (TransformResult result : output) {
+				delivered(result);
+			}
+		} else {
+			transform(Arrays.asList(input).iterator(),
+					new Consumer<TransformResult>() {
+						@Override
+						public void accept(TransformResult result) {
+							output[(int) result.getIndex()] = result;
+						}
+					});
+		}
+		return Arrays.asList(output);
+	}
+
+	/**
+	 * Transform messages as they are read from the iterator, handing the
+	 * results over in the input order. Blocks until the iterator is exhausted
+	 * and every result has been handed over.
+	 * 
+	 * @param messages
+	 * @param handler
+	 *            called on the calling thread
+	 */
+	public void transform(Iterator<String> messages,
+			Consumer<TransformResult> handler) {
+		checkUnordered();
+		ArrayDeque<Future<TransformResult>> pending = new ArrayDeque<Future<TransformResult>>(
+				maxInFlight);
+		long index = 0;
+		try {
+			while (messages.hasNext()) {
+				if (pending.size() == maxInFlight) {
+					handOver(await(pending.poll()), handler);
+				}
+				final long current = index++;
+				final String msg = messages.next();
+				pending.add(executor.submit(new Callable<TransformResult>() {
+					@Override
+					public TransformResult call() {
+						return transformOne(current, msg);
+					}
+				}));
+			}
+			while (!pending.isEmpty()) {
+				handOver(await(pending.poll()), handler);
+			}
+		} finally {
+			for (Future<TransformResult> future : pending) {
+				future.cancel(false);
+			}
+		}
+	}
+
+	/**
+	 * Transform one message on the calling thread, see
+	 * {@link VersionTwoToFHIR#transform(String)}. With a duplicate filter, a
+	 * message delivered already is not transformed again, see
+	 * {@link #delivered(TransformResult)}.
+	 * With a patient store, the Patient is left out of the bundle when it is
+	 * the one delivered last for the patient.
+	 * 
+	 * @param index
+	 *            position of the message in its batch
+	 * @param msg
+	 * @return
+	 */
+	public TransformResult transformOne(long index, String msg) {
+		MshHeader msh = null;
+		if (duplicates != null) {
+			try {
+				msh = MshHeader.parse(msg);
+			} catch (HL7Exception e) {
+				return TransformResult.failure(index, msg, e);
+			}
+			if (duplicates.isDuplicate(msh)) {
+				return TransformResult.duplicate(index, msg);
+			}
+		}
+		try {
+			Bundle bundle = transformer.transform(msg);
+			String patientKey = null;
+			long fingerprint = PatientStateStore.NONE;
+			if (patients != null) {
+				patientKey = PatientKey.of(msg);
+				fingerprint = patients.retainChanged(patientKey, bundle);
+			}
+			TransformResult result = TransformResult.success(index, msg,
+					bundle);
+			result.header = msh;
+			if (fingerprint != PatientStateStore.NONE) {
+				result.patientKey = patientKey;
+				result.patientFingerprint = fingerprint;
+			}
+			return result;
+		} catch (Exception e) {
+			return TransformResult.failure(index, msg, e);
+		}
+	}
+
+	/**
+	 * Record a result of {@link #transformOne(long, String)} as delivered,
+	 * once the sink accepted it: only then is its control id a duplicate
+	 * for the duplicate filter, and its Patient the one of the patient for
+	 * the patient store. A message failing in the sink is not recorded, so
+	 * its retransmission is handled. The batch methods record their results
+	 * themselves.
+	 * 
+	 * @param result
+	 */
+	public void delivered(TransformResult result) {
+		if (result.header != null) {
+			duplicates.delivered(result.header);
+		}
+		if (result.patientKey != null) {
+			patients.update(result.patientKey, result.patientFingerprint);
+		}
+	}
+
+	/**
+	 * @return the duplicate filter, null when there is none
+	 */
+	public DuplicateFilter getDuplicateFilter() {
+		return duplicates;
+	}
+
+	/**
+	 * @return the patient store, null when there is none
+	 */
+	public PatientStateStore getPatientStore() {
+		return patients;
+	}
+
+	/**
+	 * The batch methods transform the messages of a patient out of order
+	 */
+	private void checkUnordered() {
+		if (patients != null) {
+			throw new IllegalStateException(
+					"A patient store needs the messages of a patient in order: "
+							+ "use transformOne on one thread or a PartitionedTransformer");
+		}
+	}
+
+	private void handOver(TransformResult result,
+			Consumer<TransformResult> handler) {
+		handler.accept(result);
+		delivered(result);
+	}
+
+	private static TransformResult await(Future<TransformResult> future) {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted waiting for batch", e);
+		} catch (ExecutionException e) {
+			// transformOne catches every exception
+			throw new IllegalStateException(e.getCause());
+		}
+	}
+
+	/**
+	 * Split the range of messages until it is small enough to transform
+	 */
+	private class TransformTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final String[] input;
+		private final TransformResult[] output;
+		private final int from;
+		private final int to;
+
+		TransformTask(String[] input, TransformResult[] output, int from,
+				int to) {
+			this.input = input;
+			this.output = output;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from <= LEAF_SIZE) {
+				for (int i = from; i < to; i++) {
+					output[i] = transformOne(i, input[i]);
+				}
+				return;
+			}
+			int middle = (from + to) >>> 1;
+			invokeAll(new TransformTask(input, output, from, middle),
+					new TransformTask(input, output, middle, to));
+		}
+	}
+}
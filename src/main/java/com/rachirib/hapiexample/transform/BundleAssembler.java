@@ -0,0 +1,80 @@
+package com.rachirib.hapiexample.transform;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import ca.uhn.fhir.model.api.IResource;
+import ca.uhn.fhir.model.dstu2.composite.ResourceReferenceDt;
+import ca.uhn.fhir.model.dstu2.resource.Bundle;
+import ca.uhn.fhir.model.dstu2.valueset.BundleTypeEnum;
+
+/**
+ * Assemble a bundle from resources and every resource they reference,
+ * directly or not, each one exactly once, so nothing is contained twice.
+ * 
+ * The resources are entries with the base <code>urn:uuid:</code>, see
+ * {@link ResourceIds}. A resource is known by its id: two instances with the
+ * same name-based id, built from the same v2 identifier, give one entry, the
+ * first one added. The
+ * references are followed depth first in the order of the elements, a
+ * referenced resource right after its first referrer.
+ * 
+ * One assembler per bundle, not thread safe.
+ */
+public class BundleAssembler {
+
+	private final Bundle bundle = new Bundle();
+	private final Set<String> ids = new HashSet<String>();
+
+	/**
+	 * @param id
+	 *            of the bundle
+	 * @param type
+	 */
+	public BundleAssembler(String id, BundleTypeEnum type) {
+		bundle.setId(id);
+		bundle.setType(type);
+	}
+
+	/**
+	 * Add a resource and the resources it references, unless added already
+	 * 
+	 * @param resource
+	 *            with its id, as well as the resources it references
+	 * @return this assembler
+	 * @throws IllegalArgumentException
+	 *             a resource has no id
+	 */
+	public BundleAssembler add(IResource resource) {
+		String id = resource.getId().getIdPart();
+		if (id == null || id.length() == 0) {
+			throw new IllegalArgumentException(resource.getResourceName()
+					+ " without id cannot be an entry");
+		}
+		if (!ids.add(id)) {
+			return this;
+		}
+		ResourceIds.entry(bundle, resource);
+		for (ResourceReferenceDt reference : resource
+				.getAllPopulatedChildElementsOfType(ResourceReferenceDt.class)) {
+			if (reference.getResource() != null) {
+				add(reference.getResource());
+			}
+		}
+		return this;
+	}
+
+	/**
+	 * @return number of entries
+	 */
+	public int size() {
+		return ids.size();
+	}
+
+	/**
+	 * @return the bundle, with the entries added so far
+	 */
+	public Bundle getBundle() {
+		return bundle;
+	}
+}
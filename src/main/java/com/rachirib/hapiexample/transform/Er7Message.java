@@ -0,0 +1,461 @@
+package com.rachirib.hapiexample.transform;
+
+import ca.uhn.hl7v2.ErrorCode;
+import ca.uhn.hl7v2.HL7Exception;
+import ca.uhn.hl7v2.parser.DefaultEscaping;
+import ca.uhn.hl7v2.parser.EncodingCharacters;
+import ca.uhn.hl7v2.parser.Escaping;
+
+/**
+ * Compact form of an ER7 encoded message, read without building the HAPI
+ * message tree: the characters of the message in one buffer, the offsets of
+ * its segments and fields in int arrays. Repetitions, components and
+ * subcomponents are found by scanning their field. Only the values read
+ * become strings, unescaped by the {@link Escaping} of the parser.
+ *
+ * An instance is reused from message to message and its buffers grow to the
+ * largest message seen, up to what {@link #release()} keeps;
+ * {@link #forThread()} gives the one of the current thread. Not thread safe.
+ *
+ * Fields, components and subcomponents are numbered from 1 as in HL7, MSH-1
+ * being the field separator; repetitions from 0 as in HAPI.
+ */
+public final class Er7Message {
+
+	private static final ThreadLocal<Er7Message> POOL = new ThreadLocal<Er7Message>() {
+		@Override
+		protected Er7Message initialValue() {
+			return new Er7Message();
+		}
+	};
+
+	/** Characters and fields kept by {@link #release()} */
+	static final int RETAINED_CHARS = 1 << 20;
+	static final int RETAINED_FIELDS = 1 << 14;
+
+	private static final int INITIAL_CHARS = 4096;
+	private static final int INITIAL_SEGMENTS = 33;
+	private static final int INITIAL_FIELDS = 512;
+	private static final Escaping DEFAULT_ESCAPING = new DefaultEscaping();
+
+	private char[] chars = new char[INITIAL_CHARS];
+	private int length;
+
+	/** Index in the field offsets of the name of each segment, then the end */
+	private int[] segments = new int[INITIAL_SEGMENTS];
+	private int segmentCount;
+	/** Offsets of each field, field 0 of a segment being its name */
+	private int[] fieldStarts = new int[INITIAL_FIELDS];
+	private int[] fieldEnds = new int[INITIAL_FIELDS];
+	private int fieldCount;
+
+	private char fieldSeparator;
+	private char componentSeparator;
+	private char repetitionSeparator;
+	private char escapeCharacter;
+	private char subcomponentSeparator;
+	private Escaping escaping = DEFAULT_ESCAPING;
+	/** Created for the first value to unescape */
+	private EncodingCharacters encodingCharacters;
+
+	/** Bounds of the value located by {@link #locate} */
+	private int valueStart;
+	private int valueEnd;
+
+	/**
+	 * @return the instance of the current thread, loaded with its last
+	 *         message
+	 */
+	public static Er7Message forThread() {
+		return POOL.get();
+	}
+
+	/**
+	 * Index a message, replacing the previous one, its values unescaped like
+	 * the default HAPI parser does
+	 *
+	 * @param msg
+	 * @return this
+	 * @throws HL7Exception
+	 *             the message does not start with a MSH segment
+	 */
+	public Er7Message load(String msg) throws HL7Exception {
+		return load(msg, DEFAULT_ESCAPING);
+	}
+
+	/**
+	 * Index a message, replacing the previous one
+	 *
+	 * @param msg
+	 * @param escaping
+	 *            of the parser the values must match, see
+	 *            <code>ParserConfiguration.getEscaping()</code>
+	 * @return this
+	 * @throws HL7Exception
+	 *             the message does not start with a MSH segment
+	 */
+	public Er7Message load(String msg, Escaping escaping) throws HL7Exception {
+		if (msg == null || msg.length() < 8 || !msg.startsWith("MSH")) {
+			throw new HL7Exception("Message does not start with MSH",
+					ErrorCode.SEGMENT_SEQUENCE_ERROR);
+		}
+		length = msg.length();
+		if (chars.length < length) {
+			chars = new char[Math.max(length, chars.length * 2)];
+		}
+		msg.getChars(0, length, chars, 0);
+		this.escaping = escaping;
+
+		fieldSeparator = chars[3];
+		componentSeparator = encodingCharacter(0, '^');
+		repetitionSeparator = encodingCharacter(1, '~');
+		escapeCharacter = encodingCharacter(2, '\\');
+		subcomponentSeparator = encodingCharacter(3, '&');
+		encodingCharacters = null;
+
+		segmentCount = 0;
+		fieldCount = 0;
+		int start = 0;
+		while (start < length) {
+			int end = start;
+			while (end < length && chars[end] != '\r' && chars[end] != '\n') {
+				end++;
+			}
+			// the HAPI parser ignores the whitespace before a segment
+			while (start < end && Character.isWhitespace(chars[start])) {
+				start++;
+			}
+			if (end > start) {
+				index(start, end);
+			}
+			start = end + 1;
+		}
+		segments[segmentCount] = fieldCount;
+		return this;
+	}
+
+	/**
+	 * Unload the message, dropping the buffers grown past
+	 * {@link #RETAINED_CHARS} or {@link #RETAINED_FIELDS}: the instance of a
+	 * thread does not keep the largest message it ever met
+	 */
+	public void release() {
+		if (chars.length > RETAINED_CHARS) {
+			chars = new char[INITIAL_CHARS];
+		}
+		if (fieldStarts.length > RETAINED_FIELDS) {
+			fieldStarts = new int[INITIAL_FIELDS];
+			fieldEnds = new int[INITIAL_FIELDS];
+		}
+		if (segments.length > RETAINED_FIELDS) {
+			segments = new int[INITIAL_SEGMENTS];
+		}
+		length = 0;
+		segmentCount = 0;
+		fieldCount = 0;
+		segments[0] = 0;
+	}
+
+	/** @return characters the instance holds */
+	int getCapacity() {
+		return chars.length;
+	}
+
+	public int getSegmentCount() {
+		return segmentCount;
+	}
+
+	/**
+	 * @param name
+	 * @return index of the first segment with this name, -1 when there is
+	 *         none
+	 */
+	public int segment(String name) {
+		return segment(name, 0);
+	}
+
+	/**
+	 * @param name
+	 * @param from
+	 *            index of the first segment to look at
+	 * @return index of the next segment with this name, -1 when there is none
+	 */
+	public int segment(String name, int from) {
+		for (int segment = Math.max(from, 0); segment < segmentCount; segment++) {
+			if (isSegment(segment, name)) {
+				return segment;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @param segment
+	 * @param name
+	 * @return whether the segment has this name
+	 */
+	public boolean isSegment(int segment, String name) {
+		if (segment < 0 || segment >= segmentCount) {
+			return false;
+		}
+		int field = segments[segment];
+		int start = fieldStarts[field];
+		if (fieldEnds[field] - start != name.length()) {
+			return false;
+		}
+		for (int i = 0; i < name.length(); i++) {
+			if (chars[start + i] != name.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @param segment
+	 * @return number of fields of a segment, the last one sent
+	 */
+	public int getFieldCount(int segment) {
+		if (segment < 0 || segment >= segmentCount) {
+			return 0;
+		}
+		return segments[segment + 1] - segments[segment] - 1;
+	}
+
+	/**
+	 * @param segment
+	 * @param field
+	 * @return number of repetitions sent, whether the field repeats or not, 0
+	 *         when it is empty
+	 */
+	public int getRepetitionCount(int segment, int field) {
+		if (!locate(segment, field)) {
+			return 0;
+		}
+		if (valueStart == valueEnd) {
+			return 0;
+		}
+		if (isEncodingField(segment, field)) {
+			return 1;
+		}
+		int count = 1;
+		for (int i = valueStart; i < valueEnd; i++) {
+			if (chars[i] == repetitionSeparator) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * @param segment
+	 * @param field
+	 * @return first component of the first repetition of a field, the value
+	 *         of a primitive field
+	 */
+	public String get(int segment, int field) {
+		return get(segment, field, 0, 1, 1);
+	}
+
+	/**
+	 * @param segment
+	 * @param field
+	 * @param component
+	 * @return component of the first repetition of a field
+	 */
+	public String get(int segment, int field, int component) {
+		return get(segment, field, 0, component, 1);
+	}
+
+	/**
+	 * @param segment
+	 *            index of the segment, see {@link #segment(String)}
+	 * @param field
+	 * @param repetition
+	 * @param component
+	 * @param subcomponent
+	 * @return the value unescaped, null when it is empty or missing
+	 */
+	public String get(int segment, int field, int repetition, int component,
+			int subcomponent) {
+		if (!locate(segment, field, repetition, component, subcomponent)) {
+			return null;
+		}
+		if (isEncodingField(segment, field)) {
+			return valueStart == valueEnd ? null : new String(chars,
+					valueStart, valueEnd - valueStart);
+		}
+		return value(valueStart, valueEnd);
+	}
+
+	/**
+	 * A component the way HAPI encodes it on its own, as
+	 * <code>Type.encode()</code> does: its subcomponents joined by the
+	 * component separator, the empty ones at the end left out
+	 *
+	 * @param segment
+	 * @param field
+	 * @param repetition
+	 * @param component
+	 * @return "" when the component is empty or missing
+	 */
+	public String getEncoded(int segment, int field, int repetition,
+			int component) {
+		if (!locate(segment, field, repetition, component, 0)) {
+			return "";
+		}
+		int end = valueEnd;
+		while (end > valueStart && chars[end - 1] == subcomponentSeparator) {
+			end--;
+		}
+		char[] encoded = new char[end - valueStart];
+		for (int i = 0; i < encoded.length; i++) {
+			char c = chars[valueStart + i];
+			encoded[i] = c == subcomponentSeparator ? componentSeparator : c;
+		}
+		return new String(encoded);
+	}
+
+	/**
+	 * Locate a whole field, its repetitions included
+	 */
+	private boolean locate(int segment, int field) {
+		if (segment < 0 || segment >= segmentCount || field < 0) {
+			return false;
+		}
+		int index = segments[segment] + field;
+		if (index >= segments[segment + 1]) {
+			return false;
+		}
+		valueStart = fieldStarts[index];
+		valueEnd = fieldEnds[index];
+		return true;
+	}
+
+	/**
+	 * @param subcomponent
+	 *            0 for the whole component
+	 */
+	private boolean locate(int segment, int field, int repetition,
+			int component, int subcomponent) {
+		if (!locate(segment, field)) {
+			return false;
+		}
+		if (isEncodingField(segment, field)) {
+			// MSH-1 and MSH-2 are not split
+			return repetition == 0 && component == 1 && subcomponent <= 1;
+		}
+		return narrow(repetitionSeparator, repetition)
+				&& narrow(componentSeparator, component - 1)
+				&& (subcomponent == 0 || narrow(subcomponentSeparator,
+						subcomponent - 1));
+	}
+
+	/**
+	 * Narrow the located value to one of its parts
+	 *
+	 * @param separator
+	 * @param index
+	 *            of the part, from 0
+	 * @return false when there are fewer parts
+	 */
+	private boolean narrow(char separator, int index) {
+		if (index < 0) {
+			return false;
+		}
+		int start = valueStart;
+		for (int part = 0; part < index; part++) {
+			while (start < valueEnd && chars[start] != separator) {
+				start++;
+			}
+			if (start == valueEnd) {
+				return false;
+			}
+			start++;
+		}
+		int end = start;
+		while (end < valueEnd && chars[end] != separator) {
+			end++;
+		}
+		valueStart = start;
+		valueEnd = end;
+		return true;
+	}
+
+	private boolean isEncodingField(int segment, int field) {
+		return field <= 2 && field > 0 && isSegment(segment, "MSH");
+	}
+
+	private String value(int start, int end) {
+		if (start == end) {
+			return null;
+		}
+		String value = new String(chars, start, end - start);
+		for (int i = start; i < end; i++) {
+			if (chars[i] == escapeCharacter) {
+				if (encodingCharacters == null) {
+					encodingCharacters = new EncodingCharacters(
+							fieldSeparator, componentSeparator,
+							repetitionSeparator, escapeCharacter,
+							subcomponentSeparator);
+				}
+				return escaping.unescape(value, encodingCharacters);
+			}
+		}
+		return value;
+	}
+
+	/**
+	 * @param index
+	 *            in MSH-2
+	 * @param defaultValue
+	 *            when MSH-2 is shorter
+	 */
+	private char encodingCharacter(int index, char defaultValue) {
+		int offset = 4 + index;
+		for (int i = 4; i <= offset; i++) {
+			if (i >= length || chars[i] == fieldSeparator || chars[i] == '\r'
+					|| chars[i] == '\n') {
+				return defaultValue;
+			}
+		}
+		return chars[offset];
+	}
+
+	private void index(int start, int end) {
+		if (segmentCount + 1 >= segments.length) {
+			int[] grown = new int[segments.length * 2];
+			System.arraycopy(segments, 0, grown, 0, segmentCount);
+			segments = grown;
+		}
+		segments[segmentCount++] = fieldCount;
+		int fieldStart = start;
+		if (end - start >= 4 && chars[start] == 'M' && chars[start + 1] == 'S'
+				&& chars[start + 2] == 'H') {
+			// MSH-1 is the field separator itself, MSH-2 follows it
+			addField(start, start + 3);
+			addField(start + 3, start + 4);
+			fieldStart = start + 4;
+		}
+		for (int i = fieldStart; i <= end; i++) {
+			if (i == end || chars[i] == fieldSeparator) {
+				addField(fieldStart, i);
+				fieldStart = i + 1;
+			}
+		}
+	}
+
+	private void addField(int start, int end) {
+		if (fieldCount == fieldStarts.length) {
+			int[] grownStarts = new int[fieldCount * 2];
+			int[] grownEnds = new int[fieldCount * 2];
+			System.arraycopy(fieldStarts, 0, grownStarts, 0, fieldCount);
+			System.arraycopy(fieldEnds, 0, grownEnds, 0, fieldCount);
+			fieldStarts = grownStarts;
+			fieldEnds = grownEnds;
+		}
+		fieldStarts[fieldCount] = start;
+		fieldEnds[fieldCount] = end;
+		fieldCount++;
+	}
+}
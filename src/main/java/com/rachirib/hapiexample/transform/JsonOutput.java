@@ -0,0 +1,218 @@
+package com.rachirib.hapiexample.transform;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Compact JSON writer that omits empty objects and arrays the way the HAPI
+ * FHIR parser does.
+ *
+ * An object or array is only written once a value is written in it (or in
+ * one of its children), so the callers write every optional element and let
+ * the empty ones vanish. {@link #touch()} writes the current object even when
+ * it stays empty, for the elements HAPI considers populated without any
+ * encodable value (a coding with an empty system).
+ *
+ * Strings are escaped like the javax.json generator used by HAPI: quote,
+ * backslash and control characters only.
+ */
+final class JsonOutput {
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private final Writer out;
+
+	private String[] names = new String[16];
+	private boolean[] arrays = new boolean[16];
+	private boolean[] hasContent = new boolean[16];
+	/** Frames below depth which are not written yet */
+	private int depth;
+	/** Frames already written, always a prefix of the stack */
+	private int opened;
+
+	JsonOutput(Writer out) {
+		this.out = out;
+	}
+
+	/**
+	 * Start an object, as an array item or the root when name is null
+	 *
+	 * @param name
+	 * @return
+	 */
+	JsonOutput beginObject(String name) {
+		push(name, false);
+		return this;
+	}
+
+	JsonOutput beginArray(String name) {
+		push(name, true);
+		return this;
+	}
+
+	JsonOutput end() throws IOException {
+		depth--;
+		if (opened > depth) {
+			out.write(arrays[depth] ? ']' : '}');
+			opened = depth;
+		}
+		return this;
+	}
+
+	/**
+	 * Write the pending objects and arrays even if nothing is written in them
+	 *
+	 * @return
+	 * @throws IOException
+	 */
+	JsonOutput touch() throws IOException {
+		while (opened < depth) {
+			member(opened, names[opened]);
+			out.write(arrays[opened] ? '[' : '{');
+			hasContent[opened] = false;
+			opened++;
+		}
+		return this;
+	}
+
+	/**
+	 * Write a string, skipped when it is null or blank like the HAPI
+	 * primitives
+	 *
+	 * @param name
+	 *            null for an array item
+	 * @param value
+	 * @return
+	 * @throws IOException
+	 */
+	JsonOutput string(String name, String value) throws IOException {
+		if (isBlank(value)) {
+			return this;
+		}
+		return stringAlways(name, value);
+	}
+
+	/**
+	 * Write a string even when it is blank
+	 *
+	 * @param name
+	 * @param value
+	 * @return
+	 * @throws IOException
+	 */
+	JsonOutput stringAlways(String name, String value) throws IOException {
+		touch();
+		member(depth, name);
+		quote(value);
+		return this;
+	}
+
+	/**
+	 * Write a number or a boolean
+	 *
+	 * @param name
+	 * @param literal
+	 * @return
+	 * @throws IOException
+	 */
+	JsonOutput literal(String name, String literal) throws IOException {
+		touch();
+		member(depth, name);
+		out.write(literal);
+		return this;
+	}
+
+	JsonOutput flush() throws IOException {
+		out.flush();
+		return this;
+	}
+
+	static boolean isBlank(String value) {
+		if (value == null) {
+			return true;
+		}
+		for (int i = 0; i < value.length(); i++) {
+			if (!Character.isWhitespace(value.charAt(i))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void push(String name, boolean array) {
+		if (depth == names.length) {
+			int size = depth * 2;
+			String[] newNames = new String[size];
+			boolean[] newArrays = new boolean[size];
+			boolean[] newContent = new boolean[size];
+			System.arraycopy(names, 0, newNames, 0, depth);
+			System.arraycopy(arrays, 0, newArrays, 0, depth);
+			System.arraycopy(hasContent, 0, newContent, 0, depth);
+			names = newNames;
+			arrays = newArrays;
+			hasContent = newContent;
+		}
+		names[depth] = name;
+		arrays[depth] = array;
+		depth++;
+	}
+
+	/**
+	 * Separator and name of a member of the frame below the given level
+	 */
+	private void member(int level, String name) throws IOException {
+		if (level == 0) {
+			return;
+		}
+		if (hasContent[level - 1]) {
+			out.write(',');
+		}
+		hasContent[level - 1] = true;
+		if (name != null) {
+			quote(name);
+			out.write(':');
+		}
+	}
+
+	private void quote(String value) throws IOException {
+		out.write('"');
+		int start = 0;
+		int length = value.length();
+		for (int i = 0; i < length; i++) {
+			char c = value.charAt(i);
+			if (c >= 0x20 && c != '"' && c != '\\') {
+				continue;
+			}
+			out.write(value, start, i - start);
+			start = i + 1;
+			switch (c) {
+			case '"':
+			case '\\':
+				out.write('\\');
+				out.write(c);
+				break;
+			case '\b':
+				out.write("\\b");
+				break;
+			case '\f':
+				out.write("\\f");
+				break;
+			case '\n':
+				out.write("\\n");
+				break;
+			case '\r':
+				out.write("\\r");
+				break;
+			case '\t':
+				out.write("\\t");
+				break;
+			default:
+				out.write("\\u00");
+				out.write(HEX[c >> 4]);
+				out.write(HEX[c & 0xf]);
+			}
+		}
+		out.write(value, start, length - start);
+		out.write('"');
+	}
+}
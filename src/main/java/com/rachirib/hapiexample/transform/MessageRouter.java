@@ -0,0 +1,127 @@
+package com.rachirib.hapiexample.transform;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import ca.uhn.hl7v2.ErrorCode;
+import ca.uhn.hl7v2.HL7Exception;
+
+/**
+ * Choose the {@link MessageTransformer} of a message from MSH-9 (message type
+ * and trigger event), read from the raw text, so unsupported messages are
+ * rejected before they are parsed
+ */
+public class MessageRouter {
+
+	/** Trigger event matching every trigger of a message type */
+	public static final String ANY_TRIGGER = "*";
+
+	private final Map<String, Map<String, Route>> routes = new ConcurrentHashMap<String, Map<String, Route>>();
+
+	/**
+	 * @param messageType
+	 *            MSH-9.1, e.g. ADT
+	 * @param triggerEvent
+	 *            MSH-9.2, e.g. A05, or {@link #ANY_TRIGGER}
+	 * @param transformer
+	 * @return this router
+	 */
+	public MessageRouter register(String messageType, String triggerEvent,
+			MessageTransformer transformer) {
+		return register(messageType, triggerEvent, transformer, null);
+	}
+
+	/**
+	 * @param messageType
+	 *            MSH-9.1, e.g. ADT
+	 * @param triggerEvent
+	 *            MSH-9.2, e.g. A05, or {@link #ANY_TRIGGER}
+	 * @param transformer
+	 * @param segmentFilter
+	 *            segments the transformer reads, the others are dropped
+	 *            before parsing; null to parse the whole message
+	 * @return this router
+	 */
+	public MessageRouter register(String messageType, String triggerEvent,
+			MessageTransformer transformer, SegmentFilter segmentFilter) {
+		Map<String, Route> triggers = routes.get(messageType);
+		if (triggers == null) {
+			routes.putIfAbsent(messageType,
+					new ConcurrentHashMap<String, Route>());
+			triggers = routes.get(messageType);
+		}
+		triggers.put(triggerEvent, new Route(transformer, segmentFilter));
+		return this;
+	}
+
+	/**
+	 * @param msh
+	 * @return the route registered for the message
+	 * @throws HL7Exception
+	 *             no transformer is registered for its type and trigger
+	 */
+	public Route route(MshHeader msh) throws HL7Exception {
+		String messageType = msh.getMessageType();
+		Map<String, Route> triggers = messageType == null ? null : routes
+				.get(messageType);
+		if (triggers == null) {
+			throw new HL7Exception("Unsupported message type " + messageType,
+					ErrorCode.UNSUPPORTED_MESSAGE_TYPE);
+		}
+		String triggerEvent = msh.getTriggerEvent();
+		Route route = triggerEvent == null ? null : triggers.get(triggerEvent);
+		if (route == null) {
+			route = triggers.get(ANY_TRIGGER);
+		}
+		if (route == null) {
+			throw new HL7Exception("Unsupported trigger event " + messageType
+					+ "^" + triggerEvent, ErrorCode.UNSUPPORTED_EVENT_CODE);
+		}
+		return route;
+	}
+
+	/**
+	 * @param messageType
+	 * @param triggerEvent
+	 * @return true when a transformer is registered
+	 */
+	public boolean supports(String messageType, String triggerEvent) {
+		Map<String, Route> triggers = routes.get(messageType);
+		return triggers != null
+				&& (triggers.containsKey(triggerEvent) || triggers
+						.containsKey(ANY_TRIGGER));
+	}
+
+	/**
+	 * Transformer of a message type and how to prepare the message for it
+	 */
+	public static class Route {
+
+		private final MessageTransformer transformer;
+		private final SegmentFilter segmentFilter;
+
+		Route(MessageTransformer transformer, SegmentFilter segmentFilter) {
+			this.transformer = transformer;
+			this.segmentFilter = segmentFilter;
+		}
+
+		public MessageTransformer getTransformer() {
+			return transformer;
+		}
+
+		/**
+		 * @return null when the whole message is parsed
+		 */
+		public SegmentFilter getSegmentFilter() {
+			return segmentFilter;
+		}
+
+		/**
+		 * @param msg
+		 * @return the message as it should be parsed for this route
+		 */
+		public String prepare(String msg) {
+			return segmentFilter == null ? msg : segmentFilter.apply(msg);
+		}
+	}
+}
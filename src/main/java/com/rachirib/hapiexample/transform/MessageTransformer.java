@@ -0,0 +1,20 @@
+package com.rachirib.hapiexample.transform;
+
+import ca.uhn.fhir.model.dstu2.resource.Bundle;
+import ca.uhn.hl7v2.HL7Exception;
+import ca.uhn.hl7v2.model.Message;
+
+/**
+ * Transformation of one type of parsed v2 message to FHIR, registered in a
+ * {@link MessageRouter}
+ */
+public interface MessageTransformer {
+
+	/**
+	 * @param message
+	 *            parsed message of a type the transformer was registered for
+	 * @return
+	 * @throws HL7Exception
+	 */
+	Bundle transform(Message message) throws HL7Exception;
+}
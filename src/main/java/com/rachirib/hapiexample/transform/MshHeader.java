@@ -0,0 +1,152 @@
+package com.rachirib.hapiexample.transform;
+
+import ca.uhn.hl7v2.ErrorCode;
+import ca.uhn.hl7v2.HL7Exception;
+
+/**
+ * Fields of the MSH segment read straight from the ER7 text, without parsing
+ * the message. Components of composite fields other than MSH-9 are not split:
+ * MSH-3 is returned as <code>REGADT^1.2.3^ISO</code> when sent like that.
+ */
+public class MshHeader {
+
+	private final char fieldSeparator;
+	private final char componentSeparator;
+	private final String encodingCharacters;
+	private final String[] fields;
+
+	private MshHeader(char fieldSeparator, String encodingCharacters,
+			String[] fields) {
+		this.fieldSeparator = fieldSeparator;
+		this.encodingCharacters = encodingCharacters;
+		this.componentSeparator = encodingCharacters.length() > 0 ? encodingCharacters
+				.charAt(0) : '^';
+		this.fields = fields;
+	}
+
+	/**
+	 * Read the MSH segment at the start of an ER7 encoded message
+	 * 
+	 * @param msg
+	 * @return
+	 * @throws HL7Exception
+	 *             the message does not start with a MSH segment
+	 */
+	public static MshHeader parse(String msg) throws HL7Exception {
+		if (msg == null || msg.length() < 8 || !msg.startsWith("MSH")) {
+			throw new HL7Exception("Message does not start with MSH",
+					ErrorCode.SEGMENT_SEQUENCE_ERROR);
+		}
+		char fieldSeparator = msg.charAt(3);
+		int end = 4;
+		while (end < msg.length() && msg.charAt(end) != '\r'
+				&& msg.charAt(end) != '\n') {
+			end++;
+		}
+		// fields[1] is MSH-1, the field separator itself
+		String[] fields = new String[21];
+		int field = 2;
+		int start = 4;
+		for (int i = 4; i <= end && field < fields.length; i++) {
+			if (i == end || msg.charAt(i) == fieldSeparator) {
+				fields[field++] = msg.substring(start, i);
+				start = i + 1;
+			}
+		}
+		fields[1] = String.valueOf(fieldSeparator);
+		return new MshHeader(fieldSeparator, fields[2] == null ? ""
+				: fields[2], fields);
+	}
+
+	/**
+	 * @param index
+	 *            MSH field number, from 1
+	 * @return the field, null when it is empty or missing
+	 */
+	public String getField(int index) {
+		if (index < 1 || index >= fields.length) {
+			return null;
+		}
+		String value = fields[index];
+		return value == null || value.length() == 0 ? null : value;
+	}
+
+	/**
+	 * @param index
+	 *            MSH field number, from 1
+	 * @param component
+	 *            component number, from 1
+	 * @return the component, null when it is empty or missing
+	 */
+	public String getComponent(int index, int component) {
+		String value = getField(index);
+		if (value == null) {
+			return null;
+		}
+		int start = 0;
+		for (int c = 1; c < component; c++) {
+			start = value.indexOf(componentSeparator, start);
+			if (start < 0) {
+				return null;
+			}
+			start++;
+		}
+		int end = value.indexOf(componentSeparator, start);
+		String result = end < 0 ? value.substring(start) : value.substring(
+				start, end);
+		return result.length() == 0 ? null : result;
+	}
+
+	public char getFieldSeparator() {
+		return fieldSeparator;
+	}
+
+	public String getEncodingCharacters() {
+		return encodingCharacters;
+	}
+
+	/** MSH-3 */
+	public String getSendingApplication() {
+		return getField(3);
+	}
+
+	/** MSH-4 */
+	public String getSendingFacility() {
+		return getField(4);
+	}
+
+	/** MSH-5 */
+	public String getReceivingApplication() {
+		return getField(5);
+	}
+
+	/** MSH-6 */
+	public String getReceivingFacility() {
+		return getField(6);
+	}
+
+	/** MSH-9.1 */
+	public String getMessageType() {
+		return getComponent(9, 1);
+	}
+
+	/** MSH-9.2 */
+	public String getTriggerEvent() {
+		return getComponent(9, 2);
+	}
+
+	/** MSH-10 */
+	public String getControlId() {
+		return getField(10);
+	}
+
+	/** MSH-11 */
+	public String getProcessingId() {
+		return getField(11);
+	}
+
+	/** MSH-12 */
+	public String getVersion() {
+		return getField(12);
+	}
+}
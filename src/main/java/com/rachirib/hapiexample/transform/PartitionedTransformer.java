@@ -0,0 +1,238 @@
+package com.rachirib.hapiexample.transform;
+
+import java.io.Closeable;
+import java.util.Iterator;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Transform messages on a fixed set of single threaded lanes, the lane of a
+ * message chosen by its patient, see {@link PatientKey}. The messages of a
+ * patient are transformed and handed over one after the other in their
+ * submission order, those of different patients in parallel. Messages
+ * without patient identifier go round robin to the lanes.
+ * 
+ * A lane holds at most <code>laneCapacity</code> messages; submitting to a
+ * full lane blocks until it has room. Thread safe, but the order of the
+ * messages of a patient is the order of submission only when they are
+ * submitted from one thread.
+ */
+public class PartitionedTransformer implements Closeable {
+
+	private static final Logger LOG = LoggerFactory
+			.getLogger(PartitionedTransformer.class);
+
+	private final BatchTransformer batch;
+	private final ExecutorService[] lanes;
+	private final Semaphore[] slots;
+	private final AtomicInteger roundRobin = new AtomicInteger();
+
+	/**
+	 * One lane per core
+	 * 
+	 * @param batch
+	 *            transforms each message, with its duplicate filter if any
+	 */
+	public PartitionedTransformer(BatchTransformer batch) {
+		this(batch, Runtime.getRuntime().availableProcessors(), 64);
+	}
+
+	/**
+	 * @param batch
+	 *            transforms each message, with its duplicate filter if any
+	 * @param lanes
+	 *            number of lanes, each one a thread
+	 * @param laneCapacity
+	 *            messages submitted to a lane and not handed over yet
+	 */
+	public PartitionedTransformer(BatchTransformer batch, int lanes,
+			int laneCapacity) {
+		if (batch == null) {
+			throw new IllegalArgumentException("batch is required");
+		}
+		if (lanes < 1 || laneCapacity < 1) {
+			throw new IllegalArgumentException(
+					"lanes and laneCapacity must be positive");
+		}
+		this.batch = batch;
+		this.lanes = new ExecutorService[lanes];
+		this.slots = new Semaphore[lanes];
+		for (int i = 0; i < lanes; i++) {
+			final String name = "transform-lane-" + i;
+			this.lanes[i] = Executors
+					.newSingleThreadExecutor(new ThreadFactory() {
+						@Override
+						public Thread newThread(Runnable r) {
+							Thread thread = new Thread(r, name);
+							thread.setDaemon(true);
+							return thread;
+						}
+					});
+			this.slots[i] = new Semaphore(laneCapacity);
+		}
+	}
+
+	/**
+	 * @return number of lanes
+	 */
+	public int getLanes() {
+		return lanes.length;
+	}
+
+	/**
+	 * @param msg
+	 * @return the lane of the patient of the message, the next one round
+	 *         robin when it has none
+	 */
+	public int lane(String msg) {
+		int hash = PatientKey.hash(msg);
+		if (hash == PatientKey.NONE) {
+			return Math.floorMod(roundRobin.getAndIncrement(), lanes.length);
+		}
+		return Math.floorMod(hash, lanes.length);
+	}
+
+	/**
+	 * Transform a message on its lane, blocking while the lane is full
+	 * 
+	 * @param index
+	 *            index of the result
+	 * @param msg
+	 * @param handler
+	 *            called on the lane thread, after the earlier messages of the
+	 *            same patient; the result is recorded as delivered, see
+	 *            {@link BatchTransformer#delivered(TransformResult)}, unless
+	 *            it throws
+	 * @throws IllegalStateException
+	 *             interrupted waiting for room, or closed
+	 */
+	public void submit(final long index, final String msg,
+			final Consumer<TransformResult> handler) {
+		final int lane = lane(msg);
+		try {
+			slots[lane].acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted waiting for lane "
+					+ lane, e);
+		}
+		try {
+			lanes[lane].execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						TransformResult result = batch.transformOne(index, msg);
+						handler.accept(result);
+						batch.delivered(result);
+					} catch (CancellationException e) {
+						LOG.debug("Message {} not handed over", Long.valueOf(index));
+					} catch (RuntimeException e) {
+						LOG.error("Handler failed on message " + index, e);
+					} finally {
+						slots[lane].release();
+					}
+				}
+			});
+		} catch (RuntimeException e) {
+			slots[lane].release();
+			throw new IllegalStateException("Transformer closed", e);
+		}
+	}
+
+	/**
+	 * Transform the messages read from the iterator, the result i belongs to
+	 * the message i. Blocks until every result has been handed over.
+	 * 
+	 * @param messages
+	 * @param handler
+	 *            called on the lane threads, so it must be thread safe: the
+	 *            results of a patient in the input order, those of different
+	 *            patients in any order
+	 * @throws IllegalStateException
+	 *             the first exception thrown by the handler; the results
+	 *             after it are not handed over, none of them recorded as
+	 *             delivered
+	 */
+	public void transform(Iterator<String> messages,
+			final Consumer<TransformResult> handler) {
+		final AtomicReference<RuntimeException> failure = new AtomicReference<RuntimeException>();
+		Consumer<TransformResult> guarded = new Consumer<TransformResult>() {
+			@Override
+			public void accept(TransformResult result) {
+				if (failure.get() != null) {
+					throw new CancellationException("Result handler failed");
+				}
+				try {
+					handler.accept(result);
+				} catch (RuntimeException e) {
+					failure.compareAndSet(null, e);
+					throw e;
+				}
+			}
+		};
+		long index = 0;
+		while (messages.hasNext() && failure.get() == null) {
+			submit(index++, messages.next(), guarded);
+		}
+		drain();
+		if (failure.get() != null) {
+			throw new IllegalStateException("Result handler failed",
+					failure.get());
+		}
+	}
+
+	/**
+	 * Wait until the messages submitted so far have been handed over
+	 */
+	public void drain() {
+		Future<?>[] markers = new Future<?>[lanes.length];
+		for (int i = 0; i < lanes.length; i++) {
+			// a lane runs its tasks in order: the marker comes last
+			markers[i] = lanes[i].submit(new Runnable() {
+				@Override
+				public void run() {
+				}
+			});
+		}
+		for (Future<?> marker : markers) {
+			try {
+				marker.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException("Interrupted waiting for lanes",
+						e);
+			} catch (ExecutionException e) {
+				throw new IllegalStateException(e.getCause());
+			}
+		}
+	}
+
+	/**
+	 * Hand over the messages submitted, then stop the lanes
+	 */
+	@Override
+	public void close() {
+		for (ExecutorService lane : lanes) {
+			lane.shutdown();
+		}
+		try {
+			for (ExecutorService lane : lanes) {
+				lane.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
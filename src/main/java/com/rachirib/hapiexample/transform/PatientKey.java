@@ -0,0 +1,246 @@
+package com.rachirib.hapiexample.transform;
+
+import ca.uhn.hl7v2.HL7Exception;
+import ca.uhn.hl7v2.model.Composite;
+import ca.uhn.hl7v2.model.Primitive;
+import ca.uhn.hl7v2.model.Type;
+
+/**
+ * Patient identifier of a message, PID-3.1 and its assigning authority
+ * PID-3.4 of the first repetition: <code>191919^^^GENHOSP</code> gives the
+ * key <code>191919^GENHOSP</code>, <code>123^^^HOSP&amp;1.2.3&amp;ISO</code>
+ * the key <code>123^HOSP&amp;1.2.3&amp;ISO</code>, whatever the separators
+ * of the message. The key is read straight from the ER7 text without
+ * parsing the message, or from a parsed CX, and names the Patient of the
+ * message, see {@link ResourceIds}.
+ */
+public final class PatientKey {
+
+	/** Hash of a message without patient identifier */
+	public static final int NONE = 0;
+
+	private static final int FNV_OFFSET = 0x811c9dc5;
+	private static final int FNV_PRIME = 0x01000193;
+
+	private PatientKey() {
+	}
+
+	/**
+	 * @param id
+	 *            PID-3.1
+	 * @param authority
+	 *            subcomponents of PID-3.4, null for empty
+	 * @return the identifier, then the subcomponents of its authority up to
+	 *         the last one not empty, separated by <code>^</code> and
+	 *         <code>&amp;</code>; null when the identifier is empty
+	 */
+	public static String key(String id, String... authority) {
+		if (id == null || id.length() == 0) {
+			return null;
+		}
+		int parts = authority.length;
+		while (parts > 0
+				&& (authority[parts - 1] == null || authority[parts - 1]
+						.length() == 0)) {
+			parts--;
+		}
+		if (parts == 0) {
+			return id;
+		}
+		StringBuilder key = new StringBuilder(id).append('^');
+		for (int i = 0; i < parts; i++) {
+			if (i > 0) {
+				key.append('&');
+			}
+			if (authority[i] != null) {
+				key.append(authority[i]);
+			}
+		}
+		return key.toString();
+	}
+
+	/**
+	 * @param cx
+	 *            PID-3 parsed, its first repetition
+	 * @return the key, null when PID-3.1 is empty
+	 * @throws HL7Exception
+	 */
+	public static String of(Composite cx) throws HL7Exception {
+		Type[] components = cx.getComponents();
+		Type authority = components.length > 3 ? components[3] : null;
+		String[] subcomponents;
+		if (authority instanceof Composite) {
+			Type[] types = ((Composite) authority).getComponents();
+			subcomponents = new String[types.length];
+			for (int i = 0; i < types.length; i++) {
+				subcomponents[i] = value(types[i]);
+			}
+		} else {
+			subcomponents = new String[] { value(authority) };
+		}
+		return key(value(components[0]), subcomponents);
+	}
+
+	/**
+	 * @param msg
+	 *            ER7 encoded message
+	 * @return the key, null when the message has no patient identifier; the
+	 *         values are taken as they are encoded, not unescaped
+	 */
+	public static String of(String msg) {
+		int field = pid3(msg);
+		if (field < 0) {
+			return null;
+		}
+		String id = msg.substring(field, componentEnd(msg, field));
+		int authority = component(msg, field, 4);
+		if (authority < 0) {
+			return key(id);
+		}
+		char subcomponentSeparator = msg.charAt(7);
+		String encoded = msg.substring(authority,
+				componentEnd(msg, authority));
+		return key(id, split(encoded, subcomponentSeparator));
+	}
+
+	/**
+	 * Hash of the patient identifier of a message, without allocating: the
+	 * same for the messages of a key encoded with the same separators
+	 * 
+	 * @param msg
+	 *            ER7 encoded message
+	 * @return {@link #NONE} when the message has no patient identifier
+	 */
+	public static int hash(String msg) {
+		int field = pid3(msg);
+		if (field < 0) {
+			return NONE;
+		}
+		int h = FNV_OFFSET;
+		for (int i = field, end = componentEnd(msg, field); i < end; i++) {
+			h = (h ^ msg.charAt(i)) * FNV_PRIME;
+		}
+		int authority = component(msg, field, 4);
+		if (authority >= 0) {
+			h = (h ^ msg.charAt(4)) * FNV_PRIME;
+			for (int i = authority, end = componentEnd(msg, authority); i < end; i++) {
+				h = (h ^ msg.charAt(i)) * FNV_PRIME;
+			}
+		}
+		// spread the low bits, used to pick a lane
+		h ^= h >>> 16;
+		return h == NONE ? 1 : h;
+	}
+
+	private static String value(Type type) {
+		while (type instanceof Composite) {
+			type = ((Composite) type).getComponents()[0];
+		}
+		return type instanceof Primitive ? ((Primitive) type).getValue()
+				: null;
+	}
+
+	private static String[] split(String value, char separator) {
+		int count = 1;
+		for (int i = 0; i < value.length(); i++) {
+			if (value.charAt(i) == separator) {
+				count++;
+			}
+		}
+		String[] parts = new String[count];
+		int start = 0;
+		for (int i = 0; i < count - 1; i++) {
+			int end = value.indexOf(separator, start);
+			parts[i] = value.substring(start, end);
+			start = end + 1;
+		}
+		parts[count - 1] = value.substring(start);
+		return parts;
+	}
+
+	/**
+	 * @return start of PID-3, -1 when there is no PID segment or its PID-3.1
+	 *         is empty
+	 */
+	private static int pid3(String msg) {
+		if (msg == null || msg.length() < 8 || !msg.startsWith("MSH")) {
+			return -1;
+		}
+		char fieldSeparator = msg.charAt(3);
+		int length = msg.length();
+		int segment = -1;
+		for (int i = 0; i + 4 < length; i++) {
+			char c = msg.charAt(i);
+			if ((c == '\r' || c == '\n') && msg.charAt(i + 1) == 'P'
+					&& msg.charAt(i + 2) == 'I' && msg.charAt(i + 3) == 'D'
+					&& msg.charAt(i + 4) == fieldSeparator) {
+				segment = i + 1;
+				break;
+			}
+		}
+		if (segment < 0) {
+			return -1;
+		}
+		int position = segment + 4;
+		for (int field = 1; field < 3; field++) {
+			while (position < length && msg.charAt(position) != fieldSeparator) {
+				if (endsField(msg, position)) {
+					return -1;
+				}
+				position++;
+			}
+			if (position == length) {
+				return -1;
+			}
+			position++;
+		}
+		return componentEnd(msg, position) > position ? position : -1;
+	}
+
+	/**
+	 * @return start of the given component of the first repetition of the
+	 *         field starting at <code>field</code>, -1 when it is empty or
+	 *         missing
+	 */
+	private static int component(String msg, int field, int component) {
+		char componentSeparator = msg.charAt(4);
+		int position = field;
+		for (int c = 1; c < component; c++) {
+			while (position < msg.length()
+					&& msg.charAt(position) != componentSeparator) {
+				if (endsField(msg, position)) {
+					return -1;
+				}
+				position++;
+			}
+			if (position == msg.length()) {
+				return -1;
+			}
+			position++;
+		}
+		return componentEnd(msg, position) > position ? position : -1;
+	}
+
+	/**
+	 * @return end of the component starting at the given position
+	 */
+	private static int componentEnd(String msg, int position) {
+		char componentSeparator = msg.charAt(4);
+		while (position < msg.length()
+				&& msg.charAt(position) != componentSeparator
+				&& !endsField(msg, position)) {
+			position++;
+		}
+		return position;
+	}
+
+	/**
+	 * @return the character ends a field: field or repetition separator, or
+	 *         end of segment
+	 */
+	private static boolean endsField(String msg, int position) {
+		char c = msg.charAt(position);
+		return c == msg.charAt(3) || c == msg.charAt(5) || c == '\r'
+				|| c == '\n';
+	}
+}
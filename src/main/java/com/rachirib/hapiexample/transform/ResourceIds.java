@@ -0,0 +1,108 @@
+package com.rachirib.hapiexample.transform;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.UUID;
+
+import ca.uhn.fhir.model.api.IResource;
+import ca.uhn.fhir.model.dstu2.composite.ResourceReferenceDt;
+import ca.uhn.fhir.model.dstu2.resource.Bundle;
+
+/**
+ * Deterministic ids of the resources of a bundle: name-based (version 5)
+ * UUIDs of the resource type and the v2 fields identifying the resource, so
+ * a message transformed twice gives the same ids, and receivers can upsert.
+ * 
+ * The resources are entries of their bundle with the base
+ * <code>urn:uuid:</code>, and referenced as <code>urn:uuid:&lt;id&gt;</code>
+ * so a bundle is read in one pass without resolving anything.
+ */
+public final class ResourceIds {
+
+	/** Base of the bundle entries, the prefix of the references */
+	public static final String URN_UUID = "urn:uuid:";
+
+	/** Namespace of the names of this transformer */
+	private static final UUID NAMESPACE = UUID
+			.fromString("5b7a3e3c-1f7e-4c55-9d2b-6a0f4f3e2d10");
+
+	private static final ThreadLocal<MessageDigest> SHA1 = new ThreadLocal<MessageDigest>() {
+		@Override
+		protected MessageDigest initialValue() {
+			try {
+				return MessageDigest.getInstance("SHA-1");
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException("SHA-1 is not available", e);
+			}
+		}
+	};
+
+	private static final byte[] NAMESPACE_BYTES = new byte[16];
+	static {
+		long msb = NAMESPACE.getMostSignificantBits();
+		long lsb = NAMESPACE.getLeastSignificantBits();
+		for (int i = 0; i < 8; i++) {
+			NAMESPACE_BYTES[i] = (byte) (msb >>> (56 - 8 * i));
+			NAMESPACE_BYTES[8 + i] = (byte) (lsb >>> (56 - 8 * i));
+		}
+	}
+
+	private ResourceIds() {
+	}
+
+	/**
+	 * @param type
+	 *            resource type
+	 * @param names
+	 *            v2 values identifying the resource, null for empty
+	 * @return the UUID of the resource, without prefix
+	 */
+	public static String uuid(String type, String... names) {
+		MessageDigest sha1 = SHA1.get();
+		sha1.update(NAMESPACE_BYTES);
+		sha1.update(type.getBytes(StandardCharsets.UTF_8));
+		for (String name : names) {
+			// separator not part of any value, so (a, bc) != (ab, c)
+			sha1.update((byte) 0);
+			if (name != null) {
+				sha1.update(name.getBytes(StandardCharsets.UTF_8));
+			}
+		}
+		byte[] hash = sha1.digest();
+		hash[6] = (byte) ((hash[6] & 0x0f) | 0x50);
+		hash[8] = (byte) ((hash[8] & 0x3f) | 0x80);
+		long msb = 0;
+		long lsb = 0;
+		for (int i = 0; i < 8; i++) {
+			msb = (msb << 8) | (hash[i] & 0xff);
+			lsb = (lsb << 8) | (hash[8 + i] & 0xff);
+		}
+		return new UUID(msb, lsb).toString();
+	}
+
+	/**
+	 * @param resource
+	 *            with its id
+	 * @return a reference to the entry of the resource in its bundle, the
+	 *         resource kept in it
+	 */
+	public static ResourceReferenceDt reference(IResource resource) {
+		ResourceReferenceDt reference = new ResourceReferenceDt(resource);
+		reference.setReference(URN_UUID + resource.getId().getIdPart());
+		return reference;
+	}
+
+	/**
+	 * Add a resource to a bundle, as an entry with the base
+	 * <code>urn:uuid:</code>
+	 * 
+	 * @param bundle
+	 * @param resource
+	 *            with its id
+	 * @return the entry
+	 */
+	public static Bundle.Entry entry(Bundle bundle, IResource resource) {
+		return bundle.addEntry().setBase(URN_UUID).setResource(resource);
+	}
+}
@@ -0,0 +1,75 @@
+package com.rachirib.hapiexample.transform;
+
+/**
+ * Keep only the segments a transformer reads before handing the message to
+ * the HAPI parser, so the segments it never looks at (OBX, GT1, IN1 ...) are
+ * not turned into objects
+ */
+public final class SegmentFilter {
+
+	private final char[][] names;
+
+	private SegmentFilter(char[][] names) {
+		this.names = names;
+	}
+
+	/**
+	 * @param names
+	 *            the segments kept, MSH is always kept
+	 * @return
+	 */
+	public static SegmentFilter of(String... names) {
+		char[][] kept = new char[names.length + 1][];
+		kept[0] = "MSH".toCharArray();
+		for (int i = 0; i < names.length; i++) {
+			if (names[i].length() != 3) {
+				throw new IllegalArgumentException("Not a segment name: "
+						+ names[i]);
+			}
+			kept[i + 1] = names[i].toCharArray();
+		}
+		return new SegmentFilter(kept);
+	}
+
+	/**
+	 * @param msg
+	 *            ER7 message
+	 * @return the message with the kept segments only, the same instance when
+	 *         all of them are kept
+	 */
+	public String apply(String msg) {
+		int length = msg.length();
+		StringBuilder filtered = null;
+		int start = 0;
+		while (start < length) {
+			int end = start;
+			while (end < length && msg.charAt(end) != '\r'
+					&& msg.charAt(end) != '\n') {
+				end++;
+			}
+			boolean keep = end == start || accepts(msg, start, end);
+			if (filtered == null && !keep) {
+				filtered = new StringBuilder(length);
+				filtered.append(msg, 0, start);
+			} else if (filtered != null && keep && end > start) {
+				filtered.append(msg, start, end).append('\r');
+			}
+			start = end + 1;
+		}
+		return filtered == null ? msg : filtered.toString();
+	}
+
+	private boolean accepts(String msg, int start, int end) {
+		if (end - start < 3) {
+			return false;
+		}
+		for (char[] name : names) {
+			if (msg.charAt(start) == name[0]
+					&& msg.charAt(start + 1) == name[1]
+					&& msg.charAt(start + 2) == name[2]) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
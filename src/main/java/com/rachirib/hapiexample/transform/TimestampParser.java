@@ -0,0 +1,273 @@
+package com.rachirib.hapiexample.transform;
+
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.zone.ZoneOffsetTransition;
+import java.time.zone.ZoneRules;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.TimeZone;
+
+import ca.uhn.hl7v2.model.DataTypeException;
+
+/**
+ * Parser of HL7 v2 timestamps,
+ * <code>YYYY[MM[DD[HH[MM[SS[.S[S[S[S]]]]]]]]][+/-ZZZZ]</code>, to the same
+ * dates as <code>CommonTS.getValueAsDate()</code> without its substrings,
+ * calendars and exceptions: the digits are read in place and the date is
+ * computed from the epoch day.
+ *
+ * A value without offset is a local time of the zone of the parser. The zone
+ * offset of a local day is the costly part and is shared by every precision
+ * of that day, so it is kept in a small cache of recent days; the days near a
+ * transition are resolved each time by a calendar, as in CommonTS: a skipped
+ * local time is moved forward, a repeated one taken after the transition.
+ *
+ * Where CommonTS is wrong the parser follows HL7: the offset of a value is
+ * always applied, HAPI 2.2 ignoring the positive ones, the ones with minutes
+ * and the ones in the hours of the default zone; YYYY and YYYYMM are the
+ * start of their year and month, not the last day of the month before. Dates
+ * are proleptic Gregorian. Thread safe.
+ */
+public final class TimestampParser {
+
+	/** Local days kept, a power of 2 */
+	private static final int CACHE_SIZE = 64;
+
+	private static final long DAY_SECONDS = 86400;
+
+	/** Largest zone offset, in seconds */
+	private static final long MAX_OFFSET = 18 * 3600;
+
+	private static final int[] DAYS_IN_MONTH = { 31, 29, 31, 30, 31, 30, 31,
+			31, 30, 31, 30, 31 };
+
+	private static final float[] FRACTION_SCALE = { 1f, 10f, 100f, 1000f,
+			10000f };
+
+	private final TimeZone zone;
+	private final ZoneRules rules;
+
+	/** Recent local days, by epoch day; replaced without locking */
+	private final DayOffset[] days = new DayOffset[CACHE_SIZE];
+
+	/**
+	 * @param zone
+	 *            of the values without offset
+	 */
+	public TimestampParser(TimeZone zone) {
+		this.zone = (TimeZone) zone.clone();
+		rules = zone.toZoneId().getRules();
+	}
+
+	/**
+	 * @return the parser of the default time zone, as it is on first use
+	 */
+	public static TimestampParser getDefault() {
+		return DefaultHolder.INSTANCE;
+	}
+
+	/**
+	 * @param ts
+	 *            TS-1
+	 * @return null when the value is empty, as for HAPI
+	 * @throws DataTypeException
+	 *             the value is not a timestamp
+	 */
+	public Date parse(String ts) throws DataTypeException {
+		if (ts == null || ts.isEmpty() || "\"\"".equals(ts)) {
+			return null;
+		}
+		return new Date(parseMillis(ts));
+	}
+
+	/**
+	 * @param ts
+	 *            TS-1, not empty
+	 * @return milliseconds since the epoch
+	 * @throws DataTypeException
+	 *             the value is not a timestamp
+	 */
+	public long parseMillis(String ts) throws DataTypeException {
+		int length = ts.length();
+		if (length < 4 || length > 24) {
+			throw invalid(ts);
+		}
+		int end = length;
+		boolean hasOffset = false;
+		int offsetMillis = 0;
+		if (length >= 9) {
+			char sign = ts.charAt(length - 5);
+			if (sign == '+' || sign == '-') {
+				int hours = digits(ts, length - 4, 2);
+				int minutes = digits(ts, length - 2, 2);
+				if (hours < 0 || hours > 23 || minutes < 0 || minutes > 59) {
+					throw invalid(ts);
+				}
+				hasOffset = true;
+				offsetMillis = (hours * 60 + minutes) * 60000;
+				if (sign == '-') {
+					offsetMillis = -offsetMillis;
+				}
+				end = length - 5;
+			}
+		}
+
+		// date, YYYY[MM[DD]]
+		if (end != 4 && end != 6 && end < 8) {
+			throw invalid(ts);
+		}
+		int year = digits(ts, 0, 4);
+		int month = end >= 6 ? digits(ts, 4, 2) : 1;
+		int day = end >= 8 ? digits(ts, 6, 2) : 1;
+		if (year < 1 || month < 1 || month > 12 || day < 1
+				|| day > DAYS_IN_MONTH[month - 1]
+				|| (month == 2 && day == 29 && !isLeap(year))) {
+			throw invalid(ts);
+		}
+
+		// time, HH[MM[SS[.S[S[S[S]]]]]]
+		int time = end - 8;
+		int hour = 0;
+		int minute = 0;
+		int second = 0;
+		long millis = 0;
+		if (time > 0) {
+			if (time != 2 && time != 4 && time != 6
+					&& (time < 8 || time > 11 || ts.charAt(14) != '.')) {
+				throw invalid(ts);
+			}
+			hour = digits(ts, 8, 2);
+			minute = time >= 4 ? digits(ts, 10, 2) : 0;
+			second = time >= 6 ? digits(ts, 12, 2) : 0;
+			if (hour < 0 || hour > 23 || minute < 0 || minute > 59
+					|| second < 0 || second > 59) {
+				throw invalid(ts);
+			}
+			if (time >= 8) {
+				int count = time - 7;
+				int fraction = digits(ts, 15, count);
+				if (fraction < 0) {
+					throw invalid(ts);
+				}
+				// HAPI keeps the fraction as a float and rounds it
+				float value = fraction / FRACTION_SCALE[count];
+				millis = Math.round(value * 1000.0d);
+			}
+		}
+
+		long epochDay = epochDay(year, month, day);
+		long local = (epochDay * DAY_SECONDS + hour * 3600 + minute * 60 + second)
+				* 1000 + millis;
+		if (hasOffset) {
+			return local - offsetMillis;
+		}
+		return inZone(epochDay, local);
+	}
+
+	/**
+	 * @param epochDay
+	 *            of the local time
+	 * @param local
+	 *            local time, in milliseconds since the local epoch
+	 * @return milliseconds since the epoch of the local time in the zone
+	 */
+	private long inZone(long epochDay, long local) {
+		int slot = (int) epochDay & (CACHE_SIZE - 1);
+		DayOffset dayOffset = days[slot];
+		if (dayOffset == null || dayOffset.epochDay != epochDay) {
+			dayOffset = dayOffset(epochDay);
+			days[slot] = dayOffset;
+		}
+		if (dayOffset.uniform) {
+			return local - dayOffset.offsetMillis;
+		}
+		// near a transition, the calendar of CommonTS decides
+		LocalDateTime wall = LocalDateTime.ofEpochSecond(
+				Math.floorDiv(local, 1000), 0, ZoneOffset.UTC);
+		GregorianCalendar calendar = new GregorianCalendar(zone);
+		calendar.clear();
+		calendar.set(wall.getYear(), wall.getMonthValue() - 1,
+				wall.getDayOfMonth(), wall.getHour(), wall.getMinute(),
+				wall.getSecond());
+		calendar.set(Calendar.MILLISECOND, (int) Math.floorMod(local, 1000));
+		return calendar.getTimeInMillis();
+	}
+
+	private DayOffset dayOffset(long epochDay) {
+		long midnight = epochDay * DAY_SECONDS;
+		long start = (midnight - MAX_OFFSET) * 1000;
+		long end = (midnight + DAY_SECONDS + MAX_OFFSET) * 1000;
+		// the local times of the day are within the largest offset of it; the
+		// offsets of the Java zone, which differ from the rules before 1900
+		int offset = zone.getOffset(start);
+		ZoneOffsetTransition next = rules.nextTransition(Instant
+				.ofEpochMilli(start - 1));
+		boolean uniform = (next == null || next.toEpochSecond() * 1000 > end)
+				&& zone.getOffset(end) == offset;
+		return new DayOffset(epochDay, offset, uniform);
+	}
+
+	/**
+	 * @return value of the digits, -1 when one of them is not a digit
+	 */
+	private static int digits(String ts, int start, int count) {
+		int value = 0;
+		for (int i = start; i < start + count; i++) {
+			char c = ts.charAt(i);
+			if (c < '0' || c > '9') {
+				return -1;
+			}
+			value = value * 10 + (c - '0');
+		}
+		return value;
+	}
+
+	private static boolean isLeap(int year) {
+		return year % 4 == 0 && (year % 100 != 0 || year % 400 == 0);
+	}
+
+	/**
+	 * @return days since 1970-01-01 of a proleptic Gregorian date
+	 */
+	private static long epochDay(int year, int month, int day) {
+		// years from March, so that February 29 ends them
+		int y = month <= 2 ? year - 1 : year;
+		int era = y / 400;
+		int yearOfEra = y - era * 400;
+		int dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5
+				+ day - 1;
+		int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100
+				+ dayOfYear;
+		return era * 146097L + dayOfEra - 719468;
+	}
+
+	private static DataTypeException invalid(String ts) {
+		return new DataTypeException("Invalid TS value " + ts
+				+ ", format is YYYY[MM[DD[HH[MM[SS[.S[S[S[S]]]]]]]]][+/-ZZZZ]");
+	}
+
+	/**
+	 * Zone offset of a local day, immutable so that it can be shared without
+	 * locking
+	 */
+	private static final class DayOffset {
+		final long epochDay;
+		final long offsetMillis;
+		/** No transition near the day, its offset applies to all of it */
+		final boolean uniform;
+
+		DayOffset(long epochDay, long offsetMillis, boolean uniform) {
+			this.epochDay = epochDay;
+			this.offsetMillis = offsetMillis;
+			this.uniform = uniform;
+		}
+	}
+
+	private static class DefaultHolder {
+		static final TimestampParser INSTANCE = new TimestampParser(
+				TimeZone.getDefault());
+	}
+}
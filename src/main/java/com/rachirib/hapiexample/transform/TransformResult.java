@@ -0,0 +1,94 @@
+package com.rachirib.hapiexample.transform;
+
+import ca.uhn.fhir.model.dstu2.resource.Bundle;
+
+/**
+ * Outcome of the transformation of one message of a batch: the bundle, the
+ * error that stopped it, or nothing for a duplicate that was not transformed
+ */
+public class TransformResult {
+
+	private final long index;
+	private final String message;
+	private final Bundle bundle;
+	private final Exception error;
+	private final boolean duplicate;
+	/** Control id to remember once delivered, see BatchTransformer */
+	MshHeader header;
+	/** Patient to record once delivered, see BatchTransformer */
+	String patientKey;
+	long patientFingerprint;
+
+	private TransformResult(long index, String message, Bundle bundle,
+			Exception error, boolean duplicate) {
+		this.index = index;
+		this.message = message;
+		this.bundle = bundle;
+		this.error = error;
+		this.duplicate = duplicate;
+	}
+
+	public static TransformResult success(long index, String message,
+			Bundle bundle) {
+		return new TransformResult(index, message, bundle, null, false);
+	}
+
+	public static TransformResult failure(long index, String message,
+			Exception error) {
+		return new TransformResult(index, message, null, error, false);
+	}
+
+	/**
+	 * @param index
+	 * @param message
+	 *            a message already received, skipped
+	 * @return
+	 */
+	public static TransformResult duplicate(long index, String message) {
+		return new TransformResult(index, message, null, null, true);
+	}
+
+	/**
+	 * @return position of the message in the batch input, from 0
+	 */
+	public long getIndex() {
+		return index;
+	}
+
+	/**
+	 * @return the v2 message as received
+	 */
+	public String getMessage() {
+		return message;
+	}
+
+	/**
+	 * @return the bundle, null when the transformation failed or the message
+	 *         is a duplicate; its practitioners, locations and organization
+	 *         are shared with other bundles and must not be modified, see
+	 *         {@link com.rachirib.hapiexample.cache.ReferenceResourceCache}
+	 */
+	public Bundle getBundle() {
+		return bundle;
+	}
+
+	/**
+	 * @return the error, null when the transformation succeeded or the
+	 *         message is a duplicate
+	 */
+	public Exception getError() {
+		return error;
+	}
+
+	public boolean isSuccess() {
+		return error == null && !duplicate;
+	}
+
+	/**
+	 * @return true when the message was skipped as a retransmission, see
+	 *         {@link com.rachirib.hapiexample.dedup.DuplicateFilter}
+	 */
+	public boolean isDuplicate() {
+		return duplicate;
+	}
+}
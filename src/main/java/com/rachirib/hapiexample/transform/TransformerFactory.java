@@ -0,0 +1,202 @@
+package com.rachirib.hapiexample.transform;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.model.api.IResource;
+import ca.uhn.fhir.model.dstu2.resource.Bundle;
+import ca.uhn.fhir.model.dstu2.resource.Condition;
+import ca.uhn.fhir.model.dstu2.resource.Encounter;
+import ca.uhn.fhir.model.dstu2.resource.Location;
+import ca.uhn.fhir.model.dstu2.resource.MessageHeader;
+import ca.uhn.fhir.model.dstu2.resource.OperationOutcome;
+import ca.uhn.fhir.model.dstu2.resource.Organization;
+import ca.uhn.fhir.model.dstu2.resource.Patient;
+import ca.uhn.fhir.model.dstu2.resource.Practitioner;
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.validation.FhirValidator;
+
+/**
+ * Owns the long-lived FHIR and v2 state of the transformation: one
+ * {@link FhirContext}, one validator and one {@link VersionTwoToFHIR}.
+ *
+ * Scanning the DSTU2 model classes and compiling the validation schemas
+ * takes seconds the first time. The factory does it once, when it is
+ * created or on a background thread, instead of on the first message. The
+ * getters wait for the warm up to finish.
+ *
+ * The FhirContext, the validator and the transformer are thread safe and
+ * shared. Parsers are not, a new one is cheap once the context is warm.
+ */
+public class TransformerFactory implements Closeable {
+
+	private static final Logger LOG = LoggerFactory
+			.getLogger(TransformerFactory.class);
+
+	/** Resources built by the mappings and by the validation */
+	@SuppressWarnings("unchecked")
+	private static final Class<? extends IResource>[] RESOURCE_TYPES = new Class[] {
+			Bundle.class, MessageHeader.class, Patient.class, Encounter.class,
+			Condition.class, Practitioner.class, Organization.class,
+			Location.class, OperationOutcome.class };
+
+	private static final int WARM_UP_ROUNDS = 5;
+
+	/** Touches every segment of the ADT_A05 mapping */
+	private static final String WARM_UP_MESSAGE = "MSH|^~\\&|WARM|UP|||20000101000000||ADT^A05|0|P|2.3\r"
+			+ "EVN|A05|20000101000000|||0^UP^WARM\r"
+			+ "PID|||0^^^WARM||UP^WARM||20000101|U|||1 MAIN ST^^CITY^ST^00000||(000)000-0000|||S\r"
+			+ "NK1|1|UP^WARM|SPOUSE|1 MAIN ST^^CITY^ST^00000|(000)000-0000\r"
+			+ "PV1||O|WARD^1^1^WARM|R|||0^UP^WARM||||||||||||||||||||||||||||||||WARM\r"
+			+ "PV2||||||||20000101000000\r"
+			+ "DG1|1||0^WARM UP^SNM|||A\r";
+
+	private static class Holder {
+		static final TransformerFactory DEFAULT = new TransformerFactory(true);
+	}
+
+	private final FhirContext fhirContext;
+	private final FhirValidator validator;
+	private final VersionTwoToFHIR transformer;
+	private final FutureTask<Long> warmUp;
+
+	/**
+	 * Create a factory warmed up on the calling thread
+	 */
+	public TransformerFactory() {
+		this(false);
+	}
+
+	/**
+	 * @param background
+	 *            warm up on a daemon thread and return at once
+	 */
+	public TransformerFactory(boolean background) {
+		fhirContext = new FhirContext();
+		validator = fhirContext.newValidator();
+		transformer = new VersionTwoToFHIR();
+		warmUp = new FutureTask<Long>(new Callable<Long>() {
+			@Override
+			public Long call() throws Exception {
+				return warmUp();
+			}
+		});
+		if (background) {
+			Thread thread = new Thread(warmUp, "fhir-warm-up");
+			thread.setDaemon(true);
+			thread.start();
+		} else {
+			warmUp.run();
+			awaitWarm();
+		}
+	}
+
+	/**
+	 * @return the factory of the process, warmed up in the background on
+	 *         first use and never closed
+	 */
+	public static TransformerFactory getDefault() {
+		return Holder.DEFAULT;
+	}
+
+	public FhirContext getFhirContext() {
+		awaitWarm();
+		return fhirContext;
+	}
+
+	/**
+	 * @return the validator with the schemas and schematrons already
+	 *         compiled
+	 */
+	public FhirValidator getValidator() {
+		awaitWarm();
+		return validator;
+	}
+
+	public VersionTwoToFHIR getTransformer() {
+		awaitWarm();
+		return transformer;
+	}
+
+	/**
+	 * @return a compact JSON parser, for the calling thread only
+	 */
+	public IParser newJsonParser() {
+		return getFhirContext().newJsonParser();
+	}
+
+	/**
+	 * @return a compact XML parser, for the calling thread only
+	 */
+	public IParser newXmlParser() {
+		return getFhirContext().newXmlParser();
+	}
+
+	public boolean isWarm() {
+		return warmUp.isDone();
+	}
+
+	/**
+	 * Wait for the end of the warm up
+	 *
+	 * @return its duration in milliseconds
+	 */
+	public long awaitWarm() {
+		boolean interrupted = false;
+		try {
+			while (true) {
+				try {
+					return warmUp.get();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+		} catch (ExecutionException e) {
+			throw new IllegalStateException("FHIR warm up failed", e.getCause());
+		} finally {
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Release the HAPI v2 context of the transformer
+	 */
+	@Override
+	public void close() throws IOException {
+		transformer.close();
+	}
+
+	private long warmUp() throws Exception {
+		long start = System.nanoTime();
+
+		// model classes of every resource and datatype they use
+		for (Class<? extends IResource> type : RESOURCE_TYPES) {
+			fhirContext.getResourceDefinition(type);
+		}
+
+		// v2 parser, schema, schematron and the code paths of a message,
+		// a few rounds for the interpreter to settle
+		for (int i = 0; i < WARM_UP_ROUNDS; i++) {
+			Bundle bundle = transformer.transformADTA05(WARM_UP_MESSAGE);
+			fhirContext.newXmlParser().encodeResourceToString(bundle);
+			fhirContext.newJsonParser().encodeResourceToString(bundle);
+			validator.validateWithResult(bundle);
+		}
+		// the practitioner and locations of the warm up message are not
+		// those of any real message
+		transformer.getReferenceCache().clear();
+
+		long millis = (System.nanoTime() - start) / 1000000;
+		LOG.info("FHIR context warmed up in {} ms", millis);
+		return millis;
+	}
+}
@@ -1,8 +1,29 @@
 package com.rachirib.hapiexample.transform;
 
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.function.Supplier;
+
+import com.rachirib.hapiexample.cache.ReferenceResourceCache;
+import com.rachirib.hapiexample.codemap.CodeMapping;
+import com.rachirib.hapiexample.codemap.CodeMaps;
+import com.rachirib.hapiexample.codemap.CodeTable;
+import com.rachirib.hapiexample.mapping.MappingTransformer;
+import com.rachirib.hapiexample.metrics.Stage;
+import com.rachirib.hapiexample.metrics.TransformMetrics;
 
 import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.model.dstu2.composite.AddressDt;
@@ -17,6 +38,7 @@ import ca.uhn.fhir.model.dstu2.resource.Bundle;
 import ca.uhn.fhir.model.dstu2.resource.Condition;
 import ca.uhn.fhir.model.dstu2.resource.Encounter;
 import ca.uhn.fhir.model.dstu2.resource.Encounter.Hospitalization;
+import ca.uhn.fhir.model.dstu2.resource.Location;
 import ca.uhn.fhir.model.dstu2.resource.MessageHeader;
 import ca.uhn.fhir.model.dstu2.resource.MessageHeader.Destination;
 import ca.uhn.fhir.model.dstu2.resource.Organization;
@@ -32,18 +54,21 @@ import ca.uhn.fhir.model.dstu2.valueset.EncounterClassEnum;
 import ca.uhn.fhir.model.dstu2.valueset.EncounterStateEnum;
 import ca.uhn.fhir.model.dstu2.valueset.PractitionerRoleEnum;
 import ca.uhn.fhir.model.primitive.BooleanDt;
-import ca.uhn.fhir.model.primitive.CodeDt;
 import ca.uhn.fhir.model.primitive.DateDt;
 import ca.uhn.fhir.model.primitive.DateTimeDt;
 import ca.uhn.fhir.model.primitive.InstantDt;
 import ca.uhn.hl7v2.DefaultHapiContext;
+import ca.uhn.hl7v2.ErrorCode;
 import ca.uhn.hl7v2.HL7Exception;
 import ca.uhn.hl7v2.HapiContext;
 import ca.uhn.hl7v2.model.DataTypeException;
 import ca.uhn.hl7v2.model.Message;
 import ca.uhn.hl7v2.model.v23.datatype.CN;
 import ca.uhn.hl7v2.model.v23.datatype.CX;
+import ca.uhn.hl7v2.model.v23.datatype.HD;
 import ca.uhn.hl7v2.model.v23.datatype.ID;
+import ca.uhn.hl7v2.model.v23.datatype.PL;
+import ca.uhn.hl7v2.model.v23.datatype.TS;
 import ca.uhn.hl7v2.model.v23.datatype.XAD;
 import ca.uhn.hl7v2.model.v23.datatype.XCN;
 import ca.uhn.hl7v2.model.v23.datatype.XPN;
@@ -55,20 +80,210 @@ import ca.uhn.hl7v2.model.v23.segment.NK1;
 import ca.uhn.hl7v2.model.v23.segment.PID;
 import ca.uhn.hl7v2.model.v23.segment.PV1;
 import ca.uhn.hl7v2.model.v23.segment.PV2;
+import ca.uhn.hl7v2.parser.GenericParser;
 import ca.uhn.hl7v2.parser.Parser;
 
-public class VersionTwoToFHIR {
+/**
+ * Transform HL7 v2 messages to FHIR DSTU2 resources.
+ * 
+ * An instance owns (or borrows) a long-lived {@link HapiContext}, so the model
+ * class lookups and caches are built once and reused for every message. It is
+ * safe to share one instance between threads: each thread gets its own
+ * {@link Parser} from the shared context.
+ */
+public class VersionTwoToFHIR implements Closeable {
+
+	static final String CONDITION_ENCOUNTER = "diagnosis";
+	static final String SYSTEM_FHIR_CONDITION_CATEGORY = "http://hl7.org/fhir/condition-category";
+	static final String SYSTEM_SNOMED_NAMESPACE = "http://snomed.info/sct";
+	static final String SYSTEM_FHIR_PHYSICAL_TYPE = "http://hl7.org/fhir/location-physical-type";
+	static final String SYSTEM_V3_PARTICIPATION_TYPE = "http://hl7.org/fhir/v3/ParticipationType";
+	static final String SYSTEM_V2_EVENT = "http://hl7.org/fhir/v2/0003";
+	static final String SYSTEM_V2_IDENTIFIER = "http://hl7.org/fhir/v2/0203";
+
+	static final CodeTable TABLE_SEX = CodeMaps.getDefault().table(
+			"0001");
+	static final CodeTable TABLE_MARITAL_STATUS = CodeMaps
+			.getDefault().table("0002");
+	static final CodeTable TABLE_PATIENT_CLASS = CodeMaps
+			.getDefault().table("0004");
+	static final CodeTable TABLE_ADMISSION_TYPE = CodeMaps
+			.getDefault().table("0007");
+	static final CodeTable TABLE_RELATIONSHIP = CodeMaps.getDefault()
+			.table("0063");
+	static final CodeTable TABLE_DIET = CodeMaps.getDefault().table(
+			"0159");
+
+	/** Physical types of the PV1-3 levels, from the facility down to the bed */
+	static final String[] LOCATION_TYPES = { "si", "bu", "lvl", "wa", "ro",
+			"bd" };
+
+	/** Segments read by the ADT_A05 mapping */
+	static final SegmentFilter ADT_A05_SEGMENTS = SegmentFilter.of("EVN",
+			"PID", "NK1", "PV1", "PV2", "DG1");
+
+	/** Mapping of ADT^A01, A04 and A08, see {@link MappingTransformer} */
+	public static final String ADT_A01_MAPPING = "/mapping/adt_a01.map";
+
+	private final HapiContext hapiContext;
+	private final boolean ownsContext;
+	private final ThreadLocal<Parser> parsers;
+	private final MessageRouter router;
+	private final ReferenceResourceCache referenceCache;
+	private final TransformMetrics metrics = new TransformMetrics();
+	private volatile boolean closed;
 
-	private static final String CONDITION_ENCOUNTER = "diagnosis";
-	private static final String SYSTEM_FHIR_CONDITION_CATEGORY = "http://hl7.org/fhir/condition-category";
-	private static final String SYSTEM_SNOMED_NAMESPACE = "http://snomed.info/sct";
-	private static final String SYSTEM_FHIR_PHYSICAL_TYPE = "http://hl7.org/fhir/vs/location-physical-type";
-	private static final String SYSTEM_V2_EVENT = "http://hl7.org/fhir/v2/0003";
-	private static final String SYSTEM_V2_RELATIONSHIP = "http://hl7.org/fhir/v2/0063";
-	private static final String SYSTEM_V2_MARITAL_STATUS = "http://hl7.org/fhir/v2/0002";
-	private static final String SYSTEM_V2_DIET = "http://hl7.org/fhir/v2/0159";
-	private static final String SYSTEM_V2_IDENTIFIER = "http://hl7.org/fhir/v2/0203";
-	private static final String SYSTEM_V2_ADMISSION_TYPE = "http://hl7.org/fhir/v2/0007";
+	/**
+	 * Create a transformer with its own default {@link HapiContext}, released
+	 * by {@link #close()}
+	 */
+	public VersionTwoToFHIR() {
+		// DefaultHapiContext 2.2 fails on close when its executor was never
+		// started, a cached pool does not start any thread until it is used
+		this(new DefaultHapiContext(Executors.newCachedThreadPool()), true,
+				new ReferenceResourceCache());
+	}
+
+	/**
+	 * Create a transformer on a context configured by the caller (validation,
+	 * model class factory, parser configuration). The caller keeps ownership
+	 * of the context and must close it.
+	 * 
+	 * @param hapiContext
+	 */
+	public VersionTwoToFHIR(HapiContext hapiContext) {
+		this(hapiContext, new ReferenceResourceCache());
+	}
+
+	/**
+	 * Create a transformer on a context configured by the caller, sharing the
+	 * Practitioner, Organization and Location resources through the given
+	 * cache.
+	 * 
+	 * @param hapiContext
+	 * @param referenceCache
+	 *            may be shared between transformers
+	 */
+	public VersionTwoToFHIR(HapiContext hapiContext,
+			ReferenceResourceCache referenceCache) {
+		this(hapiContext, false, referenceCache);
+	}
+
+	private VersionTwoToFHIR(final HapiContext hapiContext,
+			boolean ownsContext, ReferenceResourceCache referenceCache) {
+		if (hapiContext == null) {
+			throw new IllegalArgumentException("hapiContext is required");
+		}
+		if (referenceCache == null) {
+			throw new IllegalArgumentException("referenceCache is required");
+		}
+		this.hapiContext = hapiContext;
+		this.ownsContext = ownsContext;
+		this.referenceCache = referenceCache;
+		this.parsers = new ThreadLocal<Parser>() {
+			@Override
+			protected Parser initialValue() {
+				// getGenericParser() hands out one parser for the context,
+				// its structure definitions cache is not thread safe
+				return new GenericParser(hapiContext);
+			}
+		};
+		this.router = new MessageRouter().register("ADT", "A05",
+				new MessageTransformer() {
+					@Override
+					public Bundle transform(Message message)
+							throws HL7Exception {
+						return transformADTA05(message);
+					}
+				}, ADT_A05_SEGMENTS);
+		MappingTransformer.load(ADT_A01_MAPPING,
+				hapiContext.getModelClassFactory()).register(router);
+	}
+
+	/**
+	 * @return the HAPI context used to parse the v2 messages
+	 */
+	public HapiContext getHapiContext() {
+		return hapiContext;
+	}
+
+	/**
+	 * @return the router used by {@link #transform(String)}, to register the
+	 *         transformers of other message types
+	 */
+	public MessageRouter getRouter() {
+		return router;
+	}
+
+	/**
+	 * @return the counters and stage timings of this transformer, disabled
+	 *         until {@link TransformMetrics#setEnabled(boolean)}
+	 */
+	public TransformMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * @return the cache of the Practitioner, Organization and Location
+	 *         resources, with its hit and miss counts
+	 */
+	public ReferenceResourceCache getReferenceCache() {
+		return referenceCache;
+	}
+
+	/**
+	 * Release the HAPI context when it was created by this transformer
+	 */
+	@Override
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		if (ownsContext) {
+			hapiContext.close();
+		}
+	}
+
+	/**
+	 * Parse a v2 message with the parser of the current thread
+	 * 
+	 * @param msg
+	 * @return
+	 * @throws HL7Exception
+	 */
+	Message parse(String msg) throws HL7Exception {
+		if (closed) {
+			throw new IllegalStateException("Transformer has been closed");
+		}
+		return parsers.get().parse(msg);
+	}
+
+	/**
+	 * Transform a v2 message with the transformer registered in the router
+	 * for its type. Unsupported messages are rejected before parsing, and
+	 * only the segments the transformer reads are parsed.
+	 * 
+	 * @param msg
+	 * @return
+	 * @throws HL7Exception
+	 */
+	public Bundle transform(final String msg) throws HL7Exception {
+		return measure(new Step<Bundle, RuntimeException>() {
+			@Override
+			public Bundle run(long start) throws HL7Exception {
+				MshHeader msh = MshHeader.parse(msg);
+				metrics.message(msh.getMessageType(), msh.getTriggerEvent());
+				MessageRouter.Route route = router.route(msh);
+				start = metrics.record(Stage.ROUTE, start);
+				Message message = parse(route.prepare(msg));
+				start = metrics.record(Stage.PARSE, start);
+				Bundle bundle = route.getTransformer().transform(message);
+				metrics.record(Stage.TRANSFORM, start);
+				return bundle;
+			}
+		});
+	}
 
 	/**
 	 * Method transform ADTA05 v2 Messages to FHIR
@@ -77,56 +292,226 @@ public class VersionTwoToFHIR {
 	 * @return
 	 * @throws HL7Exception
 	 */
+	public Bundle transformADTA05(final String msg) throws HL7Exception {
+		return measure(new Step<Bundle, RuntimeException>() {
+			@Override
+			public Bundle run(long start) throws HL7Exception {
+				Message message = parseADTA05(msg);
+				start = metrics.record(Stage.PARSE, start);
+				Bundle bundle = transformADTA05(message);
+				metrics.record(Stage.TRANSFORM, start);
+				return bundle;
+			}
+		});
+	}
+
+	/**
+	 * @deprecated the context is not used, see
+	 *             {@link #transformADTA05(String)} and
+	 *             {@link TransformerFactory} for a shared context
+	 */
+	@Deprecated
 	public Bundle transformADTA05(String msg, FhirContext ctx)
 			throws HL7Exception {
+		return transformADTA05(msg);
+	}
+
+	/**
+	 * Write the FHIR JSON of an ADTA05 v2 message straight from the v2
+	 * fields. The output is the compact JSON of the bundle of
+	 * {@link #transformADTA05(String)}, without building the HAPI v2 message
+	 * nor the FHIR resources: the fields are read from the
+	 * {@link Er7Message} of the current thread.
+	 * 
+	 * Only the v2.3 messages are written, as {@link #transformADTA05(String)}
+	 * maps only the v2.3 structure; the other versions are rejected the same
+	 * way. Other message types go through {@link #transform(String)}.
+	 * 
+	 * @param msg
+	 * @param out
+	 *            flushed, not closed
+	 * @throws HL7Exception
+	 * @throws IOException
+	 */
+	public void writeADTA05Json(final String msg, final Writer out)
+			throws HL7Exception, IOException {
+		final Er7Message er7 = Er7Message.forThread();
+		try {
+			measure(new Step<Void, IOException>() {
+				@Override
+				public Void run(long start) throws HL7Exception, IOException {
+					checkADTA05(MshHeader.parse(msg));
+					er7.load(msg, hapiContext.getParserConfiguration()
+							.getEscaping());
+					start = metrics.record(Stage.PARSE, start);
+					AdtA05JsonWriter.write(er7, out);
+					out.flush();
+					metrics.record(Stage.ENCODE, start);
+					return null;
+				}
+			});
+		} finally {
+			er7.release();
+		}
+	}
+
+	/**
+	 * Write the FHIR JSON of an ADTA05 v2 message in UTF-8
+	 * 
+	 * @param msg
+	 * @param out
+	 *            flushed, not closed
+	 * @throws HL7Exception
+	 * @throws IOException
+	 * @see #writeADTA05Json(String, Writer)
+	 */
+	public void writeADTA05Json(String msg, OutputStream out)
+			throws HL7Exception, IOException {
+		writeADTA05Json(msg, new BufferedWriter(new OutputStreamWriter(out,
+				StandardCharsets.UTF_8)));
+	}
+
+	/**
+	 * A transformation measured in the metrics
+	 * 
+	 * @param <T>
+	 *            result
+	 * @param <E>
+	 *            exception thrown besides HL7Exception, RuntimeException if
+	 *            none
+	 */
+	private interface Step<T, E extends Exception> {
 
-		@SuppressWarnings("resource")
-		HapiContext context = new DefaultHapiContext();
+		/**
+		 * @param start
+		 *            of the first stage, see {@link TransformMetrics#start()}
+		 */
+		T run(long start) throws HL7Exception, E;
+	}
 
-		Parser p = context.getGenericParser();
+	/**
+	 * Run a transformation, counting its failure by category
+	 */
+	private <T, E extends Exception> T measure(Step<T, E> step)
+			throws HL7Exception, E {
+		try {
+			return step.run(metrics.start());
+		} catch (HL7Exception e) {
+			metrics.failure(e);
+			throw e;
+		} catch (RuntimeException e) {
+			metrics.failure(e);
+			throw e;
+		}
+	}
+
+	private Message parseADTA05(String msg) throws HL7Exception {
+		MshHeader msh = MshHeader.parse(msg);
+		checkADTA05(msh);
+		return parse(ADT_A05_SEGMENTS.apply(msg));
+	}
+
+	/**
+	 * @param msh
+	 * @throws HL7Exception
+	 *             not an ADT^A05 message, or not of the v2.3 structure the
+	 *             mapping takes
+	 */
+	private void checkADTA05(MshHeader msh) throws HL7Exception {
+		String type = msh.getMessageType();
+		String event = msh.getTriggerEvent();
+		metrics.message(type, event);
+		if (!"ADT".equals(type) || !"A05".equals(event)) {
+			throw new HL7Exception("Not an ADT^A05 message: " + type + "^"
+					+ event, ErrorCode.UNSUPPORTED_MESSAGE_TYPE);
+		}
+		String version = msh.getComponent(12, 1);
+		if (!"2.3".equals(version)) {
+			throw new HL7Exception("Unsupported message structure ADT_A05 "
+					+ version, ErrorCode.UNSUPPORTED_VERSION_ID);
+		}
+	}
 
-		Message hapiMsg;
+	/**
+	 * Transform a parsed ADTA05 v2.3 message to FHIR
+	 * 
+	 * @param hapiMsg
+	 * @return
+	 * @throws HL7Exception
+	 */
+	Bundle transformADTA05(Message hapiMsg) throws HL7Exception {
 
-		hapiMsg = p.parse(msg);
+		if (!(hapiMsg instanceof ADT_A05)) {
+			throw new HL7Exception("Unsupported message structure "
+					+ hapiMsg.getName() + " " + hapiMsg.getVersion(),
+					ErrorCode.UNSUPPORTED_VERSION_ID);
+		}
 
 		ADT_A05 adtMsg = (ADT_A05) hapiMsg;
-
-		Bundle bundle = new Bundle();
-		bundle.setId("201501013000");
-		bundle.setType(BundleTypeEnum.MESSAGE);
+		long start = metrics.start();
+		AdtA05Ids ids = AdtA05Ids.of(adtMsg);
 
 		Practitioner operator = transformOperator(adtMsg.getEVN());
+		start = metrics.record(Stage.OPERATOR, start);
 		Patient patient = transformPatient(adtMsg.getPID(), adtMsg.getNK1All());
+		patient.setId(ids.getPatient());
+		start = metrics.record(Stage.PATIENT, start);
 		
 		MessageHeader header = transformHeader(adtMsg.getMSH(), adtMsg.getEVN()
 				.getEventReasonCode(), operator);
+		header.setId(ids.getHeader());
+		start = metrics.record(Stage.HEADER, start);
 		
 
-		List<Practitioner> listParticipants = new ArrayList<Practitioner>();
-		listParticipants.add(transformPractitioner(adtMsg.getPV1()
-				.getAttendingDoctor(0)));
+		List<Encounter.Participant> participants = transformParticipants(adtMsg
+				.getPV1());
+		start = metrics.record(Stage.PRACTITIONER, start);
 
 		Encounter encounter = transformEncounter(adtMsg.getPV1(),
 				adtMsg.getPV2(), adtMsg.getEVN().getEventReasonCode(), patient,
-				listParticipants);
+				participants);
+		encounter.setId(ids.getEncounter());
+		start = metrics.record(Stage.ENCOUNTER, start);
 		
 		Condition condition = transformCondition(encounter, patient,
 				adtMsg.getDG1());
+		condition.setId(ids.getCondition());
+		start = metrics.record(Stage.CONDITION, start);
 
-		bundle.addEntry().setResource(header);
-		bundle.addEntry().setResource(condition);
+		// the practitioners, locations and organization follow their
+		// first referrer
+		Bundle bundle = new BundleAssembler(ids.getBundle(),
+				BundleTypeEnum.MESSAGE).add(header).add(patient).add(encounter)
+				.add(condition).getBundle();
+		metrics.record(Stage.BUNDLE, start);
 
 		return bundle;
 	}
 
+	/**
+	 * Transform messages on all the cores, keeping the input order. Messages
+	 * that fail are reported in their {@link TransformResult}.
+	 * 
+	 * @param msgs
+	 * @return
+	 * @see BatchTransformer
+	 */
+	public List<TransformResult> transformBatch(Collection<String> msgs) {
+		return new BatchTransformer(this).transform(msgs);
+	}
+
 
 	/**
 	 * Transform Condition Patient when the encounter is requested
 	 * 
+	 * @param encounter
+	 *            with its id, see {@link ResourceIds}
+	 * @param patient
+	 *            with its id
 	 * @return
 	 * @throws HL7Exception
 	 */
-	private Condition transformCondition(Encounter encounter, Patient patient,
+	Condition transformCondition(Encounter encounter, Patient patient,
 			DG1 dg1) throws HL7Exception {
 
 		Condition condition = new Condition();
@@ -134,8 +519,8 @@ public class VersionTwoToFHIR {
 		condition.addIdentifier().setValue(
 				dg1.getDg11_SetIDDiagnosis().getValue());
 
-		condition.setEncounter(new ResourceReferenceDt(encounter));
-		condition.setPatient(new ResourceReferenceDt(patient));
+		condition.setEncounter(ResourceIds.reference(encounter));
+		condition.setPatient(ResourceIds.reference(patient));
 		condition.setCode(new CodeableConceptDt(SYSTEM_SNOMED_NAMESPACE, dg1
 				.getDg13_DiagnosisCode().getCe1_Identifier().getValue()));
 		condition.setCategory(new CodeableConceptDt(
@@ -151,12 +536,13 @@ public class VersionTwoToFHIR {
 	 * @param pv1
 	 * @param pv2
 	 * @param patient
+	 *            with its id, see {@link ResourceIds}
 	 * @param evn
 	 * @return
 	 * @throws HL7Exception
 	 */
-	private Encounter transformEncounter(PV1 pv1, PV2 pv2, ID reasonCode,
-			Patient patient, List<Practitioner> participants)
+	Encounter transformEncounter(PV1 pv1, PV2 pv2, ID reasonCode,
+			Patient patient, List<Encounter.Participant> participants)
 			throws HL7Exception {
 
 		Encounter encounter = new Encounter();
@@ -180,31 +566,23 @@ public class VersionTwoToFHIR {
 
 		// PV1-4-admission type
 		if (pv1.getPv14_AdmissionType().getValue() != null) {
-			encounter
-					.addType()
-					.addCoding()
-					.setCode(new CodeDt(pv1.getPv14_AdmissionType().getValue()))
-					.setSystem(SYSTEM_V2_ADMISSION_TYPE);
+			code(encounter.addType().addCoding(), TABLE_ADMISSION_TYPE, pv1
+					.getPv14_AdmissionType().getValue());
 		}
 
 		// PID-3-patient ID list
 
-		encounter.setPatient(new ResourceReferenceDt(patient));
+		encounter.setPatient(ResourceIds.reference(patient));
 
 		// participant type PRT-4-participation
 		// participant individual PRT-5-participation person
 
-		for (Practitioner participant : participants) {
-			encounter.addParticipant().setIndividual(
-					new ResourceReferenceDt(participant));
-		}
+		encounter.getParticipant().addAll(participants);
 
 		// (PV1-45 less PV1-44) iff ( (PV1-44 not empty) and (PV1-45 not empty)
 		// ); units in minutes
-		Date pv145 = pv1.getPv145_DischargeDateTime().getTimeOfAnEvent()
-				.getValueAsDate();
-		Date pv144 = pv1.getPv144_AdmitDateTime().getTimeOfAnEvent()
-				.getValueAsDate();
+		Date pv145 = date(pv1.getPv145_DischargeDateTime());
+		Date pv144 = date(pv1.getPv144_AdmitDateTime());
 		if (pv145 != null && pv144 != null) {
 			DurationDt durationDt = new DurationDt();
 			durationDt.setValue(pv145.getTime() - pv144.getTime());
@@ -241,8 +619,8 @@ public class VersionTwoToFHIR {
 
 		if (pv1.getPv138_DietType().getValue() != null) {
 			// PV1-38-diet type
-			hospitalization.setDietPreference(new CodeableConceptDt(
-					SYSTEM_V2_DIET, pv1.getPv138_DietType().getValue()));
+			code(hospitalization.getDietPreference().addCoding(), TABLE_DIET,
+					pv1.getPv138_DietType().getValue());
 		}
 
 		// PV1-16-VIP indicator
@@ -276,88 +654,15 @@ public class VersionTwoToFHIR {
 		// PV2-11-actual length of inpatient stay / PV1-44-admit date/time
 		// PV1-45-discharge date/time
 		PeriodDt periodDt = new PeriodDt();
-		periodDt.setEnd(new DateTimeDt(pv1.getPv145_DischargeDateTime()
-				.getTimeOfAnEvent().getValueAsDate()));
-		periodDt.setStart(new DateTimeDt(pv1.getPv144_AdmitDateTime()
-				.getTimeOfAnEvent().getValueAsDate()));
-
-		if (pv1.getPv13_AssignedPatientLocation().getFacility()
-				.getNamespaceID().getValue() != null) {
-			ca.uhn.fhir.model.dstu2.resource.Location locationFacility = new ca.uhn.fhir.model.dstu2.resource.Location();
-			CodeableConceptDt codeableConceptDtFacilityDt = new CodeableConceptDt(
-					SYSTEM_FHIR_PHYSICAL_TYPE, pv1
-							.getPv13_AssignedPatientLocation().getFacility()
-							.getNamespaceID().getValue());
-			locationFacility.setPhysicalType(codeableConceptDtFacilityDt);
-			encounter.addLocation()
-					.setLocation(new ResourceReferenceDt(locationFacility))
-					.setPeriod(periodDt);
-		}
-
-		if (pv1.getPv13_AssignedPatientLocation().getPointOfCare().getValue() != null) {
-			ca.uhn.fhir.model.dstu2.resource.Location locationPointCare = new ca.uhn.fhir.model.dstu2.resource.Location();
-			CodeableConceptDt codeableConceptDtPointCareDt = new CodeableConceptDt(
-					SYSTEM_FHIR_PHYSICAL_TYPE, pv1
-							.getPv13_AssignedPatientLocation().getPointOfCare()
-							.getValue());
-			locationPointCare.setPhysicalType(codeableConceptDtPointCareDt);
-			// locationPointCare.setPartOf(new
-			// ResourceReferenceDt(locationFacility));
-			encounter.addLocation()
-					.setLocation(new ResourceReferenceDt(locationPointCare))
-					.setPeriod(periodDt);
-		}
+		periodDt.setEnd(new DateTimeDt(date(pv1.getPv145_DischargeDateTime())));
+		periodDt.setStart(new DateTimeDt(date(pv1.getPv144_AdmitDateTime())));
 
-		if (pv1.getPv13_AssignedPatientLocation().getBuilding().getValue() != null) {
-			ca.uhn.fhir.model.dstu2.resource.Location locationBuilding = new ca.uhn.fhir.model.dstu2.resource.Location();
-			CodeableConceptDt codeableConceptDtBuildingDt = new CodeableConceptDt(
-					SYSTEM_FHIR_PHYSICAL_TYPE, pv1
-							.getPv13_AssignedPatientLocation().getBuilding()
-							.getValue());
-			locationBuilding.setPhysicalType(codeableConceptDtBuildingDt);
-			// locationBuilding.setPartOf(new
-			// ResourceReferenceDt(locationPointCare));
-			encounter.addLocation().setLocation(
-					new ResourceReferenceDt(locationBuilding));
-		}
-
-		if (pv1.getPv13_AssignedPatientLocation().getFloor().getValue() != null) {
-			ca.uhn.fhir.model.dstu2.resource.Location locationFloor = new ca.uhn.fhir.model.dstu2.resource.Location();
-			CodeableConceptDt codeableConceptFloorDt = new CodeableConceptDt(
-					SYSTEM_FHIR_PHYSICAL_TYPE, pv1
-							.getPv13_AssignedPatientLocation().getFloor()
-							.getValue());
-			locationFloor.setPhysicalType(codeableConceptFloorDt);
-			// locationFloor.setPartOf(new
-			// ResourceReferenceDt(locationBuilding));
+		// PV1-3, the most specific level, part of the levels above
+		Location location = transformLocation(pv1
+				.getPv13_AssignedPatientLocation());
+		if (location != null) {
 			encounter.addLocation()
-					.setLocation(new ResourceReferenceDt(locationFloor))
-					.setPeriod(periodDt);
-		}
-
-		if (pv1.getPv13_AssignedPatientLocation().getRoom().getValue() != null) {
-			ca.uhn.fhir.model.dstu2.resource.Location locationRoom = new ca.uhn.fhir.model.dstu2.resource.Location();
-			CodeableConceptDt codeableConceptRoomDt = new CodeableConceptDt(
-					SYSTEM_FHIR_PHYSICAL_TYPE, pv1
-							.getPv13_AssignedPatientLocation().getRoom()
-							.getValue());
-			locationRoom.setPhysicalType(codeableConceptRoomDt);
-			// locationRoom.setPartOf(new ResourceReferenceDt(locationFloor));
-			encounter.addLocation()
-					.setLocation(new ResourceReferenceDt(locationRoom))
-					.setPeriod(periodDt);
-		}
-
-		if (pv1.getPv13_AssignedPatientLocation().getBed().getValue() != null) {
-			ca.uhn.fhir.model.dstu2.resource.Location locationBed = new ca.uhn.fhir.model.dstu2.resource.Location();
-			CodeableConceptDt codeableConceptBedDt = new CodeableConceptDt(
-					SYSTEM_FHIR_PHYSICAL_TYPE, pv1
-							.getPv13_AssignedPatientLocation().getBed()
-							.getValue());
-			locationBed.setPhysicalType(codeableConceptBedDt);
-			// locationBed.setPartOf(new ResourceReferenceDt(locationRoom));
-			encounter.addLocation()
-					.setLocation(new ResourceReferenceDt(locationBed))
+					.setLocation(ResourceIds.reference(location))
 					.setPeriod(periodDt);
 		}
 
@@ -369,22 +674,170 @@ public class VersionTwoToFHIR {
 		// service'. Would not trust that implementations apply this semantic by
 		// default)
 
-		Organization organization = new Organization();
-		organization.setId(pv1.getPv110_HospitalService().getValue());
-		encounter.setServiceProvider(new ResourceReferenceDt(organization));
+		Organization service = hospitalService(pv1.getPv110_HospitalService()
+				.getValue());
+		if (service != null) {
+			encounter.setServiceProvider(ResourceIds.reference(service));
+		}
 
 		return encounter;
 	}
 
 	/**
-	 * Transform Operator to Practitioner
+	 * Location of a PL, the locations of its levels shared by the messages
+	 * naming them
+	 * 
+	 * @param pl
+	 * @return the location of the most specific level, part of the location
+	 *         of the level above, null when the PL is empty
+	 */
+	Location transformLocation(PL pl) {
+		String[] path = locationPath(pl);
+		Location location = null;
+		for (int level = 0; level < path.length; level++) {
+			if (path[level] != null) {
+				location = location(path, level, location);
+			}
+		}
+		return location;
+	}
+
+	private Location location(final String[] path, final int level,
+			final Location parent) {
+		String[] levels = Arrays.copyOf(path, level + 1);
+		return referenceCache.getLocations().get(key(levels),
+				new Supplier<Location>() {
+					@Override
+					public Location get() {
+						Location location = new Location();
+						location.setId(locationId(path, level));
+						location.setName(path[level]);
+						location.getPhysicalType().addCoding()
+								.setSystem(SYSTEM_FHIR_PHYSICAL_TYPE)
+								.setCode(LOCATION_TYPES[level]);
+						if (parent != null) {
+							location.setPartOf(ResourceIds.reference(parent));
+						}
+						return location;
+					}
+				});
+	}
+
+	/**
+	 * Values of the levels of a PL, from the facility down to the bed: PL-4,
+	 * PL-7, PL-8, PL-1, PL-2 and PL-3
+	 * 
+	 * @param pl
+	 * @return null for the levels not given
+	 */
+	static String[] locationPath(PL pl) {
+		return locationPath(pl.getFacility().getNamespaceID().getValue(), pl
+				.getBuilding().getValue(), pl.getFloor().getValue(), pl
+				.getPointOfCare().getValue(), pl.getRoom().getValue(), pl
+				.getBed().getValue());
+	}
+
+	static String[] locationPath(String facility, String building,
+			String floor, String pointOfCare, String room, String bed) {
+		return new String[] { facility, building, floor, pointOfCare, room,
+				bed };
+	}
+
+	/**
+	 * @param path
+	 *            see {@link #locationPath(PL)}
+	 * @param level
+	 * @return id of the location of a level, named by the levels down to it
+	 */
+	static String locationId(String[] path, int level) {
+		return ResourceIds.uuid("Location", Arrays.copyOf(path, level + 1));
+	}
+
+	/**
+	 * Organization of a hospital service, shared by the messages naming it
+	 * 
+	 * @param service
+	 *            PV1-10
+	 * @return null when there is no service
+	 */
+	private Organization hospitalService(final String service) {
+		if (service == null) {
+			return null;
+		}
+		return referenceCache.getOrganizations().get(key(service),
+				new Supplier<Organization>() {
+					@Override
+					public Organization get() {
+						Organization organization = new Organization();
+						organization.setId(serviceId(service));
+						organization.setName(service);
+						return organization;
+					}
+				});
+	}
+
+	static String serviceId(String service) {
+		return ResourceIds.uuid("Organization", service);
+	}
+
+	/**
+	 * Transform Operator to Practitioner, the same instance is returned for
+	 * the messages naming the same operator
 	 * 
 	 * @param evn
-	 * @return
+	 * @return null when EVN-5 has no id
 	 */
-	private Practitioner transformOperator(EVN evn) {
+	Practitioner transformOperator(EVN evn) {
+		final CN operatorv2 = evn.getEvn5_OperatorID();
+		if (operatorv2.getCn1_IDNumber().getValue() == null) {
+			return null;
+		}
+		String key = key("ICT", operatorId(operatorv2),
+				operatorv2.getCn2_FamilyName().getValue(), operatorv2
+						.getCn3_GivenName().getValue(), operatorv2
+						.getCn6_PrefixEgDR().getValue(), operatorv2
+						.getCn5_SuffixEgJRorIII().getValue());
+		return referenceCache.getPractitioners().get(key,
+				new Supplier<Practitioner>() {
+					@Override
+					public Practitioner get() {
+						return buildOperator(operatorv2);
+					}
+				});
+	}
+
+	static String operatorId(CN operatorv2) {
+		HD authority = operatorv2.getCn9_AssigningAuthority();
+		return practitionerId(operatorv2.getCn1_IDNumber().getValue(),
+				authority.getNamespaceID().getValue(), authority
+						.getUniversalID().getValue(), authority
+						.getUniversalIDType().getValue());
+	}
+
+	/**
+	 * The id of a practitioner is its identifier: the operator of one message
+	 * and the doctor of another, or a doctor whose name is spelled otherwise,
+	 * are the same Practitioner when they have the same identifier.
+	 * 
+	 * @param id
+	 *            CN-1 or XCN-1
+	 * @param namespace
+	 *            CN-9.1 or XCN-9.1, the assigning authority
+	 * @param universalId
+	 *            CN-9.2 or XCN-9.2
+	 * @param universalIdType
+	 *            CN-9.3 or XCN-9.3
+	 * @return id of the practitioner
+	 */
+	static String practitionerId(String id, String namespace,
+			String universalId, String universalIdType) {
+		return ResourceIds.uuid("Practitioner", id, namespace, universalId,
+				universalIdType);
+	}
+
+	private static Practitioner buildOperator(CN operatorv2) {
 		Practitioner operatorFhir = new Practitioner();
-		CN operatorv2 = evn.getEvn5_OperatorID();
+		operatorFhir.setId(operatorId(operatorv2));
 
 		if (operatorv2.getCn1_IDNumber().getValue() != null) {
 			operatorFhir.addIdentifier().setSystem(SYSTEM_V2_IDENTIFIER)
@@ -406,13 +859,75 @@ public class VersionTwoToFHIR {
 	}
 
 	/**
-	 * Transform Doctor to Practitioner
+	 * Participants of the doctors of PV1-7, PV1-8, PV1-9 and PV1-17: a doctor
+	 * named in several fields is one participant with each of its roles
 	 * 
-	 * @param evn
-	 * @return
+	 * @param pv1
+	 * @return the participants, in the order of the fields
 	 */
-	private Practitioner transformPractitioner(XCN xcn) {
+	List<Encounter.Participant> transformParticipants(PV1 pv1) {
+		Map<String, Encounter.Participant> participants = new LinkedHashMap<String, Encounter.Participant>();
+		addParticipants(participants, pv1.getAttendingDoctor(), "ATND");
+		addParticipants(participants, pv1.getReferringDoctor(), "REF");
+		addParticipants(participants, pv1.getConsultingDoctor(), "CON");
+		addParticipants(participants, pv1.getAdmittingDoctor(), "ADM");
+		return new ArrayList<Encounter.Participant>(participants.values());
+	}
+
+	private void addParticipants(
+			Map<String, Encounter.Participant> participants, XCN[] doctors,
+			String type) {
+		for (XCN xcn : doctors) {
+			Practitioner practitioner = transformPractitioner(xcn);
+			if (practitioner == null) {
+				continue;
+			}
+			String id = practitioner.getId().getIdPart();
+			Encounter.Participant participant = participants.get(id);
+			if (participant == null) {
+				participant = new Encounter.Participant();
+				participant.setIndividual(ResourceIds.reference(practitioner));
+				participants.put(id, participant);
+			}
+			participant.addType().addCoding()
+					.setSystem(SYSTEM_V3_PARTICIPATION_TYPE).setCode(type);
+		}
+	}
+
+	/**
+	 * Transform Doctor to Practitioner, the same instance is returned for the
+	 * messages naming the same doctor
+	 * 
+	 * @param xcn
+	 * @return null when the XCN has no id
+	 */
+	Practitioner transformPractitioner(final XCN xcn) {
+		if (xcn.getXcn1_IDNumber().getValue() == null) {
+			return null;
+		}
+		String key = key("DOCTOR", doctorId(xcn), xcn
+				.getXcn2_FamilyName().getValue(), xcn.getXcn3_GivenName()
+				.getValue(), xcn.getXcn6_PrefixEgDR().getValue(), xcn
+				.getXcn5_SuffixEgJRorIII().getValue());
+		return referenceCache.getPractitioners().get(key,
+				new Supplier<Practitioner>() {
+					@Override
+					public Practitioner get() {
+						return buildPractitioner(xcn);
+					}
+				});
+	}
+
+	static String doctorId(XCN xcn) {
+		HD authority = xcn.getXcn9_AssigningAuthority();
+		return practitionerId(xcn.getXcn1_IDNumber().getValue(), authority
+				.getNamespaceID().getValue(), authority.getUniversalID()
+				.getValue(), authority.getUniversalIDType().getValue());
+	}
+
+	private static Practitioner buildPractitioner(XCN xcn) {
 		Practitioner practitionerFhir = new Practitioner();
+		practitionerFhir.setId(doctorId(xcn));
 
 		if (xcn.getXcn1_IDNumber().getValue() != null) {
 			practitionerFhir.addIdentifier().setSystem(SYSTEM_V2_IDENTIFIER)
@@ -431,6 +946,36 @@ public class VersionTwoToFHIR {
 		return practitionerFhir;
 	}
 
+	/**
+	 * Cache key of the v2 fields a reference resource is built from
+	 * 
+	 * @param parts
+	 * @return
+	 */
+	private static String key(String... parts) {
+		StringBuilder key = new StringBuilder();
+		for (int i = 0; i < parts.length; i++) {
+			if (i > 0) {
+				key.append('^');
+			}
+			if (parts[i] != null) {
+				key.append(parts[i]);
+			}
+		}
+		return key.toString();
+	}
+
+	/**
+	 * @param ts
+	 * @return the date of a timestamp, null when it is empty
+	 * @throws DataTypeException
+	 *             the timestamp is not valid
+	 */
+	private static Date date(TS ts) throws DataTypeException {
+		return TimestampParser.getDefault().parse(
+				ts.getTimeOfAnEvent().getValue());
+	}
+
 	/**
 	 * Class Encounter Equivalent Table V2
 	 * 
@@ -438,19 +983,8 @@ public class VersionTwoToFHIR {
 	 * @return
 	 */
 	private EncounterClassEnum equivalentEncounterClass(String pv2Class) {
-		if ("O".equalsIgnoreCase(pv2Class)) {
-			return EncounterClassEnum.OUTPATIENT;
-		}
-		if ("I".equalsIgnoreCase(pv2Class)) {
-			return EncounterClassEnum.INPATIENT;
-		}
-		if ("E".equalsIgnoreCase(pv2Class)) {
-			return EncounterClassEnum.EMERGENCY;
-		}
-		if ("B".equalsIgnoreCase(pv2Class)) {
-			return EncounterClassEnum.OTHER;
-		}
-		return null;
+		return TABLE_PATIENT_CLASS.lookupEnum(pv2Class,
+				EncounterClassEnum.class);
 	}
 
 	/**
@@ -460,19 +994,25 @@ public class VersionTwoToFHIR {
 	 * @return
 	 */
 	private AdministrativeGenderEnum equivalentGender(String pv2Gender) {
-		if ("M".equalsIgnoreCase(pv2Gender)) {
-			return AdministrativeGenderEnum.MALE;
-		}
-		if ("F".equalsIgnoreCase(pv2Gender)) {
-			return AdministrativeGenderEnum.FEMALE;
-		}
-		if ("O".equalsIgnoreCase(pv2Gender)) {
-			return AdministrativeGenderEnum.OTHER;
-		}
-		if ("U".equalsIgnoreCase(pv2Gender)) {
-			return AdministrativeGenderEnum.UNKNOWN;
+		return TABLE_SEX.lookupEnum(pv2Gender, AdministrativeGenderEnum.class);
+	}
+
+	/**
+	 * Fill a coding from a v2 table of the code maps, the v2 code is kept as
+	 * is when the table has no mapping for it
+	 * 
+	 * @param coding
+	 * @param table
+	 * @param v2Code
+	 * @return
+	 */
+	private static CodingDt code(CodingDt coding, CodeTable table,
+			String v2Code) {
+		CodeMapping mapping = table.lookup(v2Code);
+		if (mapping != null) {
+			return mapping.applyTo(coding);
 		}
-		return null;
+		return coding.setSystem(table.getSystem()).setCode(v2Code);
 	}
 
 	/**
@@ -481,7 +1021,7 @@ public class VersionTwoToFHIR {
 	 * @param msh
 	 * @throws DataTypeException
 	 */
-	private MessageHeader transformHeader(MSH msh, ID reasonCode,
+	MessageHeader transformHeader(MSH msh, ID reasonCode,
 			Practitioner operator) throws DataTypeException {
 
 		MessageHeader messageHeader = new MessageHeader();
@@ -490,9 +1030,8 @@ public class VersionTwoToFHIR {
 		messageHeader.setIdentifier(msh.getMsh10_MessageControlID().getValue());
 
 		// MSH-7-message date/time
-		messageHeader.setTimestamp(new InstantDt(msh
-				.getMsh7_DateTimeOfMessage().getTimeOfAnEvent()
-				.getValueAsDate()));
+		messageHeader.setTimestamp(new InstantDt(date(msh
+				.getMsh7_DateTimeOfMessage())));
 
 		// MSH-9.2-message type.trigger event
 		messageHeader.setEvent(new CodingDt(SYSTEM_V2_EVENT, msh
@@ -531,7 +1070,9 @@ public class VersionTwoToFHIR {
 		// PRT-5-Participation Person:PRT-4-Participation='EP' / ROL where ROL.3
 		// is EP or ORC.10
 
-		messageHeader.setEnterer(new ResourceReferenceDt(operator));
+		if (operator != null) {
+			messageHeader.setEnterer(ResourceIds.reference(operator));
+		}
 
 		// reason EVN.4 / ORC.16 / OBR-31-reason for study / BPO-13-BP
 		// indication for use / RXO-20-indication / RXE-27-give indication /
@@ -549,20 +1090,21 @@ public class VersionTwoToFHIR {
 	 * @return
 	 * @throws DataTypeException
 	 */
-	private Patient transformPatient(PID pid, List<NK1> listNk1)
+	Patient transformPatient(PID pid, List<NK1> listNk1)
 			throws DataTypeException {
 
-		CX[] patientIDInternalID = pid.getPatientIDInternalID();
+		// an empty PID-3 too
+		CX patientIDInternalID = pid.getPatientIDInternalID(0);
 
 		Patient patient = new Patient();
 		IdentifierDt id = patient.addIdentifier();
 
 		// PID-3
-		id.setElementSpecificId(patientIDInternalID[0]
+		id.setElementSpecificId(patientIDInternalID
 				.getCx5_IdentifierTypeCode().getValue());
 		id.setSystem(SYSTEM_V2_IDENTIFIER);
-		id.setValue(patientIDInternalID[0].getCx1_ID().getValue());
-		id.setAssigner(new ResourceReferenceDt(patientIDInternalID[0]
+		id.setValue(patientIDInternalID.getCx1_ID().getValue());
+		id.setAssigner(new ResourceReferenceDt(patientIDInternalID
 				.getCx4_AssigningAuthority().getUniversalID().getValue()));
 
 		// PID-5, PID-9
@@ -602,8 +1144,7 @@ public class VersionTwoToFHIR {
 		}
 
 		// PID-7
-		patient.setBirthDate(new DateDt(pid.getPid7_DateOfBirth()
-				.getTimeOfAnEvent().getValueAsDate()));
+		patient.setBirthDate(new DateDt(date(pid.getPid7_DateOfBirth())));
 
 		// deceased[x] PID-30 (bool) and PID-29 (datetime)
 		patient.setDeceased(new BooleanDt(Boolean.valueOf(pid
@@ -627,9 +1168,9 @@ public class VersionTwoToFHIR {
 		// PID-16
 		if (pid.getPid16_MaritalStatus().length > 0
 				&& pid.getPid16_MaritalStatus()[0].getValue() != null) {
-			patient.getMaritalStatus().addCoding()
-					.setCode(pid.getPid16_MaritalStatus()[0].getValue())
-					.setSystem(SYSTEM_V2_MARITAL_STATUS);
+			code(patient.getMaritalStatus().addCoding(),
+					TABLE_MARITAL_STATUS,
+					pid.getPid16_MaritalStatus()[0].getValue());
 		}
 
 		if (pid.getPid24_MultipleBirthIndicator().getValue() != null) {
@@ -655,12 +1196,8 @@ public class VersionTwoToFHIR {
 
 		// NK1-7, NK1-3
 		if (nk1.getNk13_Relationship().getCe1_Identifier().getValue() != null) {
-			contact.addRelationship()
-					.addCoding()
-					.setCode(
-							nk1.getNk13_Relationship().getCe1_Identifier()
-									.getValue())
-					.setSystem(SYSTEM_V2_RELATIONSHIP);
+			code(contact.addRelationship().addCoding(), TABLE_RELATIONSHIP,
+					nk1.getNk13_Relationship().getCe1_Identifier().getValue());
 		}
 		// NK1-2
 		if (nk1.getNk12_NKName().length > 0) {
@@ -0,0 +1,294 @@
+package com.rachirib.hapiexample.validation;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Function;
+
+import javax.xml.XMLConstants;
+import javax.xml.transform.Templates;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.dom.DOMResult;
+import javax.xml.transform.stream.StreamSource;
+import javax.xml.validation.Schema;
+import javax.xml.validation.SchemaFactory;
+import javax.xml.validation.Validator;
+
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.xml.sax.ErrorHandler;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXParseException;
+
+import com.phloc.commons.io.resource.ClassPathResource;
+import com.phloc.schematron.xslt.ISchematronXSLTProvider;
+import com.phloc.schematron.xslt.SchematronResourceSCHCache;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.model.api.IResource;
+import ca.uhn.fhir.model.dstu2.resource.OperationOutcome;
+import ca.uhn.fhir.model.dstu2.valueset.IssueSeverityEnum;
+import ca.uhn.fhir.validation.ValidationResult;
+
+/**
+ * Validate resources against the FHIR schema and the schematron of their
+ * type, the checks of {@link ca.uhn.fhir.validation.FhirValidator}, with the
+ * compiled forms shared by the whole process.
+ *
+ * The schema and the XSLT of each schematron are compiled once, on first
+ * use, and kept for the life of the class loader: a new validator costs
+ * nothing. Compiled {@link Schema} and {@link Templates} are thread safe;
+ * the {@link Validator} and {@link Transformer} made from them are not and
+ * are kept per thread. The resource is encoded to XML once for both checks,
+ * and the schematron report is read from its DOM.
+ *
+ * Thread safe.
+ */
+public class CompiledValidator {
+
+	private static final String SCHEMA = "fhir-single.xsd";
+	private static final String SVRL_NS = "http://purl.oclc.org/dsdl/svrl";
+
+	private static final ConcurrentMap<String, Schema> SCHEMAS = new ConcurrentHashMap<String, Schema>();
+	private static final ConcurrentMap<String, Templates> SCHEMATRONS = new ConcurrentHashMap<String, Templates>();
+
+	private static final ThreadLocal<Map<Object, Validator>> VALIDATORS = new ThreadLocal<Map<Object, Validator>>() {
+		@Override
+		protected Map<Object, Validator> initialValue() {
+			return new HashMap<Object, Validator>();
+		}
+	};
+	private static final ThreadLocal<Map<Object, Transformer>> TRANSFORMERS = new ThreadLocal<Map<Object, Transformer>>() {
+		@Override
+		protected Map<Object, Transformer> initialValue() {
+			return new HashMap<Object, Transformer>();
+		}
+	};
+
+	private final FhirContext ctx;
+	private final String schemaPath;
+	private boolean schematron = true;
+
+	/**
+	 * @param ctx
+	 *            encodes the resources, shared
+	 */
+	public CompiledValidator(FhirContext ctx) {
+		this.ctx = ctx;
+		this.schemaPath = ctx.getVersion().getPathToSchemaDefinitions();
+	}
+
+	/**
+	 * @param schematron
+	 *            false to check the schema only
+	 * @return
+	 */
+	public CompiledValidator setSchematron(boolean schematron) {
+		this.schematron = schematron;
+		return this;
+	}
+
+	/**
+	 * Compile the schema and the schematrons of the given types now rather
+	 * than on their first validation
+	 *
+	 * @param types
+	 * @return
+	 */
+	@SafeVarargs
+	public final CompiledValidator precompile(
+			Class<? extends IResource>... types) {
+		schema();
+		if (schematron) {
+			for (Class<? extends IResource> type : types) {
+				schematron(type);
+			}
+		}
+		return this;
+	}
+
+	/**
+	 * Validate a resource, a bundle with its entries
+	 *
+	 * @param resource
+	 * @return
+	 */
+	public ValidationResult validateWithResult(IResource resource) {
+		OperationOutcome outcome = new OperationOutcome();
+		String xml = ctx.newXmlParser().encodeResourceToString(resource);
+		validateSchema(xml, outcome);
+		if (schematron) {
+			validateSchematron(xml, schematron(resource.getClass()), outcome);
+		}
+		return ValidationResult.valueOf(outcome);
+	}
+
+	private void validateSchema(String xml, final OperationOutcome outcome) {
+		Schema schema = schema();
+		Map<Object, Validator> validators = VALIDATORS.get();
+		Validator validator = validators.get(schema);
+		if (validator == null) {
+			validator = schema.newValidator();
+			validators.put(schema, validator);
+		} else {
+			validator.reset();
+		}
+		validator.setErrorHandler(new ErrorHandler() {
+			@Override
+			public void warning(SAXParseException e) {
+				addIssue(outcome, IssueSeverityEnum.WARNING, e);
+			}
+
+			@Override
+			public void error(SAXParseException e) {
+				addIssue(outcome, IssueSeverityEnum.ERROR, e);
+			}
+
+			@Override
+			public void fatalError(SAXParseException e) {
+				addIssue(outcome, IssueSeverityEnum.FATAL, e);
+			}
+		});
+		try {
+			validator.validate(new StreamSource(new StringReader(xml)));
+		} catch (SAXParseException e) {
+			// already reported to the handler
+		} catch (SAXException e) {
+			outcome.addIssue().setSeverity(IssueSeverityEnum.FATAL)
+					.setDetails(e.getMessage());
+		} catch (IOException e) {
+			// reading a string
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static void addIssue(OperationOutcome outcome,
+			IssueSeverityEnum severity, SAXParseException e) {
+		outcome.addIssue().setSeverity(severity)
+				.setDetails(e.getLocalizedMessage())
+				.addLocation("Line[" + e.getLineNumber() + "] Col["
+						+ e.getColumnNumber() + "]");
+	}
+
+	private static void validateSchematron(String xml, Templates templates,
+			OperationOutcome outcome) {
+		Map<Object, Transformer> transformers = TRANSFORMERS.get();
+		DOMResult report = new DOMResult();
+		try {
+			Transformer transformer = transformers.get(templates);
+			if (transformer == null) {
+				transformer = templates.newTransformer();
+				transformers.put(templates, transformer);
+			} else {
+				transformer.reset();
+			}
+			transformer.transform(new StreamSource(new StringReader(xml)),
+					report);
+		} catch (TransformerException e) {
+			outcome.addIssue().setSeverity(IssueSeverityEnum.FATAL)
+					.setDetails(e.getMessageAndLocation());
+			return;
+		}
+		addReportIssues(report.getNode(), outcome);
+	}
+
+	/**
+	 * Failed asserts and successful reports of a SVRL document, anywhere
+	 * below the node
+	 */
+	private static void addReportIssues(Node node, OperationOutcome outcome) {
+		for (Node child = node.getFirstChild(); child != null; child = child
+				.getNextSibling()) {
+			if (child.getNodeType() != Node.ELEMENT_NODE) {
+				continue;
+			}
+			Element element = (Element) child;
+			if (SVRL_NS.equals(element.getNamespaceURI())
+					&& ("failed-assert".equals(element.getLocalName()) || "successful-report"
+							.equals(element.getLocalName()))) {
+				IssueSeverityEnum severity = severity(element
+						.getAttribute("flag"));
+				if (severity != null) {
+					outcome.addIssue().setSeverity(severity)
+							.setDetails(element.getTextContent().trim())
+							.addLocation(element.getAttribute("location"));
+				}
+			} else {
+				addReportIssues(element, outcome);
+			}
+		}
+	}
+
+	/**
+	 * @param flag
+	 *            flag of the assert, empty when not set
+	 * @return null for information
+	 */
+	private static IssueSeverityEnum severity(String flag) {
+		if ("warning".equalsIgnoreCase(flag) || "warn".equalsIgnoreCase(flag)) {
+			return IssueSeverityEnum.WARNING;
+		}
+		if ("info".equalsIgnoreCase(flag)
+				|| "information".equalsIgnoreCase(flag)) {
+			return null;
+		}
+		if ("fatal".equalsIgnoreCase(flag)) {
+			return IssueSeverityEnum.FATAL;
+		}
+		return IssueSeverityEnum.ERROR;
+	}
+
+	private Schema schema() {
+		return SCHEMAS.computeIfAbsent(schemaPath + '/' + SCHEMA,
+				new Function<String, Schema>() {
+					@Override
+					public Schema apply(String path) {
+						URL url = resource(path);
+						SchemaFactory factory = SchemaFactory
+								.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI);
+						try {
+							// imports resolve next to it, through the URL
+							return factory.newSchema(url);
+						} catch (SAXException e) {
+							throw new IllegalStateException(
+									"Could not compile schema " + path, e);
+						}
+					}
+				});
+	}
+
+	private Templates schematron(Class<? extends IResource> type) {
+		String name = ctx.getResourceDefinition(type).getBaseDefinition()
+				.getName().toLowerCase();
+		return SCHEMATRONS.computeIfAbsent(schemaPath + '/' + name + ".sch",
+				new Function<String, Templates>() {
+					@Override
+					public Templates apply(String path) {
+						resource(path);
+						ISchematronXSLTProvider provider = SchematronResourceSCHCache
+								.getSchematronXSLTProvider(
+										new ClassPathResource(path), null,
+										null, null, null);
+						if (provider == null || !provider.isValidSchematron()) {
+							throw new IllegalStateException(
+									"Could not compile schematron " + path);
+						}
+						return provider.getXSLTTemplates();
+					}
+				});
+	}
+
+	private static URL resource(String path) {
+		URL url = CompiledValidator.class.getResource(path.startsWith("/") ? path
+				: '/' + path);
+		if (url == null) {
+			throw new IllegalStateException("No FHIR validation file " + path);
+		}
+		return url;
+	}
+}
@@ -0,0 +1,84 @@
+package com.rachirib.hapiexample.validation;
+
+/**
+ * Settings of a {@link ValidationStage}
+ */
+public class ValidationConfig {
+
+	private ValidationMode mode = ValidationMode.ALWAYS;
+	private double samplePercent = 10;
+	private int queueCapacity = 1024;
+	private int threads = 1;
+	private boolean blockWhenFull = false;
+
+	public ValidationMode getMode() {
+		return mode;
+	}
+
+	public ValidationConfig setMode(ValidationMode mode) {
+		this.mode = mode;
+		return this;
+	}
+
+	public double getSamplePercent() {
+		return samplePercent;
+	}
+
+	/**
+	 * @param samplePercent
+	 *            bundles validated in {@link ValidationMode#SAMPLED} mode,
+	 *            from 0 to 100
+	 */
+	public ValidationConfig setSamplePercent(double samplePercent) {
+		if (samplePercent < 0 || samplePercent > 100) {
+			throw new IllegalArgumentException(
+					"samplePercent must be between 0 and 100");
+		}
+		this.samplePercent = samplePercent;
+		return this;
+	}
+
+	public int getQueueCapacity() {
+		return queueCapacity;
+	}
+
+	/**
+	 * @param queueCapacity
+	 *            bundles waiting for a validation thread
+	 */
+	public ValidationConfig setQueueCapacity(int queueCapacity) {
+		if (queueCapacity < 1) {
+			throw new IllegalArgumentException(
+					"queueCapacity must be positive");
+		}
+		this.queueCapacity = queueCapacity;
+		return this;
+	}
+
+	public int getThreads() {
+		return threads;
+	}
+
+	public ValidationConfig setThreads(int threads) {
+		if (threads < 1) {
+			throw new IllegalArgumentException("threads must be positive");
+		}
+		this.threads = threads;
+		return this;
+	}
+
+	public boolean isBlockWhenFull() {
+		return blockWhenFull;
+	}
+
+	/**
+	 * @param blockWhenFull
+	 *            true to wait for room in the queue, so every selected
+	 *            bundle is validated; false to skip the bundle and count it
+	 *            as dropped, so the transform never waits for validation
+	 */
+	public ValidationConfig setBlockWhenFull(boolean blockWhenFull) {
+		this.blockWhenFull = blockWhenFull;
+		return this;
+	}
+}
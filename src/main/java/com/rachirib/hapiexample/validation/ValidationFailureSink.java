@@ -0,0 +1,20 @@
+package com.rachirib.hapiexample.validation;
+
+import com.rachirib.hapiexample.transform.TransformResult;
+
+import ca.uhn.fhir.validation.ValidationResult;
+
+/**
+ * Receives the bundles that failed validation, called from the validation
+ * threads
+ */
+public interface ValidationFailureSink {
+
+	/**
+	 * @param result
+	 *            the message and its bundle
+	 * @param validation
+	 *            the issues found, a fatal issue when the validator threw
+	 */
+	void failed(TransformResult result, ValidationResult validation);
+}
@@ -0,0 +1,19 @@
+package com.rachirib.hapiexample.validation;
+
+/**
+ * Bundles a {@link ValidationStage} validates
+ */
+public enum ValidationMode {
+
+	/** Every bundle */
+	ALWAYS,
+
+	/** A random percentage of the bundles */
+	SAMPLED,
+
+	/**
+	 * The first bundle of every message shape: message type, trigger event
+	 * and segment sequence, repeated segments counting once
+	 */
+	FIRST_SEEN_SHAPE
+}
@@ -0,0 +1,316 @@
+package com.rachirib.hapiexample.validation;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.rachirib.hapiexample.stream.BundleSink;
+import com.rachirib.hapiexample.transform.MshHeader;
+import com.rachirib.hapiexample.transform.TransformResult;
+
+import ca.uhn.fhir.model.dstu2.resource.Bundle;
+import ca.uhn.fhir.model.dstu2.resource.OperationOutcome;
+import ca.uhn.fhir.model.dstu2.valueset.IssueSeverityEnum;
+import ca.uhn.fhir.model.dstu2.valueset.IssueTypeEnum;
+import ca.uhn.fhir.validation.FhirValidator;
+import ca.uhn.fhir.validation.ValidationResult;
+import ca.uhn.hl7v2.HL7Exception;
+
+/**
+ * Validate bundles on dedicated threads while the results carry on to the
+ * next sink, so the schema and schematron checks stay off the transform
+ * latency.
+ *
+ * The results are handed to the next sink at once, in order. The bundles
+ * selected by the {@link ValidationMode} wait in a bounded queue; when it is
+ * full they are dropped or the caller waits, see
+ * {@link ValidationConfig#setBlockWhenFull(boolean)}. Failures go to a
+ * {@link ValidationFailureSink}.
+ *
+ * The validator is shared by the threads: a {@link CompiledValidator}, or a
+ * HAPI validator such as the one of
+ * {@link com.rachirib.hapiexample.transform.TransformerFactory}.
+ */
+public class ValidationStage implements BundleSink, Closeable {
+
+	private static final Logger LOG = LoggerFactory
+			.getLogger(ValidationStage.class);
+
+	private final Function<Bundle, ValidationResult> validator;
+	private final BundleSink next;
+	private final ValidationFailureSink failures;
+	private final ValidationConfig config;
+	private final ThreadPoolExecutor executor;
+	/** Queue slots plus running validations, the executor never rejects */
+	private final Semaphore permits;
+	/** Shapes are a handful per interface, the set is not bounded */
+	private final Set<String> seenShapes = ConcurrentHashMap.newKeySet();
+
+	private final AtomicLong queued = new AtomicLong();
+	private final AtomicLong skipped = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong passed = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+
+	private volatile boolean closed;
+
+	/**
+	 * @param validator
+	 * @param next
+	 *            receives every result, validated or not
+	 * @param failures
+	 *            must be thread safe with more than one thread
+	 * @param config
+	 */
+	public ValidationStage(final FhirValidator validator, BundleSink next,
+			ValidationFailureSink failures, ValidationConfig config) {
+		this(new Function<Bundle, ValidationResult>() {
+			@Override
+			public ValidationResult apply(Bundle bundle) {
+				return validator.validateWithResult(bundle);
+			}
+		}, next, failures, config);
+	}
+
+	/**
+	 * @param validator
+	 * @param next
+	 *            receives every result, validated or not
+	 * @param failures
+	 *            must be thread safe with more than one thread
+	 * @param config
+	 */
+	public ValidationStage(final CompiledValidator validator,
+			BundleSink next, ValidationFailureSink failures,
+			ValidationConfig config) {
+		this(new Function<Bundle, ValidationResult>() {
+			@Override
+			public ValidationResult apply(Bundle bundle) {
+				return validator.validateWithResult(bundle);
+			}
+		}, next, failures, config);
+	}
+
+	private ValidationStage(Function<Bundle, ValidationResult> validator,
+			BundleSink next, ValidationFailureSink failures,
+			ValidationConfig config) {
+		if (next == null || failures == null) {
+			throw new IllegalArgumentException(
+					"next and failures are required");
+		}
+		this.validator = validator;
+		this.next = next;
+		this.failures = failures;
+		this.config = config;
+		this.permits = new Semaphore(config.getQueueCapacity()
+				+ config.getThreads());
+		final AtomicInteger threads = new AtomicInteger();
+		this.executor = new ThreadPoolExecutor(config.getThreads(),
+				config.getThreads(), 0, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(config.getQueueCapacity()),
+				new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "validation-"
+								+ threads.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+	}
+
+	/**
+	 * Queue the bundle for validation when selected, then hand the result to
+	 * the next sink
+	 */
+	@Override
+	public void accept(TransformResult result) throws IOException {
+		if (closed) {
+			throw new IllegalStateException("Validation stage has been closed");
+		}
+		if (result.isSuccess()) {
+			String shape = config.getMode() == ValidationMode.FIRST_SEEN_SHAPE ? shape(result
+					.getMessage()) : null;
+			if (select(shape)) {
+				if (!submit(result) && shape != null) {
+					// not validated, the next message of this shape will be
+					seenShapes.remove(shape);
+				}
+			} else {
+				skipped.incrementAndGet();
+			}
+		}
+		next.accept(result);
+	}
+
+	/** @return bundles queued for validation */
+	public long getQueued() {
+		return queued.get();
+	}
+
+	/** @return bundles not selected by the mode */
+	public long getSkipped() {
+		return skipped.get();
+	}
+
+	/** @return bundles selected but not validated, the queue was full */
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	/** @return bundles validated without error */
+	public long getPassed() {
+		return passed.get();
+	}
+
+	/** @return bundles sent to the failure sink */
+	public long getFailed() {
+		return failed.get();
+	}
+
+	/** @return bundles waiting for a validation thread */
+	public int getPending() {
+		return executor.getQueue().size();
+	}
+
+	/**
+	 * Stop accepting results and wait for the queued validations
+	 */
+	@Override
+	public void close() throws IOException {
+		closed = true;
+		executor.shutdown();
+		try {
+			while (!executor.awaitTermination(1, TimeUnit.SECONDS)) {
+				LOG.debug("Waiting for {} validations", getPending());
+			}
+		} catch (InterruptedException e) {
+			executor.shutdownNow();
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private boolean select(String shape) {
+		switch (config.getMode()) {
+		case ALWAYS:
+			return true;
+		case SAMPLED:
+			return ThreadLocalRandom.current().nextDouble(100) < config
+					.getSamplePercent();
+		case FIRST_SEEN_SHAPE:
+			return seenShapes.add(shape);
+		default:
+			throw new IllegalStateException("Unknown mode " + config.getMode());
+		}
+	}
+
+	/**
+	 * @return false when the bundle was dropped
+	 */
+	private boolean submit(final TransformResult result) {
+		if (config.isBlockWhenFull()) {
+			try {
+				permits.acquire();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				dropped.incrementAndGet();
+				return false;
+			}
+		} else if (!permits.tryAcquire()) {
+			dropped.incrementAndGet();
+			return false;
+		}
+		queued.incrementAndGet();
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					validate(result);
+				} finally {
+					permits.release();
+				}
+			}
+		});
+		return true;
+	}
+
+	private void validate(TransformResult result) {
+		ValidationResult validation;
+		try {
+			validation = validator.apply(result.getBundle());
+		} catch (RuntimeException e) {
+			LOG.warn("Validator failed on message " + result.getIndex(), e);
+			validation = ValidationResult.valueOf(fatal(e));
+		}
+		if (validation.isSuccessful()) {
+			passed.incrementAndGet();
+			return;
+		}
+		failed.incrementAndGet();
+		try {
+			failures.failed(result, validation);
+		} catch (RuntimeException e) {
+			LOG.error("Failure sink failed on message " + result.getIndex(), e);
+		}
+	}
+
+	private static OperationOutcome fatal(Exception e) {
+		OperationOutcome outcome = new OperationOutcome();
+		outcome.addIssue().setSeverity(IssueSeverityEnum.FATAL)
+				.setCode(IssueTypeEnum.PROCESSING_FAILURE)
+				.setDetails(e.toString());
+		return outcome;
+	}
+
+	/**
+	 * Message type, trigger event and segment ids of the message, consecutive
+	 * repetitions of a segment counting once
+	 *
+	 * @param msg
+	 * @return
+	 */
+	static String shape(String msg) {
+		StringBuilder shape = new StringBuilder(64);
+		try {
+			MshHeader msh = MshHeader.parse(msg);
+			shape.append(msh.getMessageType()).append('^')
+					.append(msh.getTriggerEvent());
+		} catch (HL7Exception e) {
+			shape.append('?');
+		}
+		int lastStart = -1;
+		int lastLength = 0;
+		int start = 0;
+		int length = msg.length();
+		while (start < length) {
+			int end = start;
+			while (end < length && msg.charAt(end) != '\r'
+					&& msg.charAt(end) != '\n') {
+				end++;
+			}
+			int idLength = Math.min(3, end - start);
+			if (idLength > 0
+					&& (idLength != lastLength || !msg.regionMatches(start,
+							msg, lastStart, idLength))) {
+				shape.append(' ').append(msg, start, start + idLength);
+				lastStart = start;
+				lastLength = idLength;
+			}
+			start = end + 1;
+		}
+		return shape.toString();
+	}
+}
@@ -0,0 +1,61 @@
+package com.rachirib.hapiexample.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.function.Supplier;
+
+import org.junit.Test;
+
+public class TestResourceCache {
+
+	@Test
+	public void test_hit_returns_same_instance() {
+		ResourceCache<Object> cache = new ResourceCache<Object>("test", 100);
+		Object first = cache.get("0148", new Builder());
+		Object second = cache.get("0148", new Builder());
+		assertSame(first, second);
+		assertEquals(Long.valueOf(1), Long.valueOf(cache.getHits()));
+		assertEquals(Long.valueOf(1), Long.valueOf(cache.getMisses()));
+		assertEquals(0.5, cache.getHitRatio(), 0.0001);
+	}
+
+	@Test
+	public void test_size_is_bounded() {
+		ResourceCache<Object> cache = new ResourceCache<Object>("test", 64);
+		for (int i = 0; i < 1000; i++) {
+			cache.get("key" + i, new Builder());
+		}
+		assertTrue(String.valueOf(cache.size()), cache.size() <= 64);
+		assertEquals(Long.valueOf(1000 - cache.size()),
+				Long.valueOf(cache.getEvictions()));
+	}
+
+	@Test
+	public void test_least_recently_used_is_evicted() {
+		// one entry per segment
+		ResourceCache<Object> cache = new ResourceCache<Object>("test", 1);
+		Object kept = cache.get("a", new Builder());
+		cache.get("a", new Builder());
+		cache.get("a", new Builder());
+		assertSame(kept, cache.get("a", new Builder()));
+		assertEquals(Long.valueOf(0), Long.valueOf(cache.getEvictions()));
+	}
+
+	@Test
+	public void test_zero_capacity_builds_every_time() {
+		ResourceCache<Object> cache = new ResourceCache<Object>("test", 0);
+		Object first = cache.get("0148", new Builder());
+		assertTrue(first != cache.get("0148", new Builder()));
+		assertEquals(0, cache.size());
+		assertEquals(Long.valueOf(2), Long.valueOf(cache.getMisses()));
+	}
+
+	private static class Builder implements Supplier<Object> {
+		@Override
+		public Object get() {
+			return new Object();
+		}
+	}
+}
@@ -0,0 +1,60 @@
+package com.rachirib.hapiexample.codemap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+import ca.uhn.fhir.model.dstu2.composite.CodingDt;
+import ca.uhn.fhir.model.dstu2.valueset.AdministrativeGenderEnum;
+import ca.uhn.fhir.model.dstu2.valueset.EncounterClassEnum;
+
+public class TestCodeMaps {
+
+	@Test
+	public void test_enum_tables() {
+		CodeTable sex = CodeMaps.getDefault().table("0001");
+		assertSame(AdministrativeGenderEnum.MALE,
+				sex.lookupEnum("M", AdministrativeGenderEnum.class));
+		assertSame(AdministrativeGenderEnum.FEMALE,
+				sex.lookupEnum("f", AdministrativeGenderEnum.class));
+		assertNull(sex.lookupEnum("X", AdministrativeGenderEnum.class));
+		assertNull(sex.lookupEnum(null, AdministrativeGenderEnum.class));
+		assertSame(EncounterClassEnum.OTHER, CodeMaps.getDefault()
+				.table("0004").lookupEnum("b", EncounterClassEnum.class));
+	}
+
+	@Test
+	public void test_coding_tables() {
+		CodeMapping spouse = CodeMaps.getDefault().table("0063")
+				.lookup("Spouse");
+		assertSame(spouse, CodeMaps.getDefault().table("0063").lookup("SPOUSE"));
+		CodingDt coding = spouse.newCoding();
+		assertEquals("http://hl7.org/fhir/v2/0063", coding.getSystem());
+		assertEquals("SPO", coding.getCode());
+		assertEquals("Spouse", coding.getDisplay());
+	}
+
+	@Test
+	public void test_load() throws Exception {
+		String maps = "# test\n[9999]\nsystem=urn:test\nA=1|One\nb=2\n";
+		CodeMaps codeMaps = CodeMaps.load(new ByteArrayInputStream(maps
+				.getBytes(StandardCharsets.UTF_8)));
+		CodeTable table = codeMaps.table("9999");
+		assertEquals("1", table.lookup("a").getCode());
+		assertEquals("One", table.lookup("A").getDisplay());
+		assertNull(table.lookup("B").getDisplay());
+		assertNull(table.lookup("C"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void test_duplicate_code() throws Exception {
+		String maps = "[9999]\nsystem=urn:test\nA=1\na=2\n";
+		CodeMaps.load(new ByteArrayInputStream(maps
+				.getBytes(StandardCharsets.UTF_8)));
+	}
+}
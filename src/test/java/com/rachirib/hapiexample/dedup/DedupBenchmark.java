@@ -0,0 +1,86 @@
+package com.rachirib.hapiexample.dedup;
+
+import java.io.IOException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.rachirib.hapiexample.transform.BatchTransformer;
+import com.rachirib.hapiexample.transform.MshHeader;
+import com.rachirib.hapiexample.transform.SampleMessages;
+import com.rachirib.hapiexample.transform.TransformResult;
+import com.rachirib.hapiexample.transform.VersionTwoToFHIR;
+
+/**
+ * Messages/sec of a retry storm, every message sent 4 times, with and
+ * without the duplicate filter, and the cost of a check of a control id.
+ *
+ * Run with <code>mvn -Pbenchmark verify -Djmh.includes=DedupBenchmark</code>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dlog4j.configuration=log4j-benchmark.xml")
+public class DedupBenchmark {
+
+	private static final int RETRIES = 4;
+
+	@Param({ "false", "true" })
+	public boolean dedup;
+
+	private VersionTwoToFHIR transFHIR;
+	private BatchTransformer batch;
+	private DuplicateFilter filter;
+	private final MshHeader[] headers = new MshHeader[1024];
+	private long sent;
+
+	@Setup
+	public void setUp() throws Exception {
+		transFHIR = new VersionTwoToFHIR();
+		batch = new BatchTransformer(transFHIR, ForkJoinPool.commonPool(), 1,
+				dedup ? new DuplicateFilter() : null);
+		filter = new DuplicateFilter();
+		for (int i = 0; i < headers.length; i++) {
+			headers[i] = MshHeader.parse(SampleMessages.MSG_ADTA05.replace(
+					"|000001|", "|" + i + "|"));
+			if (i % 2 == 0) {
+				filter.delivered(headers[i]);
+			}
+		}
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		transFHIR.close();
+	}
+
+	/** One operation is one message, the next control id every 4 */
+	@Benchmark
+	public TransformResult retryStorm() {
+		long n = sent++;
+		return batch.transformOne(n, SampleMessages.MSG_ADTA05.replace(
+				"|000001|", "|" + n / RETRIES + "|"));
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.AverageTime)
+	@OutputTimeUnit(TimeUnit.NANOSECONDS)
+	public boolean isDuplicate() {
+		return filter
+				.isDuplicate(headers[(int) (sent++ & (headers.length - 1))]);
+	}
+}
@@ -0,0 +1,129 @@
+package com.rachirib.hapiexample.dedup;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.LongSupplier;
+
+import org.junit.Test;
+
+import com.rachirib.hapiexample.transform.BatchTransformer;
+import com.rachirib.hapiexample.transform.MshHeader;
+import com.rachirib.hapiexample.transform.SampleMessages;
+import com.rachirib.hapiexample.transform.TransformResult;
+import com.rachirib.hapiexample.transform.VersionTwoToFHIR;
+
+public class TestDuplicateFilter {
+
+	private final long[] now = { 1000000 };
+	private final LongSupplier clock = new LongSupplier() {
+		@Override
+		public long getAsLong() {
+			return now[0];
+		}
+	};
+
+	@Test
+	public void test_scoped_by_sender_within_window() throws Exception {
+		DuplicateFilter filter = new DuplicateFilter(60000, 1000, clock);
+		assertTrue(deliver(filter, msh("REGADT", "MCM", "000001")));
+		assertFalse(deliver(filter, msh("REGADT", "MCM", "000001")));
+		// same control id from another sender
+		assertTrue(deliver(filter, msh("REGADT", "OTHER", "000001")));
+		assertTrue(deliver(filter, msh("LAB", "MCM", "000001")));
+		// no control id, never a duplicate
+		assertTrue(deliver(filter, msh("REGADT", "MCM", "")));
+		assertTrue(deliver(filter, msh("REGADT", "MCM", "")));
+
+		now[0] += 59999;
+		assertFalse(deliver(filter, msh("REGADT", "MCM", "000001")));
+		now[0] += 1;
+		assertTrue(deliver(filter, msh("REGADT", "MCM", "000001")));
+		assertEquals(Long.valueOf(2), Long.valueOf(filter.getDuplicates()));
+	}
+
+	@Test
+	public void test_checked_until_delivered() throws Exception {
+		DuplicateFilter filter = new DuplicateFilter(60000, 1000, clock);
+		MshHeader msh = msh("REGADT", "MCM", "000001");
+		assertFalse(filter.isDuplicate(msh));
+		assertFalse(filter.isDuplicate(msh));
+		filter.delivered(msh);
+		assertTrue(filter.isDuplicate(msh));
+		assertEquals(Long.valueOf(3), Long.valueOf(filter.getChecked()));
+	}
+
+	@Test
+	public void test_evicted_for_room() throws Exception {
+		DuplicateFilter filter = new DuplicateFilter(60000, 2, clock);
+		assertTrue(deliver(filter, msh("REGADT", "MCM", "1")));
+		assertTrue(deliver(filter, msh("REGADT", "MCM", "2")));
+		assertTrue(deliver(filter, msh("REGADT", "MCM", "3")));
+		assertEquals(2, filter.size());
+		// dropped within its window, let through
+		assertTrue(deliver(filter, msh("REGADT", "MCM", "1")));
+		assertEquals(Long.valueOf(2), Long.valueOf(filter.getEvicted()));
+		assertEquals(Long.valueOf(0), Long.valueOf(filter.getDuplicates()));
+
+		// out of the window, not counted
+		now[0] += 60000;
+		assertTrue(deliver(filter, msh("REGADT", "MCM", "4")));
+		assertEquals(1, filter.size());
+		assertEquals(Long.valueOf(2), Long.valueOf(filter.getEvicted()));
+	}
+
+	@Test
+	public void test_batch_skips_retransmissions() throws Exception {
+		VersionTwoToFHIR transFHIR = new VersionTwoToFHIR();
+		try {
+			BatchTransformer batch = new BatchTransformer(transFHIR,
+					ForkJoinPool.commonPool(), 4, new DuplicateFilter());
+			TransformResult first = batch.transformOne(0,
+					SampleMessages.MSG_ADTA05);
+			assertTrue(first.isSuccess());
+			// the first copy is not delivered yet, it may still fail
+			assertTrue(batch.transformOne(1, SampleMessages.MSG_ADTA05)
+					.isSuccess());
+			batch.delivered(first);
+			TransformResult again = batch.transformOne(2,
+					SampleMessages.MSG_ADTA05);
+			assertTrue(again.isDuplicate());
+			assertFalse(again.isSuccess());
+
+			// a failure is not remembered, its retransmission is handled
+			String unsupported = SampleMessages.MSG_ADTA05.replace(
+					"ADT^A05|000001", "ADT^A02|000002");
+			TransformResult failed = batch.transformOne(3, unsupported);
+			batch.delivered(failed);
+			assertFalse(batch.transformOne(4, unsupported).isDuplicate());
+			assertEquals(Long.valueOf(1), Long.valueOf(batch
+					.getDuplicateFilter().getDuplicates()));
+		} finally {
+			transFHIR.close();
+		}
+	}
+
+	/**
+	 * @return true when the message is not a duplicate, then delivered
+	 */
+	private static boolean deliver(DuplicateFilter filter, MshHeader msh) {
+		if (filter.isDuplicate(msh)) {
+			return false;
+		}
+		filter.delivered(msh);
+		return true;
+	}
+
+	private static MshHeader msh(String application, String facility,
+			String controlId) {
+		try {
+			return MshHeader.parse("MSH|^~\\&|" + application + "|"
+					+ facility + "|IFENG||199601061000||ADT^A05|" + controlId
+					+ "|P|2.3\r");
+		} catch (Exception e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
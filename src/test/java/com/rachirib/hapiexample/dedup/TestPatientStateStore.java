@@ -0,0 +1,192 @@
+package com.rachirib.hapiexample.dedup;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.rachirib.hapiexample.transform.BatchTransformer;
+import com.rachirib.hapiexample.transform.ResourceIds;
+import com.rachirib.hapiexample.transform.SampleMessages;
+import com.rachirib.hapiexample.transform.TransformResult;
+import com.rachirib.hapiexample.transform.VersionTwoToFHIR;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.model.dstu2.resource.Bundle;
+import ca.uhn.fhir.model.dstu2.resource.Patient;
+
+public class TestPatientStateStore {
+
+	private final FhirContext fhirContext = new FhirContext();
+	private Path directory;
+	private Path path;
+
+	@Before
+	public void setUp() throws IOException {
+		directory = Files.createTempDirectory("patients");
+		path = directory.resolve("patients.pst");
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		Files.deleteIfExists(path);
+		Files.delete(directory);
+	}
+
+	@Test
+	public void test_unchanged_patient_left_out() throws Exception {
+		VersionTwoToFHIR transFHIR = new VersionTwoToFHIR();
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		PatientStateStore patients = new PatientStateStore(path, 100,
+				fhirContext);
+		try {
+			BatchTransformer batch = new BatchTransformer(transFHIR, executor,
+					1, null, patients);
+			String msg = SampleMessages.MSG_ADTA05;
+			// not delivered, the Patient is emitted again
+			assertTrue(hasPatient(batch.transformOne(0, msg).getBundle()));
+			assertEquals(0, patients.size());
+			TransformResult result = batch.transformOne(0, msg);
+			Bundle first = result.getBundle();
+			assertTrue(hasPatient(first));
+			batch.delivered(result);
+			// an update of the visit only, the Patient is the same
+			result = batch.transformOne(1, msg.replace("|000001|", "|000002|"));
+			batch.delivered(result);
+			Bundle second = result.getBundle();
+			assertFalse(hasPatient(second));
+			assertEquals(first.getEntry().size() - 1, second.getEntry().size());
+			String json = fhirContext.newJsonParser().encodeResourceToString(
+					second);
+			String patientId = patientOf(first).getId().getIdPart();
+			assertFalse(json.contains(ResourceIds.URN_UUID + patientId));
+			assertTrue(json.contains("\"Patient/" + patientId + "\""));
+			// a new work phone number
+			result = batch.transformOne(
+					2,
+					msg.replace("|000001|", "|000003|").replace(
+							"(900)485-5344||S", "(900)485-0000||S"));
+			batch.delivered(result);
+			assertTrue(hasPatient(result.getBundle()));
+			// another patient
+			result = batch.transformOne(3,
+					msg.replace("191919^^^GENHOSP", "191920^^^GENHOSP"));
+			batch.delivered(result);
+			assertTrue(hasPatient(result.getBundle()));
+			assertEquals(2, patients.size());
+			assertEquals(Long.valueOf(3), Long.valueOf(patients.getChanged()));
+			assertEquals(Long.valueOf(1), Long.valueOf(patients.getUnchanged()));
+		} finally {
+			patients.close();
+			executor.shutdown();
+			transFHIR.close();
+		}
+	}
+
+	@Test
+	public void test_batches_refused() throws Exception {
+		VersionTwoToFHIR transFHIR = new VersionTwoToFHIR();
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		PatientStateStore patients = new PatientStateStore(path, 100,
+				fhirContext);
+		try {
+			BatchTransformer batch = new BatchTransformer(transFHIR, executor,
+					1, null, patients);
+			try {
+				batch.transform(Arrays.asList(SampleMessages.MSG_ADTA05));
+				fail("Out of order");
+			} catch (IllegalStateException expected) {
+			}
+			assertEquals(0, patients.size());
+		} finally {
+			patients.close();
+			executor.shutdown();
+			transFHIR.close();
+		}
+	}
+
+	@Test
+	public void test_kept_across_restarts() throws IOException {
+		Patient patient = new Patient();
+		patient.addName().addFamily("MASSIE");
+		PatientStateStore patients = new PatientStateStore(path, 100,
+				fhirContext);
+		try {
+			long fingerprint = patients.fingerprint(patient);
+			assertTrue(patients.update("191919^GENHOSP", fingerprint));
+			assertTrue(patients.update("191920^GENHOSP", fingerprint));
+			assertFalse(patients.update("191919^GENHOSP", fingerprint));
+		} finally {
+			patients.close();
+		}
+
+		// the capacity of the file, not the one asked for
+		patients = new PatientStateStore(path, 1000, fhirContext);
+		try {
+			assertEquals(2, patients.size());
+			assertEquals(192, patients.getCapacity());
+			assertFalse(patients.update("191919^GENHOSP",
+					patients.fingerprint(patient)));
+			patient.addName().addFamily("SPARROW");
+			assertTrue(patients.update("191919^GENHOSP",
+					patients.fingerprint(patient)));
+		} finally {
+			patients.close();
+		}
+	}
+
+	@Test
+	public void test_full_store_emits_new_patients() throws IOException {
+		PatientStateStore patients = new PatientStateStore(path, 3,
+				fhirContext);
+		try {
+			assertEquals(3, patients.getCapacity());
+			for (int i = 0; i < 3; i++) {
+				assertTrue(patients.update("P" + i, 42));
+			}
+			// not recorded, emitted every time
+			assertTrue(patients.update("P3", 42));
+			assertTrue(patients.update("P3", 42));
+			assertEquals(Long.valueOf(2), Long.valueOf(patients.getOverflow()));
+			// the recorded ones are still compared
+			assertFalse(patients.update("P0", 42));
+			assertEquals(3, patients.size());
+		} finally {
+			patients.close();
+		}
+	}
+
+	@Test
+	public void test_other_file_rejected() throws IOException {
+		Files.write(path, new byte[100]);
+		try {
+			new PatientStateStore(path, 100, fhirContext).close();
+			fail("Not a patient store");
+		} catch (IOException expected) {
+		}
+	}
+
+	private static boolean hasPatient(Bundle bundle) {
+		return patientOf(bundle) != null;
+	}
+
+	private static Patient patientOf(Bundle bundle) {
+		for (Bundle.Entry entry : bundle.getEntry()) {
+			if (entry.getResource() instanceof Patient) {
+				return (Patient) entry.getResource();
+			}
+		}
+		return null;
+	}
+}
@@ -0,0 +1,237 @@
+package com.rachirib.hapiexample.export;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.json.Json;
+import javax.json.JsonObject;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.rachirib.hapiexample.transform.SampleMessages;
+import com.rachirib.hapiexample.transform.VersionTwoToFHIR;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.model.dstu2.resource.Encounter;
+import ca.uhn.fhir.model.dstu2.resource.Patient;
+
+public class TestBulkExporter {
+
+	private static final String A = SampleMessages.MSG_ADTA05;
+	/** The patient of A, other demographics */
+	private static final String B = SampleMessages.MSG_ADTA05_QLD;
+	/** Another patient */
+	private static final String C = A.replace("191919^^^GENHOSP",
+			"191920^^^GENHOSP");
+
+	private final FhirContext fhirContext = new FhirContext();
+	private VersionTwoToFHIR transformer;
+	private Path input;
+	private Path output;
+
+	@Before
+	public void setUp() throws IOException {
+		transformer = new VersionTwoToFHIR();
+		input = Files.createTempDirectory("archive");
+		output = Files.createTempDirectory("export");
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		transformer.close();
+		delete(input);
+		delete(output);
+	}
+
+	@Test
+	public void test_resources_by_type() throws IOException {
+		write("2015.hl7", A, A, B);
+		write("2016.hl7", C, "MSH|^~\\&|REGADT|MCM|IFENG||199601061000||ADT^A05|000009|P|2.3\rPID|||1||||1996-13\r");
+		write("notes.txt", A);
+
+		ExportReport report = new BulkExporter(transformer, fhirContext,
+				new ExportConfig().setThreads(2).setFilePattern("*.hl7"))
+				.export(input, output);
+
+		assertEquals(Long.valueOf(2), Long.valueOf(report.getFiles()));
+		assertEquals(Long.valueOf(5), Long.valueOf(report.getMessages()));
+		assertEquals(Long.valueOf(1), Long.valueOf(report.getFailed()));
+		assertTrue(report.getMessagesPerSecond() > 0);
+		assertTrue(report.getMegabytesPerSecond() > 0);
+		// A twice is written once, B changes the Patient of A
+		List<String> patients = lines("Patient.ndjson");
+		assertEquals(3, patients.size());
+		assertEquals(Long.valueOf(3), report.getWritten().get("Patient"));
+		assertTrue(report.getUnchanged() > 0);
+
+		Set<String> patientIds = new HashSet<String>();
+		for (String json : patients) {
+			patientIds.add(fhirContext.newJsonParser()
+					.parseResource(Patient.class, json).getId().getIdPart());
+		}
+		assertEquals(2, patientIds.size());
+		for (String json : lines("Encounter.ndjson")) {
+			Encounter encounter = fhirContext.newJsonParser().parseResource(
+					Encounter.class, json);
+			String patient = encounter.getPatient().getReference().getValue();
+			assertTrue(patient, patient.startsWith("Patient/"));
+			assertTrue(patientIds.contains(patient.substring(8)));
+			assertFalse(json.contains("urn:uuid:"));
+		}
+		for (String type : ExportConfig.DEFAULT_RESOURCE_TYPES) {
+			List<String> lines = lines(type + ".ndjson");
+			assertFalse(type, lines.isEmpty());
+			// each resource again only when its content changed: the operator
+			// of B is the operator of A, another spelling of the name
+			Map<String, String> last = new HashMap<String, String>();
+			for (String json : lines) {
+				String id = Json.createReader(new StringReader(json))
+						.readObject().getString("id");
+				assertFalse(type, json.equals(last.put(id, json)));
+			}
+		}
+		assertFalse(Files.exists(output.resolve("MessageHeader.ndjson")));
+
+		// the message with a birth date not valid, kept for a later export
+		List<String> rejects = lines(BulkExporter.REJECTS + ".ndjson");
+		assertEquals(1, rejects.size());
+		JsonObject reject = Json.createReader(
+				new StringReader(rejects.get(0))).readObject();
+		assertEquals("2016.hl7", reject.getString("file"));
+		assertTrue(reject.getString("message").contains("|000009|"));
+		assertFalse(reject.getString("error").isEmpty());
+	}
+
+	@Test
+	public void test_gzip_resumed() throws IOException {
+		ExportConfig config = new ExportConfig().setGzip(true).setThreads(1);
+		write("2015.hl7", A, B);
+		new BulkExporter(transformer, fhirContext, config).export(input,
+				output);
+		List<String> practitioners = lines("Practitioner.ndjson.gz");
+		List<String> patients = lines("Patient.ndjson.gz");
+		assertEquals(2, patients.size());
+
+		// a crash during the next file, after some of its resources
+		long length = Files.size(output.resolve("Patient.ndjson.gz"));
+		Files.write(output.resolve("Patient.ndjson.gz"),
+				new byte[] { 0x1f, (byte) 0x8b, 8, 0, 42 },
+				StandardOpenOption.APPEND);
+		write("2016.hl7", B, C);
+		ExportReport report = new BulkExporter(transformer, fhirContext,
+				config).export(input, output);
+
+		assertEquals(Long.valueOf(1), Long.valueOf(report.getFiles()));
+		// cut at the checkpoint, then a new gzip member (no mtime)
+		byte[] gzip = Files.readAllBytes(output.resolve("Patient.ndjson.gz"));
+		assertEquals(0x1f, gzip[(int) length] & 0xff);
+		assertEquals(0, gzip[(int) length + 4] & 0xff);
+		// B is the Patient written last, only the patient of C is new
+		List<String> resumed = lines("Patient.ndjson.gz");
+		assertEquals(3, resumed.size());
+		assertEquals(patients, resumed.subList(0, 2));
+		// the operator of C changed back from B
+		List<String> resumedPractitioners = lines("Practitioner.ndjson.gz");
+		assertEquals(practitioners.size() + 1, resumedPractitioners.size());
+		assertEquals(practitioners,
+				resumedPractitioners.subList(0, practitioners.size()));
+
+		// nothing left to do
+		report = new BulkExporter(transformer, fhirContext, config).export(
+				input, output);
+		assertEquals(Long.valueOf(0), Long.valueOf(report.getMessages()));
+		assertEquals(resumed, lines("Patient.ndjson.gz"));
+	}
+
+	@Test
+	public void test_files_written_in_order() throws IOException {
+		// the first file takes the longest, the others are done before it
+		String[] first = new String[301];
+		for (int i = 0; i < 300; i++) {
+			first[i] = C.replace("|000001|", "|" + i + "|");
+		}
+		first[300] = A;
+		write("1.hl7", first);
+		write("2.hl7", B);
+		write("3.hl7", A);
+		write("4.hl7", B);
+
+		ExportReport report = new BulkExporter(transformer, fhirContext,
+				new ExportConfig().setThreads(4)).export(input, output);
+
+		assertEquals(Long.valueOf(4), Long.valueOf(report.getFiles()));
+		// C, then the patient of A changing with every file
+		List<String> patients = lines("Patient.ndjson");
+		assertEquals(5, patients.size());
+		assertFalse(patients.get(1).equals(patients.get(2)));
+		assertEquals(patients.get(1), patients.get(3));
+		assertEquals(patients.get(2), patients.get(4));
+	}
+
+	@Test
+	public void test_relative_references() {
+		Map<String, String> types = new HashMap<String, String>();
+		types.put("1", "Patient");
+		types.put("2", "Location");
+		assertEquals(
+				"{\"patient\":{\"reference\":\"Patient/1\"},\"x\":[{\"reference\":\"Location/2\"},{\"reference\":\"urn:uuid:3\"}]}",
+				BulkExporter.relativeReferences(
+						"{\"patient\":{\"reference\":\"urn:uuid:1\"},\"x\":[{\"reference\":\"urn:uuid:2\"},{\"reference\":\"urn:uuid:3\"}]}",
+						types));
+		assertEquals("{}", BulkExporter.relativeReferences("{}", types));
+	}
+
+	private void write(String name, String... messages) throws IOException {
+		StringBuilder text = new StringBuilder();
+		for (String msg : messages) {
+			text.append(msg);
+		}
+		Files.write(input.resolve(name),
+				text.toString().getBytes(StandardCharsets.ISO_8859_1));
+	}
+
+	private List<String> lines(String name) throws IOException {
+		List<String> lines = new ArrayList<String>();
+		BufferedReader reader = NdjsonFile.read(output.resolve(name),
+				name.endsWith(".gz"));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				lines.add(line);
+			}
+		} finally {
+			reader.close();
+		}
+		return lines;
+	}
+
+	private static void delete(Path directory) throws IOException {
+		DirectoryStream<Path> files = Files.newDirectoryStream(directory);
+		try {
+			for (Path file : files) {
+				Files.delete(file);
+			}
+		} finally {
+			files.close();
+		}
+		Files.delete(directory);
+	}
+}
@@ -0,0 +1,64 @@
+package com.rachirib.hapiexample.journal;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.rachirib.hapiexample.transform.SampleMessages;
+
+/**
+ * Durable appends/sec to a {@link MessageJournal} from 4 threads, each
+ * record synced on its own against group commit.
+ *
+ * Run with <code>mvn -Pbenchmark verify -Djmh.includes=JournalBenchmark</code>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dlog4j.configuration=log4j-benchmark.xml")
+@Threads(4)
+public class JournalBenchmark {
+
+	@Param({ "false", "true" })
+	public boolean groupCommit;
+
+	private Path file;
+	private MessageJournal journal;
+
+	@Setup
+	public void setUp() throws IOException {
+		file = Files.createTempFile("benchmark", ".journal");
+		journal = new MessageJournal(file, new JournalConfig()
+				.setGroupCommit(groupCommit));
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		journal.close();
+		Files.delete(file);
+	}
+
+	@Benchmark
+	public long durableAppend() throws IOException {
+		long offset = journal.append(SampleMessages.MSG_ADTA05);
+		journal.sync(offset + 1);
+		return offset;
+	}
+}
@@ -0,0 +1,231 @@
+package com.rachirib.hapiexample.journal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.rachirib.hapiexample.stream.BundleSink;
+import com.rachirib.hapiexample.transform.BatchTransformer;
+import com.rachirib.hapiexample.transform.MessageTransformer;
+import com.rachirib.hapiexample.transform.SampleMessages;
+import com.rachirib.hapiexample.transform.TransformResult;
+import com.rachirib.hapiexample.transform.VersionTwoToFHIR;
+
+import ca.uhn.fhir.model.dstu2.resource.Bundle;
+import ca.uhn.hl7v2.model.Message;
+
+public class TestIngestPipeline {
+
+	private static final String MSG_ADTA02 = SampleMessages.MSG_ADTA05
+			.replace("ADT^A05", "ADT^A02");
+
+	private final JournalConfig config = new JournalConfig().setSegmentSize(
+			4096).setCheckpointInterval(1000);
+	private Path directory;
+	private VersionTwoToFHIR transFHIR;
+	private final List<TransformResult> results = new ArrayList<TransformResult>();
+	private final BundleSink sink = new BundleSink() {
+		@Override
+		public synchronized void accept(TransformResult result) {
+			results.add(result);
+		}
+	};
+
+	@Before
+	public void setUp() throws IOException {
+		directory = Files.createTempDirectory("journal");
+		transFHIR = new VersionTwoToFHIR();
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		transFHIR.close();
+		for (Path file : Files.newDirectoryStream(directory)) {
+			Files.delete(file);
+		}
+		Files.delete(directory);
+	}
+
+	@Test
+	public void test_journal_segments_and_torn_tail() throws Exception {
+		Path file = directory.resolve("test.journal");
+		MessageJournal journal = new MessageJournal(file, config);
+		List<Long> offsets = new ArrayList<Long>();
+		for (int i = 0; i < 10; i++) {
+			offsets.add(Long.valueOf(journal.append(
+					SampleMessages.MSG_ADTA05, i % 2 == 0 ? null : "note " + i)));
+		}
+		journal.sync(journal.getEnd());
+		long end = journal.getEnd();
+		journal.close();
+		// more than one segment of 4 kB
+		assertTrue(end > 4096);
+
+		// a record torn by a crash: content without its length
+		RandomAccessFile raw = new RandomAccessFile(file.toFile(), "rw");
+		try {
+			raw.seek(end + 4);
+			raw.write(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8 });
+		} finally {
+			raw.close();
+		}
+
+		journal = new MessageJournal(file, config);
+		try {
+			assertEquals(Long.valueOf(end), Long.valueOf(journal.getEnd()));
+			MessageJournal.JournalReader reader = journal.read(0);
+			for (int i = 0; i < 10; i++) {
+				JournalRecord record = reader.next();
+				assertEquals(offsets.get(i), Long.valueOf(record.getOffset()));
+				assertEquals(SampleMessages.MSG_ADTA05, record.getMessage());
+				assertEquals(i % 2 == 0 ? null : "note " + i, record.getNote());
+			}
+			assertNull(reader.next());
+			long next = journal.append("MSH|after");
+			assertEquals(Long.valueOf(end), Long.valueOf(next));
+		} finally {
+			journal.close();
+		}
+	}
+
+	@Test
+	public void test_dead_letters_replayed_after_fix() throws Exception {
+		IngestPipeline pipeline = new IngestPipeline(directory,
+				new BatchTransformer(transFHIR), sink, config);
+		try {
+			assertTrue(pipeline.submit(SampleMessages.MSG_ADTA05).isSuccess());
+			assertFalse(pipeline.submit(MSG_ADTA02).isSuccess());
+			assertEquals(Long.valueOf(1),
+					Long.valueOf(pipeline.getDeadLettered()));
+			assertEquals(Long.valueOf(0), Long.valueOf(pipeline.replayDeadLetters()));
+
+			// the fix: A02 gets a transformer
+			final Bundle fixed = new Bundle();
+			transFHIR.getRouter().register("ADT", "A02",
+					new MessageTransformer() {
+						@Override
+						public Bundle transform(Message message) {
+							return fixed;
+						}
+					});
+			assertEquals(Long.valueOf(1), Long.valueOf(pipeline.replayDeadLetters()));
+			assertEquals(Long.valueOf(0), Long.valueOf(pipeline.replayDeadLetters()));
+			assertEquals(fixed, results.get(results.size() - 1).getBundle());
+		} finally {
+			pipeline.close();
+		}
+	}
+
+	@Test
+	public void test_restart_resumes_after_checkpoint() throws Exception {
+		IngestPipeline pipeline = new IngestPipeline(directory,
+				new BatchTransformer(transFHIR), sink, config);
+		pipeline.submit(SampleMessages.MSG_ADTA05);
+		pipeline.close();
+
+		// journaled by a run that crashed before transforming them
+		MessageJournal journal = new MessageJournal(
+				directory.resolve(IngestPipeline.JOURNAL), config);
+		journal.append(SampleMessages.MSG_ADTA05_QLD);
+		journal.append(SampleMessages.MSG_ADTA05);
+		journal.close();
+
+		results.clear();
+		pipeline = new IngestPipeline(directory, new BatchTransformer(
+				transFHIR), sink, config);
+		try {
+			assertEquals(Long.valueOf(2), Long.valueOf(pipeline.recover()));
+			assertEquals(2, results.size());
+			assertEquals(SampleMessages.MSG_ADTA05_QLD, results.get(0)
+					.getMessage());
+			assertEquals(Long.valueOf(0), Long.valueOf(pipeline.recover()));
+		} finally {
+			pipeline.close();
+		}
+	}
+
+	@Test
+	public void test_sink_failure_recovered() throws Exception {
+		BundleSink failing = new BundleSink() {
+			private boolean failed;
+
+			@Override
+			public void accept(TransformResult result) throws IOException {
+				if (!failed) {
+					failed = true;
+					throw new IOException("sink down");
+				}
+				sink.accept(result);
+			}
+		};
+		IngestPipeline pipeline = new IngestPipeline(directory,
+				new BatchTransformer(transFHIR), failing, config);
+		try {
+			try {
+				pipeline.submit(SampleMessages.MSG_ADTA05_QLD);
+				fail("sink failure expected");
+			} catch (IOException e) {
+				assertEquals("sink down", e.getMessage());
+			}
+			assertTrue(pipeline.submit(SampleMessages.MSG_ADTA05).isSuccess());
+			pipeline.checkpoint();
+			JournalCheckpoint checkpoint = new JournalCheckpoint(
+					directory.resolve(IngestPipeline.CHECKPOINT));
+			// held at the message the sink failed
+			assertEquals(Long.valueOf(0), Long.valueOf(checkpoint.load()));
+
+			results.clear();
+			// the messages after it handled again, at least once
+			long recovered = pipeline.recover();
+			assertEquals(Long.valueOf(2), Long.valueOf(recovered));
+			assertEquals(SampleMessages.MSG_ADTA05_QLD, results.get(0)
+					.getMessage());
+			assertTrue(results.get(0).isSuccess());
+			assertEquals(Long.valueOf(pipeline.getJournal().getEnd()),
+					Long.valueOf(checkpoint.load()));
+			assertEquals(Long.valueOf(1 + recovered),
+					Long.valueOf(pipeline.getProcessed()));
+		} finally {
+			pipeline.close();
+		}
+	}
+
+	@Test
+	public void test_journal_compacted_on_restart() throws Exception {
+		IngestPipeline pipeline = new IngestPipeline(directory,
+				new BatchTransformer(transFHIR), sink, config);
+		pipeline.submit(SampleMessages.MSG_ADTA05);
+		pipeline.submit(MSG_ADTA02);
+		assertTrue(pipeline.getJournal().getEnd() > 0);
+		pipeline.close();
+
+		pipeline = new IngestPipeline(directory, new BatchTransformer(
+				transFHIR), sink, config);
+		try {
+			assertEquals(Long.valueOf(0),
+					Long.valueOf(pipeline.getJournal().getEnd()));
+			// the dead letter is kept until replayed
+			assertTrue(pipeline.getDeadLetters().getEnd() > 0);
+			assertEquals(Long.valueOf(0), Long.valueOf(pipeline.recover()));
+			assertTrue(pipeline.submit(SampleMessages.MSG_ADTA05_QLD)
+					.isSuccess());
+			assertEquals(SampleMessages.MSG_ADTA05_QLD, pipeline.getJournal()
+					.read(0).next().getMessage());
+		} finally {
+			pipeline.close();
+		}
+	}
+}
@@ -0,0 +1,83 @@
+package com.rachirib.hapiexample.mapping;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.rachirib.hapiexample.transform.SampleMessages;
+import com.rachirib.hapiexample.transform.VersionTwoToFHIR;
+
+import ca.uhn.fhir.model.dstu2.resource.Bundle;
+import ca.uhn.hl7v2.HL7Exception;
+import ca.uhn.hl7v2.model.Message;
+
+/**
+ * Messages/sec of the ADT^A01 mapping against the hand written ADT^A05
+ * transformation, on the same message content, and of the mapping alone on
+ * a parsed message.
+ *
+ * Run with <code>mvn -Pbenchmark verify -Djmh.includes=MappingBenchmark</code>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dlog4j.configuration=log4j-benchmark.xml")
+public class MappingBenchmark {
+
+	private static final String MSG_ADTA01 = SampleMessages.MSG_ADTA05
+			.replace("ADT^A05", "ADT^A01");
+
+	private VersionTwoToFHIR transFHIR;
+	private MappingTransformer mapping;
+	private Message parsed;
+
+	@Setup
+	public void setUp() throws HL7Exception {
+		transFHIR = new VersionTwoToFHIR();
+		mapping = MappingTransformer.load(VersionTwoToFHIR.ADT_A01_MAPPING,
+				transFHIR.getHapiContext().getModelClassFactory());
+		parsed = transFHIR.getHapiContext().getGenericParser()
+				.parse(MSG_ADTA01);
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		transFHIR.close();
+	}
+
+	@Benchmark
+	public Bundle handWrittenA05() throws HL7Exception {
+		return transFHIR.transform(SampleMessages.MSG_ADTA05);
+	}
+
+	@Benchmark
+	public Bundle mappedA01() throws HL7Exception {
+		return transFHIR.transform(MSG_ADTA01);
+	}
+
+	@Benchmark
+	public Bundle mappedParsedA01() throws HL7Exception {
+		return mapping.transform(parsed);
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.AverageTime)
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	public MappingTransformer compile() {
+		return MappingTransformer.load(VersionTwoToFHIR.ADT_A01_MAPPING,
+				transFHIR.getHapiContext().getModelClassFactory());
+	}
+}
@@ -0,0 +1,226 @@
+package com.rachirib.hapiexample.mapping;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+import com.rachirib.hapiexample.transform.PatientKey;
+import com.rachirib.hapiexample.transform.ResourceIds;
+import com.rachirib.hapiexample.transform.SampleMessages;
+import com.rachirib.hapiexample.transform.TransformerFactory;
+import com.rachirib.hapiexample.transform.VersionTwoToFHIR;
+
+import ca.uhn.fhir.model.dstu2.resource.Bundle;
+import ca.uhn.fhir.model.dstu2.resource.Encounter;
+import ca.uhn.fhir.model.dstu2.resource.MessageHeader;
+import ca.uhn.fhir.model.dstu2.resource.Patient;
+import ca.uhn.fhir.model.dstu2.valueset.AdministrativeGenderEnum;
+import ca.uhn.fhir.model.dstu2.valueset.EncounterClassEnum;
+import ca.uhn.hl7v2.DefaultHapiContext;
+import ca.uhn.hl7v2.parser.ModelClassFactory;
+
+public class TestMappingTransformer {
+
+	private final TransformerFactory factory = TransformerFactory
+			.getDefault();
+	private final ModelClassFactory classes = new DefaultHapiContext()
+			.getModelClassFactory();
+
+	@Test
+	public void test_a01_a04_a08() throws Exception {
+		VersionTwoToFHIR transFHIR = factory.getTransformer();
+		Bundle a05 = transFHIR.transform(SampleMessages.MSG_ADTA05);
+		for (String trigger : new String[] { "A01", "A04", "A08" }) {
+			Bundle bundle = transFHIR.transform(SampleMessages.MSG_ADTA05
+					.replace("ADT^A05", "ADT^" + trigger));
+			assertEquals(3, bundle.getEntry().size());
+
+			MessageHeader header = (MessageHeader) bundle.getEntry().get(0)
+					.getResource();
+			assertEquals(trigger, header.getEvent().getCode());
+			assertEquals("000001", header.getIdentifier());
+			assertEquals("1996-01-06T10:00:00", header.getTimestampElement()
+					.getValueAsString().substring(0, 19));
+			assertEquals("REGADT", header.getSource().getName());
+
+			Patient patient = (Patient) bundle.getEntry().get(1).getResource();
+			assertEquals("191919", patient.getIdentifierFirstRep().getValue());
+			assertEquals("http://hl7.org/fhir/v2/0203", patient
+					.getIdentifierFirstRep().getSystem());
+			assertEquals("MASSIE", patient.getNameFirstRep()
+					.getFamilyAsSingleString());
+			assertEquals("JAMES A", patient.getNameFirstRep()
+					.getGivenAsSingleString());
+			assertEquals("1956-01-29", patient.getBirthDateElement()
+					.getValueAsString());
+			assertEquals(AdministrativeGenderEnum.MALE.getCode(),
+					patient.getGender());
+			assertEquals("ISHPEMING", patient.getAddressFirstRep().getCity());
+			assertEquals(2, patient.getTelecom().size());
+			assertEquals("work", patient.getTelecom().get(1).getUse());
+			assertEquals("S", patient.getMaritalStatus().getCodingFirstRep()
+					.getCode());
+
+			Encounter encounter = (Encounter) bundle.getEntry().get(2)
+					.getResource();
+			assertEquals(EncounterClassEnum.OUTPATIENT.getCode(),
+					encounter.getClassElement());
+			assertSame(patient, encounter.getPatient().getResource());
+			assertEquals(ResourceIds.URN_UUID + patient.getId().getIdPart(),
+					encounter.getPatient().getReference().getValue());
+
+			// the ids of the ADT^A05 mapping, the bundle named by its message
+			assertEquals(idOf(a05, Patient.class), patient.getId().getIdPart());
+			assertEquals(idOf(a05, Encounter.class), encounter.getId()
+					.getIdPart());
+			assertEquals(ResourceIds.uuid("Bundle", "REGADT", "MCM",
+					"199601061000", "000001"), bundle.getId().getIdPart());
+			for (Bundle.Entry entry : bundle.getEntry()) {
+				assertEquals(ResourceIds.URN_UUID, entry.getBase());
+			}
+
+			assertTrue(factory.getValidator().validateWithResult(bundle)
+					.isSuccessful());
+		}
+	}
+
+	@Test
+	public void test_ids_by_patient() throws Exception {
+		VersionTwoToFHIR transFHIR = factory.getTransformer();
+		String msg = SampleMessages.MSG_ADTA05.replace("ADT^A05", "ADT^A01");
+		Bundle first = transFHIR.transform(msg.replace("191919^^^GENHOSP",
+				"111^^^GENHOSP"));
+		Bundle second = transFHIR.transform(msg.replace("191919^^^GENHOSP",
+				"222^^^GENHOSP").replace("|000001|", "|000002|"));
+		for (int i = 0; i < 3; i++) {
+			assertFalse(first.getEntry().get(i).getResource().getId()
+					.getIdPart().equals(second.getEntry().get(i).getResource()
+							.getId().getIdPart()));
+		}
+		assertFalse(first.getId().getIdPart()
+				.equals(second.getId().getIdPart()));
+		// the same message, the same ids
+		Bundle again = transFHIR.transform(msg.replace("191919^^^GENHOSP",
+				"111^^^GENHOSP"));
+		assertEquals(first.getId().getIdPart(), again.getId().getIdPart());
+		assertEquals(first.getEntry().get(1).getResource().getId()
+				.getIdPart(), again.getEntry().get(1).getResource().getId()
+				.getIdPart());
+	}
+
+	@Test
+	public void test_patient_key_with_subcomponents() throws Exception {
+		VersionTwoToFHIR transFHIR = factory.getTransformer();
+		String a05 = SampleMessages.MSG_ADTA05.replace("191919^^^GENHOSP",
+				"123^^^HOSP&1.2.3&ISO");
+		assertEquals("123^HOSP&1.2.3&ISO", PatientKey.of(a05));
+		String patient = ResourceIds.uuid("Patient", PatientKey.of(a05));
+
+		assertEquals(patient, idOf(transFHIR.transform(a05), Patient.class));
+		StringWriter json = new StringWriter();
+		transFHIR.writeADTA05Json(a05, json);
+		assertTrue(json.toString().contains(ResourceIds.URN_UUID + patient));
+		for (String trigger : new String[] { "A01", "A04", "A08" }) {
+			assertEquals(patient, idOf(transFHIR.transform(a05.replace(
+					"ADT^A05", "ADT^" + trigger)), Patient.class));
+		}
+	}
+
+	@Test
+	public void test_same_patient_as_a05() throws Exception {
+		VersionTwoToFHIR transFHIR = factory.getTransformer();
+		// the mapping leaves out the next of kin
+		String qld = SampleMessages.MSG_ADTA05_QLD;
+		for (String a05 : new String[] {
+				qld,
+				qld.replace("191919^^^GENHOSP", "123^^^HOSP&1.2.3&ISO").replace(
+						"|M|C|", "|M|C|||||||||||||Y|") }) {
+			Patient expected = resource(transFHIR.transform(a05),
+					Patient.class);
+			Patient patient = resource(transFHIR.transform(a05.replace(
+					"ADT^A05", "ADT^A01")), Patient.class);
+			assertEquals(encode(expected), encode(patient));
+
+			Encounter encounter = resource(transFHIR.transform(a05.replace(
+					"ADT^A05", "ADT^A01")), Encounter.class);
+			assertEquals("planned", encounter.getStatus());
+			assertEquals(resource(transFHIR.transform(a05), Encounter.class)
+					.getTypeFirstRep().getCodingFirstRep().getDisplay(),
+					encounter.getTypeFirstRep().getCodingFirstRep()
+							.getDisplay());
+		}
+	}
+
+	@Test
+	public void test_missing_fields_skipped() throws Exception {
+		Bundle bundle = factory.getTransformer().transform(
+				"MSH|^~\\&|REGADT|MCM|IFENG||199601061000||ADT^A04|000002|P|2.3\r"
+						+ "PID|||191919\r");
+		Patient patient = (Patient) bundle.getEntry().get(1).getResource();
+		assertTrue(patient.getIdentifierFirstRep().getAssigner().isEmpty());
+		assertTrue(patient.getTelecom().isEmpty());
+		assertTrue(patient.getGenderElement().isEmpty());
+	}
+
+	@Test
+	public void test_invalid_mapping_line() throws Exception {
+		assertInvalid("PID-5.1 -> Patient.name.family\nPID-5 Patient", 4);
+		assertInvalid("PID-5.1 -> Patient.nickname", 3);
+		assertInvalid("PID-5.12 -> Patient.name.family", 3);
+		assertInvalid("ZZZ-1 -> Patient.name.family", 3);
+		assertInvalid("PID-7 -> Patient.birthDate : julian", 3);
+		assertInvalid("@Encounter -> Patient.link.other", 3);
+		assertInvalid("PID-5.1 -> Patient.name.family\nid Encounter PV1-19", 4);
+		assertInvalid("PID-5.1 -> Patient.name.family\nid Patient ZZZ-1", 4);
+		assertInvalid("PID-5.1 -> Patient.name.family\n"
+				+ "id Patient patient(PID-5)", 4);
+		assertInvalid("PID-5.1 -> Patient.name.family\n"
+				+ "id Patient patient(PID-3.1)", 4);
+		assertInvalid("PID-5.1 -> Patient.name.family\n"
+				+ "PV1-19 -> Encounter.identifier.value\n"
+				+ "id Patient @Encounter", 5);
+	}
+
+	private String encode(Patient patient) {
+		return factory.getFhirContext().newJsonParser()
+				.encodeResourceToString(patient);
+	}
+
+	private static <T> T resource(Bundle bundle, Class<T> type) {
+		for (Bundle.Entry entry : bundle.getEntry()) {
+			if (type.isInstance(entry.getResource())) {
+				return type.cast(entry.getResource());
+			}
+		}
+		return null;
+	}
+
+	private static String idOf(Bundle bundle, Class<?> type) {
+		for (Bundle.Entry entry : bundle.getEntry()) {
+			if (type.isInstance(entry.getResource())) {
+				return entry.getResource().getId().getIdPart();
+			}
+		}
+		return null;
+	}
+
+	private void assertInvalid(String rules, int line) throws Exception {
+		String mapping = "version 2.3\nmessage ADT^A01\n" + rules;
+		try {
+			new MappingTransformer(MappingDefinition.load(new ByteArrayInputStream(
+					mapping.getBytes(StandardCharsets.UTF_8))), classes);
+			fail("Mapping must be rejected: " + rules);
+		} catch (IllegalArgumentException e) {
+			assertTrue(e.getMessage(),
+					e.getMessage().startsWith("Invalid mapping line " + line));
+		}
+	}
+}
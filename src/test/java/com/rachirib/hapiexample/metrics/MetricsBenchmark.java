@@ -0,0 +1,71 @@
+package com.rachirib.hapiexample.metrics;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.rachirib.hapiexample.transform.SampleMessages;
+import com.rachirib.hapiexample.transform.VersionTwoToFHIR;
+
+import ca.uhn.fhir.model.dstu2.resource.Bundle;
+import ca.uhn.hl7v2.HL7Exception;
+
+/**
+ * Messages/sec of {@link VersionTwoToFHIR#transform(String)} with the
+ * metrics disabled and enabled, the overhead of the instrumentation, and
+ * the cost of one stage timing.
+ *
+ * Run with <code>mvn -Pbenchmark verify -Djmh.includes=MetricsBenchmark</code>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dlog4j.configuration=log4j-benchmark.xml")
+public class MetricsBenchmark {
+
+	@Param({ "false", "true" })
+	public boolean enabled;
+
+	private VersionTwoToFHIR transFHIR;
+
+	@Setup
+	public void setUp() {
+		transFHIR = new VersionTwoToFHIR();
+		transFHIR.getMetrics().setEnabled(enabled);
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		transFHIR.close();
+	}
+
+	@Benchmark
+	public Bundle transform() throws HL7Exception {
+		return transFHIR.transform(SampleMessages.MSG_ADTA05);
+	}
+
+	/**
+	 * Cost of timing one stage, a message times 11 of them
+	 */
+	@Benchmark
+	@BenchmarkMode(Mode.AverageTime)
+	@OutputTimeUnit(TimeUnit.NANOSECONDS)
+	public long recordStage() {
+		TransformMetrics metrics = transFHIR.getMetrics();
+		return metrics.record(Stage.PARSE, metrics.start());
+	}
+}
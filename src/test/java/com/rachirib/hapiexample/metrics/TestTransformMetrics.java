@@ -0,0 +1,145 @@
+package com.rachirib.hapiexample.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.TabularData;
+
+import org.junit.Test;
+
+import com.rachirib.hapiexample.transform.SampleMessages;
+import com.rachirib.hapiexample.transform.VersionTwoToFHIR;
+
+import ca.uhn.hl7v2.HL7Exception;
+
+public class TestTransformMetrics {
+
+	@Test
+	public void test_histogram_precision() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		for (int i = 1; i <= 1000; i++) {
+			histogram.record(i * 1000L);
+		}
+		assertEquals(Long.valueOf(1000), Long.valueOf(histogram.getCount()));
+		assertEquals(Long.valueOf(1000000), Long.valueOf(histogram.getMax()));
+		assertWithin(500000, histogram.getValueAtPercentile(50));
+		assertWithin(990000, histogram.getValueAtPercentile(99));
+		assertEquals(Long.valueOf(1000000),
+				Long.valueOf(histogram.getValueAtPercentile(100)));
+		for (long value : new long[] { 0, 15, 16, 17, 1000, 123456789,
+				Long.MAX_VALUE }) {
+			int index = LatencyHistogram.index(value);
+			assertTrue(value + " above its bucket",
+					LatencyHistogram.highestValue(index) >= value);
+			assertTrue(value + " below its bucket", index == 0
+					|| LatencyHistogram.highestValue(index - 1) < value);
+		}
+		histogram.reset();
+		assertEquals(Long.valueOf(0),
+				Long.valueOf(histogram.getValueAtPercentile(99)));
+	}
+
+	@Test
+	public void test_stages_and_counters() throws Exception {
+		VersionTwoToFHIR transFHIR = new VersionTwoToFHIR();
+		try {
+			TransformMetrics metrics = transFHIR.getMetrics();
+			transFHIR.transform(SampleMessages.MSG_ADTA05);
+			assertEquals(Long.valueOf(0), Long.valueOf(metrics
+					.getMessageCount("ADT", "A05")));
+
+			metrics.setEnabled(true);
+			transFHIR.transform(SampleMessages.MSG_ADTA05);
+			transFHIR.transform(SampleMessages.MSG_ADTA05.replace("ADT^A05",
+					"ADT^A01"));
+			try {
+				transFHIR.transform(SampleMessages.MSG_ADTA05.replace(
+						"ADT^A05", "ADT^A02"));
+				fail("A02 is not supported");
+			} catch (HL7Exception e) {
+				// counted
+			}
+			assertEquals(Long.valueOf(1), Long.valueOf(metrics
+					.getMessageCount("ADT", "A05")));
+			assertEquals(Long.valueOf(1), Long.valueOf(metrics
+					.getMessageCount("ADT", "A02")));
+			assertEquals(Long.valueOf(1), Long.valueOf(metrics
+					.getFailureCount("UNSUPPORTED_EVENT_CODE")));
+			assertEquals(Long.valueOf(2), Long.valueOf(metrics.getHistogram(
+					Stage.PARSE).getCount()));
+			assertEquals(Long.valueOf(1), Long.valueOf(metrics.getHistogram(
+					Stage.PATIENT).getCount()));
+			assertTrue(metrics.getHistogram(Stage.TRANSFORM).getMax() > 0);
+
+			StringBuilder text = new StringBuilder();
+			metrics.writeText(text);
+			assertTrue(text.toString(), text.toString().contains(
+					"hl7_messages_total{type=\"ADT\",trigger=\"A01\"} 1\n"));
+			assertTrue(text.toString(), text.toString().contains(
+					"hl7_stage_seconds_count{stage=\"parse\"} 2\n"));
+		} finally {
+			transFHIR.close();
+		}
+	}
+
+	@Test
+	public void test_jmx_and_http() throws Exception {
+		TransformMetrics metrics = new TransformMetrics(true);
+		metrics.message("ADT", "A05");
+		metrics.failure(new NullPointerException());
+		ObjectName name = metrics
+				.registerMBean("com.rachirib.hapiexample:type=TransformMetrics,name=test");
+		MetricsHttpServer server = MetricsHttpServer.start(
+				new InetSocketAddress("127.0.0.1", 0), metrics);
+		try {
+			MBeanServer mbeans = ManagementFactory.getPlatformMBeanServer();
+			TabularData failures = (TabularData) mbeans.getAttribute(name,
+					"FailureCounts");
+			assertEquals(1, failures.size());
+			Map<String, Long> counts = metrics.getMessageCounts();
+			assertEquals(Long.valueOf(1), counts.get("ADT^A05"));
+
+			HttpURLConnection connection = (HttpURLConnection) new URL(
+					"http://127.0.0.1:" + server.getPort()
+							+ MetricsHttpServer.PATH).openConnection();
+			assertEquals(200, connection.getResponseCode());
+			String body = read(connection.getInputStream());
+			assertTrue(body, body.contains(
+					"hl7_failures_total{category=\"NullPointerException\"} 1\n"));
+		} finally {
+			server.close();
+			TransformMetrics.unregisterMBean(name);
+		}
+	}
+
+	private static void assertWithin(long expected, long actual) {
+		assertTrue(actual + " is not within 1/16 of " + expected,
+				Math.abs(actual - expected) <= expected / 16);
+	}
+
+	private static String read(InputStream in) throws Exception {
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buffer = new byte[4096];
+			int n;
+			while ((n = in.read(buffer)) > 0) {
+				out.write(buffer, 0, n);
+			}
+			return new String(out.toByteArray(), StandardCharsets.UTF_8);
+		} finally {
+			in.close();
+		}
+	}
+}
@@ -0,0 +1,191 @@
+package com.rachirib.hapiexample.mllp;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.rachirib.hapiexample.stream.BundleSink;
+import com.rachirib.hapiexample.transform.BatchTransformer;
+import com.rachirib.hapiexample.transform.SampleMessages;
+import com.rachirib.hapiexample.transform.TransformResult;
+import com.rachirib.hapiexample.transform.VersionTwoToFHIR;
+
+/**
+ * Load test of {@link MllpServer}: many connections sending messages one
+ * after the other, reporting messages/sec and ACK latency percentiles.
+ * 
+ * Usage: MllpLoadClient [connections] [messagesPerConnection] [host port]
+ * <br>
+ * Without host and port an embedded server is started on localhost.
+ */
+public class MllpLoadClient {
+
+	public static void main(String[] args) throws Exception {
+		int connections = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+		int messages = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+
+		MllpServer server = null;
+		VersionTwoToFHIR transformer = null;
+		String host = "localhost";
+		int port;
+		if (args.length > 3) {
+			host = args[2];
+			port = Integer.parseInt(args[3]);
+		} else {
+			transformer = new VersionTwoToFHIR();
+			server = new MllpServer(new BatchTransformer(transformer),
+					new BundleSink() {
+						@Override
+						public void accept(TransformResult result) {
+						}
+					}, new MllpServerConfig().setPort(0).setMaxConnections(
+							connections + 16));
+			server.start();
+			port = server.getPort();
+		}
+
+		try {
+			Result result = run(host, port, connections, messages);
+			System.out.println(result);
+		} finally {
+			if (server != null) {
+				server.close();
+				transformer.close();
+			}
+		}
+	}
+
+	/**
+	 * Run the load and wait for every connection to finish
+	 */
+	public static Result run(final String host, final int port,
+			int connections, final int messages) throws InterruptedException {
+		final long[][] latencies = new long[connections][];
+		final AtomicLong failures = new AtomicLong();
+		final CountDownLatch ready = new CountDownLatch(connections);
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(connections);
+		final byte[] frame = ("\u000b" + SampleMessages.MSG_ADTA05 + "\u001c\r")
+				.getBytes(StandardCharsets.ISO_8859_1);
+
+		for (int c = 0; c < connections; c++) {
+			final int connection = c;
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					long[] times = new long[messages];
+					latencies[connection] = times;
+					Socket socket = null;
+					try {
+						socket = new Socket(host, port);
+						socket.setTcpNoDelay(true);
+						OutputStream out = socket.getOutputStream();
+						InputStream in = new BufferedInputStream(socket
+								.getInputStream());
+						ready.countDown();
+						start.await();
+						for (int i = 0; i < messages; i++) {
+							long begin = System.nanoTime();
+							out.write(frame);
+							out.flush();
+							if (!readAck(in)) {
+								failures.incrementAndGet();
+							}
+							times[i] = System.nanoTime() - begin;
+						}
+					} catch (Exception e) {
+						failures.incrementAndGet();
+						ready.countDown();
+					} finally {
+						if (socket != null) {
+							try {
+								socket.close();
+							} catch (IOException e) {
+								// ignore
+							}
+						}
+						done.countDown();
+					}
+				}
+			}, "load-" + c);
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		ready.await();
+		long begin = System.nanoTime();
+		start.countDown();
+		done.await();
+		long elapsed = System.nanoTime() - begin;
+
+		long[] all = new long[connections * messages];
+		int n = 0;
+		for (long[] times : latencies) {
+			if (times != null) {
+				System.arraycopy(times, 0, all, n, times.length);
+				n += times.length;
+			}
+		}
+		Arrays.sort(all, 0, n);
+		return new Result(connections, n, failures.get(), elapsed,
+				percentile(all, n, 0.50), percentile(all, n, 0.99));
+	}
+
+	private static boolean readAck(InputStream in) throws IOException {
+		StringBuilder ack = new StringBuilder(128);
+		int b;
+		while ((b = in.read()) != 0x1c) {
+			if (b < 0) {
+				throw new IOException("Connection closed before ACK");
+			}
+			ack.append((char) b);
+		}
+		in.read(); // CR after the end block
+		return ack.indexOf("MSA|AA|") >= 0;
+	}
+
+	private static long percentile(long[] sorted, int n, double p) {
+		if (n == 0) {
+			return 0;
+		}
+		return sorted[Math.min(n - 1, (int) Math.ceil(p * n) - 1)];
+	}
+
+	public static class Result {
+		public final int connections;
+		public final long messages;
+		public final long failures;
+		public final long elapsedNanos;
+		public final long p50Nanos;
+		public final long p99Nanos;
+
+		Result(int connections, long messages, long failures,
+				long elapsedNanos, long p50Nanos, long p99Nanos) {
+			this.connections = connections;
+			this.messages = messages;
+			this.failures = failures;
+			this.elapsedNanos = elapsedNanos;
+			this.p50Nanos = p50Nanos;
+			this.p99Nanos = p99Nanos;
+		}
+
+		public double messagesPerSecond() {
+			return messages * 1e9 / elapsedNanos;
+		}
+
+		@Override
+		public String toString() {
+			return String.format(
+					"connections=%d messages=%d failures=%d msg/s=%.0f "
+							+ "p50=%.2fms p99=%.2fms", connections, messages,
+					failures, messagesPerSecond(), p50Nanos / 1e6,
+					p99Nanos / 1e6);
+		}
+	}
+}
@@ -0,0 +1,139 @@
+package com.rachirib.hapiexample.mllp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Test;
+
+import com.rachirib.hapiexample.dedup.PatientStateStore;
+import com.rachirib.hapiexample.stream.BundleSink;
+import com.rachirib.hapiexample.transform.BatchTransformer;
+import com.rachirib.hapiexample.transform.SampleMessages;
+import com.rachirib.hapiexample.transform.TransformResult;
+import com.rachirib.hapiexample.transform.VersionTwoToFHIR;
+
+import ca.uhn.fhir.context.FhirContext;
+
+public class TestMllpServer {
+
+	@Test
+	public void test_ack_and_nak() throws Exception {
+		VersionTwoToFHIR transFHIR = new VersionTwoToFHIR();
+		final List<TransformResult> results = Collections
+				.synchronizedList(new ArrayList<TransformResult>());
+		MllpServer server = new MllpServer(new BatchTransformer(transFHIR),
+				new BundleSink() {
+					@Override
+					public void accept(TransformResult result) {
+						results.add(result);
+					}
+				}, new MllpServerConfig().setPort(0));
+		server.start();
+		try {
+			Socket socket = new Socket("localhost", server.getPort());
+			try {
+				OutputStream out = socket.getOutputStream();
+				InputStream in = new BufferedInputStream(socket.getInputStream());
+
+				String ack = send(out, in, SampleMessages.MSG_ADTA05);
+				assertTrue(ack, ack.contains("\rMSA|AA|000001\r"));
+				assertTrue(ack, ack.startsWith("MSH|^~\\&|IFENG||REGADT|MCM|"));
+
+				String nak = send(out, in, SampleMessages.MSG_ADTA05
+						.replace("ADT^A05", "ADT^A05^XYZ_999"));
+				assertTrue(nak, nak.contains("\rMSA|AE|000001|"));
+
+				String garbage = send(out, in, "HELLO");
+				assertTrue(garbage, garbage.contains("\rMSA|AE|"));
+			} finally {
+				socket.close();
+			}
+			assertEquals(Long.valueOf(1), Long.valueOf(server.getAccepted()));
+			assertEquals(Long.valueOf(2), Long.valueOf(server.getErrors()));
+			assertEquals(2, results.size());
+		} finally {
+			server.close();
+			transFHIR.close();
+		}
+	}
+
+	@Test
+	public void test_many_connections() throws Exception {
+		VersionTwoToFHIR transFHIR = new VersionTwoToFHIR();
+		MllpServer server = new MllpServer(new BatchTransformer(transFHIR),
+				new BundleSink() {
+					@Override
+					public void accept(TransformResult result) {
+					}
+				}, new MllpServerConfig().setPort(0).setMaxConnections(20));
+		server.start();
+		try {
+			// more connections than the server accepts at once
+			MllpLoadClient.Result result = MllpLoadClient.run("localhost",
+					server.getPort(), 50, 3);
+			assertEquals(Long.valueOf(0), Long.valueOf(result.failures));
+			assertEquals(Long.valueOf(150), Long.valueOf(result.messages));
+		} finally {
+			server.close();
+			transFHIR.close();
+		}
+	}
+
+	@Test
+	public void test_patient_store_rejected() throws Exception {
+		VersionTwoToFHIR transFHIR = new VersionTwoToFHIR();
+		Path path = Files.createTempFile("patients", ".table");
+		Files.delete(path);
+		PatientStateStore patients = new PatientStateStore(path, 100,
+				new FhirContext());
+		try {
+			new MllpServer(new BatchTransformer(transFHIR,
+					ForkJoinPool.commonPool(), 1, null, patients),
+					new BundleSink() {
+						@Override
+						public void accept(TransformResult result) {
+						}
+					}, new MllpServerConfig().setPort(0));
+			fail("A patient store must be rejected");
+		} catch (IllegalArgumentException expected) {
+		} finally {
+			patients.close();
+			Files.deleteIfExists(path);
+			transFHIR.close();
+		}
+	}
+
+	private static String send(OutputStream out, InputStream in, String msg)
+			throws IOException {
+		out.write(("\u000b" + msg + "\u001c\r")
+				.getBytes(StandardCharsets.ISO_8859_1));
+		out.flush();
+		StringBuilder ack = new StringBuilder();
+		int b;
+		while ((b = in.read()) != 0x1c) {
+			if (b < 0) {
+				throw new IOException("Connection closed before ACK");
+			}
+			if (b == 0x0b) {
+				continue;
+			}
+			ack.append((char) b);
+		}
+		in.read();
+		return ack.toString();
+	}
+}
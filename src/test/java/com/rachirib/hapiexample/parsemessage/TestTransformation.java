@@ -4,9 +4,8 @@ import static org.junit.Assert.assertNotNull;
 
 import org.junit.Test;
 
-import com.rachirib.hapiexample.transform.VersionTwoToFHIR;
+import com.rachirib.hapiexample.transform.TransformerFactory;
 
-import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.model.dstu2.resource.Bundle;
 import ca.uhn.fhir.parser.IParser;
 import ca.uhn.fhir.validation.FhirValidator;
@@ -42,38 +41,34 @@ public class TestTransformation {
 	@Test
 	public void test_transformation() throws HL7Exception {
 
-		VersionTwoToFHIR transFHIR = new VersionTwoToFHIR();
-
-		FhirContext ctx = new FhirContext();
-		Bundle bundle = transFHIR.transformADTA05(MSG_ADTA05, ctx);
+		TransformerFactory factory = TransformerFactory.getDefault();
+		Bundle bundle = factory.getTransformer().transformADTA05(MSG_ADTA05);
 		assertNotNull(bundle);
 
-		printAndValidate(ctx, bundle);
+		printAndValidate(factory, bundle);
 
 	}
 	
 	@Test
 	public void test_transformation_qld() throws HL7Exception {
 
-		VersionTwoToFHIR transFHIR = new VersionTwoToFHIR();
-
-		FhirContext ctx = new FhirContext();
-		Bundle bundle = transFHIR.transformADTA05(MSG_ADTA05_QLD, ctx);
+		TransformerFactory factory = TransformerFactory.getDefault();
+		Bundle bundle = factory.getTransformer().transformADTA05(MSG_ADTA05_QLD);
 		assertNotNull(bundle);
 
-		printAndValidate(ctx, bundle);
+		printAndValidate(factory, bundle);
 
 	}
 
-	private void printAndValidate(FhirContext ctx, Bundle bundle) {
-		IParser parser = ctx.newJsonParser();
-		// IParser parser = ctx.newXmlParser();
+	private void printAndValidate(TransformerFactory factory, Bundle bundle) {
+		IParser parser = factory.newJsonParser();
+		// IParser parser = factory.newXmlParser();
 		parser.setPrettyPrint(true);
 		String encoded = parser.encodeResourceToString(bundle);
 		System.out.println(encoded);
 
 		// Request a validator and apply it
-		FhirValidator val = ctx.newValidator();
+		FhirValidator val = factory.getValidator();
 
 		ValidationResult result = val.validateWithResult(bundle);
 		if (result.isSuccessful()) {
@@ -84,7 +79,7 @@ public class TestTransformation {
 
 			System.out.println("Validation failed");
 			// The result contains an OperationOutcome outlining the failures
-			String results = ctx.newXmlParser().setPrettyPrint(true)
+			String results = factory.newXmlParser().setPrettyPrint(true)
 					.encodeResourceToString(result.getOperationOutcome());
 			System.out.println(results);
 
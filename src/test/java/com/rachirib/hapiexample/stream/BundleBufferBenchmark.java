@@ -0,0 +1,89 @@
+package com.rachirib.hapiexample.stream;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.rachirib.hapiexample.transform.SampleMessages;
+import com.rachirib.hapiexample.transform.TransformResult;
+import com.rachirib.hapiexample.transform.VersionTwoToFHIR;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.hl7v2.HL7Exception;
+
+/**
+ * Bundles of an ADT_A05 written as JSON lines to a discarding stream, by the
+ * sink on the calling thread and through the ring of the off-heap buffer, one
+ * consumer. Compare the allocation with <code>-prof gc</code>.
+ *
+ * Run with <code>mvn -Pbenchmark verify -Djmh.includes=BundleBufferBenchmark</code>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dlog4j.configuration=log4j-benchmark.xml")
+public class BundleBufferBenchmark {
+
+	private static final OutputStream DISCARD = new OutputStream() {
+		@Override
+		public void write(int b) {
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+		}
+	};
+
+	private TransformResult result;
+	private JsonLinesBundleSink sink;
+	private OffHeapBundleBuffer buffer;
+
+	@Setup
+	public void setUp() throws HL7Exception, IOException {
+		FhirContext ctx = new FhirContext();
+		VersionTwoToFHIR transformer = new VersionTwoToFHIR();
+		try {
+			result = TransformResult.success(0, SampleMessages.MSG_ADTA05,
+					transformer.transformADTA05(SampleMessages.MSG_ADTA05));
+		} finally {
+			transformer.close();
+		}
+		sink = new JsonLinesBundleSink(ctx, new BufferedWriter(
+				new OutputStreamWriter(DISCARD, StandardCharsets.UTF_8)));
+		buffer = new OffHeapBundleBuffer(ctx, 64, 16384, 1,
+				OffHeapBundleBuffer.jsonLines(Channels.newChannel(DISCARD)));
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		buffer.close();
+	}
+
+	@Benchmark
+	public void jsonLinesSink() throws IOException {
+		sink.accept(result);
+	}
+
+	@Benchmark
+	public void offHeapBuffer() throws IOException {
+		buffer.accept(result);
+	}
+}
@@ -0,0 +1,164 @@
+package com.rachirib.hapiexample.stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.junit.Test;
+
+import com.rachirib.hapiexample.transform.BatchTransformer;
+import com.rachirib.hapiexample.transform.SampleMessages;
+import com.rachirib.hapiexample.transform.VersionTwoToFHIR;
+
+import ca.uhn.fhir.context.FhirContext;
+
+public class TestHl7MessageReader {
+
+	private static final String A = SampleMessages.MSG_ADTA05;
+	private static final String B = SampleMessages.MSG_ADTA05_QLD;
+
+	@Test
+	public void test_mllp_frames() throws IOException {
+		String input = "\u000b" + A + "\u001c\r\u000b" + B + "\u001c\r";
+		assertMessages(input, 7, A, B);
+	}
+
+	@Test
+	public void test_batch_file_with_lf() throws IOException {
+		String input = "FHS|^~\\&|REGADT|MCM\n" + "BHS|^~\\&|REGADT|MCM\n"
+				+ A.replace("\r", "\n") + B.replace("\r", "\r\n")
+				+ "BTS|2\n" + "FTS|1\n";
+		assertMessages(input, 13, A, B);
+	}
+
+	@Test
+	public void test_mapped_file() throws IOException {
+		File file = File.createTempFile("batch", ".hl7");
+		try {
+			StringBuilder input = new StringBuilder("FHS|^~\\&|REGADT\r");
+			for (int i = 0; i < 50; i++) {
+				input.append(A).append(B);
+			}
+			input.append("FTS|100\r");
+			Files.write(file.toPath(),
+					input.toString().getBytes(StandardCharsets.ISO_8859_1));
+
+			// window smaller than a message, messages span several windows
+			long mapped = mappedBuffers();
+			Hl7MessageReader reader = Hl7MessageReader.openMapped(
+					file.toPath(), StandardCharsets.ISO_8859_1, 100);
+			try {
+				for (int i = 0; i < 50; i++) {
+					assertEquals(A, reader.readMessage());
+					assertEquals(B, reader.readMessage());
+				}
+				assertNull(reader.readMessage());
+				assertEquals(Long.valueOf(2), Long.valueOf(reader
+						.getSkippedSegments()));
+			} finally {
+				reader.close();
+			}
+			// every window unmapped, not left to the collector
+			assertTrue(mappedBuffers() + " > " + mapped,
+					mappedBuffers() <= mapped);
+		} finally {
+			file.delete();
+		}
+	}
+
+	private static long mappedBuffers() {
+		for (BufferPoolMXBean pool : ManagementFactory
+				.getPlatformMXBeans(BufferPoolMXBean.class)) {
+			if ("mapped".equals(pool.getName())) {
+				return pool.getCount();
+			}
+		}
+		return 0;
+	}
+
+	@Test
+	public void test_channel_without_input_yet() throws IOException {
+		final ReadableByteChannel input = Channels
+				.newChannel(new ByteArrayInputStream(("\u000b" + A + "\u001c\r")
+						.getBytes(StandardCharsets.ISO_8859_1)));
+		// as a non-blocking channel, nothing for the first reads
+		ReadableByteChannel channel = new ReadableByteChannel() {
+			private int empty = 5;
+
+			@Override
+			public int read(ByteBuffer dst) throws IOException {
+				return empty-- > 0 ? 0 : input.read(dst);
+			}
+
+			@Override
+			public boolean isOpen() {
+				return input.isOpen();
+			}
+
+			@Override
+			public void close() throws IOException {
+				input.close();
+			}
+		};
+		Hl7MessageReader reader = Hl7MessageReader.open(channel,
+				StandardCharsets.ISO_8859_1);
+		try {
+			assertEquals(A, reader.readMessage());
+			assertNull(reader.readMessage());
+		} finally {
+			reader.close();
+		}
+	}
+
+	@Test
+	public void test_streaming_transformation() throws IOException {
+		String input = "\u000b" + A + "\u001c\r\u000bGARBAGE\u001c\r\u000b" + B
+				+ "\u001c\r";
+		VersionTwoToFHIR transFHIR = new VersionTwoToFHIR();
+		try {
+			FhirContext ctx = new FhirContext();
+			StringWriter out = new StringWriter();
+			JsonLinesBundleSink sink = new JsonLinesBundleSink(ctx, out);
+			StreamingTransformer streaming = new StreamingTransformer(
+					new BatchTransformer(transFHIR), true);
+			long read = streaming.transform(
+					Hl7MessageReader.open(new ByteArrayInputStream(input
+							.getBytes(StandardCharsets.ISO_8859_1)),
+							StandardCharsets.ISO_8859_1), sink);
+			assertEquals(Long.valueOf(3), Long.valueOf(read));
+			assertEquals(Long.valueOf(2), Long.valueOf(sink.getWritten()));
+			assertEquals(Long.valueOf(1), Long.valueOf(sink.getFailed()));
+			assertEquals(2, out.toString().split("\n").length);
+		} finally {
+			transFHIR.close();
+		}
+	}
+
+	private static void assertMessages(String input, int bufferSize,
+			String... expected) throws IOException {
+		Hl7MessageReader reader = Hl7MessageReader.open(Channels
+				.newChannel(new ByteArrayInputStream(input
+						.getBytes(StandardCharsets.ISO_8859_1))),
+				StandardCharsets.ISO_8859_1, bufferSize);
+		try {
+			for (String msg : expected) {
+				assertEquals(msg, reader.readMessage());
+			}
+			assertNull(reader.readMessage());
+		} finally {
+			reader.close();
+		}
+	}
+}
@@ -0,0 +1,177 @@
+package com.rachirib.hapiexample.stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+import com.rachirib.hapiexample.transform.BatchTransformer;
+import com.rachirib.hapiexample.transform.SampleMessages;
+import com.rachirib.hapiexample.transform.TransformResult;
+import com.rachirib.hapiexample.transform.VersionTwoToFHIR;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.model.dstu2.resource.Bundle;
+import ca.uhn.fhir.model.dstu2.resource.Patient;
+
+public class TestOffHeapBundleBuffer {
+
+	private final FhirContext fhirContext = new FhirContext();
+
+	@Test
+	public void test_all_bundles_written() throws Exception {
+		final Map<Long, String> records = new ConcurrentHashMap<Long, String>();
+		OffHeapBundleBuffer buffer = new OffHeapBundleBuffer(fhirContext, 4,
+				512, 3, new OffHeapBundleBuffer.RecordWriter() {
+					@Override
+					public void write(long index, ByteBuffer json) {
+						byte[] bytes = new byte[json.remaining()];
+						json.get(bytes);
+						records.put(Long.valueOf(index), new String(bytes,
+								StandardCharsets.UTF_8));
+					}
+				});
+		for (int i = 0; i < 200; i++) {
+			// two and four byte characters, the last ones over two slots
+			buffer.accept(TransformResult.success(i, null,
+					bundle("Müller😀 " + i, i < 195 ? 1 : 20)));
+		}
+		buffer.accept(TransformResult.failure(200, null, new Exception()));
+		buffer.accept(TransformResult.duplicate(201, null));
+		buffer.close();
+
+		assertEquals(200, records.size());
+		for (int i = 0; i < 200; i++) {
+			assertEquals(
+					fhirContext.newJsonParser().encodeResourceToString(
+							bundle("Müller😀 " + i, i < 195 ? 1 : 20)),
+					records.get(Long.valueOf(i)));
+		}
+		assertEquals(Long.valueOf(200), Long.valueOf(buffer.getWritten()));
+		assertEquals(Long.valueOf(5), Long.valueOf(buffer.getOversized()));
+		assertEquals(Long.valueOf(1), Long.valueOf(buffer.getFailed()));
+		assertEquals(Long.valueOf(1), Long.valueOf(buffer.getDuplicates()));
+	}
+
+	@Test
+	public void test_full_ring_blocks_producer() throws Exception {
+		final CountDownLatch destination = new CountDownLatch(1);
+		final OffHeapBundleBuffer buffer = new OffHeapBundleBuffer(
+				fhirContext, 2, 1024, 1, new OffHeapBundleBuffer.RecordWriter() {
+					@Override
+					public void write(long index, ByteBuffer json)
+							throws IOException {
+						try {
+							destination.await();
+						} catch (InterruptedException e) {
+							throw new IOException(e);
+						}
+					}
+				});
+		final AtomicReference<Exception> error = new AtomicReference<Exception>();
+		Thread producer = new Thread() {
+			@Override
+			public void run() {
+				try {
+					for (int i = 0; i < 10; i++) {
+						buffer.accept(TransformResult.success(i, null,
+								bundle("MASSIE", 1)));
+					}
+					buffer.close();
+				} catch (Exception e) {
+					error.set(e);
+				}
+			}
+		};
+		producer.start();
+		// one bundle in the destination, two in the ring, the producer waits
+		producer.join(500);
+		assertTrue(producer.isAlive());
+		assertEquals(Long.valueOf(0), Long.valueOf(buffer.getWritten()));
+
+		destination.countDown();
+		producer.join(10000);
+		assertEquals(null, error.get());
+		assertEquals(Long.valueOf(10), Long.valueOf(buffer.getWritten()));
+		assertTrue(buffer.getBlockedNanos() > 0);
+	}
+
+	@Test
+	public void test_destination_failure_stops_producer() {
+		OffHeapBundleBuffer buffer = new OffHeapBundleBuffer(fhirContext, 2,
+				1024, 2, new OffHeapBundleBuffer.RecordWriter() {
+					@Override
+					public void write(long index, ByteBuffer json)
+							throws IOException {
+						throw new IOException("Connection reset");
+					}
+				});
+		try {
+			for (int i = 0; i < 100; i++) {
+				buffer.accept(TransformResult.success(i, null,
+						bundle("MASSIE", 1)));
+			}
+			buffer.close();
+			fail("The destination failed");
+		} catch (IOException expected) {
+		}
+	}
+
+	@Test
+	public void test_streaming_to_json_lines() throws IOException {
+		String input = SampleMessages.MSG_ADTA05
+				+ SampleMessages.MSG_ADTA05_QLD + SampleMessages.MSG_ADTA05;
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		VersionTwoToFHIR transFHIR = new VersionTwoToFHIR();
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			OffHeapBundleBuffer buffer = new OffHeapBundleBuffer(fhirContext,
+					2, 16384, 1, OffHeapBundleBuffer.jsonLines(Channels
+							.newChannel(out)));
+			StreamingTransformer streaming = new StreamingTransformer(
+					new BatchTransformer(transFHIR, executor, 2), true);
+			long count = streaming.transform(Hl7MessageReader.open(
+					new ByteArrayInputStream(input
+							.getBytes(StandardCharsets.ISO_8859_1)),
+					StandardCharsets.ISO_8859_1), buffer);
+			buffer.close();
+			assertEquals(Long.valueOf(3), Long.valueOf(count));
+		} finally {
+			executor.shutdown();
+			transFHIR.close();
+		}
+
+		String[] lines = new String(out.toByteArray(), StandardCharsets.UTF_8)
+				.split("\n");
+		assertEquals(3, lines.length);
+		for (String line : lines) {
+			Bundle bundle = fhirContext.newJsonParser().parseResource(
+					Bundle.class, line);
+			assertTrue(bundle.getEntry().size() > 1);
+		}
+	}
+
+	private static Bundle bundle(String family, int patients) {
+		Bundle bundle = new Bundle();
+		for (int i = 0; i < patients; i++) {
+			Patient patient = new Patient();
+			patient.addName().addFamily(family).addGiven("Patient " + i);
+			bundle.addEntry().setResource(patient);
+		}
+		return bundle;
+	}
+}
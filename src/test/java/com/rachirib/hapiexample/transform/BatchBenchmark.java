@@ -0,0 +1,82 @@
+package com.rachirib.hapiexample.transform;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Messages/sec of {@link BatchTransformer} by number of worker threads, to
+ * check the scaling up to the core count
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dlog4j.configuration=log4j-benchmark.xml")
+public class BatchBenchmark {
+
+	private static final int BATCH_SIZE = 1000;
+
+	@Param({ "1", "2", "4", "8" })
+	public int threads;
+
+	private VersionTwoToFHIR transformer;
+	private ForkJoinPool pool;
+	private BatchTransformer batch;
+	private List<String> msgs;
+
+	@Setup
+	public void setUp() {
+		transformer = new VersionTwoToFHIR();
+		pool = new ForkJoinPool(threads);
+		batch = new BatchTransformer(transformer, pool, threads * 4);
+		msgs = new ArrayList<String>(BATCH_SIZE);
+		for (int i = 0; i < BATCH_SIZE; i++) {
+			msgs.add(SampleMessages.MSG_ADTA05);
+		}
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		pool.shutdown();
+		transformer.close();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BATCH_SIZE)
+	public List<TransformResult> forkJoin() {
+		return batch.transform(msgs);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BATCH_SIZE)
+	public int iterator() {
+		final int[] count = new int[1];
+		batch.transform(msgs.iterator(),
+				new Consumer<TransformResult>() {
+					@Override
+					public void accept(TransformResult result) {
+						count[0]++;
+					}
+				});
+		return count[0];
+	}
+}
@@ -0,0 +1,88 @@
+package com.rachirib.hapiexample.transform;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.hl7v2.HL7Exception;
+import ca.uhn.hl7v2.model.v23.message.ADT_A05;
+
+/**
+ * JSON of an ADT_A05 through the FHIR resources and the HAPI encoder, against
+ * the direct writer. The first pair starts from the parsed v2 message, HAPI
+ * or compact, the second from its text.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dlog4j.configuration=log4j-benchmark.xml")
+public class DirectJsonBenchmark {
+
+	@Param({ "ADTA05", "ADTA05_QLD", "NK1_50" })
+	public String shape;
+
+	private String msg;
+	private FhirContext ctx;
+	private IParser jsonParser;
+	private VersionTwoToFHIR transformer;
+	private ADT_A05 adtMsg;
+	private Er7Message er7Msg;
+
+	@Setup
+	public void setUp() throws HL7Exception {
+		msg = SampleMessages.byShape(shape);
+		ctx = new FhirContext();
+		jsonParser = ctx.newJsonParser();
+		transformer = new VersionTwoToFHIR();
+		adtMsg = (ADT_A05) transformer.parse(msg);
+		er7Msg = new Er7Message().load(msg);
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		transformer.close();
+	}
+
+	@Benchmark
+	public String bundleEncoder() throws HL7Exception {
+		return jsonParser.encodeResourceToString(transformer
+				.transformADTA05(adtMsg));
+	}
+
+	@Benchmark
+	public String directWriter() throws HL7Exception, IOException {
+		StringWriter out = new StringWriter(4096);
+		AdtA05JsonWriter.write(er7Msg, out);
+		return out.toString();
+	}
+
+	@Benchmark
+	public String bundleEncoderFromText() throws HL7Exception {
+		return jsonParser.encodeResourceToString(transformer
+				.transformADTA05(msg));
+	}
+
+	@Benchmark
+	public String directWriterFromText() throws HL7Exception, IOException {
+		StringWriter out = new StringWriter(4096);
+		transformer.writeADTA05Json(msg, out);
+		return out.toString();
+	}
+}
@@ -0,0 +1,80 @@
+package com.rachirib.hapiexample.transform;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import ca.uhn.hl7v2.HL7Exception;
+import ca.uhn.hl7v2.model.v23.message.ADT_A05;
+import ca.uhn.hl7v2.model.v23.segment.PID;
+
+/**
+ * Reading the patient fields of an ADT_A05 through the HAPI message tree and
+ * through the compact form of the thread. The allocations per message are
+ * the point, see gc.alloc.rate.norm.
+ *
+ * Run with <code>mvn -Pbenchmark verify -Djmh.includes=Er7MessageBenchmark</code>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dlog4j.configuration=log4j-benchmark.xml")
+public class Er7MessageBenchmark {
+
+	@Param({ "ADTA05", "NK1_50" })
+	public String shape;
+
+	private String msg;
+	private VersionTwoToFHIR transFHIR;
+
+	@Setup
+	public void setUp() {
+		msg = SampleMessages.byShape(shape);
+		transFHIR = new VersionTwoToFHIR();
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		transFHIR.close();
+	}
+
+	@Benchmark
+	public void hapiMessage(Blackhole bh) throws HL7Exception {
+		ADT_A05 adtMsg = (ADT_A05) transFHIR
+				.parse(VersionTwoToFHIR.ADT_A05_SEGMENTS.apply(msg));
+		PID pid = adtMsg.getPID();
+		bh.consume(pid.getPatientIDInternalID()[0].getCx1_ID().getValue());
+		bh.consume(pid.getPatientName()[0].getFamilyName().getValue());
+		bh.consume(pid.getPid7_DateOfBirth().getTimeOfAnEvent().getValue());
+		bh.consume(adtMsg.getNK1All().size());
+	}
+
+	@Benchmark
+	public void compactMessage(Blackhole bh) throws HL7Exception {
+		Er7Message er7 = Er7Message.forThread().load(msg);
+		int pid = er7.segment("PID");
+		bh.consume(er7.get(pid, 3));
+		bh.consume(er7.get(pid, 5));
+		bh.consume(er7.get(pid, 7));
+		int nk1 = 0;
+		for (int i = er7.segment("NK1"); i >= 0; i = er7.segment("NK1", i + 1)) {
+			nk1++;
+		}
+		bh.consume(nk1);
+	}
+}
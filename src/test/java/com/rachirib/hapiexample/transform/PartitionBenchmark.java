@@ -0,0 +1,85 @@
+package com.rachirib.hapiexample.transform;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Messages/sec of {@link PartitionedTransformer} by number of lanes, on a
+ * batch of 100 patients, to check the scaling up to the core count, and the
+ * cost of hashing the patient of a message.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dlog4j.configuration=log4j-benchmark.xml")
+public class PartitionBenchmark {
+
+	private static final int BATCH_SIZE = 1000;
+
+	@Param({ "1", "2", "4", "8" })
+	public int lanes;
+
+	private VersionTwoToFHIR transformer;
+	private PartitionedTransformer partitioned;
+	private List<String> msgs;
+
+	@Setup
+	public void setUp() {
+		transformer = new VersionTwoToFHIR();
+		partitioned = new PartitionedTransformer(new BatchTransformer(
+				transformer, ForkJoinPool.commonPool(), 1), lanes, 64);
+		msgs = new ArrayList<String>(BATCH_SIZE);
+		for (int i = 0; i < BATCH_SIZE; i++) {
+			msgs.add(SampleMessages.MSG_ADTA05.replace("191919^^^GENHOSP",
+					"P" + i % 100 + "^^^GENHOSP"));
+		}
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		partitioned.close();
+		transformer.close();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BATCH_SIZE)
+	public int partitioned() {
+		final AtomicInteger count = new AtomicInteger();
+		partitioned.transform(msgs.iterator(),
+				new Consumer<TransformResult>() {
+					@Override
+					public void accept(TransformResult result) {
+						count.incrementAndGet();
+					}
+				});
+		return count.get();
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.AverageTime)
+	@OutputTimeUnit(TimeUnit.NANOSECONDS)
+	public int patientHash() {
+		return PatientKey.hash(SampleMessages.MSG_ADTA05);
+	}
+}
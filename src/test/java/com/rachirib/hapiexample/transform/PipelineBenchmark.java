@@ -0,0 +1,135 @@
+package com.rachirib.hapiexample.transform;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.model.dstu2.resource.Bundle;
+import ca.uhn.fhir.model.dstu2.resource.Condition;
+import ca.uhn.fhir.model.dstu2.resource.Encounter;
+import ca.uhn.fhir.model.dstu2.resource.MessageHeader;
+import ca.uhn.fhir.model.dstu2.resource.Patient;
+import ca.uhn.fhir.model.dstu2.resource.Practitioner;
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.hl7v2.HL7Exception;
+import ca.uhn.hl7v2.model.Message;
+import ca.uhn.hl7v2.model.v23.message.ADT_A05;
+
+/**
+ * Throughput of the whole v2 to FHIR pipeline and of each stage on its own.
+ * 
+ * Run with <code>mvn -Pbenchmark verify</code> to get the gc profiler
+ * (allocation rate) along with the throughput.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dlog4j.configuration=log4j-benchmark.xml")
+public class PipelineBenchmark {
+
+	@Param({ "ADTA05", "ADTA05_QLD", "NK1_50", "NK1_500" })
+	public String shape;
+
+	private String msg;
+	private FhirContext ctx;
+	private IParser jsonParser;
+	private IParser xmlParser;
+	private VersionTwoToFHIR transformer;
+
+	private ADT_A05 adtMsg;
+	private Practitioner operator;
+	private Patient patient;
+	private List<Encounter.Participant> participants;
+	private Encounter encounter;
+	private Bundle bundle;
+
+	@Setup
+	public void setUp() throws HL7Exception {
+		msg = SampleMessages.byShape(shape);
+		ctx = new FhirContext();
+		jsonParser = ctx.newJsonParser();
+		xmlParser = ctx.newXmlParser();
+		transformer = new VersionTwoToFHIR();
+
+		adtMsg = (ADT_A05) transformer.parse(msg);
+		operator = transformer.transformOperator(adtMsg.getEVN());
+		patient = transformer.transformPatient(adtMsg.getPID(),
+				adtMsg.getNK1All());
+		participants = transformer.transformParticipants(adtMsg.getPV1());
+		encounter = transformer.transformEncounter(adtMsg.getPV1(),
+				adtMsg.getPV2(), adtMsg.getEVN().getEventReasonCode(), patient,
+				participants);
+		bundle = transformer.transformADTA05(msg);
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		transformer.close();
+	}
+
+	@Benchmark
+	public Bundle endToEnd() throws HL7Exception {
+		return transformer.transformADTA05(msg);
+	}
+
+	@Benchmark
+	public Message parse() throws HL7Exception {
+		return transformer.parse(msg);
+	}
+
+	@Benchmark
+	public Message parseSelective() throws HL7Exception {
+		return transformer.parse(VersionTwoToFHIR.ADT_A05_SEGMENTS.apply(msg));
+	}
+
+	@Benchmark
+	public Patient transformPatient() throws HL7Exception {
+		return transformer.transformPatient(adtMsg.getPID(),
+				adtMsg.getNK1All());
+	}
+
+	@Benchmark
+	public Encounter transformEncounter() throws HL7Exception {
+		return transformer.transformEncounter(adtMsg.getPV1(),
+				adtMsg.getPV2(), adtMsg.getEVN().getEventReasonCode(), patient,
+				participants);
+	}
+
+	@Benchmark
+	public MessageHeader transformHeader() throws HL7Exception {
+		return transformer.transformHeader(adtMsg.getMSH(), adtMsg.getEVN()
+				.getEventReasonCode(), operator);
+	}
+
+	@Benchmark
+	public Condition transformCondition() throws HL7Exception {
+		return transformer.transformCondition(encounter, patient,
+				adtMsg.getDG1());
+	}
+
+	@Benchmark
+	public String encodeJson() {
+		return jsonParser.encodeResourceToString(bundle);
+	}
+
+	@Benchmark
+	public String encodeXml() {
+		return xmlParser.encodeResourceToString(bundle);
+	}
+}
@@ -0,0 +1,64 @@
+package com.rachirib.hapiexample.transform;
+
+import java.io.IOException;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ca.uhn.hl7v2.HL7Exception;
+import ca.uhn.hl7v2.model.v23.message.ADT_A05;
+
+/**
+ * Cost of the name-based ids: one id, the ids of an ADT_A05 message, and a
+ * random UUID for comparison.
+ * 
+ * Run with <code>mvn -Pbenchmark verify -Djmh.includes=ResourceIdsBenchmark</code>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dlog4j.configuration=log4j-benchmark.xml")
+public class ResourceIdsBenchmark {
+
+	private VersionTwoToFHIR transFHIR;
+	private ADT_A05 parsed;
+
+	@Setup
+	public void setUp() throws HL7Exception {
+		transFHIR = new VersionTwoToFHIR();
+		parsed = (ADT_A05) transFHIR.parse(SampleMessages.MSG_ADTA05);
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		transFHIR.close();
+	}
+
+	@Benchmark
+	public String uuid() {
+		return ResourceIds.uuid("Patient", "191919", "GENHOSP");
+	}
+
+	@Benchmark
+	public AdtA05Ids messageIds() throws HL7Exception {
+		return AdtA05Ids.of(parsed);
+	}
+
+	@Benchmark
+	public String randomUuid() {
+		return UUID.randomUUID().toString();
+	}
+}
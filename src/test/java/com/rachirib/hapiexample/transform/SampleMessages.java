@@ -0,0 +1,82 @@
+package com.rachirib.hapiexample.transform;
+
+/**
+ * Sample v2 messages shared by tests and benchmarks
+ */
+public final class SampleMessages {
+
+	public static final String MSG_ADTA05 = "MSH|^~\\&|REGADT|MCM|IFENG||199601061000||ADT^A05|000001|P|2.3|||\r"
+			+ "EVN|A05|199601061000|199601101400|01|12312^SMITH^JHON^^^MD|199601061000\r"
+			+ "PID|||191919^^^GENHOSP|253763|MASSIE^JAMES^A||19560129|M|||171 ZOBERLEIN^^ISHPEMING^MI^49849^\"\"^||(900)485-5344|(900)485-5344||S|C|10199925|371-66-9256||\r"
+			+ "NK1|1|MASSIE^ELLEN|SPOUSE|171 ZOBERLEIN^^ISHPEMING^MI^49849^\"\"^|(900)485-5344|(900)545-1234~(900)545-1200|EC^EMERGENCY CONTACT\r"
+			+ "NK1|2|MASSIE^MARYLOU|MOTHER|300 ZOBERLEIN^^ISHPEMING^MI^49849^\"\"^|(900)485-5344|(900)545-1234~(900)545-1200|EC^EMERGENCY CONTACT\r"
+			+ "NK1|3|\r"
+			+ "NK1|4|||123 INDUSTRY WAY^^ISHPEMING^MI^49849^\"\"^||(900)545-1200|EM^EMPLOYER|19940605||PROGRAMMER|||ACME SOFTWARE COMPANY\r"
+			+ "PV1||O|PREOP^101^1^1^^^S|R|||0148^ADDISON,JAMES|0148^ADDISON,JAMES|0148^ADDISON,JAMES|AMB||||||||0148^ADDISON,JAMES|S|1400|A|||||||||||||||||GENHOSP||||||\r"
+			+ "PV2||||||||199601101400||||||||||||||||||||||||||199601101400\r"
+			+ "OBX||ST|1010.1^BODY WEIGHT||62|kg\r"
+			+ "OBX||ST|1010.1^HEIGHT||190|cm\r"
+			+ "DG1|1||309567004^Toe problem^SNM|||A\r"
+			+ "GT1|1||MASSIE^JAMES^\"\"^\"\"^\"\"\"^\"\"^||171 ZOBERLEIN^^ISHPEMING^MI^49849^\"\"^|(900)485-5344|(900)485-5344||||SELF|371-66-925||||MOOSES AUTOCLINIC|171 ZOBERLEIN^^ISHPEMING^MI^49849^\"\"|(900)485-5344\r"
+			+ "IN1|1|0|BC1|BLUE CROSS|171 ZOBERLEIN^^ISHPEMING^M149849^\"\"^||(900)485-5344|90||||||50 OK\r"
+			+ "IN1|2|\"\"|\"\"\r";
+
+	public static final String MSG_ADTA05_QLD = "MSH|^~\\&|REGADT|MCM|IFENG||199601061000||ADT^A05|000001|P|2.3|||\r"
+			+ "EVN|A05|199601061000|199601101400|01|12312^SMITH^LINDSEY|199601061000\r"
+			+ "PID|||191919^^^GENHOSP|253763|SPARROW^ROBBERT^A||19560129|M|||171 ZOBERLEIN^^ISHPEMING^MI^49849^\"\"||(900)485-5344|(900)583-1221||M|C|10199925|371-66-9256\r"
+			+ "PV1||O||R|45676688||0148^ADDISON,JAMES|||AMB\r"
+			+ "DG1|1||309567004^Toe problem^SNM|||A|\r";
+
+	/**
+	 * Build an ADT_A05 like {@link #MSG_ADTA05} with the given number of NK1
+	 * segments
+	 * 
+	 * @param nextOfKin
+	 * @return
+	 */
+	public static String withNextOfKin(int nextOfKin) {
+		String[] segments = MSG_ADTA05.split("\r");
+		StringBuilder msg = new StringBuilder(MSG_ADTA05.length() + nextOfKin
+				* 160);
+		for (String segment : segments) {
+			if (segment.startsWith("NK1|")) {
+				continue;
+			}
+			if (segment.startsWith("PV1|")) {
+				for (int i = 1; i <= nextOfKin; i++) {
+					msg.append("NK1|").append(i).append("|MASSIE^CONTACT")
+							.append(i).append("|SPOUSE|")
+							.append(i)
+							.append(" ZOBERLEIN^^ISHPEMING^MI^49849^\"\"^")
+							.append("|(900)485-5344|(900)545-1234~(900)545-1200")
+							.append("|EC^EMERGENCY CONTACT\r");
+				}
+			}
+			msg.append(segment).append('\r');
+		}
+		return msg.toString();
+	}
+
+	/**
+	 * Resolve a message by the names used in benchmark parameters:
+	 * ADTA05, ADTA05_QLD or NK1_&lt;count&gt;
+	 * 
+	 * @param shape
+	 * @return
+	 */
+	public static String byShape(String shape) {
+		if ("ADTA05".equals(shape)) {
+			return MSG_ADTA05;
+		}
+		if ("ADTA05_QLD".equals(shape)) {
+			return MSG_ADTA05_QLD;
+		}
+		if (shape.startsWith("NK1_")) {
+			return withNextOfKin(Integer.parseInt(shape.substring(4)));
+		}
+		throw new IllegalArgumentException("Unknown message shape " + shape);
+	}
+
+	private SampleMessages() {
+	}
+}
@@ -0,0 +1,98 @@
+package com.rachirib.hapiexample.transform;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.model.dstu2.resource.Bundle;
+import ca.uhn.fhir.validation.ValidationResult;
+import ca.uhn.hl7v2.HL7Exception;
+
+/**
+ * Transform, encode and validate one ADT_A05. The single shot benchmarks
+ * measure the first message of a fresh JVM, with a context built on demand
+ * (previous behaviour of the tests) or warmed up by a
+ * {@link TransformerFactory} before the message arrives. The throughput one
+ * is the steady state of the factory.
+ * 
+ * Run with <code>mvn -Pbenchmark verify -Djmh.includes=StartupBenchmark</code>
+ */
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(value = 5, jvmArgsAppend = "-Dlog4j.configuration=log4j-benchmark.xml")
+public class StartupBenchmark {
+
+	/**
+	 * Built before the measurement, only by the benchmarks using it
+	 */
+	@State(Scope.Benchmark)
+	public static class Warm {
+
+		private TransformerFactory factory;
+
+		@Setup
+		public void setUp() {
+			factory = new TransformerFactory();
+		}
+
+		@TearDown
+		public void tearDown() throws IOException {
+			factory.close();
+		}
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.SingleShotTime)
+	@Warmup(iterations = 0)
+	@Measurement(iterations = 1)
+	public ValidationResult coldFirstMessage() throws HL7Exception,
+			IOException {
+		FhirContext ctx = new FhirContext();
+		VersionTwoToFHIR transformer = new VersionTwoToFHIR();
+		try {
+			Bundle bundle = transformer
+					.transformADTA05(SampleMessages.MSG_ADTA05);
+			ctx.newJsonParser().encodeResourceToString(bundle);
+			return ctx.newValidator().validateWithResult(bundle);
+		} finally {
+			transformer.close();
+		}
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.SingleShotTime)
+	@Warmup(iterations = 0)
+	@Measurement(iterations = 1)
+	public ValidationResult warmFirstMessage(Warm warm) throws HL7Exception {
+		return transformAndValidate(warm.factory);
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.SECONDS)
+	@Fork(value = 1, jvmArgsAppend = "-Dlog4j.configuration=log4j-benchmark.xml")
+	@Warmup(iterations = 5, time = 1)
+	@Measurement(iterations = 5, time = 1)
+	public ValidationResult steadyState(Warm warm) throws HL7Exception {
+		return transformAndValidate(warm.factory);
+	}
+
+	private static ValidationResult transformAndValidate(
+			TransformerFactory factory) throws HL7Exception {
+		Bundle bundle = factory.getTransformer().transformADTA05(
+				SampleMessages.MSG_ADTA05);
+		factory.newJsonParser().encodeResourceToString(bundle);
+		return factory.getValidator().validateWithResult(bundle);
+	}
+}
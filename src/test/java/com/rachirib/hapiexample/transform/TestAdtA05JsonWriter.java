@@ -0,0 +1,223 @@
+package com.rachirib.hapiexample.transform;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.hl7v2.ErrorCode;
+import ca.uhn.hl7v2.HL7Exception;
+
+public class TestAdtA05JsonWriter {
+
+	private static final String MSH = "MSH|^~\\&|APP|FAC|RCV||199601061000-0500||ADT^A05|CTL\\E\\1|P|2.3\r";
+
+	private static VersionTwoToFHIR transFHIR;
+	private static FhirContext ctx;
+
+	@BeforeClass
+	public static void setUp() {
+		transFHIR = new VersionTwoToFHIR();
+		ctx = new FhirContext();
+	}
+
+	@AfterClass
+	public static void tearDown() throws Exception {
+		transFHIR.close();
+	}
+
+	@Test
+	public void test_sample_messages() throws Exception {
+		assertSameJson(SampleMessages.MSG_ADTA05);
+		assertSameJson(SampleMessages.MSG_ADTA05_QLD);
+		assertSameJson(SampleMessages.withNextOfKin(20));
+	}
+
+	@Test
+	public void test_empty_fields() throws Exception {
+		assertSameJson("MSH|^~\\&|||||||ADT^A05|||2.3\rEVN|\rPID|||1\rPV1||Z\r");
+		assertSameJson("MSH|^~\\&|A|B|C||19960106||ADT^A05|1|P|2.3\r"
+				+ "EVN|A05||| |\rPID|||1^^^^X| |\r"
+				+ "PV1|| |  ||||0148|||A/\r"
+				+ "PV2||||||||||||||||||||||||| \r");
+		assertSameJson(MSH + "EVN|A05|||\rPID|||1|||||||||||| \r"
+				+ "NK1|1|\rNK1|2| |\rPV1||O|||||||| \r");
+	}
+
+	@Test
+	public void test_all_fields() throws Exception {
+		String pv1 = segment("PV1", 2, "I", 3, "PC^RM^BD^FAC^^^BLD^FL", 4, "U",
+				7, "99^SMITH^JOHN^^JR^DR", 10, "#LOCAL", 13, "Y", 14, "7", 15,
+				"A~B", 16, "Q", 19, "V1^^^GEN", 36, "WELL", 38, "ZZ", 44,
+				"199601061000", 45, "199601071230", 50, "ALT9");
+		assertSameJson(MSH
+				+ segment("EVN", 1, "A05", 4, "02", 5,
+						"7^O\"BRIEN^ANN\tE^^JR^DR")
+				+ segment("PID", 3, "42^^^GEN&urn:oid:1.2.3^MR", 5,
+						"M\u00fcLLER^J\u00f6RG^\"\"", 7, "19560129083000", 8,
+						"X", 11, "1 MAIN\u0001ST^^TOWN^ST^12345^US", 13,
+						"(555)555-1234", 14, "(555)555-5678", 16, "W", 24,
+						"Y", 30, "Y")
+				+ segment("NK1", 1, "1", 2, "^ONLYGIVEN", 15, "F")
+				+ segment("NK1", 1, "2", 2, "FAM^", 3, "XYZ", 4,
+						"2 MAIN^^TOWN", 5, "(555)555-1111", 6,
+						"(555)555-2222", 13, "ORG \\T\\ CO", 15, "M")
+				+ pv1 + segment("PV2", 25, "R")
+				+ segment("DG1", 1, "1", 3, "309567004^Toe problem^SNM"));
+		assertSameJson(MSH + "EVN|A05\rPID|||42\r"
+				+ pv1.replace("#LOCAL", "ORG/7/_history/2"));
+		assertSameJson(MSH + "EVN|A05\rPID|||42\r"
+				+ pv1.replace("#LOCAL", "GEN SURG"));
+	}
+
+	@Test
+	public void test_operator_also_doctor() throws Exception {
+		assertSameJson(SampleMessages.MSG_ADTA05.replace(
+				"|12312^SMITH^JHON^^^MD|", "|0148^ADDISON,JAMES|"));
+		assertSameJson(SampleMessages.MSG_ADTA05.replace(
+				"|12312^SMITH^JHON^^^MD|", "|0148^ADDISON^J^^^^^^GEN&1.2&ISO|"));
+	}
+
+	@Test
+	public void test_separators_and_repetitions() throws Exception {
+		assertSameJson("MSH#$%*@#APP#FAC#RCV##199601061000##ADT$A05#1*F*2#P#2.3\r\n"
+				+ "EVN#A05###02#7$O*S*BRIEN\r\n"
+				+ "PID###42$$$GEN@1.2@ISO%43$$$OTHER##A$B%C$D\r\n"
+				+ "PV1##I#PC$RM$$FAC@X####1$SMITH%2$JONES##1$SMITH"
+				+ "########%1$SMITH%3$DOE\r\n");
+	}
+
+	/**
+	 * Every field of the sample messages emptied, then repeated: the two
+	 * paths write the same JSON or both reject the message
+	 */
+	@Test
+	public void test_each_field_varied() throws Exception {
+		for (String sample : new String[] { SampleMessages.MSG_ADTA05,
+				SampleMessages.MSG_ADTA05_QLD }) {
+			String[] segments = sample.split("\r");
+			for (int s = 0; s < segments.length; s++) {
+				String[] fields = segments[s].split("\\|", -1);
+				// MSH-2 and MSH-12 choose the parser, not the mapping
+				int first = s == 0 ? 2 : 1;
+				for (int f = first; f < fields.length; f++) {
+					if (s == 0 && f == 11) {
+						continue;
+					}
+					String field = fields[f];
+					fields[f] = "";
+					assertSameOutcome(join(segments, s, fields));
+					fields[f] = field + "~" + field;
+					assertSameOutcome(join(segments, s, fields));
+					fields[f] = field;
+				}
+			}
+		}
+	}
+
+	@Test
+	public void test_other_version_rejected() throws Exception {
+		String msg = SampleMessages.MSG_ADTA05.replace("|P|2.3|", "|P|2.4|");
+		try {
+			transFHIR.writeADTA05Json(msg, new StringWriter());
+			fail("Only v2.3 messages are mapped");
+		} catch (HL7Exception e) {
+			assertEquals(ErrorCode.UNSUPPORTED_VERSION_ID, e.getError());
+		}
+		// as by the HAPI path
+		try {
+			transFHIR.transformADTA05(msg);
+			fail("Only v2.3 messages are mapped");
+		} catch (HL7Exception e) {
+			assertEquals(ErrorCode.UNSUPPORTED_VERSION_ID, e.getError());
+		}
+	}
+
+	@Test
+	public void test_output_stream_is_utf8() throws Exception {
+		String msg = MSH + "EVN|A05\rPID|||42||M\u00fcLLER\rPV1||O\r";
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		transFHIR.writeADTA05Json(msg, bytes);
+		assertEquals(encode(msg),
+				new String(bytes.toByteArray(), StandardCharsets.UTF_8));
+	}
+
+	private static void assertSameJson(String msg) throws Exception {
+		StringWriter direct = new StringWriter();
+		transFHIR.writeADTA05Json(msg, direct);
+		assertEquals(encode(msg), direct.toString());
+	}
+
+	private static void assertSameOutcome(String msg) throws Exception {
+		String expected;
+		try {
+			expected = encode(msg);
+		} catch (HL7Exception e) {
+			try {
+				transFHIR.writeADTA05Json(msg, new StringWriter());
+				fail("Rejected by the HAPI path: " + msg);
+			} catch (HL7Exception rejected) {
+			}
+			return;
+		}
+		StringWriter direct = new StringWriter();
+		transFHIR.writeADTA05Json(msg, direct);
+		assertEquals(msg, expected, direct.toString());
+	}
+
+	/**
+	 * @return the message with the fields of one segment replaced
+	 */
+	private static String join(String[] segments, int segment, String[] fields) {
+		StringBuilder msg = new StringBuilder();
+		for (int i = 0; i < segments.length; i++) {
+			if (i != segment) {
+				msg.append(segments[i]);
+			} else {
+				for (int f = 0; f < fields.length; f++) {
+					if (f > 0) {
+						msg.append('|');
+					}
+					msg.append(fields[f]);
+				}
+			}
+			msg.append('\r');
+		}
+		return msg.toString();
+	}
+
+	private static String encode(String msg) throws Exception {
+		return ctx.newJsonParser().encodeResourceToString(
+				transFHIR.transformADTA05(msg));
+	}
+
+	/**
+	 * @param name
+	 * @param fields
+	 *            field number followed by its value
+	 * @return the segment and its separator
+	 */
+	private static String segment(String name, Object... fields) {
+		int count = (Integer) fields[fields.length - 2];
+		String[] values = new String[count + 1];
+		values[0] = name;
+		for (int i = 0; i < fields.length; i += 2) {
+			values[(Integer) fields[i]] = (String) fields[i + 1];
+		}
+		StringBuilder segment = new StringBuilder(name);
+		for (int i = 1; i <= count; i++) {
+			segment.append('|');
+			if (values[i] != null) {
+				segment.append(values[i]);
+			}
+		}
+		return segment.append('\r').toString();
+	}
+}
@@ -0,0 +1,86 @@
+package com.rachirib.hapiexample.transform;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+
+import org.junit.Test;
+
+import ca.uhn.fhir.model.dstu2.resource.MessageHeader;
+
+public class TestBatchTransformer {
+
+	private static final String MSG_NOT_HL7 = "NOT A MESSAGE";
+
+	@Test
+	public void test_batch_keeps_order_and_errors() throws Exception {
+		VersionTwoToFHIR transFHIR = new VersionTwoToFHIR();
+		try {
+			List<String> msgs = sampleBatch(200);
+			List<TransformResult> results = transFHIR.transformBatch(msgs);
+			assertResults(msgs, results);
+		} finally {
+			transFHIR.close();
+		}
+	}
+
+	@Test
+	public void test_bounded_executor_keeps_order() throws Exception {
+		VersionTwoToFHIR transFHIR = new VersionTwoToFHIR();
+		ExecutorService executor = Executors.newFixedThreadPool(3);
+		try {
+			BatchTransformer batch = new BatchTransformer(transFHIR, executor,
+					5);
+			List<String> msgs = sampleBatch(100);
+			final List<TransformResult> results = new ArrayList<TransformResult>();
+			batch.transform(msgs.iterator(), new Consumer<TransformResult>() {
+				@Override
+				public void accept(TransformResult result) {
+					results.add(result);
+				}
+			});
+			assertResults(msgs, results);
+		} finally {
+			executor.shutdown();
+			transFHIR.close();
+		}
+	}
+
+	private static List<String> sampleBatch(int size) {
+		List<String> msgs = new ArrayList<String>();
+		for (int i = 0; i < size; i++) {
+			if (i % 10 == 7) {
+				msgs.add(MSG_NOT_HL7);
+			} else {
+				msgs.add(SampleMessages.MSG_ADTA05.replace("|000001|", "|"
+						+ i + "|"));
+			}
+		}
+		return msgs;
+	}
+
+	private static void assertResults(List<String> msgs,
+			List<TransformResult> results) {
+		assertEquals(msgs.size(), results.size());
+		for (int i = 0; i < msgs.size(); i++) {
+			TransformResult result = results.get(i);
+			assertEquals(Long.valueOf(i), Long.valueOf(result.getIndex()));
+			if (i % 10 == 7) {
+				assertFalse(result.isSuccess());
+				assertNotNull(result.getError());
+			} else {
+				assertTrue(result.isSuccess());
+				MessageHeader header = (MessageHeader) result.getBundle()
+						.getEntry().get(0).getResource();
+				assertEquals(String.valueOf(i), header.getIdentifier());
+			}
+		}
+	}
+}
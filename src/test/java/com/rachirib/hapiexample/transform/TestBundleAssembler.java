@@ -0,0 +1,185 @@
+package com.rachirib.hapiexample.transform;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.model.api.IResource;
+import ca.uhn.fhir.model.dstu2.composite.ResourceReferenceDt;
+import ca.uhn.fhir.model.dstu2.resource.Bundle;
+import ca.uhn.fhir.model.dstu2.resource.Encounter;
+import ca.uhn.fhir.model.dstu2.resource.Location;
+import ca.uhn.fhir.model.dstu2.resource.Patient;
+import ca.uhn.fhir.model.dstu2.resource.Practitioner;
+import ca.uhn.fhir.model.dstu2.valueset.BundleTypeEnum;
+
+public class TestBundleAssembler {
+
+	private static VersionTwoToFHIR transFHIR;
+
+	@BeforeClass
+	public static void setUp() {
+		transFHIR = new VersionTwoToFHIR();
+	}
+
+	@AfterClass
+	public static void tearDown() throws Exception {
+		transFHIR.close();
+	}
+
+	@Test
+	public void test_every_reference_resolved_once() throws Exception {
+		Bundle bundle = transFHIR.transformADTA05(SampleMessages.MSG_ADTA05);
+		Set<String> entries = new HashSet<String>();
+		for (Bundle.Entry entry : bundle.getEntry()) {
+			assertTrue(entries.add(entry.getBase()
+					+ entry.getResource().getId().getIdPart()));
+		}
+		// header, operator, patient, encounter, doctor, 5 locations,
+		// service, condition
+		assertEquals(12, entries.size());
+		for (Bundle.Entry entry : bundle.getEntry()) {
+			for (ResourceReferenceDt reference : entry.getResource()
+					.getAllPopulatedChildElementsOfType(
+							ResourceReferenceDt.class)) {
+				if (reference.getResource() != null) {
+					assertTrue(reference.getReference().getValue(),
+							entries.contains(reference.getReference()
+									.getValue()));
+				}
+			}
+		}
+		assertFalse(new FhirContext().newJsonParser()
+				.encodeResourceToString(bundle).contains("contained"));
+	}
+
+	@Test
+	public void test_same_doctor_one_participant() throws Exception {
+		String msg = SampleMessages.MSG_ADTA05.replace(
+				"|AMB||||||||0148^ADDISON,JAMES|",
+				"|AMB|||||||0148^ADDISON,JAMES||");
+		Bundle bundle = transFHIR.transformADTA05(msg);
+		assertEquals(1, resources(bundle, Practitioner.class).size() - 1);
+		Encounter.Participant participant = resources(bundle,
+				Encounter.class).get(0).getParticipantFirstRep();
+		List<String> roles = new ArrayList<String>();
+		for (int i = 0; i < participant.getType().size(); i++) {
+			roles.add(participant.getType().get(i).getCodingFirstRep()
+					.getCode());
+		}
+		assertEquals("[ATND, REF, CON, ADM]", roles.toString());
+
+		bundle = transFHIR.transformADTA05(msg.replace(
+				"|0148^ADDISON,JAMES|AMB|", "|0149^BOYD,ANN|AMB|"));
+		assertEquals(2, resources(bundle, Practitioner.class).size() - 1);
+		assertEquals(2, resources(bundle, Encounter.class).get(0)
+				.getParticipant().size());
+	}
+
+	@Test
+	public void test_practitioner_named_by_identifier() throws Exception {
+		String msg = SampleMessages.MSG_ADTA05;
+		String doctor = id(resources(transFHIR.transformADTA05(msg),
+				Practitioner.class).get(1));
+		// another spelling of the name, the same doctor
+		List<Practitioner> practitioners = resources(
+				transFHIR.transformADTA05(msg.replace("|0148^ADDISON,JAMES|AMB|",
+						"|0148^ADDISON^JAMES|AMB|")), Practitioner.class);
+		assertEquals(doctor, id(practitioners.get(1)));
+		assertEquals(2, practitioners.size());
+		// another assigning authority, another doctor
+		practitioners = resources(
+				transFHIR.transformADTA05(msg.replace("|0148^ADDISON,JAMES|AMB|",
+						"|0148^ADDISON,JAMES^^^^^^^OTHER|AMB|")),
+				Practitioner.class);
+		assertEquals(3, practitioners.size());
+		// the operator is also the doctor: one entry
+		Bundle bundle = transFHIR.transformADTA05(msg.replace(
+				"|12312^SMITH^JHON^^^MD|", "|0148^ADDISON,JAMES|"));
+		practitioners = resources(bundle, Practitioner.class);
+		assertEquals(1, practitioners.size());
+		assertEquals(doctor, id(practitioners.get(0)));
+		assertEquals(ResourceIds.URN_UUID + doctor, resources(bundle,
+				Encounter.class).get(0).getParticipantFirstRep()
+				.getIndividual().getReference().getValue());
+	}
+
+	@Test
+	public void test_location_hierarchy() throws Exception {
+		List<Location> bed = resources(
+				transFHIR.transformADTA05(SampleMessages.MSG_ADTA05),
+				Location.class);
+		List<Location> otherBed = resources(
+				transFHIR.transformADTA05(SampleMessages.MSG_ADTA05.replace(
+						"PREOP^101^1^1^^^S", "PREOP^101^2^1^^^S")),
+				Location.class);
+		List<Location> otherBuilding = resources(
+				transFHIR.transformADTA05(SampleMessages.MSG_ADTA05.replace(
+						"PREOP^101^1^1^^^S", "PREOP^101^1^1^^^N")),
+				Location.class);
+
+		// bed, room, point of care, building, facility
+		assertEquals(5, bed.size());
+		assertEquals("bd", bed.get(0).getPhysicalType().getCodingFirstRep()
+				.getCode());
+		for (int i = 0; i < 4; i++) {
+			assertEquals(ResourceIds.URN_UUID
+					+ bed.get(i + 1).getId().getIdPart(), bed.get(i)
+					.getPartOf().getReference().getValue());
+		}
+		assertNull(bed.get(4).getPartOf().getResource());
+
+		assertFalse(id(bed.get(0)).equals(id(otherBed.get(0))));
+		for (int i = 1; i < 5; i++) {
+			assertEquals(id(bed.get(i)), id(otherBed.get(i)));
+		}
+		// same room number in another building
+		assertFalse(id(bed.get(1)).equals(id(otherBuilding.get(1))));
+		assertEquals(id(bed.get(4)), id(otherBuilding.get(4)));
+	}
+
+	@Test
+	public void test_resource_without_id() {
+		BundleAssembler assembler = new BundleAssembler("b",
+				BundleTypeEnum.MESSAGE);
+		Patient patient = new Patient();
+		patient.setId("p");
+		Encounter encounter = new Encounter();
+		encounter.setId("e");
+		encounter.setPatient(ResourceIds.reference(patient));
+		assembler.add(encounter).add(patient).add(encounter);
+		assertEquals(2, assembler.size());
+		try {
+			assembler.add(new Patient());
+			fail("Resource without id must be rejected");
+		} catch (IllegalArgumentException expected) {
+		}
+	}
+
+	private static String id(IResource resource) {
+		return resource.getId().getIdPart();
+	}
+
+	private static <T extends IResource> List<T> resources(Bundle bundle,
+			Class<T> type) {
+		List<T> resources = new ArrayList<T>();
+		for (Bundle.Entry entry : bundle.getEntry()) {
+			if (type.isInstance(entry.getResource())) {
+				resources.add(type.cast(entry.getResource()));
+			}
+		}
+		return resources;
+	}
+}
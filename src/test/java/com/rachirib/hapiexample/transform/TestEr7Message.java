@@ -0,0 +1,162 @@
+package com.rachirib.hapiexample.transform;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import ca.uhn.hl7v2.HL7Exception;
+import ca.uhn.hl7v2.model.Primitive;
+import ca.uhn.hl7v2.model.Segment;
+import ca.uhn.hl7v2.model.v23.message.ADT_A05;
+import ca.uhn.hl7v2.util.Terser;
+
+public class TestEr7Message {
+
+	private static VersionTwoToFHIR transFHIR;
+
+	@BeforeClass
+	public static void setUp() {
+		transFHIR = new VersionTwoToFHIR();
+	}
+
+	@AfterClass
+	public static void tearDown() throws Exception {
+		transFHIR.close();
+	}
+
+	@Test
+	public void test_same_values_as_hapi() throws Exception {
+		assertSameValues(SampleMessages.MSG_ADTA05);
+		assertSameValues(SampleMessages.MSG_ADTA05_QLD);
+		assertSameValues("MSH|^~\\&|A&1.2&ISO|B|||||ADT^A05|C\\F\\1|P|2.3\r\n"
+				+ "EVN|A05|||~|7^X\\S\\Y&Z\r\n"
+				+ "PID|||1^^^GEN&urn:oid:1&ISO~2^^^OTHER||A^B^C~D^E||||||"
+				+ "1 ST\\T\\^^TOWN\r\n"
+				+ "PV1||O|PC^RM^BD^FAC&1&X|||||1^A~2^B~~3^C\r\n");
+	}
+
+	@Test
+	public void test_segments_and_fields() throws HL7Exception {
+		Er7Message msg = new Er7Message().load(SampleMessages.MSG_ADTA05);
+		assertEquals(15, msg.getSegmentCount());
+		assertEquals(0, msg.segment("MSH"));
+		int nk1 = msg.segment("NK1");
+		assertEquals(3, nk1);
+		assertEquals(4, msg.segment("NK1", nk1 + 1));
+		assertEquals(-1, msg.segment("ZZZ"));
+		assertTrue(msg.isSegment(nk1, "NK1"));
+		assertFalse(msg.isSegment(nk1, "NK"));
+
+		assertEquals("|", msg.get(0, 1));
+		assertEquals("^~\\&", msg.get(0, 2));
+		assertEquals("A05", msg.get(0, 9, 2));
+		assertEquals(15, msg.getFieldCount(0));
+		assertEquals(2, msg.getFieldCount(msg.segment("NK1", 5)));
+		assertEquals(2, msg.getRepetitionCount(nk1, 6));
+		assertEquals("(900)545-1200", msg.get(nk1, 6, 1, 1, 1));
+		assertEquals(0, msg.getRepetitionCount(nk1, 8));
+		assertEquals(0, msg.getRepetitionCount(nk1, 99));
+		assertNull(msg.get(-1, 1));
+		assertNull(msg.get(nk1, 99));
+		assertNull(msg.get(nk1, 2, 3));
+		assertEquals("GENHOSP", msg.getEncoded(msg.segment("PID"), 3, 0, 4));
+		assertEquals("", msg.getEncoded(msg.segment("PID"), 3, 0, 2));
+	}
+
+	@Test
+	public void test_reused_between_messages() throws HL7Exception {
+		Er7Message msg = Er7Message.forThread();
+		assertSame(msg, Er7Message.forThread());
+		msg.load(SampleMessages.withNextOfKin(200));
+		assertEquals(211, msg.getSegmentCount());
+		msg.load("MSH#$%*@#APP#FAC\nPID###1$$$A@B%2$$$C\n");
+		assertEquals(2, msg.getSegmentCount());
+		assertEquals("#", msg.get(0, 1));
+		assertEquals("APP", msg.get(0, 3));
+		assertEquals("A$B", msg.getEncoded(1, 3, 0, 4));
+		assertEquals("2", msg.get(1, 3, 1, 1, 1));
+		assertEquals(-1, msg.segment("NK1"));
+		try {
+			msg.load("PID|||1\r");
+			fail("A message must start with MSH");
+		} catch (HL7Exception expected) {
+		}
+	}
+
+	@Test
+	public void test_large_buffers_released() throws HL7Exception {
+		Er7Message msg = new Er7Message();
+		StringBuilder large = new StringBuilder(
+				"MSH|^~\\&|APP|FAC|||||ADT^A05|1|P|2.3\r");
+		while (large.length() <= Er7Message.RETAINED_CHARS) {
+			large.append("NTE|1||ABCDEFGHIJKLMNOPQRSTUVWXYZ\r");
+		}
+		msg.load(large.toString());
+		assertTrue(msg.getCapacity() > Er7Message.RETAINED_CHARS);
+		msg.release();
+		assertEquals(0, msg.getSegmentCount());
+		assertTrue(msg.getCapacity() <= Er7Message.RETAINED_CHARS);
+		assertEquals(-1, msg.segment("MSH"));
+
+		msg.load(SampleMessages.MSG_ADTA05);
+		assertEquals("MASSIE", msg.get(msg.segment("PID"), 5));
+		int capacity = msg.getCapacity();
+		msg.release();
+		assertEquals(capacity, msg.getCapacity());
+	}
+
+	/**
+	 * Every component and subcomponent of the segments of the ADT_A05
+	 * mapping, read by HAPI and from the compact form
+	 */
+	private static void assertSameValues(String text) throws HL7Exception {
+		ADT_A05 hapi = (ADT_A05) transFHIR.parse(text);
+		Er7Message msg = new Er7Message().load(text);
+		List<Segment> segments = new ArrayList<Segment>();
+		segments.add(hapi.getMSH());
+		segments.add(hapi.getEVN());
+		segments.add(hapi.getPID());
+		segments.addAll(hapi.getNK1All());
+		segments.add(hapi.getPV1());
+		segments.add(hapi.getPV2());
+		segments.add(hapi.getDG1());
+		int nk1 = -1;
+		for (Segment segment : segments) {
+			String name = segment.getName();
+			int index = "NK1".equals(name) ? nk1 = msg.segment(name, nk1 + 1)
+					: msg.segment(name);
+			for (int field = 1; field <= segment.numFields(); field++) {
+				int repetitions = segment.getField(field).length;
+				// without the structure, a field repeats when it is sent so
+				if (segment.getMaxCardinality(field) != 1) {
+					assertEquals(name + "-" + field, repetitions,
+							msg.getRepetitionCount(index, field));
+				}
+				for (int rep = 0; rep < repetitions; rep++) {
+					// the value of a primitive field is its first component,
+					// the Terser numbers its extra components differently
+					boolean primitive = segment.getField(field, rep) instanceof Primitive;
+					for (int component = 1; component <= (primitive ? 1 : 8); component++) {
+						for (int sub = 1; sub <= (primitive ? 1 : 3); sub++) {
+							String path = name + "-" + field + "(" + rep
+									+ ")-" + component + "-" + sub;
+							assertEquals(path, Terser.get(segment, field, rep,
+									component, sub), msg.get(index, field,
+									rep, component, sub));
+						}
+					}
+				}
+			}
+		}
+	}
+}
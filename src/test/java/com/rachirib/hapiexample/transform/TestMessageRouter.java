@@ -0,0 +1,87 @@
+package com.rachirib.hapiexample.transform;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import ca.uhn.fhir.model.dstu2.resource.Bundle;
+import ca.uhn.hl7v2.ErrorCode;
+import ca.uhn.hl7v2.HL7Exception;
+import ca.uhn.hl7v2.model.Message;
+
+public class TestMessageRouter {
+
+	/** Would fail to parse, the router must reject it first */
+	private static final String MSG_ADTA02_BROKEN = "MSH|^~\\&|REGADT|MCM|IFENG||199601061000||ADT^A02|000002|P|2.3\r"
+			+ "PID|||\u0000\u0000\r";
+
+	private static final String MSG_ORU = "MSH|^~\\&|LAB|MCM|IFENG||199601061000||ORU^R01|000003|P|2.3\r";
+
+	@Test
+	public void test_a05_is_routed() throws Exception {
+		VersionTwoToFHIR transFHIR = new VersionTwoToFHIR();
+		try {
+			assertNotNull(transFHIR.transform(SampleMessages.MSG_ADTA05));
+		} finally {
+			transFHIR.close();
+		}
+	}
+
+	@Test
+	public void test_unsupported_rejected_before_parsing() throws Exception {
+		VersionTwoToFHIR transFHIR = new VersionTwoToFHIR();
+		try {
+			assertRejected(transFHIR, MSG_ADTA02_BROKEN,
+					ErrorCode.UNSUPPORTED_EVENT_CODE);
+			assertRejected(transFHIR, MSG_ORU,
+					ErrorCode.UNSUPPORTED_MESSAGE_TYPE);
+			assertRejected(transFHIR, "PID|||191919",
+					ErrorCode.SEGMENT_SEQUENCE_ERROR);
+		} finally {
+			transFHIR.close();
+		}
+	}
+
+	@Test
+	public void test_registered_transformer() throws Exception {
+		final Bundle expected = new Bundle();
+		VersionTwoToFHIR transFHIR = new VersionTwoToFHIR();
+		try {
+			transFHIR.getRouter().register("ORU", MessageRouter.ANY_TRIGGER,
+					new MessageTransformer() {
+						@Override
+						public Bundle transform(Message message) {
+							return expected;
+						}
+					});
+			assertSame(expected, transFHIR.transform(MSG_ORU));
+		} finally {
+			transFHIR.close();
+		}
+	}
+
+	@Test
+	public void test_msh_fields() throws Exception {
+		MshHeader msh = MshHeader.parse(SampleMessages.MSG_ADTA05);
+		assertEquals("REGADT", msh.getSendingApplication());
+		assertEquals("MCM", msh.getSendingFacility());
+		assertEquals("ADT", msh.getMessageType());
+		assertEquals("A05", msh.getTriggerEvent());
+		assertEquals("000001", msh.getControlId());
+		assertEquals("2.3", msh.getVersion());
+		assertEquals(null, msh.getReceivingFacility());
+	}
+
+	private static void assertRejected(VersionTwoToFHIR transFHIR,
+			String msg, ErrorCode expected) {
+		try {
+			transFHIR.transform(msg);
+			fail("Message must be rejected");
+		} catch (HL7Exception e) {
+			assertEquals(expected, e.getError());
+		}
+	}
+}
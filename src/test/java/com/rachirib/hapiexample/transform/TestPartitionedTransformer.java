@@ -0,0 +1,141 @@
+package com.rachirib.hapiexample.transform;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Consumer;
+
+import org.junit.Test;
+
+import com.rachirib.hapiexample.dedup.DuplicateFilter;
+
+public class TestPartitionedTransformer {
+
+	private static final String MSH = "MSH|^~\\&|REGADT|MCM|IFENG||199601061000||ADT^A05|000001|P|2.3\r";
+
+	@Test
+	public void test_patient_key() {
+		assertEquals("191919^GENHOSP", PatientKey.of(SampleMessages.MSG_ADTA05));
+		assertEquals("A1^X&1.2.3&ISO",
+				PatientKey.of(MSH + "PID|||A1^5^M10^X&1.2.3&ISO~B2^^^Y|\r"));
+		assertEquals("A1^X&1.2.3&ISO", PatientKey.of(MSH.replace("^~\\&",
+				"^~\\$") + "PID|||A1^^^X$1.2.3$ISO\r"));
+		assertEquals("A1", PatientKey.of(MSH + "PID|||A1\r"));
+		assertEquals("A1", PatientKey.of(MSH + "PID|||A1^^^~B2^^^Y\n"));
+		assertNull(PatientKey.of(MSH + "PID|||^^^GENHOSP\r"));
+		assertNull(PatientKey.of(MSH + "PID|1\r"));
+		assertNull(PatientKey.of(MSH + "EVN|A05\r"));
+		assertNull(PatientKey.of("NOT A MESSAGE"));
+
+		assertEquals(PatientKey.NONE, PatientKey.hash(MSH + "PID|1\r"));
+		assertEquals(PatientKey.hash(MSH + "PID|||A1^^^X\r"),
+				PatientKey.hash(MSH + "PID|||A1^3^M10^X|||\r"));
+		assertFalse(PatientKey.hash(MSH + "PID|||A1^^^X\r") == PatientKey
+				.hash(MSH + "PID|||A1^^^Y\r"));
+	}
+
+	@Test
+	public void test_order_kept_per_patient() throws Exception {
+		VersionTwoToFHIR transFHIR = new VersionTwoToFHIR();
+		PartitionedTransformer partitioned = new PartitionedTransformer(
+				new BatchTransformer(transFHIR,
+						ForkJoinPool.commonPool(), 1), 4, 3);
+		try {
+			List<String> msgs = new ArrayList<String>();
+			for (int i = 0; i < 120; i++) {
+				msgs.add(SampleMessages.MSG_ADTA05.replace("191919^^^GENHOSP",
+						"P" + i % 7 + "^^^GENHOSP").replace("|000001|",
+						"|" + i + "|"));
+			}
+			final Map<String, List<TransformResult>> byPatient = new HashMap<String, List<TransformResult>>();
+			final Map<String, String> threads = new HashMap<String, String>();
+			partitioned.transform(msgs.iterator(),
+					new Consumer<TransformResult>() {
+						@Override
+						public void accept(TransformResult result) {
+							String patient = PatientKey.of(result.getMessage());
+							synchronized (byPatient) {
+								if (!byPatient.containsKey(patient)) {
+									byPatient.put(patient,
+											new ArrayList<TransformResult>());
+									threads.put(patient, Thread
+											.currentThread().getName());
+								}
+								byPatient.get(patient).add(result);
+								if (!threads.get(patient).equals(
+										Thread.currentThread().getName())) {
+									threads.put(patient, "MOVED");
+								}
+							}
+						}
+					});
+			assertEquals(7, byPatient.size());
+			assertFalse(threads.containsValue("MOVED"));
+			for (List<TransformResult> results : byPatient.values()) {
+				assertTrue(results.size() >= 17);
+				for (int i = 0; i < results.size(); i++) {
+					assertTrue(results.get(i).isSuccess());
+					if (i > 0) {
+						assertTrue(results.get(i - 1).getIndex() < results
+								.get(i).getIndex());
+					}
+				}
+			}
+		} finally {
+			partitioned.close();
+			transFHIR.close();
+		}
+	}
+
+	@Test
+	public void test_rejected_result_not_delivered() throws Exception {
+		VersionTwoToFHIR transFHIR = new VersionTwoToFHIR();
+		DuplicateFilter duplicates = new DuplicateFilter();
+		PartitionedTransformer partitioned = new PartitionedTransformer(
+				new BatchTransformer(transFHIR, ForkJoinPool.commonPool(), 1,
+						duplicates), 1, 3);
+		try {
+			String first = SampleMessages.MSG_ADTA05;
+			String second = first.replace("|000001|", "|000002|");
+			try {
+				partitioned.transform(Arrays.asList(first, second).iterator(),
+						new Consumer<TransformResult>() {
+							@Override
+							public void accept(TransformResult result) {
+								throw new IllegalStateException("Sink down");
+							}
+						});
+				fail("The handler failed");
+			} catch (IllegalStateException expected) {
+			}
+
+			// retransmitted, neither is a duplicate
+			final List<TransformResult> results = new ArrayList<TransformResult>();
+			partitioned.transform(Arrays.asList(first, second).iterator(),
+					new Consumer<TransformResult>() {
+						@Override
+						public void accept(TransformResult result) {
+							results.add(result);
+						}
+					});
+			assertEquals(2, results.size());
+			for (TransformResult result : results) {
+				assertTrue(result.isSuccess());
+			}
+			assertEquals(Long.valueOf(0),
+					Long.valueOf(duplicates.getDuplicates()));
+		} finally {
+			partitioned.close();
+			transFHIR.close();
+		}
+	}
+}
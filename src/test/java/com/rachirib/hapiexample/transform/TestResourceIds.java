@@ -0,0 +1,115 @@
+package com.rachirib.hapiexample.transform;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import ca.uhn.fhir.model.api.IResource;
+import ca.uhn.fhir.model.dstu2.resource.Bundle;
+import ca.uhn.fhir.model.dstu2.resource.Condition;
+import ca.uhn.fhir.model.dstu2.resource.Encounter;
+import ca.uhn.fhir.model.dstu2.resource.MessageHeader;
+import ca.uhn.fhir.model.dstu2.resource.Patient;
+
+public class TestResourceIds {
+
+	private static VersionTwoToFHIR transFHIR;
+
+	@BeforeClass
+	public static void setUp() {
+		transFHIR = new VersionTwoToFHIR();
+	}
+
+	@AfterClass
+	public static void tearDown() throws Exception {
+		transFHIR.close();
+	}
+
+	@Test
+	public void test_name_based_uuid() {
+		UUID uuid = UUID.fromString(ResourceIds.uuid("Patient", "191919",
+				"GENHOSP"));
+		assertEquals(5, uuid.version());
+		assertEquals(2, uuid.variant());
+		assertEquals(uuid.toString(),
+				ResourceIds.uuid("Patient", "191919", "GENHOSP"));
+		assertFalse(uuid.toString().equals(
+				ResourceIds.uuid("Encounter", "191919", "GENHOSP")));
+		assertFalse(ResourceIds.uuid("Patient", "1919", "19GENHOSP").equals(
+				ResourceIds.uuid("Patient", "191919", "GENHOSP")));
+		assertFalse(ResourceIds.uuid("Patient", "191919", null).equals(
+				ResourceIds.uuid("Patient", "191919")));
+	}
+
+	@Test
+	public void test_same_message_same_ids() throws Exception {
+		Bundle first = transFHIR.transformADTA05(SampleMessages.MSG_ADTA05);
+		Bundle again = transFHIR.transformADTA05(SampleMessages.MSG_ADTA05);
+		assertEquals(first.getId().getIdPart(), again.getId().getIdPart());
+		assertEquals(12, first.getEntry().size());
+		for (int i = 0; i < first.getEntry().size(); i++) {
+			assertEquals(first.getEntry().get(i).getResource().getId()
+					.getIdPart(), again.getEntry().get(i).getResource().getId()
+					.getIdPart());
+		}
+	}
+
+	@Test
+	public void test_patient_kept_across_messages() throws Exception {
+		Bundle first = transFHIR.transformADTA05(SampleMessages.MSG_ADTA05);
+		Bundle next = transFHIR.transformADTA05(SampleMessages.MSG_ADTA05
+				.replace("|000001|", "|000002|"));
+		Bundle other = transFHIR.transformADTA05(SampleMessages.MSG_ADTA05
+				.replace("191919^^^GENHOSP", "191919^^^OTHERHOSP"));
+
+		assertFalse(first.getId().getIdPart().equals(next.getId().getIdPart()));
+		assertFalse(resource(first, MessageHeader.class).getId().getIdPart()
+				.equals(resource(next, MessageHeader.class).getId().getIdPart()));
+		assertEquals(resource(first, Patient.class).getId().getIdPart(),
+				resource(next, Patient.class).getId().getIdPart());
+		assertFalse(resource(first, Patient.class).getId().getIdPart()
+				.equals(resource(other, Patient.class).getId().getIdPart()));
+	}
+
+	@Test
+	public void test_references_resolve_to_entries() throws Exception {
+		Bundle bundle = transFHIR.transformADTA05(SampleMessages.MSG_ADTA05);
+		Map<String, IResource> entries = new HashMap<String, IResource>();
+		for (Bundle.Entry entry : bundle.getEntry()) {
+			assertEquals(ResourceIds.URN_UUID, entry.getBase());
+			entries.put(entry.getBase()
+					+ entry.getResource().getId().getIdPart(),
+					entry.getResource());
+		}
+		assertEquals(12, entries.size());
+
+		Patient patient = resource(bundle, Patient.class);
+		Encounter encounter = resource(bundle, Encounter.class);
+		Condition condition = resource(bundle, Condition.class);
+		assertSame(patient, entries.get(encounter.getPatient().getReference()
+				.getValue()));
+		assertSame(patient, entries.get(condition.getPatient().getReference()
+				.getValue()));
+		assertSame(encounter, entries.get(condition.getEncounter()
+				.getReference().getValue()));
+		assertSame(patient, condition.getPatient().getResource());
+	}
+
+	private static <T extends IResource> T resource(Bundle bundle,
+			Class<T> type) {
+		for (Bundle.Entry entry : bundle.getEntry()) {
+			if (type.isInstance(entry.getResource())) {
+				return type.cast(entry.getResource());
+			}
+		}
+		throw new AssertionError("No " + type.getSimpleName() + " in bundle");
+	}
+}
@@ -0,0 +1,40 @@
+package com.rachirib.hapiexample.transform;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+
+public class TestSegmentFilter {
+
+	@Test
+	public void test_filter_segments() {
+		SegmentFilter filter = SegmentFilter.of("PID", "PV1");
+		assertEquals("MSH|^~\\&|A\rPID|1\rPV1||O\r",
+				filter.apply("MSH|^~\\&|A\rOBX|1\rPID|1\r\nGT1|1\rPV1||O\rIN1|1"));
+		String unchanged = "MSH|^~\\&|A\rPID|1\r";
+		assertSame(unchanged, filter.apply(unchanged));
+	}
+
+	@Test
+	public void test_same_bundle_as_full_parse() throws Exception {
+		VersionTwoToFHIR transFHIR = new VersionTwoToFHIR();
+		try {
+			IParser parser = new FhirContext().newJsonParser();
+			for (String msg : new String[] { SampleMessages.MSG_ADTA05,
+					SampleMessages.MSG_ADTA05_QLD,
+					SampleMessages.withNextOfKin(20) }) {
+				String full = parser.encodeResourceToString(transFHIR
+						.transformADTA05(transFHIR.parse(msg)));
+				String selective = parser.encodeResourceToString(transFHIR
+						.transform(msg));
+				assertEquals(full, selective);
+			}
+		} finally {
+			transFHIR.close();
+		}
+	}
+}
@@ -0,0 +1,170 @@
+package com.rachirib.hapiexample.transform;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+import com.rachirib.hapiexample.cache.ReferenceResourceCache;
+import com.rachirib.hapiexample.dedup.PatientStateStore;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.model.api.IResource;
+import ca.uhn.fhir.model.dstu2.resource.Bundle;
+import ca.uhn.fhir.model.dstu2.resource.Location;
+import ca.uhn.fhir.model.dstu2.resource.Organization;
+import ca.uhn.fhir.model.dstu2.resource.Practitioner;
+import ca.uhn.hl7v2.DefaultHapiContext;
+import ca.uhn.hl7v2.HapiContext;
+import ca.uhn.hl7v2.model.v23.message.ADT_A05;
+
+public class TestSharedContext {
+
+	@Test
+	public void test_shared_between_threads() throws Exception {
+		final VersionTwoToFHIR transFHIR = new VersionTwoToFHIR();
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			List<Future<Bundle>> futures = new ArrayList<Future<Bundle>>();
+			for (int i = 0; i < 32; i++) {
+				final String msg = i % 2 == 0 ? SampleMessages.MSG_ADTA05
+						: SampleMessages.MSG_ADTA05_QLD;
+				futures.add(executor.submit(new Callable<Bundle>() {
+					@Override
+					public Bundle call() throws Exception {
+						return transFHIR.transformADTA05(msg);
+					}
+				}));
+			}
+			for (Future<Bundle> future : futures) {
+				assertNotNull(future.get());
+			}
+		} finally {
+			executor.shutdown();
+			transFHIR.close();
+		}
+	}
+
+	@Test
+	public void test_closed_transformer_rejects_messages() throws Exception {
+		VersionTwoToFHIR transFHIR = new VersionTwoToFHIR();
+		transFHIR.close();
+		try {
+			transFHIR.transformADTA05(SampleMessages.MSG_ADTA05);
+			fail("Closed transformer must not parse");
+		} catch (IllegalStateException expected) {
+		}
+	}
+
+	@Test
+	public void test_caller_context_is_kept() throws Exception {
+		HapiContext context = new DefaultHapiContext(
+				Executors.newCachedThreadPool());
+		VersionTwoToFHIR transFHIR = new VersionTwoToFHIR(context);
+		transFHIR.close();
+		// still usable by its owner
+		assertEquals("ADT_A05", context.getGenericParser()
+				.parse(SampleMessages.MSG_ADTA05).getName());
+		context.close();
+	}
+
+	@Test
+	public void test_reference_resources_are_shared() throws Exception {
+		HapiContext context = new DefaultHapiContext(
+				Executors.newCachedThreadPool());
+		FhirContext ctx = new FhirContext();
+		VersionTwoToFHIR cached = new VersionTwoToFHIR(context);
+		VersionTwoToFHIR uncached = new VersionTwoToFHIR(context,
+				new ReferenceResourceCache(0));
+		try {
+			ADT_A05 adtMsg = (ADT_A05) cached.parse(SampleMessages.MSG_ADTA05);
+			assertSame(cached.transformPractitioner(adtMsg.getPV1()
+					.getPv17_AttendingDoctor(0)),
+					cached.transformPractitioner(adtMsg.getPV1()
+							.getPv18_ReferringDoctor(0)));
+
+			for (int i = 0; i < 3; i++) {
+				for (String msg : new String[] { SampleMessages.MSG_ADTA05,
+						SampleMessages.MSG_ADTA05_QLD }) {
+					assertEquals(
+							ctx.newJsonParser().encodeResourceToString(
+									uncached.transform(msg)),
+							ctx.newJsonParser().encodeResourceToString(
+									cached.transform(msg)));
+				}
+			}
+			ReferenceResourceCache cache = cached.getReferenceCache();
+			assertTrue(cache.toString(),
+					cache.getPractitioners().getHits() > 0);
+			assertTrue(cache.toString(), cache.getLocations().getHits() > 0);
+			assertTrue(cache.toString(),
+					cache.getOrganizations().getHits() > 0);
+		} finally {
+			context.close();
+		}
+	}
+
+	@Test
+	public void test_shared_resources_not_modified() throws Exception {
+		FhirContext ctx = new FhirContext();
+		VersionTwoToFHIR transFHIR = new VersionTwoToFHIR();
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		Path path = Files.createTempFile("patients", ".pst");
+		Files.delete(path);
+		PatientStateStore patients = new PatientStateStore(path, 100, ctx);
+		try {
+			BatchTransformer batch = new BatchTransformer(transFHIR,
+					executor, 1, null, patients);
+			TransformResult result = batch.transformOne(0,
+					SampleMessages.MSG_ADTA05);
+			batch.delivered(result);
+			Bundle first = result.getBundle();
+			List<String> shared = shared(ctx, first);
+			// operator, doctor, 5 locations, service
+			assertEquals(8, shared.size());
+
+			// the Patient left out and the references to it re-pointed
+			result = batch.transformOne(1, SampleMessages.MSG_ADTA05.replace(
+					"|000001|", "|000002|"));
+			batch.delivered(result);
+			Bundle second = result.getBundle();
+			ctx.newJsonParser().encodeResourceToString(second);
+			assertSame(first.getEntry().get(1).getResource(), second
+					.getEntry().get(1).getResource());
+			assertEquals(shared, shared(ctx, first));
+		} finally {
+			executor.shutdown();
+			patients.close();
+			Files.deleteIfExists(path);
+			transFHIR.close();
+		}
+	}
+
+	/**
+	 * @return JSON of the cached resources of a bundle
+	 */
+	private static List<String> shared(FhirContext ctx, Bundle bundle) {
+		List<String> json = new ArrayList<String>();
+		for (Bundle.Entry entry : bundle.getEntry()) {
+			IResource resource = entry.getResource();
+			if (resource instanceof Practitioner
+					|| resource instanceof Location
+					|| resource instanceof Organization) {
+				json.add(ctx.newJsonParser().encodeResourceToString(resource));
+			}
+		}
+		return json;
+	}
+}
@@ -0,0 +1,200 @@
+package com.rachirib.hapiexample.transform;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.time.LocalDate;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+import ca.uhn.hl7v2.model.DataTypeException;
+import ca.uhn.hl7v2.model.primitive.CommonTS;
+
+public class TestTimestampParser {
+
+	/** UTC, zones with DST, with a half hour offset and a half hour DST */
+	private static final String[] ZONES = { "UTC", "America/New_York",
+			"Europe/Paris", "Asia/Kolkata", "Australia/Lord_Howe" };
+
+	@Test
+	public void test_same_as_hapi() throws Exception {
+		List<String> values = new ArrayList<String>();
+		// every day of two years around the DST transitions, at each precision
+		LocalDate day = LocalDate.of(2015, 1, 1);
+		while (day.getYear() < 2017) {
+			String date = String.format("%04d%02d%02d", day.getYear(),
+					day.getMonthValue(), day.getDayOfMonth());
+			values.add(date);
+			for (String time : new String[] { "00", "0130", "0230", "023045",
+					"0300", "113015.5", "235959.999" }) {
+				values.add(date + time);
+			}
+			// HAPI applies the negative whole hours unlike the zones
+			values.add(date + "1030-0300");
+			values.add(date + "-0800");
+			day = day.plusDays(1);
+		}
+		values.add("18830101");
+		values.add("190001011200");
+		values.add("19160229235959");
+		values.add("20000229");
+		values.add("99991231235959.9999");
+
+		for (String zone : ZONES) {
+			TimestampParser parser = new TimestampParser(
+					TimeZone.getTimeZone(zone));
+			TimeZone defaultZone = TimeZone.getDefault();
+			TimeZone.setDefault(TimeZone.getTimeZone(zone));
+			try {
+				for (String ts : values) {
+					assertEquals(zone + " " + ts, new CommonTS(ts)
+							.getValueAsDate(), parser.parse(ts));
+				}
+			} finally {
+				TimeZone.setDefault(defaultZone);
+			}
+		}
+	}
+
+	@Test
+	public void test_fractions_same_as_hapi() throws DataTypeException {
+		TimestampParser parser = new TimestampParser(
+				TimeZone.getTimeZone("UTC"));
+		TimeZone defaultZone = TimeZone.getDefault();
+		TimeZone.setDefault(TimeZone.getTimeZone("UTC"));
+		try {
+			// HAPI rounds the float of the fraction, .1235 is 123 ms
+			for (int digits = 1; digits <= 4; digits++) {
+				int count = (int) Math.pow(10, digits);
+				for (int fraction = 0; fraction < count; fraction++) {
+					String ts = "20160101120000."
+							+ String.format("%0" + digits + "d", fraction);
+					assertEquals(ts, new CommonTS(ts).getValueAsDate(),
+							parser.parse(ts));
+				}
+			}
+		} finally {
+			TimeZone.setDefault(defaultZone);
+		}
+	}
+
+	@Test
+	public void test_invalid_as_hapi() {
+		TimestampParser parser = TimestampParser.getDefault();
+		String[] values = { "199", "1996022910304512345678901", "0000",
+				"19961301", "19960230", "19970229", "1996022", "199602291",
+				"1996022924", "199602291060", "19960229103060",
+				"1996022910304", "19960229103045.", "19960229103045.12345",
+				"199602291030-05", "199602291030+2400", "199602291030-0560",
+				"19960229T1030", "1996-02-29", "19960229103045,1", "ABCD" };
+		for (String ts : values) {
+			try {
+				new CommonTS(ts).getValueAsDate();
+				fail("HAPI accepts " + ts);
+			} catch (DataTypeException expected) {
+			}
+			try {
+				parser.parse(ts);
+				fail("Parsed " + ts);
+			} catch (DataTypeException expected) {
+			}
+		}
+	}
+
+	@Test
+	public void test_empty() throws DataTypeException {
+		TimestampParser parser = TimestampParser.getDefault();
+		assertNull(parser.parse(null));
+		assertNull(parser.parse(""));
+		assertNull(parser.parse("\"\""));
+	}
+
+	/**
+	 * Where HAPI 2.2 is wrong: positive offsets, offsets with minutes, offsets
+	 * in the hours of the default zone, year and month precisions
+	 */
+	@Test
+	public void test_offsets_and_precisions() throws DataTypeException {
+		TimestampParser parser = new TimestampParser(
+				TimeZone.getTimeZone("America/New_York"));
+		assertEquals(instant(1996, 2, 29, 10, 30, "+05:00"),
+				parser.parseMillis("199602291030+0500"));
+		assertEquals(instant(1996, 2, 29, 10, 30, "+05:30"),
+				parser.parseMillis("199602291030+0530"));
+		assertEquals(instant(1996, 2, 29, 10, 30, "-03:30"),
+				parser.parseMillis("199602291030-0330"));
+		assertEquals(instant(1996, 7, 1, 10, 30, "-05:00"),
+				parser.parseMillis("199607011030-0500"));
+		assertEquals(instant(1996, 7, 1, 10, 30, "-04:00"),
+				parser.parseMillis("199607011030"));
+		assertEquals(instant(1996, 1, 1, 0, 0, "-05:00"),
+				parser.parseMillis("1996"));
+		assertEquals(instant(1996, 2, 1, 0, 0, "-05:00"),
+				parser.parseMillis("199602"));
+		assertEquals(instant(1996, 1, 1, 0, 0, "+00:00"),
+				parser.parseMillis("1996+0000"));
+		// a skipped local time is moved forward, a repeated one is the later
+		assertEquals(instant(2016, 3, 13, 3, 30, "-04:00"),
+				parser.parseMillis("201603130230"));
+		assertEquals(instant(2016, 11, 6, 1, 30, "-05:00"),
+				parser.parseMillis("201611060130"));
+	}
+
+	@Test
+	public void test_shared_between_threads() throws Exception {
+		final TimestampParser parser = new TimestampParser(
+				TimeZone.getTimeZone("Europe/Paris"));
+		final TimestampParser reference = new TimestampParser(
+				TimeZone.getTimeZone("Europe/Paris"));
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			List<Future<Void>> futures = new ArrayList<Future<Void>>();
+			for (int t = 0; t < 4; t++) {
+				final int thread = t;
+				futures.add(executor.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws DataTypeException {
+						LocalDate day = LocalDate.of(2016, 1, 1)
+								.plusDays(thread);
+						for (int i = 0; i < 2000; i++) {
+							// more days than the cache holds, on all threads
+							String ts = String.format("%04d%02d%02d0230",
+									day.getYear(), day.getMonthValue(),
+									day.getDayOfMonth());
+							long expected;
+							synchronized (reference) {
+								expected = reference.parseMillis(ts);
+							}
+							assertEquals(ts, Long.valueOf(expected),
+									Long.valueOf(parser.parseMillis(ts)));
+							day = day.plusDays(7);
+						}
+						return null;
+					}
+				}));
+			}
+			for (Future<Void> future : futures) {
+				future.get();
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	private static Long instant(int year, int month, int day, int hour,
+			int minute, String offset) {
+		return Long.valueOf(OffsetDateTime
+				.of(year, month, day, hour, minute, 0, 0, ZoneOffset.of(offset))
+				.toInstant().toEpochMilli());
+	}
+}
@@ -0,0 +1,59 @@
+package com.rachirib.hapiexample.transform;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import com.rachirib.hapiexample.cache.ReferenceResourceCache;
+
+import ca.uhn.fhir.model.dstu2.resource.Bundle;
+import ca.uhn.fhir.validation.ValidationResult;
+
+public class TestTransformerFactory {
+
+	@Test
+	public void test_default_is_shared() {
+		assertSame(TransformerFactory.getDefault(),
+				TransformerFactory.getDefault());
+		assertSame(TransformerFactory.getDefault().getFhirContext(),
+				TransformerFactory.getDefault().getFhirContext());
+	}
+
+	@Test
+	public void test_warm_up_leaves_no_cached_resource() throws Exception {
+		TransformerFactory factory = new TransformerFactory();
+		try {
+			ReferenceResourceCache cache = factory.getTransformer()
+					.getReferenceCache();
+			assertEquals(0, cache.getPractitioners().size());
+			assertEquals(0, cache.getLocations().size());
+			assertEquals(0, cache.getOrganizations().size());
+		} finally {
+			factory.close();
+		}
+	}
+
+	@Test
+	public void test_background_warm_up() throws Exception {
+		TransformerFactory factory = new TransformerFactory(true);
+		try {
+			// the getters wait for the warm up
+			Bundle bundle = factory.getTransformer().transformADTA05(
+					SampleMessages.MSG_ADTA05);
+			assertTrue(factory.isWarm());
+			assertTrue(factory.awaitWarm() >= 0);
+
+			assertSame(factory.getValidator(), factory.getValidator());
+			assertNotSame(factory.newJsonParser(), factory.newJsonParser());
+			ValidationResult result = factory.getValidator()
+					.validateWithResult(bundle);
+			assertTrue(factory.newJsonParser().encodeResourceToString(
+					result.getOperationOutcome()), result.isSuccessful());
+		} finally {
+			factory.close();
+		}
+	}
+}
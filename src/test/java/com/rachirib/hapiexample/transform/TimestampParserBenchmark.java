@@ -0,0 +1,59 @@
+package com.rachirib.hapiexample.transform;
+
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import ca.uhn.hl7v2.model.DataTypeException;
+import ca.uhn.hl7v2.model.primitive.CommonTS;
+
+/**
+ * The timestamps of an ADT_A05 (MSH-7, EVN-2, PID-7, PV1-44 and PV1-45) read
+ * by CommonTS and by the parser, in a zone with DST.
+ *
+ * Run with <code>mvn -Pbenchmark verify -Djmh.includes=TimestampParserBenchmark</code>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "-Duser.timezone=America/New_York",
+		"-Dlog4j.configuration=log4j-benchmark.xml" })
+public class TimestampParserBenchmark {
+
+	private static final String[] VALUES = { "199601061000-0500",
+			"199601061000", "19560129", "199601061000", "19960108150512.25" };
+
+	private TimestampParser parser;
+
+	@Setup
+	public void setUp() {
+		parser = new TimestampParser(TimeZone.getDefault());
+	}
+
+	@Benchmark
+	public void commonTS(Blackhole bh) throws DataTypeException {
+		for (String ts : VALUES) {
+			bh.consume(new CommonTS(ts).getValueAsDate());
+		}
+	}
+
+	@Benchmark
+	public void parser(Blackhole bh) throws DataTypeException {
+		for (String ts : VALUES) {
+			bh.consume(parser.parseMillis(ts));
+		}
+	}
+}
@@ -0,0 +1,64 @@
+package com.rachirib.hapiexample.transform;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ca.uhn.fhir.model.dstu2.resource.Bundle;
+import ca.uhn.hl7v2.HL7Exception;
+
+/**
+ * Messages/sec of {@link VersionTwoToFHIR#transformADTA05(String)}
+ * with a HAPI context built for every message (previous behaviour) against a
+ * shared transformer.
+ * 
+ * Run with <code>mvn -Pbenchmark verify -Djmh.includes=TransformBenchmark</code>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dlog4j.configuration=log4j-benchmark.xml")
+@Threads(4)
+public class TransformBenchmark {
+
+	private VersionTwoToFHIR shared;
+
+	@Setup
+	public void setUp() {
+		shared = new VersionTwoToFHIR();
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		shared.close();
+	}
+
+	@Benchmark
+	public Bundle contextPerMessage() throws HL7Exception, IOException {
+		VersionTwoToFHIR transformer = new VersionTwoToFHIR();
+		try {
+			return transformer.transformADTA05(SampleMessages.MSG_ADTA05);
+		} finally {
+			transformer.close();
+		}
+	}
+
+	@Benchmark
+	public Bundle sharedContext() throws HL7Exception {
+		return shared.transformADTA05(SampleMessages.MSG_ADTA05);
+	}
+}
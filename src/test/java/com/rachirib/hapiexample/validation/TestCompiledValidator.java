@@ -0,0 +1,99 @@
+package com.rachirib.hapiexample.validation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+import com.rachirib.hapiexample.transform.SampleMessages;
+import com.rachirib.hapiexample.transform.TransformerFactory;
+
+import ca.uhn.fhir.model.dstu2.resource.Bundle;
+import ca.uhn.fhir.model.dstu2.resource.Patient;
+import ca.uhn.fhir.model.dstu2.valueset.BundleTypeEnum;
+import ca.uhn.fhir.validation.ValidationResult;
+
+public class TestCompiledValidator {
+
+	private final TransformerFactory factory = TransformerFactory
+			.getDefault();
+	private final CompiledValidator validator = new CompiledValidator(
+			factory.getFhirContext()).precompile(Bundle.class);
+
+	@Test
+	public void test_same_result_as_hapi() throws Exception {
+		Bundle noType = new Bundle();
+		Bundle searchTotal = new Bundle();
+		searchTotal.setType(BundleTypeEnum.MESSAGE);
+		searchTotal.setTotal(1);
+		searchTotal.addEntry().setResource(new Patient());
+
+		assertSameResult(transform(SampleMessages.MSG_ADTA05), true);
+		assertSameResult(transform(SampleMessages.MSG_ADTA05_QLD), true);
+		assertSameResult(transform(SampleMessages.withNextOfKin(20)), true);
+		// schema: type is required
+		assertSameResult(noType, false);
+		// schematron: total only when a search
+		assertSameResult(searchTotal, false);
+	}
+
+	@Test
+	public void test_shared_between_threads() throws Exception {
+		final Bundle bundle = transform(SampleMessages.MSG_ADTA05);
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			List<Future<ValidationResult>> futures = new ArrayList<Future<ValidationResult>>();
+			for (int i = 0; i < 16; i++) {
+				futures.add(executor.submit(new Callable<ValidationResult>() {
+					@Override
+					public ValidationResult call() {
+						return new CompiledValidator(factory.getFhirContext())
+								.validateWithResult(bundle);
+					}
+				}));
+			}
+			for (Future<ValidationResult> future : futures) {
+				assertTrue(future.get().isSuccessful());
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void test_schema_only() {
+		Bundle searchTotal = new Bundle();
+		searchTotal.setType(BundleTypeEnum.MESSAGE);
+		searchTotal.setTotal(1);
+		assertFalse(validator.validateWithResult(searchTotal).isSuccessful());
+		assertTrue(new CompiledValidator(factory.getFhirContext())
+				.setSchematron(false).validateWithResult(searchTotal)
+				.isSuccessful());
+	}
+
+	private Bundle transform(String msg) throws Exception {
+		return factory.getTransformer().transformADTA05(msg);
+	}
+
+	private void assertSameResult(Bundle bundle, boolean successful) {
+		ValidationResult expected = factory.getValidator().validateWithResult(
+				bundle);
+		ValidationResult actual = validator.validateWithResult(bundle);
+		String issues = factory.newXmlParser().encodeResourceToString(
+				actual.getOperationOutcome());
+		assertEquals(issues, Boolean.valueOf(successful),
+				Boolean.valueOf(actual.isSuccessful()));
+		assertEquals(issues, Boolean.valueOf(expected.isSuccessful()),
+				Boolean.valueOf(actual.isSuccessful()));
+		assertEquals(issues, expected.getOperationOutcome().getIssue().size(),
+				actual.getOperationOutcome().getIssue().size());
+	}
+}
@@ -0,0 +1,142 @@
+package com.rachirib.hapiexample.validation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.rachirib.hapiexample.stream.BundleSink;
+import com.rachirib.hapiexample.transform.SampleMessages;
+import com.rachirib.hapiexample.transform.TransformResult;
+import com.rachirib.hapiexample.transform.TransformerFactory;
+import com.rachirib.hapiexample.transform.VersionTwoToFHIR;
+
+import ca.uhn.fhir.model.dstu2.resource.Bundle;
+import ca.uhn.fhir.validation.ValidationResult;
+import ca.uhn.hl7v2.HL7Exception;
+
+public class TestValidationStage {
+
+	private final List<TransformResult> forwarded = Collections
+			.synchronizedList(new ArrayList<TransformResult>());
+	private final List<TransformResult> failures = Collections
+			.synchronizedList(new ArrayList<TransformResult>());
+
+	@Test
+	public void test_always_reports_failures() throws Exception {
+		ValidationStage stage = newStage(new ValidationConfig());
+		TransformResult valid = transform(0, SampleMessages.MSG_ADTA05);
+		// a bundle without type is not valid
+		TransformResult invalid = TransformResult.success(1,
+				SampleMessages.MSG_ADTA05, new Bundle());
+		TransformResult error = TransformResult.failure(2, "MSH|",
+				new HL7Exception("bad message"));
+		stage.accept(valid);
+		stage.accept(invalid);
+		stage.accept(error);
+		stage.close();
+
+		assertEquals(3, forwarded.size());
+		assertSame(valid, forwarded.get(0));
+		assertSame(invalid, forwarded.get(1));
+		assertSame(error, forwarded.get(2));
+		assertEquals(Long.valueOf(2), Long.valueOf(stage.getQueued()));
+		assertEquals(Long.valueOf(1), Long.valueOf(stage.getPassed()));
+		assertEquals(Long.valueOf(1), Long.valueOf(stage.getFailed()));
+		assertEquals(1, failures.size());
+		assertSame(invalid, failures.get(0));
+	}
+
+	@Test
+	public void test_first_seen_shape() throws Exception {
+		ValidationStage stage = newStage(new ValidationConfig()
+				.setMode(ValidationMode.FIRST_SEEN_SHAPE));
+		stage.accept(transform(0, SampleMessages.MSG_ADTA05));
+		stage.accept(transform(1, SampleMessages.withNextOfKin(10)));
+		stage.accept(transform(2, SampleMessages.MSG_ADTA05_QLD));
+		stage.accept(transform(3, SampleMessages.MSG_ADTA05_QLD));
+		stage.close();
+
+		assertEquals(4, forwarded.size());
+		assertEquals(Long.valueOf(2), Long.valueOf(stage.getQueued()));
+		assertEquals(Long.valueOf(2), Long.valueOf(stage.getSkipped()));
+		assertTrue(failures.isEmpty());
+	}
+
+	@Test
+	public void test_sampled_none() throws Exception {
+		ValidationStage stage = newStage(new ValidationConfig().setMode(
+				ValidationMode.SAMPLED).setSamplePercent(0));
+		TransformResult result = transform(0, SampleMessages.MSG_ADTA05);
+		for (int i = 0; i < 10; i++) {
+			stage.accept(result);
+		}
+		stage.close();
+
+		assertEquals(10, forwarded.size());
+		assertEquals(Long.valueOf(0), Long.valueOf(stage.getQueued()));
+		assertEquals(Long.valueOf(10), Long.valueOf(stage.getSkipped()));
+	}
+
+	@Test
+	public void test_full_queue_drops() throws Exception {
+		ValidationStage stage = newStage(new ValidationConfig()
+				.setQueueCapacity(1));
+		TransformResult result = transform(0, SampleMessages.MSG_ADTA05);
+		for (int i = 0; i < 20; i++) {
+			stage.accept(result);
+		}
+		stage.close();
+
+		assertEquals(20, forwarded.size());
+		assertTrue(stage.getDropped() > 0);
+		assertEquals(Long.valueOf(20), Long.valueOf(stage.getQueued()
+				+ stage.getDropped()));
+		assertEquals(Long.valueOf(stage.getQueued()),
+				Long.valueOf(stage.getPassed()));
+	}
+
+	@Test
+	public void test_shape() {
+		String shape = ValidationStage.shape(SampleMessages.MSG_ADTA05);
+		assertEquals(
+				"ADT^A05 MSH EVN PID NK1 PV1 PV2 OBX DG1 GT1 IN1",
+				shape);
+		assertEquals(shape,
+				ValidationStage.shape(SampleMessages.withNextOfKin(50)));
+		assertFalse(shape.equals(ValidationStage
+				.shape(SampleMessages.MSG_ADTA05_QLD)));
+	}
+
+	private ValidationStage newStage(ValidationConfig config) {
+		return new ValidationStage(TransformerFactory.getDefault()
+				.getValidator(), new BundleSink() {
+			@Override
+			public void accept(TransformResult result) {
+				forwarded.add(result);
+			}
+		}, new ValidationFailureSink() {
+			@Override
+			public void failed(TransformResult result,
+					ValidationResult validation) {
+				assertNotNull(validation.getOperationOutcome());
+				failures.add(result);
+			}
+		}, config);
+	}
+
+	private static TransformResult transform(long index, String msg)
+			throws HL7Exception {
+		VersionTwoToFHIR transformer = TransformerFactory.getDefault()
+				.getTransformer();
+		return TransformResult.success(index, msg,
+				transformer.transformADTA05(msg));
+	}
+}
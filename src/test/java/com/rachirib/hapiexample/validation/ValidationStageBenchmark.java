@@ -0,0 +1,84 @@
+package com.rachirib.hapiexample.validation;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.rachirib.hapiexample.stream.BundleSink;
+import com.rachirib.hapiexample.transform.SampleMessages;
+import com.rachirib.hapiexample.transform.TransformResult;
+import com.rachirib.hapiexample.transform.TransformerFactory;
+
+import ca.uhn.fhir.model.dstu2.resource.Bundle;
+import ca.uhn.fhir.validation.ValidationResult;
+import ca.uhn.hl7v2.HL7Exception;
+
+/**
+ * Messages/sec of transform and validation on the calling thread, against
+ * transform with the validation handed to a {@link ValidationStage}
+ * 
+ * Run with <code>mvn -Pbenchmark verify -Djmh.includes=ValidationStageBenchmark</code>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dlog4j.configuration=log4j-benchmark.xml")
+public class ValidationStageBenchmark {
+
+	@Param({ "ALWAYS", "SAMPLED", "FIRST_SEEN_SHAPE" })
+	public String mode;
+
+	private TransformerFactory factory;
+	private ValidationStage stage;
+
+	@Setup
+	public void setUp() {
+		factory = new TransformerFactory();
+		stage = new ValidationStage(factory.getValidator(), new BundleSink() {
+			@Override
+			public void accept(TransformResult result) {
+			}
+		}, new ValidationFailureSink() {
+			@Override
+			public void failed(TransformResult result,
+					ValidationResult validation) {
+			}
+		}, new ValidationConfig().setMode(ValidationMode.valueOf(mode))
+				.setBlockWhenFull(true));
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		stage.close();
+		factory.close();
+	}
+
+	@Benchmark
+	public ValidationResult inline() throws HL7Exception {
+		Bundle bundle = factory.getTransformer().transformADTA05(
+				SampleMessages.MSG_ADTA05);
+		return factory.getValidator().validateWithResult(bundle);
+	}
+
+	@Benchmark
+	public void stage() throws HL7Exception, IOException {
+		Bundle bundle = factory.getTransformer().transformADTA05(
+				SampleMessages.MSG_ADTA05);
+		stage.accept(TransformResult.success(0, SampleMessages.MSG_ADTA05,
+				bundle));
+	}
+}
@@ -0,0 +1,77 @@
+package com.rachirib.hapiexample.validation;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.rachirib.hapiexample.transform.SampleMessages;
+import com.rachirib.hapiexample.transform.TransformerFactory;
+
+import ca.uhn.fhir.model.dstu2.resource.Bundle;
+import ca.uhn.fhir.validation.ValidationResult;
+import ca.uhn.hl7v2.HL7Exception;
+
+/**
+ * Validations/sec of the bundles of {@link com.rachirib.hapiexample.transform.VersionTwoToFHIR}:
+ * a HAPI validator per bundle (schema compiled every time), a shared HAPI
+ * validator, and a {@link CompiledValidator}
+ * 
+ * Run with <code>mvn -Pbenchmark verify -Djmh.includes=ValidatorBenchmark</code>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dlog4j.configuration=log4j-benchmark.xml")
+public class ValidatorBenchmark {
+
+	@Param({ "ADTA05", "ADTA05_QLD", "NK1_50" })
+	public String shape;
+
+	private TransformerFactory factory;
+	private CompiledValidator compiled;
+	private Bundle bundle;
+
+	@Setup
+	public void setUp() throws HL7Exception {
+		factory = new TransformerFactory();
+		compiled = new CompiledValidator(factory.getFhirContext())
+				.precompile(Bundle.class);
+		bundle = factory.getTransformer().transformADTA05(
+				SampleMessages.byShape(shape));
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		factory.close();
+	}
+
+	@Benchmark
+	public ValidationResult hapiValidatorPerBundle() {
+		return factory.getFhirContext().newValidator()
+				.validateWithResult(bundle);
+	}
+
+	@Benchmark
+	public ValidationResult hapiSharedValidator() {
+		return factory.getValidator().validateWithResult(bundle);
+	}
+
+	@Benchmark
+	public ValidationResult compiledValidator() {
+		return compiled.validateWithResult(bundle);
+	}
+}